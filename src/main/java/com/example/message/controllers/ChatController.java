@@ -178,6 +178,17 @@ public class ChatController {
             });
         });
         
+        // 在线状态增量：原地增删单个用户，不重建整个列表，选中项保持不变（回调已在JavaFX线程上执行）
+        ChatServiceExtensions.setOnUserPresenceChange((user, online) -> {
+            if (online) {
+                if (!onlineUsersListView.getItems().contains(user)) {
+                    onlineUsersListView.getItems().add(user);
+                }
+            } else {
+                onlineUsersListView.getItems().remove(user);
+            }
+        });
+        
         // 加载当前在线用户
         List<String> currentUsers = ChatServiceExtensions.getOnlineUsers();
         if (currentUsers != null) {
@@ -2,9 +2,14 @@ package com.example.message.services;
 
 import com.example.message.model.ChatMessage;
 import com.example.message.util.DBUtil;
+import com.example.message.util.Frame;
+import com.example.message.util.FrameCodec;
+import com.example.message.util.FrameCompression;
+import com.example.message.util.MessageIdGenerator;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -12,9 +17,18 @@ import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -36,14 +50,55 @@ public class ChatService {
     private static final String SERVER_HOST = "8.134.99.69"; // 服务器IP地址
     private static final int SERVER_PORT = 8888;
     private static Socket serverConnection;
-    private static PrintWriter serverWriter;
-    private static BufferedReader serverReader;
+    private static OutputStream serverOut;
+    private static InputStream serverIn;
+    // 与服务器协商的协议版本，Frame.TEXT表示文本协议
+    private static volatile int serverProtocolVersion = Frame.TEXT;
+    // 是否请求二进制协议：-Dchat.protocol=binary 开启，服务器不支持时自动退回文本协议
+    private static final boolean PREFER_BINARY = "binary".equalsIgnoreCase(System.getProperty("chat.protocol", "text"));
     private static boolean isConnectedToServer = false;
     private static boolean isUsingServerMode = false; // 是否使用服务器模式
     private static String currentChatPeer; // 当前聊天对象的用户名
 
     // 在线用户列表缓存
     private static final List<String> onlineUsers = new ArrayList<>();
+    // 是否请求在线状态增量：-Dchat.presence=false 关闭，关闭后每次变化接收完整的USERS列表
+    private static final boolean PREFER_PRESENCE_DELTAS = !"false".equalsIgnoreCase(System.getProperty("chat.presence", "true"));
+    // 已应用的在线状态版本号，-1表示尚未收到快照；与onlineUsers一起由onlineUsers锁保护
+    private static long presenceVersion = -1;
+    private static boolean presenceSnapshotRequested = false;
+
+    // 是否请求服务器对聊天消息回复ACK（-Dchat.ack=false 关闭），服务器确认后才启用可靠发送
+    private static final boolean PREFER_ACKS = !"false".equalsIgnoreCase(System.getProperty("chat.ack", "true"));
+    private static volatile boolean serverAcks = false;
+    // 是否请求压缩较长的正文：-Dchat.compress=false 关闭，只在二进制协议下生效
+    private static final boolean PREFER_COMPRESSION = !"false".equalsIgnoreCase(System.getProperty("chat.compress", "true"));
+    // 二进制协议下MSG帧带服务器分配的会话序列号，协商了ACK时自己发出的消息序列号也已知，
+    // 此时收到的消息经MessageOrderingService按序列号排序后再显示
+    private static volatile boolean orderedDelivery = false;
+    
+    // 会话恢复令牌，登录成功时下发、服务器优雅退出前更新；重连时连同各会话最后的序列号发给服务器，补发断线期间的消息
+    private static volatile String resumeToken;
+    // 是否请求在聊天连接上读写聊天记录（-Dchat.store=false 关闭），只在二进制协议下生效；
+    // 服务器确认store=1后历史、已读和保存消息走REQUEST帧，失败时退回HTTP接口
+    private static final boolean PREFER_STORE = !"false".equalsIgnoreCase(System.getProperty("chat.store", "true"));
+    private static volatile boolean serverStore = false;
+    // 是否请求由聊天服务器保存自己发出的消息（-Dchat.persist=false 关闭）；服务器确认persist=1后
+    // 发送和接收消息都不再调用API保存，消息ID以服务器返回的数据库ID为准
+    private static final boolean PREFER_PERSIST = !"false".equalsIgnoreCase(System.getProperty("chat.persist", "true"));
+    private static volatile boolean serverPersist = false;
+    // 服务器保存时自己发出、已回显但还不知道数据库ID的消息：客户端消息ID -> 回显的消息，收到带FLAG_STORED的ACK后换成数据库ID
+    private static final Map<Long, ChatMessage> unsavedEchoes = new ConcurrentHashMap<>();
+    // 等待存储请求响应的最长时间
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("chat.request.timeout.ms", 10000);
+    // 等待响应的存储请求：关联ID -> 响应
+    private static final Map<Long, CompletableFuture<Frame>> pendingRequests = new ConcurrentHashMap<>();
+    private static final AtomicLong nextRequestId = new AtomicLong();
+    // 一次拉取的历史条数
+    private static final int HISTORY_PAGE_SIZE = 200;
+    
+    // 收到RECONNECT后计划重连的时间，服务器关闭连接时按这个时间重连，不再固定等待5秒；0表示没有计划
+    private static volatile long plannedReconnectAt = 0;
 
     private static final Logger logger = Logger.getLogger(ChatService.class.getName());
 
@@ -145,49 +200,106 @@ public class ChatService {
             logger.info("远程地址: " + socket.getRemoteSocketAddress());
             
             // 创建输入输出流
-            serverWriter = new PrintWriter(new BufferedWriter(
-                new OutputStreamWriter(serverConnection.getOutputStream(), "UTF-8")), true);
-            serverReader = new BufferedReader(
-                new InputStreamReader(serverConnection.getInputStream(), "UTF-8"));
+            serverOut = new BufferedOutputStream(serverConnection.getOutputStream());
+            serverIn = new BufferedInputStream(serverConnection.getInputStream());
+            serverProtocolVersion = Frame.TEXT;
+            serverAcks = false;
+            serverStore = false;
+            serverPersist = false;
+            unsavedEchoes.clear();
+            synchronized (onlineUsers) {
+                presenceVersion = -1;
+                presenceSnapshotRequested = false;
+            }
             
             logger.info("输入输出流创建成功");
             
-            // 发送登录消息
-            String loginMessage = "LOGIN:" + username;
+            // 发送登录消息，支持二进制协议时附带 ;binary=版本号（可再附带 ;deflate=字典版本 请求压缩），
+            // 支持在线状态增量时附带 ;presence=1，需要消息确认时附带 ;ack=1，
+            // 重连时附带 ;resume=令牌;last=会话ID:序列号,... 请求补发断线期间的消息，
+            // 二进制协议下附带 ;store=1 请求在聊天连接上读写聊天记录，附带 ;persist=1 请求服务器保存聊天消息
+            // （数据库ID随带FLAG_STORED的MSG和ACK返回，文本协议的消息行没有ID）
+            String loginMessage = "LOGIN:" + username
+                + (PREFER_BINARY ? ";binary=" + Frame.MAX_BINARY_VERSION : "")
+                + (PREFER_BINARY && PREFER_COMPRESSION ? ";deflate=" + FrameCompression.DICTIONARY_VERSION : "")
+                + (PREFER_PRESENCE_DELTAS ? ";presence=1" : "")
+                + (PREFER_ACKS ? ";ack=1" : "")
+                + (PREFER_BINARY && PREFER_STORE ? ";store=1" : "")
+                + (PREFER_BINARY && PREFER_PERSIST ? ";persist=1" : "")
+                + resumeParams();
             logger.info("发送登录消息: " + loginMessage);
-            serverWriter.println(loginMessage);
+            serverOut.write((loginMessage + "\n").getBytes(StandardCharsets.UTF_8));
+            serverOut.flush();
             
-            // 读取服务器响应
-            String response = serverReader.readLine();
+            // 读取服务器响应（握手行逐字节读取，不会吞掉之后的二进制帧）
+            String response = FrameCodec.readLine(serverIn);
             logger.info("服务器响应: " + response);
             
             if (response != null && response.startsWith("LOGIN_SUCCESS")) {
+                serverProtocolVersion = parseNegotiatedVersion(response);
+                serverAcks = Arrays.asList(response.split(";")).contains("ack=1");
+                if (serverAcks) {
+                    // 聊天消息经可靠性服务发送，收到ACK前按超时重试
+                    MessageReliabilityService.start(ChatService::sendReliable);
+                }
+                orderedDelivery = serverAcks && serverProtocolVersion != Frame.TEXT;
+                serverStore = serverProtocolVersion != Frame.TEXT && Arrays.asList(response.split(";")).contains("store=1");
+                serverPersist = serverProtocolVersion != Frame.TEXT && Arrays.asList(response.split(";")).contains("persist=1");
+                String token = responseParam(response, "token");
+                resumeToken = token != null ? token : resumeToken;
+                if (orderedDelivery) {
+                    String resumed = responseParam(response, "resume");
+                    if (resumed == null) {
+                        // 服务器没有恢复会话（令牌无效或服务器不支持），从收到的第一条消息重新计数
+                        MessageOrderingService.reset();
+                    } else {
+                        // 服务器接着补发断线期间的消息，排序状态保留；无法补全的会话重新计数，需要时重新拉取历史
+                        String gaps = responseParam(response, "gap");
+                        if (gaps != null) {
+                            for (String conversationId : gaps.split(",")) {
+                                MessageOrderingService.resetConversation(conversationId);
+                            }
+                        }
+                        logger.info("已恢复会话，服务器补发消息 " + resumed + " 条"
+                            + (gaps != null ? "，无法补全的会话: " + gaps : ""));
+                    }
+                    MessageOrderingService.start(message ->
+                        handleIncomingMessage(message.getSender(), message.getReceiver(), message.getContent(), message.getId()));
+                }
                 isConnectedToServer = true;
                 
                 // 启动线程接收服务器消息
+                final InputStream in = serverIn;
                 executorService.submit(() -> {
                     try {
-                        String line;
-                        while ((line = serverReader.readLine()) != null) {
-                            processServerMessage(line);
+                        if (serverProtocolVersion == Frame.TEXT) {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                processServerMessage(line);
+                            }
+                        } else {
+                            DataInputStream data = new DataInputStream(in);
+                            Frame frame;
+                            while ((frame = FrameCodec.readFrame(data)) != null) {
+                                processServerFrame(frame);
+                            }
+                        }
+                        failPendingRequests();
+                        // 服务器优雅退出时先发RECONNECT，写完之前的消息后再关闭连接
+                        if (plannedReconnectAt != 0) {
+                            isConnectedToServer = false;
+                            tryReconnect();
                         }
                     } catch (IOException e) {
                         logger.log(Level.WARNING, "与服务器的连接断开: " + e.getMessage(), e);
                         isConnectedToServer = false;
+                        failPendingRequests();
                         // 尝试自动重连
                         tryReconnect();
                     }
                 });
                 
-                // 启动消息排序服务（如果需要）
-                // MessageOrderingService.start(message -> {
-                //     if (messageReceivedCallback != null) {
-                //         Platform.runLater(() -> {
-                //             messageReceivedCallback.accept(message);
-                //         });
-                //     }
-                // });
-                
                 // 启动心跳检测线程
                 executorService.submit(() -> {
                     while (isConnectedToServer) {
@@ -195,9 +307,8 @@ public class ChatService {
                             Thread.sleep(30000); // 每30秒发送一次心跳
                             if (isConnectedToServer) {
                                 logger.fine("发送心跳检测...");
-                                serverWriter.println("HEARTBEAT");
                                 // 检查连接是否仍然有效
-                                if (serverWriter.checkError()) {
+                                if (!sendToServer(Frame.control(Frame.HEARTBEAT))) {
                                     logger.warning("心跳检测失败，服务器连接可能已断开");
                                     isConnectedToServer = false;
                                     // 尝试自动重连
@@ -215,8 +326,7 @@ public class ChatService {
                 logger.info("已连接到聊天服务器");
                 
                 // 请求在线用户列表
-                serverWriter.println("GET_USERS");
-                serverWriter.flush();
+                sendToServer(Frame.control(Frame.GET_USERS));
                 
                 return true;
             } else {
@@ -264,35 +374,18 @@ public class ChatService {
             String userListStr = message.startsWith("USERLIST:") ? 
                 message.substring("USERLIST:".length()) : 
                 message.substring("USERS:".length());
-                
-            String[] users = userListStr.split(",");
-            
-            synchronized (onlineUsers) {
-                onlineUsers.clear();
-                
-                // 添加在线用户列表，排除自己
-                for (String user : users) {
-                    if (!user.equals(currentUser) && !user.trim().isEmpty()) {
-                        onlineUsers.add(user);
-                    }
-                }
+            updateOnlineUsers(userListStr);
+        } else if (message.startsWith("USERS_SNAPSHOT:")) {
+            // 在线状态快照，格式: USERS_SNAPSHOT:版本号:a,b,c
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                applyPresenceSnapshot(parseVersion(parts[1]), parts[2]);
             }
-            
-            logger.info("更新在线用户列表: " + onlineUsers);
-            
-            // 确保在JavaFX应用线程上更新UI
-            if (userListUpdateCallback != null) {
-                final List<String> usersCopy = new ArrayList<>(onlineUsers);
-                Platform.runLater(() -> {
-                    try {
-                        userListUpdateCallback.accept(usersCopy);
-                        logger.info("成功调用用户列表更新回调");
-                    } catch (Exception e) {
-                        logger.log(Level.SEVERE, "执行用户列表更新回调时出错", e);
-                    }
-                });
-            } else {
-                logger.warning("用户列表更新回调未设置，无法更新UI用户列表");
+        } else if (message.startsWith("USER_JOIN:") || message.startsWith("USER_LEAVE:")) {
+            // 在线状态增量，格式: USER_JOIN:版本号:用户名 / USER_LEAVE:版本号:用户名
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                applyPresenceDelta(parseVersion(parts[1]), parts[2], message.startsWith("USER_JOIN:"));
             }
         } else if (message.startsWith("MSG:")) {
             // 处理收到的消息，格式: MSG:发送者:接收者:内容:时间戳
@@ -317,51 +410,29 @@ public class ChatService {
                 logger.warning("消息格式错误: " + message);
                 return;
             }
-            
-            // 如果这条消息是当前用户发送的，跳过处理（避免重复保存和显示）
-            if (sender.equals(currentUser)) {
-                logger.info("收到自己发送的消息回显，跳过处理避免重复保存");
-                return; // 不保存也不显示
+            handleIncomingMessage(sender, receiver, content, 0);
+        } else if (message.startsWith("ACK:")) {
+            // 消息确认，格式: ACK:客户端消息ID:服务器消息ID
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                // 文本协议不协商persist，ACK中的服务器消息ID不是数据库ID
+                handleAck(parseVersion(parts[1]), 0);
             }
-            
-            // 保存消息到本地数据库（只处理接收到的他人消息）
-            logger.info("保存消息到数据库 - 发送者: " + sender + ", 接收者: " + receiver + ", 内容: " + content);
-            int msgId = saveMessageAndGetId(sender, receiver, content, null);
-            
-            // 通知UI更新，显示新消息
-            if (messageReceivedCallback != null) {
-                // 创建消息对象
-                final ChatMessage chatMessage = new ChatMessage(
-                    msgId, sender, receiver, content, LocalDateTime.now().toString(), false);
-                
-                logger.info("收到消息，通过回调传递给UI: " + sender + " -> " + receiver + ": " + content);
-                
-                // 将消息传递给UI层
-                Platform.runLater(() -> {
-                    messageReceivedCallback.accept(chatMessage);
-                });
-                
-                // 如果当前用户是接收者，但不是当前聊天窗口，额外触发通知
-                if (receiver.equals(currentUser) && currentChatPeer != null && !sender.equals(currentChatPeer)) {
-                    logger.info("触发来自 " + sender + " 的新消息通知");
-                    if (newMessageNotificationCallback != null) {
-                        Platform.runLater(() -> {
-                            newMessageNotificationCallback.accept(sender);
-                        });
-                    }
-                }
-            } else {
-                logger.info("消息接收回调未设置");
+        } else if (message.startsWith("THROTTLED:")) {
+            // 限流通知，格式: THROTTLED:客户端消息ID:重试等待毫秒数
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                handleThrottled(parseVersion(parts[1]), parseVersion(parts[2]));
+            }
+        } else if (message.startsWith("RECONNECT:")) {
+            // 服务器即将退出，格式: RECONNECT:重连等待毫秒数:恢复令牌
+            String[] parts = message.split(":", 3);
+            if (parts.length == 3) {
+                handleReconnectHint(parseVersion(parts[1]), parts[2]);
             }
         } else if (message.equals("PING")) {
             // 心跳消息，直接回复
-            try {
-                serverWriter.println("PONG");
-                serverWriter.flush();
-                logger.fine("响应心跳检测");
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "发送PONG响应时出错", e);
-            }
+            replyPong();
         } else if (message.equals("HEARTBEAT_ACK")) {
             // 心跳确认消息，正常处理
             logger.fine("收到心跳确认");
@@ -370,6 +441,409 @@ public class ChatService {
         }
     }
     
+    /**
+     * 处理从服务器接收到的二进制帧
+     * @param frame 解码后的帧
+     */
+    private static void processServerFrame(Frame frame) {
+        switch (frame.type) {
+            case Frame.USERS:
+                updateOnlineUsers(frame.body);
+                break;
+            case Frame.USERS_SNAPSHOT:
+                applyPresenceSnapshot(frame.sequence, frame.body);
+                break;
+            case Frame.USER_JOIN:
+            case Frame.USER_LEAVE:
+                applyPresenceDelta(frame.sequence, frame.body, frame.type == Frame.USER_JOIN);
+                break;
+            case Frame.MSG:
+                String receiver = frame.isBroadcast() ? "all" : frame.receiver;
+                logger.info("收到消息 - 发送者: " + frame.sender + ", 接收者: " + receiver
+                    + ", 会话: " + frame.conversationId + ", 序列号: " + frame.sequence + ", 内容: " + frame.body);
+                if (orderedDelivery) {
+                    ChatMessage message = new ChatMessage(frame.messageId, frame.sender, receiver, frame.body,
+                        LocalDateTime.now(), frame.conversationId);
+                    message.setId(frame.storedId());
+                    message.setSequenceNumber(frame.sequence);
+                    MessageOrderingService.addMessage(message);
+                } else {
+                    handleIncomingMessage(frame.sender, receiver, frame.body, frame.storedId());
+                }
+                break;
+            case Frame.ACK:
+                // 重连补发时，自己发出的私聊以客户端消息ID为0的ACK告知序列号
+                long clientMessageId = parseVersion(frame.body);
+                if (clientMessageId != 0) {
+                    handleAck(clientMessageId, frame.storedId());
+                }
+                if (orderedDelivery) {
+                    // 自己发出的私聊消息不会回传，告诉排序服务这个序列号已被占用
+                    MessageOrderingService.skipSequence(frame.conversationId, frame.sequence);
+                }
+                break;
+            case Frame.THROTTLED:
+                handleThrottled(frame.messageId, frame.timestamp);
+                break;
+            case Frame.RECONNECT:
+                handleReconnectHint(frame.timestamp, frame.body);
+                break;
+            case Frame.RESPONSE:
+                CompletableFuture<Frame> pending = pendingRequests.remove(frame.messageId);
+                if (pending != null) {
+                    pending.complete(frame);
+                }
+                break;
+            case Frame.PING:
+                replyPong();
+                break;
+            case Frame.HEARTBEAT_ACK:
+                logger.fine("收到心跳确认");
+                break;
+            case Frame.ERROR:
+                logger.warning("服务器返回错误: " + frame.body);
+                break;
+            default:
+                logger.warning("未知帧类型: " + frame.type);
+                break;
+        }
+    }
+    
+    // 更新在线用户列表，userListStr为逗号分隔的用户名
+    private static void updateOnlineUsers(String userListStr) {
+        String[] users = userListStr.split(",");
+        
+        synchronized (onlineUsers) {
+            onlineUsers.clear();
+            
+            // 添加在线用户列表，排除自己
+            for (String user : users) {
+                if (!user.equals(currentUser) && !user.trim().isEmpty()) {
+                    onlineUsers.add(user);
+                }
+            }
+        }
+        
+        logger.info("更新在线用户列表: " + onlineUsers);
+        
+        // 确保在JavaFX应用线程上更新UI
+        if (userListUpdateCallback != null) {
+            final List<String> usersCopy = new ArrayList<>(onlineUsers);
+            Platform.runLater(() -> {
+                try {
+                    userListUpdateCallback.accept(usersCopy);
+                    logger.info("成功调用用户列表更新回调");
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "执行用户列表更新回调时出错", e);
+                }
+            });
+        } else {
+            logger.warning("用户列表更新回调未设置，无法更新UI用户列表");
+        }
+    }
+    
+    // 应用在线状态快照：替换整个用户列表，之后的增量从该版本号继续
+    private static void applyPresenceSnapshot(long version, String userListStr) {
+        if (version < 0) {
+            logger.warning("在线状态快照版本号无效: " + version);
+            return;
+        }
+        synchronized (onlineUsers) {
+            presenceVersion = version;
+            presenceSnapshotRequested = false;
+        }
+        logger.info("收到在线状态快照，版本: " + version);
+        updateOnlineUsers(userListStr);
+    }
+    
+    /**
+     * 按版本号应用一条在线状态增量
+     * 已包含在快照中的旧增量直接忽略；版本号不连续说明漏掉了增量，重新请求快照
+     */
+    private static void applyPresenceDelta(long version, String user, boolean online) {
+        boolean changed = false;
+        boolean requestSnapshot = false;
+        synchronized (onlineUsers) {
+            if (presenceVersion < 0 || version <= presenceVersion) {
+                // 尚未收到快照，或该变化已包含在快照中
+                return;
+            }
+            if (version != presenceVersion + 1) {
+                if (!presenceSnapshotRequested) {
+                    presenceSnapshotRequested = true;
+                    requestSnapshot = true;
+                }
+            } else {
+                presenceVersion = version;
+                if (!user.equals(currentUser) && !user.trim().isEmpty()) {
+                    changed = online ? !onlineUsers.contains(user) && onlineUsers.add(user) : onlineUsers.remove(user);
+                }
+            }
+        }
+        
+        if (requestSnapshot) {
+            logger.warning("在线状态版本不连续(期望 " + (presenceVersion + 1) + "，收到 " + version + ")，请求完整快照");
+            sendToServer(Frame.control(Frame.GET_USERS));
+            return;
+        }
+        if (changed) {
+            logger.info("用户" + (online ? "上线: " : "离线: ") + user);
+            if (userPresenceCallback != null) {
+                Platform.runLater(() -> {
+                    try {
+                        userPresenceCallback.accept(user, online);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "执行在线状态回调时出错", e);
+                    }
+                });
+            } else if (userListUpdateCallback != null) {
+                // 没有增量回调时退回到整体刷新
+                final List<String> usersCopy;
+                synchronized (onlineUsers) {
+                    usersCopy = new ArrayList<>(onlineUsers);
+                }
+                Platform.runLater(() -> userListUpdateCallback.accept(usersCopy));
+            }
+        }
+    }
+    
+    private static long parseVersion(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    // 处理收到的聊天消息：保存并通知UI
+    // storedId为服务器保存后的数据库ID，0表示未知
+    private static void handleIncomingMessage(String sender, String receiver, String content, int storedId) {
+        // 如果这条消息是当前用户发送的，跳过处理（避免重复保存和显示）
+        if (sender.equals(currentUser)) {
+            logger.info("收到自己发送的消息回显，跳过处理避免重复保存");
+            return; // 不保存也不显示
+        }
+        
+        // 服务器负责保存时（发送者不支持时由发送者自己保存）不再重复保存，否则保存接收到的他人消息
+        int msgId;
+        if (serverPersist) {
+            msgId = storedId > 0 ? storedId : (int) (System.currentTimeMillis() % 100000);
+        } else {
+            logger.info("保存消息到数据库 - 发送者: " + sender + ", 接收者: " + receiver + ", 内容: " + content);
+            msgId = saveMessageAndGetId(sender, receiver, content, null);
+        }
+        
+        // 通知UI更新，显示新消息
+        if (messageReceivedCallback != null) {
+            // 创建消息对象
+            final ChatMessage chatMessage = new ChatMessage(
+                msgId, sender, receiver, content, LocalDateTime.now().toString(), false);
+            
+            logger.info("收到消息，通过回调传递给UI: " + sender + " -> " + receiver + ": " + content);
+            
+            // 将消息传递给UI层
+            Platform.runLater(() -> {
+                messageReceivedCallback.accept(chatMessage);
+            });
+            
+            // 如果当前用户是接收者，但不是当前聊天窗口，额外触发通知
+            if (receiver.equals(currentUser) && currentChatPeer != null && !sender.equals(currentChatPeer)) {
+                logger.info("触发来自 " + sender + " 的新消息通知");
+                if (newMessageNotificationCallback != null) {
+                    Platform.runLater(() -> {
+                        newMessageNotificationCallback.accept(sender);
+                    });
+                }
+            }
+        } else {
+            logger.info("消息接收回调未设置");
+        }
+    }
+    
+    /**
+     * 服务器已路由或持久化一条消息，取消该消息的重试；服务器已保存时把回显的消息ID换成数据库ID
+     * @param storedId 带FLAG_STORED的ACK中的数据库ID，0表示没有保存（保存失败或服务器不负责保存）
+     */
+    private static void handleAck(long clientMessageId, int storedId) {
+        logger.fine("收到消息确认: 客户端ID=" + clientMessageId + ", 数据库ID=" + storedId);
+        MessageReliabilityService.acknowledgeMessage(clientMessageId);
+        ChatMessage echo = unsavedEchoes.remove(clientMessageId);
+        if (echo != null && storedId > 0) {
+            // 回显的消息由UI持有，在JavaFX线程上修改
+            Platform.runLater(() -> echo.setId(storedId));
+        }
+    }
+    
+    /**
+     * 服务器限流，消息没有被处理：协商了ACK时由可靠性服务按建议的时间重发这一条，否则只能丢弃
+     */
+    private static void handleThrottled(long clientMessageId, long retryAfterMillis) {
+        if (clientMessageId != 0) {
+            MessageReliabilityService.retryAfter(clientMessageId, retryAfterMillis);
+        } else {
+            logger.warning("发送过快，消息被服务器限流，" + retryAfterMillis + "ms后可以再发送");
+        }
+    }
+    
+    /**
+     * 服务器即将退出（滚动重启），会在写完已有消息后关闭连接；记下恢复令牌，连接关闭后按服务器错开的时间重连
+     */
+    private static void handleReconnectHint(long delayMillis, String token) {
+        resumeToken = token;
+        plannedReconnectAt = System.currentTimeMillis() + Math.max(0, delayMillis);
+        logger.info("服务器即将重启，" + Math.max(0, delayMillis) + "ms后重新连接");
+    }
+    
+    /**
+     * 把聊天消息发给服务器：协商了ACK时分配客户端消息ID并交给可靠性服务，否则直接发送
+     * @param receiver 接收者，"all"表示广播
+     * @param echo 已回显的消息，服务器负责保存时在ACK到达后换成数据库ID；为null时不跟踪
+     */
+    private static void sendChatToServer(String receiver, String content, ChatMessage echo) {
+        if (!serverAcks) {
+            sendToServer("all".equals(receiver) ? Frame.of(Frame.BROADCAST, content) : Frame.privateMessage(receiver, content));
+            return;
+        }
+        long messageId = MessageIdGenerator.generateMessageId(receiver);
+        if (serverPersist && echo != null) {
+            // 先登记再发送，ACK不会早于登记到达
+            unsavedEchoes.put(messageId, echo);
+        }
+        MessageReliabilityService.sendReliableMessage(
+            new ChatMessage(messageId, currentUser, receiver, content, LocalDateTime.now(), receiver));
+    }
+    
+    // 可靠性服务的发送回调，首次发送和重试都使用同一个消息ID，服务器据此去重
+    private static void sendReliable(ChatMessage message) {
+        Frame frame = "all".equals(message.getReceiver())
+            ? Frame.broadcast(message.getMessageId(), message.getContent())
+            : Frame.privateMessage(message.getMessageId(), message.getReceiver(), message.getContent());
+        if (!sendToServer(frame)) {
+            logger.warning("发送消息失败，等待重试: ID=" + message.getMessageId());
+        }
+    }
+    
+    // 回复服务器的PING
+    private static void replyPong() {
+        if (sendToServer(Frame.control(Frame.PONG))) {
+            logger.fine("响应心跳检测");
+        } else {
+            logger.warning("发送PONG响应时出错");
+        }
+    }
+    
+    /**
+     * 按协商的协议向服务器发送一帧
+     * @return 是否写入成功
+     */
+    private static synchronized boolean sendToServer(Frame frame) {
+        OutputStream out = serverOut;
+        if (out == null) {
+            return false;
+        }
+        try {
+            if (serverProtocolVersion == Frame.TEXT) {
+                out.write((FrameCodec.toTextCommand(frame, serverAcks) + "\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                out.write(FrameCodec.encode(frame, serverProtocolVersion));
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "向服务器发送消息失败: " + e.getMessage(), e);
+            return false;
+        }
+    }
+    
+    /**
+     * 重连时的会话恢复参数：上次连接按序列号排序（二进制协议且协商了ACK）、持有令牌时才附带
+     */
+    private static String resumeParams() {
+        String token = resumeToken;
+        Map<String, Long> lastSequences = MessageOrderingService.getLastSequences();
+        if (!orderedDelivery || !PREFER_BINARY || token == null || token.isEmpty() || lastSequences.isEmpty()) {
+            return "";
+        }
+        StringJoiner last = new StringJoiner(",");
+        lastSequences.forEach((conversationId, sequence) -> last.add(conversationId + ":" + sequence));
+        return ";resume=" + token + ";last=" + last;
+    }
+    
+    // 取 LOGIN_SUCCESS;name=value;... 中的参数，没有时返回null
+    private static String responseParam(String response, String name) {
+        for (String part : response.split(";")) {
+            if (part.startsWith(name + "=")) {
+                return part.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 在聊天连接上发出一个存储请求，不等待响应
+     * @return 服务器的RESPONSE帧；未协商store=1、发送失败、超时或连接断开时以异常完成
+     */
+    public static CompletableFuture<Frame> requestAsync(String op, String conversationId, long sequence, long timestamp,
+                                                        String body) {
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        if (!serverStore || !isConnectedToServer) {
+            response.completeExceptionally(new IllegalStateException("聊天连接不支持存储请求"));
+            return response;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, response);
+        response.orTimeout(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .whenComplete((frame, error) -> pendingRequests.remove(requestId));
+        if (!sendToServer(Frame.request(requestId, op, conversationId, sequence, timestamp, body))) {
+            response.completeExceptionally(new IOException("发送存储请求失败"));
+        }
+        return response;
+    }
+    
+    /**
+     * 发出存储请求并等待成功的响应
+     * @return 响应正文；请求无法在聊天连接上完成或服务器返回错误时为null，调用方改走HTTP接口
+     */
+    private static String request(String op, String conversationId, long sequence, long timestamp, String body) {
+        if (!serverStore) {
+            return null;
+        }
+        try {
+            Frame response = requestAsync(op, conversationId, sequence, timestamp, body).join();
+            if (response.sequence != 0) {
+                logger.warning("存储请求" + op + "失败: " + response.body);
+                return null;
+            }
+            return response.body;
+        } catch (CompletionException e) {
+            logger.warning("存储请求" + op + "未完成: " + e.getCause());
+            return null;
+        }
+    }
+    
+    // 连接断开时等待中的存储请求不会再有响应，立即失败，调用方改走HTTP接口
+    private static void failPendingRequests() {
+        serverStore = false;
+        for (CompletableFuture<Frame> pending : pendingRequests.values()) {
+            pending.completeExceptionally(new IOException("与服务器的连接已断开"));
+        }
+        pendingRequests.clear();
+    }
+    
+    // 从 LOGIN_SUCCESS;binary=1 中解析服务器确认的协议版本
+    private static int parseNegotiatedVersion(String response) {
+        int index = response.indexOf("binary=");
+        if (index < 0) {
+            return Frame.TEXT;
+        }
+        try {
+            int version = Integer.parseInt(response.substring(index + "binary=".length()).split(";")[0].trim());
+            return version >= Frame.BINARY_V1 && version <= Frame.MAX_BINARY_VERSION ? version : Frame.TEXT;
+        } catch (NumberFormatException e) {
+            return Frame.TEXT;
+        }
+    }
+    
     // 停止聊天服务
     public static void stopServer() {
         isServerRunning = false;
@@ -392,9 +866,7 @@ public class ChatService {
         // 断开与服务器的连接
         if (isConnectedToServer) {
             try {
-                if (serverWriter != null) {
-                    serverWriter.println("LOGOUT:" + currentUser);
-                }
+                sendToServer(Frame.of(Frame.LOGOUT, currentUser));
                 
                 if (serverConnection != null && !serverConnection.isClosed()) {
                     serverConnection.close();
@@ -540,12 +1012,10 @@ public class ChatService {
                 // 消息会在服务器回传时统一保存到数据库
                 
                 // 通过服务器发送消息
-                String message = "MSG:" + content;
-                System.out.println("发送消息: " + message);
-                serverWriter.println(message);
+                System.out.println("发送消息: " + content);
                 
                 // 检查是否发送成功
-                if (serverWriter.checkError()) {
+                if (!sendToServer(Frame.of(Frame.BROADCAST, content))) {
                     System.out.println("发送消息失败");
                     return false;
                 }
@@ -609,10 +1079,9 @@ public class ChatService {
             if (users.isEmpty()) {
                 // 向服务器请求在线用户列表
                 logger.info("用户列表为空，主动请求在线用户列表");
-                if (serverWriter != null) {
+                if (serverOut != null) {
                     try {
-                        serverWriter.println("GET_USERS");
-                        serverWriter.flush();
+                        sendToServer(Frame.control(Frame.GET_USERS));
                         
                         // 等待一小段时间以获取响应
                         Thread.sleep(500);
@@ -627,7 +1096,7 @@ public class ChatService {
                         logger.log(Level.WARNING, "请求用户列表时出错", e);
                     }
                 } else {
-                    logger.warning("serverWriter为null，无法发送GET_USERS请求");
+                    logger.warning("serverOut为null，无法发送GET_USERS请求");
                 }
             }
             
@@ -646,7 +1115,12 @@ public class ChatService {
     
     // 保存消息到数据库
     public static void saveMessage(String sender, String receiver, String content) {
-        // 直接通过ApiService保存消息
+        // 自己发出的消息优先在聊天连接上保存，服务器以登录用户为发送者
+        if (sender.equals(currentUser)
+                && request("SAVE_MESSAGE", receiver, 0, System.currentTimeMillis(), content) != null) {
+            logger.info("消息已通过聊天连接保存: " + sender + " -> " + receiver);
+            return;
+        }
         boolean success = ApiService.saveMessage(sender, receiver, content);
         if (!success) {
             logger.warning("通过API保存消息失败，但不再尝试保存到本地数据库");
@@ -660,8 +1134,11 @@ public class ChatService {
         logger.info("获取与用户 " + otherUser + " 的完整聊天历史");
         
         try {
-            // 直接通过API获取聊天历史
-            List<ChatMessage> messages = ApiService.getChatHistory(currentUser, otherUser);
+            // 优先在聊天连接上按页拉取，失败时通过API获取
+            List<ChatMessage> messages = getChatHistoryOverConnection(otherUser);
+            if (messages == null) {
+                messages = ApiService.getChatHistory(currentUser, otherUser);
+            }
             
             if (messages != null && !messages.isEmpty()) {
                 logger.info("成功从API获取 " + messages.size() + " 条聊天历史");
@@ -691,9 +1168,81 @@ public class ChatService {
         }
     }
     
+    /**
+     * 在聊天连接上拉取一页与otherUser的聊天历史（otherUser为"all"时为广播消息）
+     * @param beforeId 只返回ID小于它的消息，0表示从最新的消息开始
+     * @return 按ID从旧到新排列的消息；不能在聊天连接上拉取时为null
+     */
+    public static List<ChatMessage> getChatHistoryPage(String otherUser, long beforeId, int limit) {
+        String body = request("HISTORY", otherUser, beforeId, limit, null);
+        if (body == null) {
+            return null;
+        }
+        List<ChatMessage> page = new ArrayList<>();
+        if (body.isEmpty()) {
+            return page;
+        }
+        for (String line : body.split("\n")) {
+            String[] fields = line.split("\t", 6);
+            if (fields.length < 6) {
+                logger.warning("跳过无法解析的历史记录: " + line);
+                continue;
+            }
+            try {
+                page.add(new ChatMessage(Integer.parseInt(fields[0]), unescapeField(fields[1]), unescapeField(fields[2]),
+                    unescapeField(fields[5]), unescapeField(fields[3]), "1".equals(fields[4])));
+            } catch (NumberFormatException e) {
+                // 与请求失败一样处理，由调用方改走HTTP接口
+                logger.warning("历史记录的消息ID无效: " + line);
+                return null;
+            }
+        }
+        return page;
+    }
+    
+    // 从最新的一页开始向前翻页，直到没有更早的消息；中途失败时返回null，由调用方整体改走HTTP接口
+    private static List<ChatMessage> getChatHistoryOverConnection(String otherUser) {
+        List<ChatMessage> messages = new ArrayList<>();
+        long beforeId = 0;
+        while (true) {
+            List<ChatMessage> page = getChatHistoryPage(otherUser, beforeId, HISTORY_PAGE_SIZE);
+            if (page == null) {
+                return null;
+            }
+            if (page.isEmpty()) {
+                break;
+            }
+            messages.addAll(0, page);
+            beforeId = page.get(0).getId();
+        }
+        logger.info("通过聊天连接获取 " + messages.size() + " 条聊天历史");
+        return messages;
+    }
+    
+    // 还原历史记录字段中转义的\\、\n和\t
+    private static String unescapeField(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+    
     // 标记消息为已读
     public static void markAsRead(int messageId) {
-        // 直接通过ApiService标记消息为已读
+        if (request("MARK_READ", null, messageId, 0, null) != null) {
+            logger.info("消息" + messageId + "已通过聊天连接标记为已读");
+            return;
+        }
         boolean success = ApiService.markAsRead(messageId);
         if (!success) {
             logger.warning("通过API标记消息" + messageId + "为已读失败");
@@ -850,18 +1399,20 @@ public class ChatService {
             
             // 否则发送广播消息
             try {
-                String formattedMessage = "BROADCAST|" + sender + "|" + message;
-                serverWriter.println(formattedMessage);
-                serverWriter.flush();
-                logger.info("向服务器广播消息: " + formattedMessage);
+                // 服务器不识别旧的 BROADCAST|sender|msg 格式，改用广播帧（文本协议下为 MSG:内容）
+                ChatMessage echo = messageReceivedCallback != null
+                    ? new ChatMessage(sender, message, LocalDateTime.now()) : null;
+                sendChatToServer("all", message, echo);
+                logger.info("向服务器广播消息: " + sender + ": " + message);
                 
-                // 保存消息到云端
-                ApiService.saveMessage(sender, "all", message);
+                // 保存消息到云端，服务器负责保存时跳过
+                if (!serverPersist) {
+                    ApiService.saveMessage(sender, "all", message);
+                }
                 
                 // 回显自己的消息
-                if (messageReceivedCallback != null) {
-                    ChatMessage chatMessage = new ChatMessage(sender, message, LocalDateTime.now());
-                    messageReceivedCallback.accept(chatMessage);
+                if (echo != null) {
+                    messageReceivedCallback.accept(echo);
                 }
             } catch (Exception e) {
                 logger.severe("向服务器广播消息时出错: " + e.getMessage());
@@ -890,6 +1441,17 @@ public class ChatService {
     // 用户列表更新回调
     private static Consumer<List<String>> userListUpdateCallback;
 
+    /**
+     * 设置在线状态增量回调，参数为用户名和是否在线，在JavaFX应用线程上调用
+     * @param callback 回调函数
+     */
+    public static void setOnUserPresenceChange(BiConsumer<String, Boolean> callback) {
+        userPresenceCallback = callback;
+    }
+
+    // 在线状态增量回调
+    private static BiConsumer<String, Boolean> userPresenceCallback;
+
     /**
      * 发送私人消息给指定用户（增强版本）
      * @param receiver 接收者用户名
@@ -914,14 +1476,16 @@ public class ChatService {
             
             logger.info("发送私人消息: " + currentUser + " -> " + receiver + ": " + content);
             
-            // 立即保存消息到数据库（发送方保存自己的消息）
-            int realMessageId = saveMessageAndGetId(currentUser, receiver, content, null);
-            logger.info("消息已保存到数据库，ID: " + realMessageId);
+            // 立即保存消息到数据库（发送方保存自己的消息）；服务器负责保存时数据库ID随ACK返回
+            int realMessageId = serverPersist ? -1 : saveMessageAndGetId(currentUser, receiver, content, null);
+            logger.info(serverPersist ? "消息由服务器保存" : "消息已保存到数据库，ID: " + realMessageId);
             
-            // 立即回显消息到聊天界面（使用真实ID）
+            // 立即回显消息到聊天界面（使用真实ID；服务器保存时先用临时ID，收到ACK后换成数据库ID）
+            ChatMessage echo = null;
             if (messageReceivedCallback != null) {
                 final ChatMessage chatMessage = new ChatMessage(
                     realMessageId > 0 ? realMessageId : tempId, currentUser, receiver, content, localTimestamp, false);
+                echo = chatMessage;
                 
                 Platform.runLater(() -> {
                     logger.info("立即回显消息到UI: ID=" + chatMessage.getId() + ", 内容=" + chatMessage.getContent());
@@ -932,12 +1496,10 @@ public class ChatService {
             }
             
             // 发送到服务器（使用简化格式）
-            String messageToSend = "PRIVATE:" + receiver + ":" + content;
-            logger.info("发送私人消息到服务器: " + messageToSend);
-            serverWriter.println(messageToSend);
-            serverWriter.flush();
+            logger.info("发送私人消息到服务器: " + receiver + ": " + content);
+            sendChatToServer(receiver, content, echo);
             
-            // 消息已在发送时保存，服务器回显时将跳过保存
+            // 消息已在发送时保存（或由服务器保存），服务器回显时将跳过保存
             
         } catch (Exception e) {
             logger.log(Level.SEVERE, "发送私人消息时出错", e);
@@ -946,7 +1508,17 @@ public class ChatService {
     
     // 新方法：保存消息并返回生成的ID
     private static int saveMessageAndGetId(String sender, String receiver, String content, String tempId) {
-        // 直接通过ApiService保存消息并获取ID
+        // 优先在聊天连接上保存，响应正文为数据库分配的ID；失败时通过ApiService保存
+        if (sender.equals(currentUser)) {
+            String id = request("SAVE_MESSAGE", receiver, 0, System.currentTimeMillis(), content);
+            if (id != null) {
+                try {
+                    return Integer.parseInt(id.trim());
+                } catch (NumberFormatException e) {
+                    logger.warning("服务器返回的消息ID无效: " + id + "，改用API保存");
+                }
+            }
+        }
         int messageId = ApiService.saveMessageAndGetId(sender, receiver, content);
         if (messageId > 0) {
             return messageId;
@@ -1012,9 +1584,11 @@ public class ChatService {
         
         // 清空网络相关资源
         serverConnection = null;
-        serverWriter = null;
-        serverReader = null;
+        serverOut = null;
+        serverIn = null;
+        serverProtocolVersion = Frame.TEXT;
         isConnectedToServer = false;
+        failPendingRequests();
     }
 
     // 尝试重新连接到服务器
@@ -1022,10 +1596,14 @@ public class ChatService {
         if (isUsingServerMode && currentUser != null) {
             logger.info("尝试重新连接到服务器...");
             
-            // 延迟5秒后尝试重连
+            // 服务器下发了RECONNECT时按它错开的时间重连，否则延迟5秒；
+            // 重连登录时带上恢复令牌和各会话的序列号，服务器只补发断线期间缺失的消息
+            long plannedAt = plannedReconnectAt;
+            plannedReconnectAt = 0;
+            long delay = plannedAt != 0 ? Math.max(0, plannedAt - System.currentTimeMillis()) : 5000;
             new Thread(() -> {
                 try {
-                    Thread.sleep(5000);
+                    Thread.sleep(delay);
                     boolean reconnected = connectToServer(currentUser);
                     if (reconnected) {
                         logger.info("重新连接成功");
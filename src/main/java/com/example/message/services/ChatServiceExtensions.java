@@ -4,6 +4,7 @@ import com.example.message.model.ChatMessage;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -24,6 +25,12 @@ public class ChatServiceExtensions {
         return userListUpdateCallback;
     }
     
+    // 设置在线状态增量回调（用户名, 是否在线）
+    public static void setOnUserPresenceChange(BiConsumer<String, Boolean> callback) {
+        // 直接调用ChatService的方法
+        ChatService.setOnUserPresenceChange(callback);
+    }
+    
     // 获取在线用户列表
     public static List<String> getOnlineUsers() {
         // 直接调用ChatService的方法
@@ -24,6 +24,9 @@ public class MessageOrderingService {
     // 每个会话的消息缓冲区
     private static final Map<String, MessageBuffer> conversationBuffers = new ConcurrentHashMap<>();
     
+    // 每个会话已连续显示（或跳过）到的序列号，重连时发给服务器补发之后的消息；缓冲区被清理后仍然保留
+    private static final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+    
     // 消息显示回调
     private static Consumer<ChatMessage> messageDisplayCallback;
     
@@ -33,6 +36,9 @@ public class MessageOrderingService {
     // 缓冲等待时间（毫秒）
     private static final long BUFFER_TIMEOUT = 1000;
     
+    // 每个会话最多记住的缺口序列号数
+    private static final int MAX_GAP_SEQUENCES = 1000;
+    
     // 是否已启动
     private static volatile boolean started = false;
     
@@ -43,21 +49,37 @@ public class MessageOrderingService {
         private final String conversationId;
         private final PriorityBlockingQueue<ChatMessage> messageQueue;
         private final Map<Long, ChatMessage> messageMap;
+        // 自己发出、不会回到本客户端的消息所占的序列号（由服务器ACK告知），到达时直接跳过
+        private final TreeSet<Long> skippedSequences = new TreeSet<>();
+        // 超时强制输出时越过的缺口序列号，之后迟到的消息照常显示，不当作重复丢弃
+        private final TreeSet<Long> gapSequences = new TreeSet<>();
+        // 期望的下一个序列号，0表示起点未定：有显示记录时从记录的下一个开始，
+        // 否则除序列号1外先缓冲BUFFER_TIMEOUT，再以已到达的最小序列号为起点，
+        // 避免先到的较大序列号把更早发出的消息挤成"重复"
         private long expectedSequence;
+        private long firstArrivalTime;
         private long lastProcessTime;
         
-        public MessageBuffer(String conversationId) {
+        public MessageBuffer(String conversationId, long lastSequence) {
             this.conversationId = conversationId;
-            // 按消息ID排序的优先队列
+            // 按服务器分配的会话序列号排序的优先队列
             this.messageQueue = new PriorityBlockingQueue<>(100, 
-                Comparator.comparing(ChatMessage::getMessageId));
+                Comparator.comparingLong(ChatMessage::getSequenceNumber).thenComparingLong(ChatMessage::getMessageId));
             this.messageMap = new ConcurrentHashMap<>();
-            this.expectedSequence = 1;
+            this.expectedSequence = lastSequence > 0 ? lastSequence + 1 : 0;
             this.lastProcessTime = System.currentTimeMillis();
         }
         
+        public synchronized void skipSequence(long sequence) {
+            if (expectedSequence == 0 || sequence >= expectedSequence) {
+                markArrival();
+                skippedSequences.add(sequence);
+            }
+        }
+        
         public synchronized void addMessage(ChatMessage message) {
             if (!messageMap.containsKey(message.getMessageId())) {
+                markArrival();
                 messageQueue.offer(message);
                 messageMap.put(message.getMessageId(), message);
                 lastProcessTime = System.currentTimeMillis();
@@ -69,10 +91,62 @@ public class MessageOrderingService {
         
         public synchronized List<ChatMessage> getOrderedMessages() {
             List<ChatMessage> orderedMessages = new ArrayList<>();
+            if (expectedSequence == 0 && !fixStart()) {
+                return orderedMessages;
+            }
             
-            // 按消息ID顺序处理消息
-            while (!messageQueue.isEmpty()) {
+            // 按序列号顺序处理消息
+            drainConsecutive(orderedMessages);
+            
+            // 如果等待时间过长，越过缺口输出剩余消息，缺口中的序列号迟到时仍会显示
+            if (System.currentTimeMillis() - lastProcessTime > BUFFER_TIMEOUT && !messageQueue.isEmpty()) {
+                logger.warning(String.format("等待超时，强制输出乱序消息: %s", conversationId));
+                
+                while (!messageQueue.isEmpty()) {
+                    skipGapTo(messageQueue.peek().getSequenceNumber());
+                    drainConsecutive(orderedMessages);
+                }
+            }
+            
+            return orderedMessages;
+        }
+        
+        private void markArrival() {
+            if (firstArrivalTime == 0) {
+                firstArrivalTime = System.currentTimeMillis();
+            }
+        }
+        
+        // 起点未定时，收到序列号1（会话的第一条消息）或缓冲超时后以最小的已到达序列号为起点
+        private boolean fixStart() {
+            long lowest = Long.MAX_VALUE;
+            ChatMessage head = messageQueue.peek();
+            if (head != null) {
+                lowest = head.getSequenceNumber();
+            }
+            if (!skippedSequences.isEmpty()) {
+                lowest = Math.min(lowest, skippedSequences.first());
+            }
+            if (lowest == Long.MAX_VALUE) {
+                return false;
+            }
+            if (lowest > 1 && System.currentTimeMillis() - firstArrivalTime <= BUFFER_TIMEOUT) {
+                return false;
+            }
+            expectedSequence = Math.max(1, lowest);
+            return true;
+        }
+        
+        private void drainConsecutive(List<ChatMessage> orderedMessages) {
+            while (true) {
+                if (skippedSequences.remove(expectedSequence)) {
+                    expectedSequence++;
+                    continue;
+                }
                 ChatMessage message = messageQueue.peek();
+                if (message == null) {
+                    break;
+                }
                 
                 // 检查是否是期望的下一条消息
                 if (message.getSequenceNumber() == expectedSequence) {
@@ -81,35 +155,35 @@ public class MessageOrderingService {
                     orderedMessages.add(message);
                     expectedSequence++;
                 } else if (message.getSequenceNumber() < expectedSequence) {
-                    // 重复消息，丢弃
                     messageQueue.poll();
                     messageMap.remove(message.getMessageId());
-                    logger.warning(String.format("丢弃重复消息: ID: %d, Seq: %d", 
-                        message.getMessageId(), message.getSequenceNumber()));
+                    if (gapSequences.remove(message.getSequenceNumber())) {
+                        // 超时后才到达的缺口消息，没有显示过
+                        orderedMessages.add(message);
+                    } else {
+                        // 重复消息，丢弃
+                        logger.warning(String.format("丢弃重复消息: ID: %d, Seq: %d", 
+                            message.getMessageId(), message.getSequenceNumber()));
+                    }
                 } else {
                     // 消息序列号大于期望值，可能是乱序，等待前面的消息
                     break;
                 }
             }
-            
-            // 如果等待时间过长，强制输出所有消息
-            if (System.currentTimeMillis() - lastProcessTime > BUFFER_TIMEOUT && !messageQueue.isEmpty()) {
-                logger.warning(String.format("等待超时，强制输出乱序消息: %s", conversationId));
-                
-                while (!messageQueue.isEmpty()) {
-                    ChatMessage message = messageQueue.poll();
-                    messageMap.remove(message.getMessageId());
-                    orderedMessages.add(message);
-                }
-                
-                // 重置期望序列号
-                if (!orderedMessages.isEmpty()) {
-                    ChatMessage lastMessage = orderedMessages.get(orderedMessages.size() - 1);
-                    expectedSequence = lastMessage.getSequenceNumber() + 1;
+        }
+        
+        // 把期望序列号推进到sequence，越过的序列号记为缺口，只保留最近的MAX_GAP_SEQUENCES个
+        private void skipGapTo(long sequence) {
+            for (long gap = Math.max(expectedSequence, sequence - MAX_GAP_SEQUENCES); gap < sequence; gap++) {
+                if (!skippedSequences.remove(gap)) {
+                    gapSequences.add(gap);
                 }
             }
-            
-            return orderedMessages;
+            while (gapSequences.size() > MAX_GAP_SEQUENCES) {
+                gapSequences.pollFirst();
+            }
+            expectedSequence = Math.max(expectedSequence, sequence);
+            skippedSequences.headSet(expectedSequence).clear();
         }
         
         public boolean isEmpty() {
@@ -189,12 +263,81 @@ public class MessageOrderingService {
         }
         
         // 添加到对应会话的缓冲区
-        MessageBuffer buffer = conversationBuffers.computeIfAbsent(
-            conversationId, 
-            MessageBuffer::new
-        );
+        MessageBuffer buffer = bufferFor(conversationId);
         
-        buffer.addMessage(message);
+        // 加入后立即输出已经连续的消息，只有等待缺失的序列号时才留在缓冲区
+        synchronized (buffer) {
+            buffer.addMessage(message);
+            drain(buffer);
+        }
+    }
+    
+    /**
+     * 记录本客户端自己发出的消息在会话中占用的序列号
+     * 服务器不会把私聊消息回传给发送者，不记录的话接收方向的序列号会出现缺口，一直等到超时
+     */
+    public static void skipSequence(String conversationId, long sequence) {
+        if (!started || conversationId == null || conversationId.isEmpty() || sequence <= 0) {
+            return;
+        }
+        MessageBuffer buffer = bufferFor(conversationId);
+        synchronized (buffer) {
+            buffer.skipSequence(sequence);
+            drain(buffer);
+        }
+    }
+    
+    /**
+     * 清空所有会话的排序状态，重新连接服务器且没有恢复会话时调用（服务器没有保留之前的序列号）
+     */
+    public static void reset() {
+        conversationBuffers.clear();
+        lastSequences.clear();
+    }
+    
+    /**
+     * 清空一个会话的排序状态，服务器无法补全该会话断线期间的消息时调用，之后重新确定起点
+     */
+    public static void resetConversation(String conversationId) {
+        MessageBuffer buffer = conversationBuffers.remove(conversationId);
+        if (buffer != null) {
+            synchronized (buffer) {
+                // 缓冲区中还在等待前面序列号的消息按序列号输出
+                List<ChatMessage> pending = new ArrayList<>(buffer.messageQueue);
+                pending.sort(Comparator.comparingLong(ChatMessage::getSequenceNumber));
+                display(pending);
+            }
+        }
+        lastSequences.remove(conversationId);
+    }
+    
+    /**
+     * 各会话已连续显示到的序列号
+     */
+    public static Map<String, Long> getLastSequences() {
+        return new HashMap<>(lastSequences);
+    }
+    
+    // 会话的缓冲区，新建时从已显示到的序列号继续（例如缓冲区被清理后或断线恢复后）
+    private static MessageBuffer bufferFor(String conversationId) {
+        return conversationBuffers.computeIfAbsent(conversationId,
+            id -> new MessageBuffer(id, lastSequences.getOrDefault(id, 0L)));
+    }
+    
+    // 输出缓冲区中已经连续的消息，并记录显示到的序列号
+    private static void drain(MessageBuffer buffer) {
+        display(buffer.getOrderedMessages());
+        if (buffer.expectedSequence > 0) {
+            lastSequences.put(buffer.conversationId, buffer.expectedSequence - 1);
+        }
+    }
+    
+    private static void display(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            if (messageDisplayCallback != null) {
+                messageDisplayCallback.accept(message);
+            }
+        }
     }
     
     /**
@@ -202,12 +345,8 @@ public class MessageOrderingService {
      */
     private static void processAllBuffers() {
         for (MessageBuffer buffer : conversationBuffers.values()) {
-            List<ChatMessage> orderedMessages = buffer.getOrderedMessages();
-            
-            for (ChatMessage message : orderedMessages) {
-                if (messageDisplayCallback != null) {
-                    messageDisplayCallback.accept(message);
-                }
+            synchronized (buffer) {
+                drain(buffer);
             }
         }
         
@@ -239,11 +378,8 @@ public class MessageOrderingService {
     public static void flushConversation(String conversationId) {
         MessageBuffer buffer = conversationBuffers.get(conversationId);
         if (buffer != null) {
-            List<ChatMessage> orderedMessages = buffer.getOrderedMessages();
-            for (ChatMessage message : orderedMessages) {
-                if (messageDisplayCallback != null) {
-                    messageDisplayCallback.accept(message);
-                }
+            synchronized (buffer) {
+                drain(buffer);
             }
         }
     }
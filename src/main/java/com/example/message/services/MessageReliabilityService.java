@@ -5,6 +5,7 @@ import com.example.message.model.ChatMessage;
 import java.time.LocalDateTime;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
@@ -41,6 +42,11 @@ public class MessageReliabilityService {
     // 是否已启动
     private static volatile boolean started = false;
     
+    // 从第一次发送到收到确认的延迟统计
+    private static final AtomicLong acknowledgedCount = new AtomicLong();
+    private static final AtomicLong totalAckLatencyNanos = new AtomicLong();
+    private static final AtomicLong maxAckLatencyNanos = new AtomicLong();
+    
     /**
      * 等待确认的消息
      */
@@ -49,12 +55,15 @@ public class MessageReliabilityService {
         public final AtomicInteger retryCount;
         public final long createTime;
         public final ScheduledFuture<?> timeoutTask;
+        // 第一次发送的时间，重试时保留，用于计算确认延迟
+        public final long firstSentNanos;
         
-        public PendingMessage(ChatMessage message, ScheduledFuture<?> timeoutTask) {
+        public PendingMessage(ChatMessage message, ScheduledFuture<?> timeoutTask, long firstSentNanos) {
             this.message = message;
             this.retryCount = new AtomicInteger(0);
             this.createTime = System.currentTimeMillis();
             this.timeoutTask = timeoutTask;
+            this.firstSentNanos = firstSentNanos;
         }
     }
     
@@ -123,7 +132,7 @@ public class MessageReliabilityService {
         }, ACK_TIMEOUT, TimeUnit.SECONDS);
         
         // 添加到等待确认列表
-        PendingMessage pending = new PendingMessage(message, timeoutTask);
+        PendingMessage pending = new PendingMessage(message, timeoutTask, System.nanoTime());
         pendingMessages.put(message.getMessageId(), pending);
         
         // 发送消息
@@ -149,7 +158,13 @@ public class MessageReliabilityService {
             // 更新消息状态
             pending.message.setStatus(ChatMessage.MessageStatus.DELIVERED);
             
-            logger.fine(String.format("消息已确认: ID=%d", messageId));
+            long latency = System.nanoTime() - pending.firstSentNanos;
+            acknowledgedCount.incrementAndGet();
+            totalAckLatencyNanos.addAndGet(latency);
+            maxAckLatencyNanos.accumulateAndGet(latency, Math::max);
+            
+            logger.fine(String.format("消息已确认: ID=%d, 重试=%d, 延迟=%.2fms",
+                messageId, pending.retryCount.get(), latency / 1e6));
         }
     }
     
@@ -177,7 +192,7 @@ public class MessageReliabilityService {
             }, ACK_TIMEOUT, TimeUnit.SECONDS);
             
             // 更新超时任务
-            PendingMessage newPending = new PendingMessage(message, newTimeoutTask);
+            PendingMessage newPending = new PendingMessage(message, newTimeoutTask, pending.firstSentNanos);
             newPending.retryCount.set(currentRetry);
             pendingMessages.put(messageId, newPending);
             
@@ -196,6 +211,56 @@ public class MessageReliabilityService {
         }
     }
     
+    /**
+     * 服务器因限流没有处理这条消息：取消当前的超时任务，delayMillis后用同一个消息ID重发，不计入重试次数
+     */
+    public static void retryAfter(long messageId, long delayMillis) {
+        PendingMessage pending = pendingMessages.get(messageId);
+        if (pending == null) {
+            return;
+        }
+        ScheduledFuture<?> resendTask = retryExecutor.schedule(() -> {
+            resendThrottled(messageId);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        if (!replacePending(pending, resendTask)) {
+            resendTask.cancel(false);
+            return;
+        }
+        logger.fine(String.format("消息被服务器限流，%dms后重发: ID=%d", delayMillis, messageId));
+    }
+    
+    private static void resendThrottled(long messageId) {
+        PendingMessage pending = pendingMessages.get(messageId);
+        if (pending == null) {
+            return;
+        }
+        ScheduledFuture<?> timeoutTask = retryExecutor.schedule(() -> {
+            handleMessageTimeout(messageId);
+        }, ACK_TIMEOUT, TimeUnit.SECONDS);
+        if (!replacePending(pending, timeoutTask)) {
+            timeoutTask.cancel(false);
+            return;
+        }
+        if (messageSendCallback != null) {
+            messageSendCallback.accept(pending.message);
+        }
+    }
+    
+    /**
+     * 换上新的定时任务，保留重试次数和首次发送时间；期间消息已被确认时返回false
+     */
+    private static boolean replacePending(PendingMessage pending, ScheduledFuture<?> task) {
+        PendingMessage replacement = new PendingMessage(pending.message, task, pending.firstSentNanos);
+        replacement.retryCount.set(pending.retryCount.get());
+        if (!pendingMessages.replace(pending.message.getMessageId(), pending, replacement)) {
+            return false;
+        }
+        if (pending.timeoutTask != null) {
+            pending.timeoutTask.cancel(false);
+        }
+        return true;
+    }
+    
     /**
      * 添加离线消息
      */
@@ -297,6 +362,11 @@ public class MessageReliabilityService {
             .sum();
         stats.put("totalOfflineMessages", totalOfflineMessages);
         
+        long acknowledged = acknowledgedCount.get();
+        stats.put("acknowledgedMessages", acknowledged);
+        stats.put("avgAckLatencyMs", acknowledged > 0 ? totalAckLatencyNanos.get() / 1e6 / acknowledged : 0.0);
+        stats.put("maxAckLatencyMs", maxAckLatencyNanos.get() / 1e6);
+        
         return stats;
     }
 }
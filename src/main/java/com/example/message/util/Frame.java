@@ -0,0 +1,129 @@
+package com.example.message.util;
+
+/**
+ * 聊天服务器协议帧
+ * 与服务端 chat-server/Frame.java 保持一致，登录时协商了二进制协议后，
+ * 客户端与服务器之间的消息都以Frame的形式编解码。
+ */
+public final class Frame {
+
+    // 协议版本：0为文本协议，1为长度前缀的二进制协议
+    public static final int TEXT = 0;
+    public static final int BINARY_V1 = 1;
+    public static final int MAX_BINARY_VERSION = BINARY_V1;
+
+    // 客户端 -> 服务器
+    public static final byte LOGIN = 1;
+    public static final byte PRIVATE = 2;
+    public static final byte BROADCAST = 3;
+    public static final byte HEARTBEAT = 4;
+    public static final byte GET_USERS = 5;
+    public static final byte LOGOUT = 6;
+    public static final byte PONG = 7;
+    // 存储请求（登录时协商store=1）：messageId为关联ID，receiver为操作名，其余字段为参数
+    public static final byte REQUEST = 8;
+
+    // 服务器 -> 客户端
+    public static final byte LOGIN_SUCCESS = 16;
+    public static final byte ERROR = 17;
+    public static final byte MSG = 18;
+    public static final byte USERS = 19;
+    public static final byte HEARTBEAT_ACK = 20;
+    public static final byte PING = 21;
+    // 在线状态增量与快照，sequence字段为在线状态版本号
+    public static final byte USER_JOIN = 22;
+    public static final byte USER_LEAVE = 23;
+    public static final byte USERS_SNAPSHOT = 24;
+    // 消息确认：messageId为服务器分配的消息ID，body为客户端发送时携带的消息ID
+    public static final byte ACK = 25;
+    // 限流通知：messageId为被拒绝消息的客户端消息ID，timestamp为服务器建议的重试等待毫秒数
+    public static final byte THROTTLED = 26;
+    // 服务器即将退出：body为会话恢复令牌，timestamp为建议的重连等待毫秒数
+    public static final byte RECONNECT = 27;
+    // 存储请求的响应：messageId为请求的关联ID，sequence为状态（0成功），body为结果或错误信息
+    public static final byte RESPONSE = 28;
+
+    // flags：正文经过Deflate压缩，见FrameCompression
+    public static final int FLAG_COMPRESSED = 2;
+    // flags：messageId为聊天记录数据库中的ID（登录时协商了persist=1，服务器已保存这条消息）
+    public static final int FLAG_STORED = 4;
+
+    private static final String EMPTY = "";
+
+    public final byte type;
+    public final int flags;
+    public final long messageId;
+    public final long sequence;
+    public final long timestamp;
+    public final String conversationId;
+    public final String sender;
+    public final String receiver;
+    public final String body;
+
+    public Frame(byte type, int flags, long messageId, long sequence, long timestamp,
+                 String conversationId, String sender, String receiver, String body) {
+        this.type = type;
+        this.flags = flags;
+        this.messageId = messageId;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.conversationId = conversationId != null ? conversationId : EMPTY;
+        this.sender = sender != null ? sender : EMPTY;
+        this.receiver = receiver != null ? receiver : EMPTY;
+        this.body = body != null ? body : EMPTY;
+    }
+
+    /**
+     * 不带任何字段的控制帧，例如HEARTBEAT
+     */
+    public static Frame control(byte type) {
+        return new Frame(type, 0, 0, 0, 0, null, null, null, null);
+    }
+
+    /**
+     * 只有正文的帧，例如广播消息
+     */
+    public static Frame of(byte type, String body) {
+        return new Frame(type, 0, 0, 0, 0, null, null, null, body);
+    }
+
+    /**
+     * 私聊消息帧
+     */
+    public static Frame privateMessage(String receiver, String content) {
+        return new Frame(PRIVATE, 0, 0, 0, 0, null, null, receiver, content);
+    }
+
+    /**
+     * 带客户端消息ID的私聊消息帧，服务器处理后回复ACK
+     */
+    public static Frame privateMessage(long messageId, String receiver, String content) {
+        return new Frame(PRIVATE, 0, messageId, 0, 0, null, null, receiver, content);
+    }
+
+    /**
+     * 带客户端消息ID的广播消息帧，服务器处理后回复ACK
+     */
+    public static Frame broadcast(long messageId, String content) {
+        return new Frame(BROADCAST, 0, messageId, 0, 0, null, null, null, content);
+    }
+
+    /**
+     * 存储请求帧，服务器以同一关联ID回复RESPONSE
+     */
+    public static Frame request(long requestId, String op, String conversationId, long sequence, long timestamp,
+                                String body) {
+        return new Frame(REQUEST, 0, requestId, sequence, timestamp, conversationId, null, op, body);
+    }
+
+    /**
+     * 服务器保存后的数据库ID，没有保存时为0
+     */
+    public int storedId() {
+        return (flags & FLAG_STORED) != 0 && messageId > 0 && messageId <= Integer.MAX_VALUE ? (int) messageId : 0;
+    }
+
+    public boolean isBroadcast() {
+        return receiver.isEmpty();
+    }
+}
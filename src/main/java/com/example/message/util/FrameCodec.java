@@ -0,0 +1,176 @@
+package com.example.message.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+/**
+ * 客户端帧编解码
+ * 二进制帧格式与服务端 chat-server/FrameCodec.java 相同（大端序）：
+ * u32 length | u8 version | u8 type | u16 flags | i64 messageId | i64 sequence | i64 timestamp
+ * | u16+conversationId | u16+sender | u16+receiver | body
+ * flags带FLAG_COMPRESSED时body为Deflate压缩后的字节，解码时还原，见FrameCompression
+ */
+public final class FrameCodec {
+
+    // 单帧最大长度，超过视为协议错误
+    public static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private static final int FIXED_HEADER_BYTES = 4 + 1 + 1 + 2 + 8 + 8 + 8;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 把帧编码为二进制格式
+     */
+    public static byte[] encode(Frame frame, int version) {
+        byte[] conversationId = frame.conversationId.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = frame.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] receiver = frame.receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] body = frame.body.getBytes(StandardCharsets.UTF_8);
+        int total = FIXED_HEADER_BYTES + 6 + conversationId.length + sender.length + receiver.length + body.length;
+
+        ByteBuffer out = ByteBuffer.allocate(total);
+        out.putInt(total - 4);
+        out.put((byte) version);
+        out.put(frame.type);
+        out.putShort((short) frame.flags);
+        out.putLong(frame.messageId);
+        out.putLong(frame.sequence);
+        out.putLong(frame.timestamp);
+        putShortBytes(out, conversationId);
+        putShortBytes(out, sender);
+        putShortBytes(out, receiver);
+        out.put(body);
+        return out.array();
+    }
+
+    /**
+     * 帧对应的文本协议命令（不含换行符），用于未协商二进制协议的连接
+     */
+    public static String toTextCommand(Frame frame) {
+        return toTextCommand(frame, false);
+    }
+
+    /**
+     * @param withIds 登录时协商了消息确认（ack=1），聊天消息在类型后带客户端消息ID：
+     *                MSG:消息ID:内容  PRIVATE:消息ID:接收者:内容
+     */
+    public static String toTextCommand(Frame frame, boolean withIds) {
+        String id = withIds ? frame.messageId + ":" : "";
+        switch (frame.type) {
+            case Frame.PRIVATE:
+                return "PRIVATE:" + id + frame.receiver + ":" + frame.body;
+            case Frame.BROADCAST:
+                return "MSG:" + id + frame.body;
+            case Frame.HEARTBEAT:
+                return "HEARTBEAT";
+            case Frame.GET_USERS:
+                return "GET_USERS";
+            case Frame.PONG:
+                return "PONG";
+            case Frame.LOGOUT:
+                return frame.body.isEmpty() ? "LOGOUT" : "LOGOUT:" + frame.body;
+            default:
+                throw new IllegalArgumentException("不支持的帧类型: " + frame.type);
+        }
+    }
+
+    /**
+     * 从输入流读取一个完整的二进制帧
+     * @return 解码后的帧，流结束时返回null
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < FIXED_HEADER_BYTES - 4 + 6 || length > MAX_FRAME_BYTES) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decodePayload(ByteBuffer.wrap(payload));
+    }
+
+    private static Frame decodePayload(ByteBuffer in) throws IOException {
+        int version = in.get() & 0xFF;
+        if (version < 1 || version > Frame.MAX_BINARY_VERSION) {
+            throw new IOException("不支持的协议版本: " + version);
+        }
+        byte type = in.get();
+        int flags = in.getShort() & 0xFFFF;
+        long messageId = in.getLong();
+        long sequence = in.getLong();
+        long timestamp = in.getLong();
+        String conversationId = getShortString(in);
+        String sender = getShortString(in);
+        String receiver = getShortString(in);
+        String body;
+        if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+            try {
+                body = new String(FrameCompression.inflate(in.array(), in.position(), in.remaining(), MAX_FRAME_BYTES),
+                    StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IOException("无法解压帧正文: " + e.getMessage());
+            }
+            flags &= ~Frame.FLAG_COMPRESSED;
+        } else {
+            body = new String(in.array(), in.position(), in.remaining(), StandardCharsets.UTF_8);
+        }
+        return new Frame(type, flags, messageId, sequence, timestamp, conversationId, sender, receiver, body);
+    }
+
+    /**
+     * 从输入流读取一行（不预读多余字节），用于登录握手阶段
+     * @return 去掉换行符的行内容，流结束时返回null
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= 4096) {
+                throw new IOException("握手消息过长");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void putShortBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("字段过长: " + bytes.length);
+        }
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getShortString(ByteBuffer in) throws IOException {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new IOException("帧字段越界");
+        }
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
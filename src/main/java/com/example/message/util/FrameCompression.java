@@ -0,0 +1,64 @@
+package com.example.message.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 服务器下发帧正文的解压
+ * 登录时带 ;deflate=版本号 后，服务器把较长的正文用Deflate压缩，并在flags中置Frame.FLAG_COMPRESSED。
+ * 每帧独立压缩，使用双方预置的同一份字典，内容必须与服务端 chat-server/FrameCompression.java 完全一致。
+ */
+public final class FrameCompression {
+
+    public static final int DICTIONARY_VERSION = 1;
+
+    // 字典中靠后的内容匹配距离更短，出现频率越高的放得越靠后
+    private static final byte[] DICTIONARY = (
+        "USERS,USER_JOIN,USER_LEAVE,http://https://www.com/.png.jpg.mp4"
+        + "纪念日快乐，生日快乐，节日快乐，新年快乐，情人节快乐，周年快乐，今天是我们在一起的第天，"
+        + "日记写好了，记得看日记，照片发你了，看看这张照片，我们去拍照吧，"
+        + "天气预报说明天下雨，记得带伞，降温了多穿点衣服，别感冒了，身体不舒服吗？吃药了没有？"
+        + "今天上班好累啊，加班到现在，刚下班，辛苦了，抱抱，注意休息，不要太累了，"
+        + "周末一起去看电影吧，想去哪里玩？一起去旅行吧，我订好票了，几点的车？到了给我打电话，"
+        + "晚上想吃什么？我做饭给你吃，点外卖吧，吃火锅，喝奶茶，记得按时吃饭，多喝水，"
+        + "路上小心，到家了吗？到家了告诉我，我马上到，等我一下，我在楼下，快出来吧，"
+        + "怎么不回我消息？刚才在忙，没看到消息，手机没电了，现在可以视频吗？打个电话吧，"
+        + "对不起，是我不好，不要生气了好不好，没关系，我没有生气，我知道了，好的好的，没问题，"
+        + "你在干嘛呢？在吗？睡了吗？还没睡，起床了吗？早安，早上好，午安，晚安，好梦，早点睡，"
+        + "哈哈哈哈哈哈，嘿嘿嘿，呜呜呜，嗯嗯嗯，好呀，好吧，可以呀，是的呢，真的吗？为什么呀？怎么了？"
+        + "宝贝，亲爱的，老婆，老公，我想你了，好想你，我也想你，我爱你，我也爱你，爱你哦，么么哒，"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private FrameCompression() {
+    }
+
+    /**
+     * 解压data中[offset, offset+length)的正文，解压结果超过maxBytes视为协议错误
+     */
+    public static byte[] inflate(byte[] data, int offset, int length, int maxBytes) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, offset, length);
+        byte[] out = new byte[Math.min(Math.max(length * 4, 256), maxBytes)];
+        int total = 0;
+        while (!inflater.finished()) {
+            if (total == out.length) {
+                if (out.length >= maxBytes) {
+                    throw new DataFormatException("解压后超过长度限制: " + maxBytes);
+                }
+                out = Arrays.copyOf(out, Math.min(out.length * 2, maxBytes));
+            }
+            int n = inflater.inflate(out, total, out.length - total);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("压缩数据不完整");
+            }
+            total += n;
+        }
+        return total == out.length ? out : Arrays.copyOf(out, total);
+    }
+}
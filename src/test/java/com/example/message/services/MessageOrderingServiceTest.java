@@ -0,0 +1,99 @@
+package com.example.message.services;
+
+import com.example.message.model.ChatMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 测试客户端按会话序列号排序显示消息
+ */
+public class MessageOrderingServiceTest {
+
+    private static final List<ChatMessage> displayed = new CopyOnWriteArrayList<>();
+    private static long nextMessageId = 1;
+
+    @BeforeAll
+    static void startService() {
+        MessageOrderingService.start(displayed::add);
+    }
+
+    @BeforeEach
+    void clearState() {
+        MessageOrderingService.reset();
+        displayed.clear();
+    }
+
+    @Test
+    void firstTwoMessagesOutOfOrderAreDisplayedInOrder() {
+        MessageOrderingService.addMessage(message("a", 2));
+        MessageOrderingService.addMessage(message("a", 1));
+
+        assertEquals(List.of(1L, 2L), sequences(displayed));
+    }
+
+    @Test
+    void laterConversationStartWaitsForLowerSequence() throws InterruptedException {
+        // 中途加入的会话没有显示记录，先到的较大序列号不能把更早的消息当作重复丢弃
+        MessageOrderingService.addMessage(message("b", 6));
+        MessageOrderingService.addMessage(message("b", 5));
+
+        awaitDisplayed(2);
+        assertEquals(List.of(5L, 6L), sequences(displayed));
+        assertEquals(6L, MessageOrderingService.getLastSequences().get("b"));
+    }
+
+    @Test
+    void ownSequencesAreSkipped() {
+        MessageOrderingService.addMessage(message("c", 1));
+        MessageOrderingService.addMessage(message("c", 3));
+        MessageOrderingService.skipSequence("c", 2);
+
+        assertEquals(List.of(1L, 3L), sequences(displayed));
+    }
+
+    @Test
+    void gapMessageArrivingAfterTimeoutIsDisplayedOnce() throws InterruptedException {
+        MessageOrderingService.addMessage(message("d", 1));
+        MessageOrderingService.addMessage(message("d", 3));
+        awaitDisplayed(2);
+        assertEquals(List.of(1L, 3L), sequences(displayed));
+
+        // 越过的序列号2迟到时照常显示，已经显示过的序列号3再次到达时丢弃
+        MessageOrderingService.addMessage(message("d", 2));
+        MessageOrderingService.addMessage(message("d", 3));
+        MessageOrderingService.addMessage(message("d", 4));
+
+        assertEquals(List.of(1L, 3L, 2L, 4L), sequences(displayed));
+    }
+
+    private static ChatMessage message(String conversationId, long sequence) {
+        ChatMessage message = new ChatMessage(nextMessageId++, "sender", "receiver", "seq " + sequence,
+            LocalDateTime.now(), conversationId);
+        message.setSequenceNumber(sequence);
+        return message;
+    }
+
+    private static List<Long> sequences(List<ChatMessage> messages) {
+        List<Long> sequences = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            sequences.add(message.getSequenceNumber());
+        }
+        return sequences;
+    }
+
+    // 超时输出由排序服务的后台线程完成
+    private static void awaitDisplayed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (displayed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+}
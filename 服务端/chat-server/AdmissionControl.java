@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 准入控制
+ * - 连接数上限 chat.max.connections：达到上限后新连接收到一行ERROR后立即关闭
+ * - accept速率 chat.accept.rate / chat.accept.burst：令牌不足时accept线程暂停，新连接留在内核的等待队列中
+ *   （长度为 chat.accept.backlog），队列也满时由TCP让客户端重试，而不是无限制地创建连接和线程
+ * - 每个用户的消息数和字节数令牌桶 chat.user.msg.rate / chat.user.msg.burst、chat.user.bytes.rate / chat.user.bytes.burst：
+ *   超出配额的聊天消息不进入分发队列，回复THROTTLED帧告诉客户端多久之后再发
+ * - 目标分发分区积压超过 chat.dispatch.max.depth 时所有聊天消息都回复THROTTLED，队列内存和排队延迟不再无限增长
+ * 心跳、用户列表等控制消息不受限制。速率设为0表示不限制。
+ */
+final class AdmissionControl {
+
+    static final int MAX_CONNECTIONS = Integer.getInteger("chat.max.connections", 10000);
+    static final int ACCEPT_BACKLOG = Integer.getInteger("chat.accept.backlog", 1024);
+    private static final int ACCEPT_RATE = Integer.getInteger("chat.accept.rate", 1000);
+    private static final int ACCEPT_BURST = Integer.getInteger("chat.accept.burst", Math.max(1, ACCEPT_RATE));
+
+    private static final int USER_MESSAGE_RATE = Integer.getInteger("chat.user.msg.rate", 50);
+    private static final int USER_MESSAGE_BURST = Integer.getInteger("chat.user.msg.burst", 100);
+    private static final int USER_BYTE_RATE = Integer.getInteger("chat.user.bytes.rate", 256 * 1024);
+    private static final int USER_BYTE_BURST = Integer.getInteger("chat.user.bytes.burst", 1024 * 1024);
+
+    static final int MAX_DISPATCH_DEPTH = Integer.getInteger("chat.dispatch.max.depth", 50000);
+    // 分发队列积压时建议客户端等待的时间
+    static final long OVERLOAD_RETRY_MILLIS = 200;
+
+    // 达到连接数上限时写给新连接的一行，此时还没有协商协议，总是文本
+    static final byte[] REJECT_LINE = encodeText(Frame.of(Frame.ERROR, "服务器连接数已满，请稍后重试"));
+
+    // 已接受且尚未关闭的连接数，包括还没登录的连接
+    private final AtomicInteger open = new AtomicInteger();
+    // accept速率，只在accept线程上使用
+    private final TokenBucket acceptBucket = ACCEPT_RATE > 0 ? new TokenBucket(ACCEPT_RATE, ACCEPT_BURST) : null;
+
+    /**
+     * 在accept线程上调用，accept速率用完时暂停到可以再接受一个连接
+     */
+    void awaitAcceptPermit() {
+        if (acceptBucket == null) {
+            return;
+        }
+        long delay = acceptBucket.delayNanos(1, System.nanoTime());
+        if (delay == 0) {
+            return;
+        }
+        ServerMetrics.ACCEPT_THROTTLED.increment();
+        do {
+            LockSupport.parkNanos(delay);
+        } while ((delay = acceptBucket.delayNanos(1, System.nanoTime())) > 0);
+    }
+
+    /**
+     * 登记一个刚接受的连接并扣除一个accept令牌
+     * @return false表示已达到连接数上限，调用方写出REJECT_LINE后关闭连接，不需要release
+     */
+    boolean admit() {
+        if (acceptBucket != null) {
+            acceptBucket.take(1);
+        }
+        while (true) {
+            int current = open.get();
+            if (current >= MAX_CONNECTIONS) {
+                ServerMetrics.CONNECTIONS_REJECTED.increment();
+                return false;
+            }
+            if (open.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * admit成功的连接关闭时调用一次
+     */
+    void release() {
+        open.decrementAndGet();
+    }
+
+    int getOpenConnections() {
+        return open.get();
+    }
+
+    /**
+     * 为刚登录的用户创建聊天消息配额，两种速率都不限制时返回null
+     */
+    UserQuota newUserQuota() {
+        if (USER_MESSAGE_RATE <= 0 && USER_BYTE_RATE <= 0) {
+            return null;
+        }
+        return new UserQuota();
+    }
+
+    private static byte[] encodeText(Frame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.encodedLength(frame, Frame.TEXT));
+        FrameCodec.encode(frame, Frame.TEXT, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 一个用户的聊天消息配额：每条消息扣一个消息令牌和正文字节数个字节令牌，两者都够时才放行
+     * 只在该连接的读取线程（或所属事件循环）上使用
+     */
+    static final class UserQuota {
+        private final TokenBucket messages = USER_MESSAGE_RATE > 0
+            ? new TokenBucket(USER_MESSAGE_RATE, USER_MESSAGE_BURST) : null;
+        private final TokenBucket bytes = USER_BYTE_RATE > 0
+            ? new TokenBucket(USER_BYTE_RATE, USER_BYTE_BURST) : null;
+
+        /**
+         * @return 0表示放行并已扣除令牌；否则不扣除，返回建议等待的纳秒数
+         */
+        long tryAcquire(int messageBytes) {
+            long now = System.nanoTime();
+            long messageDelay = messages != null ? messages.delayNanos(1, now) : 0;
+            if (messageDelay > 0) {
+                ServerMetrics.THROTTLED_MESSAGE_RATE.increment();
+                return messageDelay;
+            }
+            long byteDelay = bytes != null ? bytes.delayNanos(messageBytes, now) : 0;
+            if (byteDelay > 0) {
+                ServerMetrics.THROTTLED_BYTE_RATE.increment();
+                return byteDelay;
+            }
+            if (messages != null) {
+                messages.take(1);
+            }
+            if (bytes != null) {
+                bytes.take(messageBytes);
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 广播扇出基准测试
+ * 在进程内构造N个连接，把一条广播帧投递到每个连接的出站队列并立即“写出”到丢弃数据的sink，对比：
+ * 1. 逐连接编码：每个接收者各自把消息编码成一份新的字节（改动前的做法）
+ * 2. 共享编码：每种协议只编码一次，各连接写出同一份只读字节的视图
+ * 输出每次广播的耗时和分配的字节数（当前线程的分配量，来自com.sun.management.ThreadMXBean）。
+ *
+ * 用法: java BroadcastBenchmark [消息字节数] [接收者数...]
+ * 默认消息约1KB，分别测试100、1000、10000个接收者。
+ */
+public class BroadcastBenchmark {
+
+    // 每组测试至少投递的消息总数（广播次数 * 接收者数）
+    private static final long DELIVERIES_PER_RUN = 2_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int messageBytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            counts.add(Integer.parseInt(args[i]));
+        }
+        if (counts.isEmpty()) {
+            counts.add(100);
+            counts.add(1000);
+            counts.add(10000);
+        }
+
+        StringBuilder content = new StringBuilder();
+        while (content.length() < messageBytes) {
+            content.append("broadcast-广播-");
+        }
+        content.setLength(messageBytes);
+
+        List<String> results = new ArrayList<>();
+        for (int count : counts) {
+            for (int version : new int[]{Frame.TEXT, Frame.BINARY_V1}) {
+                for (boolean shared : new boolean[]{false, true}) {
+                    results.add(run(count, version, shared, content.toString()));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-8s %-6s %-10s %14s %16s %16s",
+            "接收者", "协议", "编码方式", "每次广播(us)", "每次广播分配(KB)", "每接收者分配(B)"));
+        results.forEach(System.out::println);
+    }
+
+    private static String run(int recipients, int version, boolean shared, String content) {
+        List<SinkConnection> connections = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            SinkConnection conn = new SinkConnection("user" + i, version);
+            connections.add(conn);
+        }
+
+        int broadcasts = (int) Math.max(20, DELIVERIES_PER_RUN / recipients);
+        // 预热
+        for (int i = 0; i < broadcasts / 4; i++) {
+            broadcast(connections, content, shared);
+        }
+
+        long thread = Thread.currentThread().threadId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            broadcast(connections, content, shared);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        long sink = 0;
+        for (SinkConnection conn : connections) {
+            sink += conn.written;
+        }
+        if (sink == 0) {
+            throw new IllegalStateException("没有写出任何数据");
+        }
+
+        double micros = elapsed / 1000.0 / broadcasts;
+        double perBroadcast = (double) allocated / broadcasts;
+        return String.format("%-8d %-6s %-10s %14.1f %16.1f %16.1f",
+            recipients, version == Frame.TEXT ? "text" : "binary", shared ? "共享编码" : "逐连接编码",
+            micros, perBroadcast / 1024, perBroadcast / recipients);
+    }
+
+    private static void broadcast(List<SinkConnection> connections, String content, boolean shared) {
+        // 与ChatServer.broadcastMessage相同：帧只创建一次，再逐个放入各连接的出站队列
+        Frame frame = new Frame(Frame.MSG, 0, 0, 0, System.currentTimeMillis(),
+            null, "bench", null, content, shared);
+        for (SinkConnection conn : connections) {
+            conn.send(frame);
+        }
+    }
+
+    /**
+     * 入队后立即在当前线程写出的连接，写出的数据直接丢弃
+     */
+    private static final class SinkConnection extends ChatConnection {
+
+        long written;
+
+        SinkConnection(String username, int version) {
+            super(username);
+            this.username = username;
+            this.protocolVersion = version;
+        }
+
+        @Override
+        void onQueued() {
+            Frame frame;
+            while ((frame = outbound.poll()) != null) {
+                ByteBuffer data;
+                if (frame.shared) {
+                    data = FrameCodec.sharedEncoding(frame, protocolVersion).view();
+                } else {
+                    // 改动前每个接收者各自编码出一份新的字节
+                    data = ByteBuffer.allocate(FrameCodec.encodedLength(frame, protocolVersion));
+                    FrameCodec.encode(frame, protocolVersion, data);
+                    data.flip();
+                }
+                written += data.remaining();
+                data.position(data.limit());
+            }
+        }
+
+        @Override
+        void close() {
+        }
+
+        @Override
+        void closeAfterFlush() {
+        }
+
+        @Override
+        void shutdownOutputAfterFlush() {
+        }
+
+        @Override
+        boolean isOpen() {
+            return true;
+        }
+    }
+}
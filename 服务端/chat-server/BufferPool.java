@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NIO连接的读写缓冲区池，每个事件循环一个，只在该事件循环线程上使用，不加锁
+ * 直接内存按slab（默认64块）一次分配，切成固定大小的块放入空闲栈；连接有数据要读写时借出一块，
+ * 读缓冲区中没有半帧、写出队列已空时归还，空闲连接不占用缓冲区。
+ * 需要超过一块大小（单帧超过块大小）或池已达上限时，临时分配堆缓冲区，用完直接丢弃。
+ * slab分配后不再释放，池的直接内存随并发活跃的连接数增长到峰值为止。
+ * chat.nio.buffer.pool=false时不使用池，连接像以前一样在创建时分配堆缓冲区并一直持有，用于对比。
+ */
+final class BufferPool {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.nio.buffer.pool", "true"));
+    // 每块的字节数，即每个连接平常的读缓冲区和写缓冲区大小
+    static final int CHUNK_BYTES = Integer.getInteger("chat.nio.buffer.bytes", 8192);
+    private static final int SLAB_CHUNKS = Integer.getInteger("chat.nio.buffer.slab.chunks", 64);
+
+    // 所有池合计，用于指标
+    private static final LongAdder CHUNKS_IN_USE = new LongAdder();
+    private static final LongAdder POOLED_BYTES = new LongAdder();
+    private static final LongAdder HEAP_FALLBACKS = new LongAdder();
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final long maxBytes;
+    private long allocatedBytes = 0;
+
+    /**
+     * @param maxBytes 这个池最多分配的直接内存
+     */
+    BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 借出一个至少能容纳minBytes的缓冲区，position为0，limit为容量
+     */
+    ByteBuffer borrow(int minBytes) {
+        if (!ENABLED) {
+            return ByteBuffer.allocate(Math.max(minBytes, CHUNK_BYTES));
+        }
+        if (minBytes <= CHUNK_BYTES) {
+            if (free.isEmpty() && allocatedBytes + (long) CHUNK_BYTES * SLAB_CHUNKS <= maxBytes) {
+                allocateSlab();
+            }
+            ByteBuffer chunk = free.poll();
+            if (chunk != null) {
+                CHUNKS_IN_USE.increment();
+                return chunk;
+            }
+        }
+        HEAP_FALLBACKS.increment();
+        return ByteBuffer.allocate(Math.max(minBytes, CHUNK_BYTES));
+    }
+
+    /**
+     * 归还借出的缓冲区，临时分配的堆缓冲区直接丢弃；调用方之后不能再使用它（包括它的切片）
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        free.push(buffer);
+        CHUNKS_IN_USE.decrement();
+    }
+
+    private void allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(CHUNK_BYTES * SLAB_CHUNKS);
+        for (int i = 0; i < SLAB_CHUNKS; i++) {
+            slab.limit((i + 1) * CHUNK_BYTES).position(i * CHUNK_BYTES);
+            free.push(slab.slice());
+        }
+        allocatedBytes += slab.capacity();
+        POOLED_BYTES.add(slab.capacity());
+    }
+
+    static long getChunksInUse() {
+        return CHUNKS_IN_USE.sum();
+    }
+
+    static long getPooledBytes() {
+        return POOLED_BYTES.sum();
+    }
+
+    static long getHeapFallbacks() {
+        return HEAP_FALLBACKS.sum();
+    }
+}
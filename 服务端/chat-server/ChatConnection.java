@@ -0,0 +1,168 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 客户端连接抽象
+ * 阻塞式Socket连接和NIO连接共用同一套登录/路由逻辑，
+ * ChatServer只通过这个类向客户端写消息、关闭连接。
+ * 发送的消息先进入连接自己的出站队列，由该连接的写线程（或NIO事件循环）写出，
+ * 一个网络卡住的客户端不会阻塞其他用户的投递。
+ * 写出时按登录时协商的协议版本把Frame编码为文本行或二进制帧。
+ * 写线程（或事件循环）把队列中已有的多帧合并为一次写出，不为凑批等待新消息；
+ * 一批达到字节数、帧数或耗时上限，或者刚放入一个心跳应答/PING时立即写出。
+ */
+abstract class ChatConnection {
+
+    // 一批最多合并的字节数，0表示不合并，每帧单独写出（合并前的行为）
+    static final int COALESCE_BYTES = Integer.getInteger("chat.write.coalesce.bytes", 32 * 1024);
+    // 一批最多合并的帧数；NIO连接按聚集写（gathering write）传入的缓冲区个数计，连续的非共享帧共用一个缓冲区
+    static final int COALESCE_FRAMES = COALESCE_BYTES > 0 ? Integer.getInteger("chat.write.coalesce.frames", 64) : 1;
+    // 从开始编码一批到写出的最长时间，超过后不再往这一批里加帧
+    static final long COALESCE_NANOS = Long.getLong("chat.write.coalesce.us", 200) * 1000L;
+
+    // 客户端地址，用于日志
+    final String clientInfo;
+
+    // 登录成功后设置的用户名
+    volatile String username = "";
+
+    // 协商的协议版本，见Frame.TEXT / Frame.BINARY_V1
+    volatile int protocolVersion = Frame.TEXT;
+
+    // 是否在登录时声明支持在线状态增量（presence=1），否则每次变化收到完整的USERS列表
+    volatile boolean presenceDeltas = false;
+
+    // 是否在登录时声明支持消息确认（ack=1），聊天消息带客户端消息ID，服务器路由或落盘后回复ACK
+    volatile boolean acks = false;
+
+    // 是否在登录时协商了正文压缩（deflate=字典版本，仅二进制协议），见FrameCompression
+    volatile boolean compression = false;
+
+    // 是否在登录时协商了存储请求（store=1，仅二进制协议），见StoreRequests
+    volatile boolean storeRequests = false;
+
+    // 是否在登录时协商了由服务器保存聊天消息（persist=1），该连接发出的消息先写入聊天记录再投递
+    volatile boolean persistMessages = false;
+
+    // 最近收到的客户端消息ID -> 已确认的服务器消息ID（0表示尚未确认），用于识别客户端重试
+    private final Map<Long, Long> recentMessageIds = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > RECENT_MESSAGE_IDS;
+        }
+    };
+    private static final int RECENT_MESSAGE_IDS = 1024;
+
+    // 聊天消息配额，登录成功后创建，为null表示不限制；只在该连接的读取线程（或所属事件循环）上使用
+    AdmissionControl.UserQuota quota;
+    // 上次记录限流日志以来被限流的消息数和记录时间，每个连接每10秒最多记一条
+    int throttledCount = 0;
+    long throttleLoggedAt = 0;
+
+    // 登录后离线消息是否已全部投递，之前到达的私聊消息先存入离线存储以保证顺序
+    volatile boolean offlineDrained = false;
+
+    // 重连时补发到的各会话序列号，投递离线消息时跳过已补发的；没有恢复会话时为null
+    volatile Map<String, Long> replayedThrough;
+
+    // 最近一次收到客户端数据的时间，任何入站数据都算作存活
+    volatile long lastActive = System.currentTimeMillis();
+    // 时间轮中的存活检查任务
+    volatile HashedTimingWheel.Timeout livenessCheck;
+
+    // 出站消息队列
+    final OutboundQueue outbound = new OutboundQueue();
+
+    // 已因慢消费者被断开，后续消息直接丢弃
+    private volatile boolean evicted = false;
+
+    ChatConnection(String clientInfo) {
+        this.clientInfo = clientInfo;
+    }
+
+    /**
+     * 向客户端发送一帧，只入队不阻塞
+     */
+    void send(Frame frame) {
+        if (evicted) {
+            return;
+        }
+        if (!isLoggedIn() && !frame.isHandshake() && frame.type != Frame.ERROR) {
+            // 登录完成前只发送握手和错误帧，保证LOGIN_SUCCESS是客户端收到的第一行
+            return;
+        }
+        if (!isOpen()) {
+            throw new IllegalStateException("连接已关闭: " + this);
+        }
+        switch (outbound.offer(frame)) {
+            case QUEUED:
+                onQueued();
+                break;
+            case DROPPED:
+                ServerMetrics.OUTBOUND_DROPPED.increment();
+                break;
+            case START_DROPPING:
+                ServerMetrics.OUTBOUND_DROPPED.increment();
+                Log.warn("客户端 {} 出站队列达到高水位({})，开始丢弃消息", this, outbound.getHighWatermark());
+                break;
+            case OVERFLOW:
+                ServerMetrics.SLOW_CONSUMER_EVICTIONS.increment();
+                Log.warn("客户端 {} 出站队列达到高水位({})，判定为慢消费者，断开连接", this, outbound.getHighWatermark());
+                evicted = true;
+                close();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 登记收到的客户端消息ID
+     * @return null表示第一次收到；否则是客户端的重试，返回之前确认的服务器消息ID，尚未确认时为0
+     */
+    synchronized Long receivedMessageId(long clientMessageId) {
+        return recentMessageIds.putIfAbsent(clientMessageId, 0L);
+    }
+
+    /**
+     * 记录已向客户端确认的消息，之后的重试直接重发ACK
+     */
+    synchronized void acknowledged(long clientMessageId, long serverMessageId) {
+        recentMessageIds.replace(clientMessageId, serverMessageId);
+    }
+
+    /**
+     * 有新消息入队，通知写线程
+     */
+    abstract void onQueued();
+
+    /**
+     * 关闭连接，可重复调用
+     */
+    abstract void close();
+
+    /**
+     * 写完出站队列中已有的消息后再关闭连接
+     */
+    abstract void closeAfterFlush();
+
+    /**
+     * 写完出站队列中已有的消息后只关闭写方向（发送FIN），继续读取直到客户端关闭连接，
+     * 之后入队的消息不再写出；连接最终仍由close()/closeAfterFlush()关闭
+     */
+    abstract void shutdownOutputAfterFlush();
+
+    /**
+     * 连接是否仍然可用
+     */
+    abstract boolean isOpen();
+
+    boolean isLoggedIn() {
+        return !username.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return isLoggedIn() ? username : clientInfo;
+    }
+}
\ No newline at end of file
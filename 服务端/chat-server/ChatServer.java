@@ -1,174 +1,693 @@
 import java.net.*;
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.*;
-import java.text.SimpleDateFormat;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class ChatServer {
-    private static final int PORT = 8888;
+    private static final int PORT = Integer.getInteger("chat.port", 8888);
     private static ServerSocket serverSocket;
-    private static final ConcurrentHashMap<String, Socket> clients = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Long> lastHeartbeats = new ConcurrentHashMap<>();
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private static final ExecutorService messagePool = Executors.newFixedThreadPool(10); // 专用消息发送线程池
+    private static final ConcurrentHashMap<String, ChatConnection> clients = new ConcurrentHashMap<>();
+    // 存活检测：超过该时间没有收到任何数据的连接会被断开
+    private static final long HEARTBEAT_TIMEOUT_MS = Long.getLong("chat.heartbeat.timeout.ms", 30000);
+    private static final HashedTimingWheel livenessWheel = new HashedTimingWheel(Long.getLong("chat.wheel.tick.ms", 100), 512);
+    // 离线私聊消息存储，打开失败时为null，离线消息像以前一样丢弃
+    private static OfflineStore offlineStore;
+    private static final int OFFLINE_BATCH = Integer.getInteger("chat.offline.batch", 100);
+    private static final long OFFLINE_FORCE_INTERVAL_MS = Long.getLong("chat.offline.force.ms", 1000);
+    // 按接收者分段的锁：保证“投递或存入离线”与登录时取出离线消息互斥，离线消息总在新消息之前到达
+    private static final Object[] offlineLocks = new Object[64];
+    static {
+        for (int i = 0; i < offlineLocks.length; i++) {
+            offlineLocks[i] = new Object();
+        }
+    }
+    
+    // 聊天消息预写日志，分发线程追加，组提交线程批量落盘；打开失败或chat.wal.enabled=false时为null
+    private static WriteAheadLog wal;
+    
+    // 聊天记录存储请求（历史、已读、保存），与API服务器共用数据库；驱动不可用或打开失败时为null，客户端继续走HTTP
+    private static StoreRequests storeRequests;
+    // 是否由服务器保存登录时带 persist=1 的客户端发出的聊天消息，这些客户端不再自己调用API保存
+    private static final boolean PERSIST_MESSAGES = Boolean.parseBoolean(System.getProperty("chat.store.persist", "true"));
+    
+    // 在线状态：合并窗口内的上下线变化合并后再以增量发布
+    private static final PresenceTracker presence = new PresenceTracker(
+        Long.getLong("chat.presence.coalesce.ms", 200), livenessWheel, ChatServer::publishPresence);
+    // 线程模式: platform(缓存线程池) 或 virtual(每个连接的读线程、写线程都使用虚拟线程)
+    private static final boolean VIRTUAL_THREADS = "virtual".equalsIgnoreCase(System.getProperty("chat.threads", "platform"));
+    private static final ExecutorService threadPool = VIRTUAL_THREADS
+        ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+    // 消息分发分区数，每个分区一个处理线程
+    private static final int DISPATCH_PARTITIONS = Integer.getInteger("chat.dispatch.partitions", Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService messagePool = VIRTUAL_THREADS
+        ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(DISPATCH_PARTITIONS); // 专用消息发送线程池
     private static boolean running = true;
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     
-    // 消息队列系统 - 关键优化
-    private static final BlockingQueue<MessageTask> messageQueue = new LinkedBlockingQueue<>();
-    private static final Map<String, PrintWriter> clientWriters = new ConcurrentHashMap<>();
+    // 服务器ID，同一集群中每个节点必须不同
+    private static final int SERVER_ID = Integer.getInteger("chat.server.id", 1);
+    // 消息ID和会话序列号，在收到消息时分配，写入每条MSG帧；所有广播消息属于同一个会话
+    private static final MessageSequencer sequencer = new MessageSequencer(SERVER_ID);
+    private static final String BROADCAST_CONVERSATION = "BROADCAST";
+    // 集群模式下各节点的广播分别编号，会话ID带上节点ID
+    private static String broadcastConversation = BROADCAST_CONVERSATION;
+    
+    // 集群：chat.cluster.port大于0时与chat.cluster.peers中的节点组成集群，未启用时为null
+    private static ClusterNode cluster;
+    
+    // 准入控制：连接数上限、accept速率、每个用户的消息配额
+    private static final AdmissionControl admission = new AdmissionControl();
+    
+    // 指标抓取端点（HTTP和JMX）
+    private static MetricsEndpoint metricsEndpoint;
+    
+    // 优雅退出：收到SIGTERM/SIGINT后在chat.drain.timeout.ms内退出，在线连接在chat.drain.spread.ms内分批交出
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("chat.drain.timeout.ms", 30000);
+    private static final long DRAIN_SPREAD_MS = Long.getLong("chat.drain.spread.ms", 5000);
+    private static volatile boolean draining = false;
+    // 登录成功和退出时下发的会话恢复令牌，密钥加载失败时为null
+    private static ResumeToken resumeTokens;
+    
+    // 会话恢复：重连的客户端带上令牌和各会话最后收到的序列号，服务器从最近消息环或预写日志中补发缺失的消息
+    private static final long STARTED_AT = System.currentTimeMillis();
+    private static final long RESUME_MAX_AGE_MS = Long.getLong("chat.resume.max.age.ms", 24 * 3600 * 1000L);
+    // 一次补发的最多消息数，超过的会话不补发，由客户端重新拉取历史；不超过出站队列高水位的一半
+    private static final int RESUME_MAX_FRAMES = Math.min(Integer.getInteger("chat.resume.max.frames", 500),
+        OutboundQueue.HIGH_WATERMARK / 2);
+    private static final int RESUME_MAX_CONVERSATIONS = Integer.getInteger("chat.resume.max.conversations", 256);
+    // 启动时从预写日志最新的若干段中恢复会话序列号和最近消息环
+    private static final int RESUME_RECOVER_SEGMENTS = Integer.getInteger("chat.resume.recover.segments", 8);
+    private static final RecentMessages recentMessages = new RecentMessages(
+        Integer.getInteger("chat.resume.ring", 128), Long.getLong("chat.resume.ring.ttl.ms", 600000));
+    
+    // 消息队列系统 - 按会话分区，同一会话内严格有序，不同会话并行投递
+    private static final MessageDispatcher dispatcher = new MessageDispatcher(DISPATCH_PARTITIONS, ChatServer::deliver);
+    
+    // 连接引擎: blocking(每连接一个线程) 或 nio(固定数量的Selector事件循环)
+    private static final String ENGINE = System.getProperty("chat.engine", "blocking");
+    private static final int NIO_LOOPS = Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors());
+    private static NioChatEngine nioEngine;
 
     public static void main(String[] args) {
         // 强制使用IPv4
         System.setProperty("java.net.preferIPv4Stack", "true");
         System.setProperty("java.net.preferIPv4Addresses", "true");
         try {
-            // 明确绑定到IPv4地址
-            serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("0.0.0.0"));
-            System.out.println("[" + getTime() + "] 服务器绑定到IPv4地址: " + serverSocket.getInetAddress().getHostAddress());
-            System.out.println("[" + getTime() + "] 服务器已启动，监听端口: " + PORT);
+            // 打开离线消息存储和预写日志
+            openOfflineStore();
+            openWriteAheadLog();
+            openMessageStore();
             
             // 启动消息处理器 - 关键优化
             startMessageProcessor();
             
-            // 启动心跳检测线程
+            // 启动心跳检测时间轮
             startHeartbeatChecker();
             
-            while (running) {
+            // 加入集群
+            openCluster();
+            
+            // 注册运行状态指标，启动抓取端点
+            openMetrics();
+            
+            // 收到SIGTERM/SIGINT时优雅退出，日志在退出流程最后才停止
+            openResumeTokens();
+            Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::drain, "chat-drain"));
+            Log.manageShutdown();
+            
+            if ("nio".equalsIgnoreCase(ENGINE)) {
+                nioEngine = new NioChatEngine("0.0.0.0", PORT, AdmissionControl.ACCEPT_BACKLOG, NIO_LOOPS, admission);
+                Log.info("服务器已启动(NIO引擎, {} 个事件循环)，监听端口: {}", nioEngine.getLoopCount(), PORT);
+                nioEngine.run();
+                return;
+            }
+            
+            // 明确绑定到IPv4地址
+            serverSocket = new ServerSocket(PORT, AdmissionControl.ACCEPT_BACKLOG, InetAddress.getByName("0.0.0.0"));
+            Log.info("服务器绑定到IPv4地址: {}", serverSocket.getInetAddress().getHostAddress());
+            Log.info("服务器已启动({}模式)，监听端口: {}", VIRTUAL_THREADS ? "虚拟线程" : "平台线程", PORT);
+            
+            while (running && !draining) {
                 try {
+                    // accept速率用完时在这里等待，新连接留在backlog中
+                    admission.awaitAcceptPermit();
                     Socket clientSocket = serverSocket.accept();
+                    ServerMetrics.CONNECTIONS_ACCEPTED.increment();
+                    if (!admission.admit()) {
+                        reject(clientSocket);
+                        continue;
+                    }
                     threadPool.execute(() -> handleClient(clientSocket));
                 } catch (IOException e) {
-                    if (running) {
-                        System.err.println("[" + getTime() + "] 接受客户端连接异常: " + e.getMessage());
+                    if (running && !draining) {
+                        Log.error("接受客户端连接异常: {}", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("[" + getTime() + "] 服务器启动异常: " + e.getMessage());
+            Log.error("服务器启动异常: {}", e.getMessage());
         } finally {
-            shutdown();
+            // 优雅退出时由退出钩子线程完成关闭
+            if (!draining) {
+                shutdown();
+            }
         }
     }
 
     private static void handleClient(Socket clientSocket) {
-        String clientInfo = "";
-        String username = "";
+        SocketConnection conn = null;
         
         try {
-            clientInfo = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-            System.out.println("[" + getTime() + "] 新客户端连接: " + clientInfo);
-            
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            conn = new SocketConnection(clientSocket, threadPool);
+            Log.info("新客户端连接: {}", conn.clientInfo);
             
             // 等待客户端发送登录信息
-            String loginMsg = in.readLine();
-            if (loginMsg != null && loginMsg.startsWith("LOGIN:")) {
-                username = loginMsg.substring(6);
-                
-                // 检查用户名是否已存在
-                if (clients.containsKey(username)) {
-                    out.println("ERROR:用户名已存在");
-                    clientSocket.close();
-                    System.out.println("[" + getTime() + "] 拒绝连接，用户名已存在: " + username);
-                    return;
-                }
-                
-                // 记录客户端信息
-                clients.put(username, clientSocket);
-                clientWriters.put(username, out); // 缓存PrintWriter，提高性能
-                lastHeartbeats.put(username, System.currentTimeMillis());
-                
-                // 发送成功消息
-                out.println("LOGIN_SUCCESS");
-                System.out.println("[" + getTime() + "] 用户登录成功: " + username);
-                
-                // 广播用户上线消息
-                broadcastUserList();
-                
-                // 处理客户端消息
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equals("HEARTBEAT")) {
-                        lastHeartbeats.put(username, System.currentTimeMillis());
-                        out.println("HEARTBEAT_ACK");
-                        continue;
-                    }
-                    
-                    if (message.startsWith("MSG:")) {
-                        System.out.println("[" + getTime() + "] 收到消息 从 " + username + ": " + message);
-                        broadcastMessage(username, message.substring(4));
-                    } else if (message.startsWith("PRIVATE:")) {
-                        // 处理私聊消息: PRIVATE:接收者:内容 (简化格式)
-                        String[] parts = message.substring(8).split(":", 2);
-                        if (parts.length == 2) {
-                            String receiver = parts[0];
-                            String content = parts[1];
-                            
-                            System.out.println(String.format("[%s] 私聊消息 从 %s 到 %s: %s", 
-                                getTime(), username, receiver, content));
-                            
-                            sendPrivateMessage(username, receiver, content);
-                        } else {
-                            System.err.println("[" + getTime() + "] 无效的私聊消息格式: " + message);
-                        }
-                    }
-                }
+            String loginMsg = conn.readLoginLine();
+            if (loginMsg != null && login(conn, loginMsg)) {
+                // 处理客户端消息，文本或二进制由登录时协商决定
+                conn.readLoop();
             }
         } catch (IOException e) {
+            String who = conn != null ? conn.toString() : "";
             if (e instanceof SocketException && e.getMessage().contains("Connection reset")) {
-                System.out.println("[" + getTime() + "] 客户端断开连接: " + (username.isEmpty() ? clientInfo : username));
+                Log.info("客户端断开连接: {}", who);
             } else {
-                System.err.println("[" + getTime() + "] 处理客户端异常: " + e.getMessage());
+                Log.error("处理客户端异常: {}", e.getMessage());
             }
+        } catch (RuntimeException e) {
+            Log.error("处理客户端异常: {}", e.getMessage());
         } finally {
-            if (!username.isEmpty()) {
-                clients.remove(username);
-                clientWriters.remove(username); // 清理缓存的PrintWriter
-                lastHeartbeats.remove(username);
+            if (conn != null) {
+                // 写线程写完队列中剩余的消息（例如登录失败的ERROR）后关闭Socket
+                disconnect(conn);
+            } else {
                 try {
-                    broadcastUserList();
-                } catch (Exception e) {
-                    System.err.println("[" + getTime() + "] 广播用户列表异常: " + e.getMessage());
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.error("关闭客户端连接异常: {}", e.getMessage());
                 }
-                System.out.println("[" + getTime() + "] 用户离线: " + username);
             }
-            
+            admission.release();
+        }
+    }
+    
+    /**
+     * 连接数已满：写出一行ERROR后关闭，不为该连接创建线程
+     * 关闭前先半关闭并丢弃已到达的登录行，带着未读数据关闭会发RST，客户端可能读不到这行ERROR
+     */
+    private static void reject(Socket clientSocket) {
+        Log.message("拒绝连接，连接数已达上限({}): {}", AdmissionControl.MAX_CONNECTIONS, clientSocket.getRemoteSocketAddress());
+        try (Socket socket = clientSocket) {
+            socket.getOutputStream().write(AdmissionControl.REJECT_LINE);
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            in.skip(in.available());
+        } catch (IOException e) {
+            // 忽略，客户端可能已经断开
+        }
+    }
+    
+    // 无字段的回复帧，所有连接共享
+    private static final Frame HEARTBEAT_ACK = Frame.control(Frame.HEARTBEAT_ACK);
+    
+    /**
+     * 处理登录消息，阻塞和NIO两种引擎共用
+     * 登录消息可以带参数协商协议版本，例如 LOGIN:alice;binary=1，
+     * 服务器回复 LOGIN_SUCCESS;binary=1 后双方切换到二进制帧；旧客户端继续使用文本协议。
+     * 带 presence=1 的客户端之后收到USER_JOIN/USER_LEAVE增量，否则收到完整的USERS列表；
+     * 二进制协议的客户端带 deflate=1 时，较长的正文压缩后发送；
+     * 重连的二进制协议客户端带 resume=令牌;last=会话ID:序列号,... 时补发这些会话中缺失的消息，见planResume；
+     * 二进制协议的客户端带 store=1 且服务器打开了聊天记录存储时，可以在连接上发REQUEST帧，见StoreRequests；
+     * 二进制协议的客户端带 persist=1 时服务器保存该用户发出的聊天消息，MSG和ACK的消息ID为带FLAG_STORED的数据库ID；
+     *   文本协议的消息行不带消息ID，客户端无从得知数据库ID，不协商persist
+     * @return 登录是否成功；失败时调用方应在写出错误信息后关闭连接
+     */
+    static boolean login(ChatConnection conn, String loginMsg) {
+        LoginRequest request = LoginRequest.parse(loginMsg);
+        if (request == null) {
+            return false;
+        }
+        String username = request.username;
+        
+        if (draining) {
+            conn.send(Frame.of(Frame.ERROR, "服务器正在重启，请稍后重连"));
+            ServerMetrics.LOGINS_REJECTED.increment();
+            return false;
+        }
+        
+        // 同名用户已登录在集群中的其他节点上（以本节点已知的用户目录为准）
+        if (cluster != null && cluster.nodeOf(username) != null) {
+            conn.send(Frame.of(Frame.ERROR, "用户名已存在"));
+            ServerMetrics.LOGINS_REJECTED.increment();
+            Log.info("拒绝连接，用户名已在节点{}上登录: {}", cluster.nodeOf(username), username);
+            return false;
+        }
+        
+        // 检查用户名是否已存在（putIfAbsent保证两个连接不会同时登录同一用户名）
+        if (clients.putIfAbsent(username, conn) != null) {
+            conn.send(Frame.of(Frame.ERROR, "用户名已存在"));
+            ServerMetrics.LOGINS_REJECTED.increment();
+            Log.info("拒绝连接，用户名已存在: {}", username);
+            return false;
+        }
+        
+        // 协商协议版本：取客户端支持的最高版本与服务器支持版本的较小值
+        int version = Math.max(Frame.TEXT, Math.min(request.getInt("binary", Frame.TEXT), Frame.MAX_BINARY_VERSION));
+        
+        boolean presenceDeltas = request.getInt("presence", 0) >= 1;
+        boolean acks = request.getInt("ack", 0) >= 1;
+        // 文本协议的一行放不下压缩后的二进制数据，只对二进制协议的连接压缩
+        boolean compression = version > Frame.TEXT && FrameCompression.supports(request.getInt("deflate", 0));
+        boolean store = version > Frame.TEXT && storeRequests != null && request.getInt("store", 0) >= 1;
+        boolean persist = version > Frame.TEXT && PERSIST_MESSAGES && storeRequests != null
+            && request.getInt("persist", 0) >= 1;
+        StringJoiner accepted = new StringJoiner(";");
+        if (version > Frame.TEXT) {
+            accepted.add("binary=" + version);
+        }
+        if (compression) {
+            accepted.add("deflate=" + FrameCompression.DICTIONARY_VERSION);
+        }
+        if (presenceDeltas) {
+            accepted.add("presence=1");
+        }
+        if (acks) {
+            accepted.add("ack=1");
+        }
+        if (store) {
+            accepted.add("store=1");
+        }
+        if (persist) {
+            accepted.add("persist=1");
+        }
+        // 令牌由base64url字符和'.'组成，可以直接放在参数中
+        if (resumeTokens != null) {
+            accepted.add("token=" + resumeTokens.issue(username));
+        }
+        ResumePlan resume = version > Frame.TEXT ? planResume(username, request) : null;
+        if (resume != null) {
+            accepted.add("resume=" + resume.total);
+            if (resume.gaps.length() > 0) {
+                accepted.add("gap=" + resume.gaps);
+            }
+        }
+        
+        // 发送成功消息；握手帧总是按文本写出，之后的帧按协商的版本编码
+        conn.send(Frame.of(Frame.LOGIN_SUCCESS, accepted.toString()));
+        conn.protocolVersion = version;
+        conn.presenceDeltas = presenceDeltas;
+        conn.acks = acks;
+        conn.compression = compression;
+        conn.storeRequests = store;
+        conn.persistMessages = persist;
+        conn.quota = admission.newUserQuota();
+        
+        // 记录客户端信息，之后该连接才会收到其他消息
+        conn.username = username;
+        conn.lastActive = System.currentTimeMillis();
+        scheduleLivenessCheck(conn, HEARTBEAT_TIMEOUT_MS);
+        ServerMetrics.LOGINS.increment();
+        Log.info("用户登录成功: {}{}", username, version > Frame.TEXT ? " (二进制协议v" + version + ")" : "");
+        
+        // 广播用户上线消息
+        presence.joined(username);
+        if (cluster != null) {
+            cluster.localJoined(username);
+        }
+        
+        // 先补发断线期间缺失的消息，再按顺序分批投递离线期间收到的私聊消息
+        if (resume != null) {
+            replay(conn, resume);
+        }
+        deliverOfflineMessages(conn);
+        return true;
+    }
+    
+    /**
+     * 一次会话恢复要补发的消息
+     */
+    private static final class ResumePlan {
+        // 可以补全的会话 -> 客户端已收到的序列号
+        final Map<String, Long> after = new LinkedHashMap<>();
+        // 会话ID -> 按序列号排列的待补发消息
+        final Map<String, NavigableMap<Long, Frame>> frames = new HashMap<>();
+        int total = 0;
+        // 无法补全的会话，客户端应重置排序状态并重新拉取历史
+        final StringJoiner gaps = new StringJoiner(",");
+    }
+    
+    /**
+     * 校验恢复令牌，按客户端给出的各会话最后序列号找出缺失的消息：
+     * 先查最近消息环，环中没有覆盖的会话从新到旧读取预写日志，读到覆盖为止，耗时与断线期间的消息量成正比。
+     * 只补发用户参与的消息（广播、发给或来自该用户的私聊）。
+     * 序列号比服务器当前值还大（服务器没有预写日志时重启过）、日志中也找不到、或超出补发上限的会话记为缺口。
+     * @return 令牌无效或没有请求恢复时返回null，客户端照常从头开始
+     */
+    private static ResumePlan planResume(String username, LoginRequest request) {
+        String token = request.get("resume");
+        String last = request.get("last");
+        if (token == null || last == null || resumeTokens == null) {
+            return null;
+        }
+        // 没有预写日志时序列号不会跨进程延续，之前进程签发的令牌不能用来恢复
+        if (!username.equals(resumeTokens.verify(token, RESUME_MAX_AGE_MS, wal != null ? 0 : STARTED_AT))) {
+            ServerMetrics.RESUMES_REJECTED.increment();
+            return null;
+        }
+        ResumePlan plan = new ResumePlan();
+        Map<String, Long> pending = new HashMap<>();
+        String[] entries = last.split(",");
+        for (int i = 0; i < entries.length && i < RESUME_MAX_CONVERSATIONS; i++) {
+            int colon = entries[i].lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String conversationId = entries[i].substring(0, colon);
+            long after = parseLong(entries[i].substring(colon + 1), -1);
+            long current = sequencer.currentSequence(conversationId);
+            if (after < 0 || after > current) {
+                plan.gaps.add(conversationId);
+                continue;
+            }
+            NavigableMap<Long, Frame> frames = new TreeMap<>();
+            if (after == current || recentMessages.collect(conversationId, after, frames)) {
+                accept(plan, conversationId, after, frames, username);
+            } else {
+                pending.put(conversationId, after);
+            }
+        }
+        if (!pending.isEmpty()) {
+            readWriteAheadLog(pending, plan, username);
+        }
+        if (plan.gaps.length() > 0) {
+            ServerMetrics.RESUMES_GAP.increment();
+        } else {
+            ServerMetrics.RESUMES.increment();
+        }
+        return plan;
+    }
+    
+    /**
+     * 从新到旧读取预写日志段，直到pending中每个会话都读到了客户端已收到的序列号，
+     * 读到的消息与最近消息环中的合并；日志读完仍没有覆盖的会话记为缺口
+     */
+    private static void readWriteAheadLog(Map<String, Long> pending, ResumePlan plan, String username) {
+        Map<String, NavigableMap<Long, Frame>> found = new HashMap<>();
+        Map<String, Long> oldest = new HashMap<>();
+        if (wal != null) {
             try {
-                if (!clientSocket.isClosed()) {
-                    clientSocket.close();
+                List<Path> segments = wal.listSegments();
+                for (int i = segments.size() - 1; i >= 0 && !covered(pending, oldest); i--) {
+                    WriteAheadLog.readSegment(segments.get(i), frame -> {
+                        Long after = pending.get(frame.conversationId);
+                        if (after == null) {
+                            return;
+                        }
+                        oldest.merge(frame.conversationId, frame.sequence, Math::min);
+                        if (frame.sequence > after) {
+                            found.computeIfAbsent(frame.conversationId, k -> new TreeMap<>()).put(frame.sequence, frame);
+                            ServerMetrics.RESUME_FRAMES_WAL.increment();
+                        }
+                    });
                 }
             } catch (IOException e) {
-                System.err.println("[" + getTime() + "] 关闭客户端连接异常: " + e.getMessage());
+                // 段在读取时被滚动删除，按读到的部分判断
+                Log.warn("读取预写日志补发消息失败: {}", e.getMessage());
+            }
+        }
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            String conversationId = entry.getKey();
+            Long first = oldest.get(conversationId);
+            if (first == null || first > entry.getValue() + 1) {
+                plan.gaps.add(conversationId);
+                continue;
             }
+            NavigableMap<Long, Frame> frames = found.getOrDefault(conversationId, new TreeMap<>());
+            // 还没落盘的最新消息只在环中
+            recentMessages.collect(conversationId, entry.getValue(), frames);
+            accept(plan, conversationId, entry.getValue(), frames, username);
         }
     }
     
+    /**
+     * 把一个会话的待补发消息加入计划，只保留用户参与的消息；超出补发上限时记为缺口
+     */
+    private static void accept(ResumePlan plan, String conversationId, long after,
+                               NavigableMap<Long, Frame> frames, String username) {
+        frames.values().removeIf(frame -> !participates(frame, username));
+        if (plan.total + frames.size() > RESUME_MAX_FRAMES) {
+            plan.gaps.add(conversationId);
+            return;
+        }
+        plan.total += frames.size();
+        plan.after.put(conversationId, after);
+        plan.frames.put(conversationId, frames);
+    }
+    
+    private static boolean participates(Frame frame, String username) {
+        return frame.isBroadcast() || frame.sender.equals(username) || frame.receiver.equals(username);
+    }
+    
+    private static boolean covered(Map<String, Long> pending, Map<String, Long> oldest) {
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            Long first = oldest.get(entry.getKey());
+            if (first == null || first > entry.getValue() + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 登录完成后补发消息。规划时读取消息环与设置用户名之间投递的消息会被send()丢弃，
+     * 这里再从环中合并一次；之后的消息正常投递，与补发重叠的由客户端按序列号去重。
+     * 用户自己发出的私聊不会发给自己，以客户端消息ID为0的ACK补发，客户端据此跳过这个序列号
+     */
+    private static void replay(ChatConnection conn, ResumePlan plan) {
+        Map<String, Long> replayed = new HashMap<>();
+        int count = 0;
+        for (Map.Entry<String, Long> entry : plan.after.entrySet()) {
+            NavigableMap<Long, Frame> frames = plan.frames.get(entry.getKey());
+            recentMessages.collect(entry.getKey(), entry.getValue(), frames);
+            for (Frame frame : frames.values()) {
+                if (!participates(frame, conn.username)) {
+                    continue;
+                }
+                conn.send(frame.isBroadcast() || !frame.sender.equals(conn.username) ? frame : Frame.ack(0, frame));
+                count++;
+            }
+            if (!frames.isEmpty()) {
+                replayed.put(entry.getKey(), frames.lastKey());
+            }
+        }
+        conn.replayedThrough = replayed;
+        ServerMetrics.RESUME_FRAMES.add(count);
+        Log.info("用户 {} 恢复会话: 补发消息 {} 条{}", conn.username, count,
+            plan.gaps.length() > 0 ? "，无法补全的会话: " + plan.gaps : "");
+    }
+    
+    /**
+     * 处理已登录客户端发来的一行文本消息
+     */
+    static void handleMessage(ChatConnection conn, String message) {
+        Frame frame = FrameCodec.parseTextCommand(message, conn.acks);
+        if (frame == null) {
+            if (message.startsWith("PRIVATE:")) {
+                Log.warn("无效的私聊消息格式: {}", message);
+            }
+            return;
+        }
+        handleFrame(conn, frame);
+    }
+    
+    /**
+     * 处理已登录客户端发来的一个二进制帧，buffer的position指向帧的长度前缀
+     * 心跳帧只看类型字段，不做完整解码
+     */
+    static void handleFrame(ChatConnection conn, ByteBuffer buffer) throws IOException {
+        if (FrameCodec.peekType(buffer) == Frame.HEARTBEAT) {
+            ServerMetrics.received(Frame.HEARTBEAT);
+            FrameCodec.skip(buffer);
+            conn.send(HEARTBEAT_ACK);
+            return;
+        }
+        handleFrame(conn, FrameCodec.decode(buffer));
+    }
+    
+    /**
+     * 处理已登录客户端发来的消息，文本和二进制协议共用
+     */
+    static void handleFrame(ChatConnection conn, Frame frame) {
+        String username = conn.username;
+        ServerMetrics.received(frame.type);
+        switch (frame.type) {
+            case Frame.HEARTBEAT:
+                // 存活时间已在读取数据时更新
+                conn.send(HEARTBEAT_ACK);
+                break;
+            case Frame.BROADCAST:
+                if (throttled(conn, frame, BROADCAST_CONVERSATION) || isRetry(conn, frame)) {
+                    break;
+                }
+                Log.message("收到消息 从 {}: {}", username, frame.body);
+                broadcastMessage(conn, frame.messageId, frame.body);
+                break;
+            case Frame.PRIVATE:
+                String conversationId = generateConversationId(username, frame.receiver);
+                if (throttled(conn, frame, conversationId) || isRetry(conn, frame)) {
+                    break;
+                }
+                Log.message("私聊消息 从 {} 到 {}: {}", username, frame.receiver, frame.body);
+                sendPrivateMessage(conn, frame.messageId, conversationId, frame.receiver, frame.body);
+                break;
+            case Frame.GET_USERS:
+                // 与在线状态增量走同一分区，快照不会与之前发出的增量乱序
+                dispatch(new MessageTask(MessageTask.Type.USERS_SNAPSHOT, null, username));
+                break;
+            case Frame.REQUEST:
+                if (!conn.storeRequests) {
+                    conn.send(Frame.response(frame.messageId, StoreRequests.STATUS_BAD_REQUEST, "登录时没有协商store=1"));
+                    break;
+                }
+                storeRequests.submit(conn, frame);
+                break;
+            default:
+                // PONG、LOGOUT等消息沿用原有行为，不做处理
+                break;
+        }
+    }
+    
+    /**
+     * 聊天消息的准入检查，在登记客户端消息ID之前进行，被拒绝的消息重发时按新消息处理：
+     * 目标分发分区积压过多，或超出用户的消息数/字节数配额时，消息不进入分发队列，
+     * 回复THROTTLED告诉客户端多久之后重发（协商了ACK时带客户端消息ID）
+     * @param dispatchKey 消息将要进入的分发分区的key
+     */
+    private static boolean throttled(ChatConnection conn, Frame frame, String dispatchKey) {
+        long delayNanos;
+        if (dispatcher.depthOf(dispatchKey) >= AdmissionControl.MAX_DISPATCH_DEPTH
+                || (conn.persistMessages && storeRequests.isBacklogged())) {
+            ServerMetrics.THROTTLED_OVERLOAD.increment();
+            delayNanos = AdmissionControl.OVERLOAD_RETRY_MILLIS * 1_000_000L;
+        } else if (conn.quota != null) {
+            delayNanos = conn.quota.tryAcquire(FrameCodec.utf8Length(frame.receiver) + FrameCodec.utf8Length(frame.body));
+        } else {
+            delayNanos = 0;
+        }
+        if (delayNanos == 0) {
+            return false;
+        }
+        long retryAfterMillis = Math.max(1, (delayNanos + 999_999) / 1_000_000);
+        conn.send(Frame.throttled(conn.acks ? frame.messageId : 0, retryAfterMillis));
+        conn.throttledCount++;
+        long now = System.currentTimeMillis();
+        if (now - conn.throttleLoggedAt >= 10_000) {
+            Log.warn("用户 {} 的消息被限流 {} 条，建议 {}ms 后重发", conn, conn.throttledCount, retryAfterMillis);
+            conn.throttledCount = 0;
+            conn.throttleLoggedAt = now;
+        }
+        return true;
+    }
+    
+    /**
+     * 客户端没收到ACK时会用同一个消息ID重发，已处理过的消息不再路由：
+     * 已确认的直接重发ACK，还在处理中的忽略，处理完成后会发出ACK
+     */
+    private static boolean isRetry(ChatConnection conn, Frame frame) {
+        if (!conn.acks || frame.messageId == 0) {
+            return false;
+        }
+        Long serverMessageId = conn.receivedMessageId(frame.messageId);
+        if (serverMessageId == null) {
+            return false;
+        }
+        if (serverMessageId != 0) {
+            conn.send(new Frame(Frame.ACK, 0, serverMessageId, 0, 0, null, null, null, Long.toString(frame.messageId)));
+        }
+        Log.message("忽略重复消息: {}, 消息ID={}", conn.username, frame.messageId);
+        return true;
+    }
+    
+    /**
+     * 连接断开后的清理，只移除仍属于该连接的登记信息
+     */
+    static void disconnect(ChatConnection conn) {
+        conn.closeAfterFlush();
+        unregister(conn);
+    }
+    
+    /**
+     * 优雅退出时交出一个连接：从在线表中移除，写完出站队列后关闭写方向，继续读取直到客户端关闭连接
+     * 在接收者的离线锁内完成，私聊消息要么在半关闭标记之前入队，要么进入离线存储；
+     * 客户端在看到连接结束之前发出的消息都会被读取处理
+     */
+    private static void handOff(ChatConnection conn) {
+        synchronized (offlineLock(conn.username)) {
+            unregister(conn);
+            conn.shutdownOutputAfterFlush();
+        }
+    }
+    
+    // 取消存活检查，移除仍属于该连接的在线登记
+    private static void unregister(ChatConnection conn) {
+        String username = conn.username;
+        HashedTimingWheel.Timeout livenessCheck = conn.livenessCheck;
+        if (livenessCheck != null) {
+            livenessCheck.cancel();
+        }
+        if (!username.isEmpty() && clients.remove(username, conn)) {
+            ServerMetrics.DISCONNECTS.increment();
+            userLeft(username);
+            Log.info("用户离线: {}", username);
+        }
+    }
+    
+    /**
+     * 本地用户下线：通知其他节点；用户已经登录到其他节点上时不发布下线
+     */
+    private static void userLeft(String username) {
+        if (cluster != null) {
+            cluster.localLeft(username);
+            if (cluster.nodeOf(username) != null) {
+                return;
+            }
+        }
+        presence.left(username);
+    }
+    
     // 异步消息广播 - 关键优化，解决实时同步问题
-    private static void broadcastMessage(String sender, String content) {
-        String timestamp = getTime();
-        String message = "MSG:" + sender + ":" + content + ":" + timestamp;
+    private static void broadcastMessage(ChatConnection origin, long clientMessageId, String content) {
+        String sender = origin.username;
+        // 会话序列号在分区线程上投递前分配（见deliver）
+        Frame message = Frame.chat(sequencer.nextMessageId(), 0,
+            broadcastConversation, sender, null, content, System.currentTimeMillis());
         
         // 将消息加入队列，由专门的线程处理，避免阻塞
-        messageQueue.offer(new MessageTask(MessageTask.Type.BROADCAST, message, null));
+        route(new MessageTask(MessageTask.Type.BROADCAST, message, null, origin, clientMessageId));
         
-        System.out.println("[" + timestamp + "] 消息已加入广播队列: " + message);
+        Log.message("消息已加入广播队列: {}: {}", sender, content);
     }
     
     // 发送私聊消息
-    private static void sendPrivateMessage(String sender, String receiver, String content) {
-        String timestamp = getTime();
-        
-        // 构建消息格式：MSG:sender:receiver:content:timestamp
-        String message = String.format("MSG:%s:%s:%s:%s", sender, receiver, content, timestamp);
+    private static void sendPrivateMessage(ChatConnection origin, long clientMessageId, String conversationId,
+                                           String receiver, String content) {
+        String sender = origin.username;
+        // 文本协议下编码为：MSG:sender:receiver:content:timestamp
+        Frame message = Frame.chat(sequencer.nextMessageId(), 0,
+            conversationId, sender, receiver, content, System.currentTimeMillis());
         
-        // 将私聊消息加入队列
-        messageQueue.offer(new MessageTask(MessageTask.Type.PRIVATE, message, receiver));
+        // 将私聊消息加入队列，按会话分区
+        route(new MessageTask(MessageTask.Type.PRIVATE, message, receiver, origin, clientMessageId));
         
-        System.out.println(String.format("[%s] 私聊消息已加入队列: %s -> %s", 
-            timestamp, sender, receiver));
+        Log.message("私聊消息已加入队列: {} -> {}", sender, receiver);
     }
     
     // 生成会话ID
@@ -180,127 +699,495 @@ public class ChatServer {
         }
     }
     
-    // 消息ID生成器（简化版）
-    private static final Map<String, Long> conversationCounters = new ConcurrentHashMap<>();
+    /**
+     * 发布一批在线状态变化，由PresenceTracker按版本号顺序调用
+     * 增量发给支持增量的客户端，旧客户端仍收到一份完整的用户列表
+     */
+    private static void publishPresence(PresenceTracker.Update update) {
+        for (Frame delta : update.deltas) {
+            dispatch(new MessageTask(MessageTask.Type.PRESENCE, delta, null));
+        }
+        dispatch(new MessageTask(MessageTask.Type.USER_LIST, update.fullList, null));
+    }
     
-    private static long generateMessageId(String conversationId) {
-        long timestamp = System.currentTimeMillis();
-        long sequence = conversationCounters.computeIfAbsent(conversationId, k -> 0L);
-        conversationCounters.put(conversationId, sequence + 1);
-        
-        // 简化的ID生成：时间戳 + 序列号
-        return (timestamp << 10) | (sequence % 1024);
+    /**
+     * 分发本节点用户发出的聊天消息；发送者协商了persist=1时先保存到聊天记录，
+     * 由存储线程按提交顺序换成带数据库ID的帧后再分发，ACK和投递出去的MSG都带这个ID
+     */
+    private static void route(MessageTask task) {
+        if (!task.origin.persistMessages) {
+            dispatch(task);
+            return;
+        }
+        storeRequests.persist(task.frame, stored -> dispatch(
+            new MessageTask(task.type, stored, task.targetUser, task.origin, task.clientMessageId)));
     }
     
-    // 获取下一个序列号
-    private static final Map<String, Long> sequenceCounters = new ConcurrentHashMap<>();
+    /**
+     * 把任务放入对应的分区：私聊按会话ID分区，广播固定在一个分区上保持顺序，
+     * 在线状态增量、完整列表和快照请求共用一个分区；
+     * 分区内私聊走交互通道，广播走批量通道，在线状态走控制通道
+     */
+    private static void dispatch(MessageTask task) {
+        if (task.type == MessageTask.Type.PRIVATE) {
+            dispatcher.dispatch(task.frame.conversationId, LaneQueue.INTERACTIVE, task);
+        } else if (task.type == MessageTask.Type.BROADCAST) {
+            dispatcher.dispatch(BROADCAST_CONVERSATION, LaneQueue.BULK, task);
+        } else {
+            dispatcher.dispatch("PRESENCE", LaneQueue.CONTROL, task);
+        }
+    }
     
-    private static long getNextSequenceNumber(String conversationId) {
-        return sequenceCounters.computeIfAbsent(conversationId, k -> 0L) + 1;
+    // 消息处理器 - 每个分区一个处理线程，解决实时同步问题的核心
+    private static void startMessageProcessor() {
+        dispatcher.start(messagePool);
+        Log.info("消息分发器已启动，分区数: {}", dispatcher.getPartitionCount());
     }
     
-    // 异步用户列表广播
-    private static void broadcastUserList() {
-        StringBuilder userListMsg = new StringBuilder("USERS:");
-        for (String user : clients.keySet()) {
-            userListMsg.append(user).append(",");
+    /**
+     * 投递一个消息任务，由所属分区的处理线程调用
+     * 本节点用户发出的聊天消息在这里分配会话序列号：同一会话的任务总由同一个分区线程按入队顺序处理，
+     * 序列号顺序就是投递顺序，与发送者是否先经过存储线程保存无关；预写日志、最近消息环、投递和ACK都使用带序列号的帧
+     */
+    private static void deliver(MessageTask queued) {
+        boolean chat = queued.type == MessageTask.Type.BROADCAST || queued.type == MessageTask.Type.PRIVATE;
+        MessageTask task = chat && queued.frame.sequence == 0 && !queued.frame.isForwarded()
+            ? queued.sequenced(sequencer.nextSequence(queued.frame.conversationId)) : queued;
+        // 聊天消息先追加到预写日志，不等待落盘；需要确认的消息在落盘后回复ACK
+        if (wal != null && chat && !task.frame.isForwarded()) {
+            wal.append(task.frame, task.clientMessageId != 0 ? lsn -> acknowledge(task) : null);
+        }
+        // 先记入最近消息环再投递，登录中的连接错过的消息可以从环中补上
+        if (chat) {
+            recentMessages.add(task.frame);
         }
         
-        if (userListMsg.length() > 6 && userListMsg.charAt(userListMsg.length() - 1) == ',') {
-            userListMsg.deleteCharAt(userListMsg.length() - 1);
+        if (task.type == MessageTask.Type.BROADCAST) {
+            // 只写入各连接的出站队列，不会被某个慢客户端阻塞
+            // 广播帧是共享帧，每种协议只编码一次，各连接写出同一份字节
+            int delivered = 0;
+            for (Map.Entry<String, ChatConnection> entry : clients.entrySet()) {
+                try {
+                    entry.getValue().send(task.frame);
+                    delivered++;
+                } catch (Exception e) {
+                    Log.warn("向用户 {} 发送消息失败: {}", entry.getKey(), e.getMessage());
+                    // 标记该连接为有问题，后续清理
+                    markClientForCleanup(entry.getKey());
+                }
+            }
+            if (cluster != null && !task.frame.isForwarded()) {
+                cluster.broadcast(task.frame);
+            }
+            ServerMetrics.BROADCAST_DELIVERIES.add(delivered);
+            ServerMetrics.FANOUT_BROADCAST.recordSince(task.enqueuedAt);
+            
+        } else if (task.type == MessageTask.Type.USER_LIST || task.type == MessageTask.Type.PRESENCE) {
+            // 在线状态增量只发给支持增量的客户端，完整用户列表只发给旧客户端
+            boolean delta = task.type == MessageTask.Type.PRESENCE;
+            for (Map.Entry<String, ChatConnection> entry : clients.entrySet()) {
+                ChatConnection conn = entry.getValue();
+                if (conn.presenceDeltas != delta) {
+                    continue;
+                }
+                try {
+                    conn.send(task.frame);
+                } catch (Exception e) {
+                    Log.warn("向用户 {} 发送用户列表失败: {}", entry.getKey(), e.getMessage());
+                }
+            }
+            ServerMetrics.FANOUT_PRESENCE.recordSince(task.enqueuedAt);
+        } else if (task.type == MessageTask.Type.USERS_SNAPSHOT) {
+            // 回复GET_USERS：支持增量的客户端收到带版本号的快照，旧客户端收到USERS列表
+            ChatConnection conn = clients.get(task.targetUser);
+            if (conn != null && conn.isOpen()) {
+                Frame snapshot = presence.snapshot();
+                conn.send(conn.presenceDeltas ? snapshot : Frame.of(Frame.USERS, snapshot.body));
+            }
+        } else if (task.type == MessageTask.Type.PRIVATE) {
+            // 发送私聊消息给指定用户（不再向发送者回传，避免重复保存）
+            synchronized (offlineLock(task.targetUser)) {
+                ChatConnection target = clients.get(task.targetUser);
+                if (target != null && target.isOpen() && (target.offlineDrained || offlineStore == null)) {
+                    try {
+                        target.send(task.frame);
+                        ServerMetrics.ROUTED_LOCAL.increment();
+                        Log.message("私聊消息已发送给接收者: {}", task.targetUser);
+                    } catch (Exception e) {
+                        ServerMetrics.ROUTED_DROPPED.increment();
+                        Log.warn("向用户 {} 发送私聊消息失败: {}", task.targetUser, e.getMessage());
+                    }
+                } else if (target == null && forwardToNode(task)) {
+                    ServerMetrics.ROUTED_FORWARDED.increment();
+                    Log.message("私聊消息已转发到节点{}: {}", cluster.nodeOf(task.targetUser), task.targetUser);
+                } else if (offlineStore != null) {
+                    // 接收者不在线，或者离线消息还没投递完，存入离线存储保证顺序
+                    try {
+                        offlineStore.append(task.targetUser, task.frame);
+                        ServerMetrics.ROUTED_OFFLINE.increment();
+                        Log.message("用户 {} 不在线，私聊消息已存入离线存储", task.targetUser);
+                    } catch (IOException e) {
+                        ServerMetrics.ROUTED_DROPPED.increment();
+                        Log.warn("保存离线消息失败: {}, {}", task.targetUser, e.getMessage());
+                    }
+                } else {
+                    ServerMetrics.ROUTED_DROPPED.increment();
+                    Log.warn("用户 {} 不在线，无法发送私聊消息", task.targetUser);
+                }
+            }
+            ServerMetrics.FANOUT_PRIVATE.recordSince(task.enqueuedAt);
+            
+            // 不再向发送者回传消息，避免重复保存
+            // 发送者已在客户端发送时保存消息，无需服务器回传
         }
         
-        // 将用户列表更新加入队列，异步处理
-        messageQueue.offer(new MessageTask(MessageTask.Type.USER_LIST, userListMsg.toString(), null));
+        // 没有预写日志时，路由完成即确认
+        if (wal == null && chat && task.clientMessageId != 0) {
+            acknowledge(task);
+        }
     }
     
-    // 消息处理器 - 专门处理消息发送的线程，解决实时同步问题的核心
-    private static void startMessageProcessor() {
-        messagePool.execute(() -> {
-            while (running) {
+    /**
+     * 接收者登录在其他节点上时，经到该节点的链路转发
+     * 本节点还保存着该用户的离线消息时不转发，存入离线存储排在后面，由forwardOfflineMessages按顺序转走
+     * @return 是否已转发；链路未连接或队列已满时返回false，由调用方存入离线存储
+     */
+    private static boolean forwardToNode(MessageTask task) {
+        if (cluster == null || task.frame.isForwarded()) {
+            return false;
+        }
+        if (offlineStore != null && offlineStore.pendingCount(task.targetUser) > 0) {
+            return false;
+        }
+        ClusterLink link = cluster.linkFor(task.targetUser);
+        return link != null && cluster.forward(link, task.frame);
+    }
+    
+    /**
+     * 其他节点转发来的消息：广播发给本节点的所有用户，私聊按会话分区投递给本节点上的接收者
+     */
+    private static void receiveForwarded(Frame frame) {
+        if (frame.isBroadcast()) {
+            dispatch(new MessageTask(MessageTask.Type.BROADCAST, frame, null));
+        } else {
+            dispatch(new MessageTask(MessageTask.Type.PRIVATE, frame, frame.receiver));
+        }
+    }
+    
+    /**
+     * 其他节点上的用户上线/下线，并入本节点发布的在线状态
+     * 用户上线后把本节点为其保存的离线消息转发过去
+     */
+    private static void remotePresenceChanged(String username, boolean online) {
+        if (online) {
+            presence.joined(username);
+            threadPool.execute(() -> forwardOfflineMessages(username));
+        } else if (!clients.containsKey(username)) {
+            presence.left(username);
+        }
+    }
+    
+    /**
+     * 按写入顺序分批把离线消息转发到用户所在的节点，链路队列满时稍后继续
+     */
+    private static void forwardOfflineMessages(String username) {
+        if (offlineStore == null) {
+            return;
+        }
+        while (true) {
+            synchronized (offlineLock(username)) {
+                ClusterLink link = cluster.linkFor(username);
+                if (clients.containsKey(username) || link == null) {
+                    return;
+                }
+                List<Frame> batch;
                 try {
-                    MessageTask task = messageQueue.take(); // 阻塞等待消息
-                    
-                    if (task.type == MessageTask.Type.BROADCAST) {
-                        // 并行发送给所有客户端，避免单点阻塞
-                        List<CompletableFuture<Void>> futures = new ArrayList<>();
-                        
-                        for (Map.Entry<String, PrintWriter> entry : clientWriters.entrySet()) {
-                            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                                try {
-                                    PrintWriter writer = entry.getValue();
-                                    if (writer != null && !writer.checkError()) {
-                                        writer.println(task.message);
-                                        writer.flush();
-                                    }
-                                } catch (Exception e) {
-                                    System.err.println("[" + getTime() + "] 向用户 " + entry.getKey() + " 发送消息失败: " + e.getMessage());
-                                    // 标记该连接为有问题，后续清理
-                                    markClientForCleanup(entry.getKey());
-                                }
-                            }, messagePool);
-                            
-                            futures.add(future);
-                        }
-                        
-                        // 等待所有发送完成，但设置超时防止僵死
-                        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-                            .orTimeout(2, TimeUnit.SECONDS) // 2秒超时
-                            .exceptionally(throwable -> {
-                                System.err.println("[" + getTime() + "] 消息广播超时或失败: " + throwable.getMessage());
-                                return null;
-                            });
-                            
-                    } else if (task.type == MessageTask.Type.USER_LIST) {
-                        // 发送用户列表更新
-                        for (Map.Entry<String, PrintWriter> entry : clientWriters.entrySet()) {
-                            try {
-                                PrintWriter writer = entry.getValue();
-                                if (writer != null && !writer.checkError()) {
-                                    writer.println(task.message);
-                                    writer.flush();
-                                }
-                            } catch (Exception e) {
-                                System.err.println("[" + getTime() + "] 向用户 " + entry.getKey() + " 发送用户列表失败: " + e.getMessage());
-                            }
-                        }
-                    } else if (task.type == MessageTask.Type.PRIVATE) {
-                        // 发送私聊消息给指定用户（不再向发送者回传，避免重复保存）
-                        // 消息格式：MSG:sender:receiver:content:timestamp
-                        String[] msgParts = task.message.split(":", 5);
-                        if (msgParts.length >= 4) {
-                            String sender = msgParts[1];
-                            String receiver = msgParts[2];
-                            String content = msgParts[3];
-                            String timestamp = msgParts.length > 4 ? msgParts[4] : getTime();
-                            
-                            // 发送给接收者
-                            PrintWriter targetWriter = clientWriters.get(task.targetUser);
-                            if (targetWriter != null && !targetWriter.checkError()) {
-                                try {
-                                    targetWriter.println(task.message);
-                                    targetWriter.flush();
-                                    System.out.println("[" + getTime() + "] 私聊消息已发送给接收者: " + task.targetUser);
-                                } catch (Exception e) {
-                                    System.err.println("[" + getTime() + "] 向用户 " + task.targetUser + " 发送私聊消息失败: " + e.getMessage());
-                                }
-                            } else {
-                                System.err.println("[" + getTime() + "] 用户 " + task.targetUser + " 不在线，无法发送私聊消息");
-                            }
-                            
-                            // 不再向发送者回传消息，避免重复保存
-                            // 发送者已在客户端发送时保存消息，无需服务器回传
-                        }
-                    }
-                    
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } catch (Exception e) {
-                    System.err.println("[" + getTime() + "] 消息处理器异常: " + e.getMessage());
+                    batch = offlineStore.peek(username, OFFLINE_BATCH);
+                } catch (IOException e) {
+                    Log.warn("读取离线消息失败: {}, {}", username, e.getMessage());
+                    return;
+                }
+                int forwarded = 0;
+                while (forwarded < batch.size() && cluster.forward(link, batch.get(forwarded))) {
+                    forwarded++;
+                }
+                offlineStore.ack(username, forwarded);
+                if (forwarded > 0) {
+                    Log.info("已向节点{}转发用户 {} 的离线消息 {} 条", link.getPeerNodeId(), username, forwarded);
+                }
+                if (forwarded < batch.size()) {
+                    livenessWheel.schedule(() -> threadPool.execute(() -> forwardOfflineMessages(username)), 100);
+                    return;
+                }
+                if (batch.size() < OFFLINE_BATCH) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * 向发送者回复ACK，携带服务器分配的消息ID
+     */
+    private static void acknowledge(MessageTask task) {
+        ChatConnection origin = task.origin;
+        if (origin == null || !origin.isOpen()) {
+            return;
+        }
+        try {
+            origin.send(Frame.ack(task.clientMessageId, task.frame));
+            origin.acknowledged(task.clientMessageId, task.frame.messageId);
+        } catch (Exception e) {
+            Log.warn("向用户 {} 发送ACK失败: {}", origin.username, e.getMessage());
+        }
+    }
+    
+    private static Object offlineLock(String username) {
+        return offlineLocks[(username.hashCode() & 0x7fffffff) % offlineLocks.length];
+    }
+    
+    private static void openOfflineStore() {
+        Path directory = Paths.get(System.getProperty("chat.offline.dir", "offline-store"));
+        int segmentBytes = Integer.getInteger("chat.offline.segment.bytes", 16 * 1024 * 1024);
+        try {
+            offlineStore = new OfflineStore(directory, segmentBytes);
+            Log.info("离线消息存储已打开: {}，待投递消息 {} 条", directory.toAbsolutePath(), offlineStore.pendingTotal());
+        } catch (IOException e) {
+            Log.warn("打开离线消息存储失败，离线私聊消息将被丢弃: {}", e.getMessage());
+            return;
+        }
+        scheduleOfflineForce();
+    }
+    
+    private static void openMessageStore() {
+        String url = System.getProperty("chat.store.url", "jdbc:sqlite:../db/messages.db");
+        if (url.isEmpty()) {
+            return;
+        }
+        try {
+            storeRequests = new StoreRequests(new MessageStore(url), Integer.getInteger("chat.store.queue", 1024),
+                Integer.getInteger("chat.store.batch.max", 256), Integer.getInteger("chat.store.persist.max.pending", 10000));
+            Log.info("聊天记录存储已打开: {}", url);
+        } catch (SQLException e) {
+            Log.warn("打开聊天记录存储失败，客户端将通过API服务器读写聊天记录: {}", e.getMessage());
+        }
+    }
+    
+    private static void openWriteAheadLog() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.wal.enabled", "true"))) {
+            return;
+        }
+        Path directory = Paths.get(System.getProperty("chat.wal.dir", "wal"));
+        try {
+            wal = new WriteAheadLog(directory,
+                WriteAheadLog.SyncPolicy.parse(System.getProperty("chat.wal.sync", "batch")),
+                Integer.getInteger("chat.wal.batch.max", 256),
+                Long.getLong("chat.wal.batch.delay.us", 0),
+                Long.getLong("chat.wal.segment.bytes", 64L * 1024 * 1024),
+                Integer.getInteger("chat.wal.queue", 65536),
+                Integer.getInteger("chat.wal.retain.segments", 0));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warn("打开预写日志失败，消息将不会写入日志: {}", e.getMessage());
+            return;
+        }
+        threadPool.execute(wal);
+        Log.info("预写日志已打开: {}", directory.toAbsolutePath());
+        recoverSequences();
+    }
+    
+    /**
+     * 读取预写日志最新的RESUME_RECOVER_SEGMENTS段，恢复各会话的序列号并填充最近消息环，
+     * 重启后序列号接着之前的继续分配，客户端带着之前的序列号重连时可以直接从环中补发。
+     * 更早的段中才出现过的会话序列号从1重新开始，客户端重连时该会话记为缺口
+     */
+    private static void recoverSequences() {
+        long start = System.nanoTime();
+        int[] count = new int[1];
+        try {
+            List<Path> segments = wal.listSegments();
+            int from = RESUME_RECOVER_SEGMENTS > 0 ? Math.max(0, segments.size() - RESUME_RECOVER_SEGMENTS) : 0;
+            for (Path segment : segments.subList(from, segments.size())) {
+                WriteAheadLog.readSegment(segment, frame -> {
+                    sequencer.restore(frame.conversationId, frame.sequence);
+                    recentMessages.add(frame);
+                    count[0]++;
+                });
+            }
+        } catch (IOException e) {
+            Log.warn("从预写日志恢复会话序列号失败: {}", e.getMessage());
+        }
+        Log.info("从预写日志恢复会话序列号: 消息 {} 条，会话 {} 个，用时 {}ms",
+            count[0], sequencer.getConversationCount(), (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private static void openCluster() throws IOException {
+        int clusterPort = Integer.getInteger("chat.cluster.port", 0);
+        if (clusterPort <= 0) {
+            return;
+        }
+        List<String> peers = new ArrayList<>();
+        for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        String nodeId = Integer.toString(SERVER_ID);
+        broadcastConversation = BROADCAST_CONVERSATION + "@" + nodeId;
+        cluster = new ClusterNode(nodeId, clusterPort, peers,
+            Long.getLong("chat.cluster.gossip.ms", 1000),
+            Integer.getInteger("chat.cluster.link.queue", 65536),
+            ChatServer::receiveForwarded, ChatServer::remotePresenceChanged,
+            () -> new ArrayList<>(clients.keySet()));
+        cluster.start(threadPool, livenessWheel);
+    }
+    
+    /**
+     * 注册依赖服务器状态的仪表，在chat.metrics.port上启动HTTP抓取端点（0表示不启动），并注册JMX
+     */
+    private static void openMetrics() {
+        Metrics registry = ServerMetrics.REGISTRY;
+        registry.gauge("chat_connections", "当前在线的本地用户数", clients::size);
+        registry.gauge("chat_connections_open", "已接受且尚未关闭的连接数，包括未登录的连接", admission::getOpenConnections);
+        registry.gauge("chat_log_dropped_total", "日志缓冲区已满时丢弃的日志数", Log::getDroppedCount);
+        registry.gauge("chat_dispatch_queue_depth", "各分发分区队列深度之和", () -> {
+            long depth = 0;
+            for (MessageDispatcher.PartitionStats stats : dispatcher.snapshot()) {
+                depth += stats.depth;
+            }
+            return depth;
+        });
+        registry.gauge("chat_outbound_queue_depth", "所有连接出站队列深度之和", () -> {
+            long depth = 0;
+            for (ChatConnection conn : clients.values()) {
+                depth += conn.outbound.depth();
+            }
+            return depth;
+        });
+        registry.gauge("chat_outbound_dropping_connections", "出站队列越过高水位后正在丢弃消息、尚未回落到低水位的连接数", () -> {
+            long dropping = 0;
+            for (ChatConnection conn : clients.values()) {
+                if (conn.outbound.isDropping()) {
+                    dropping++;
+                }
+            }
+            return dropping;
+        });
+        registry.gauge("chat_resume_ring_conversations", "最近消息环中保留的会话数", recentMessages::getConversationCount);
+        if (wal != null) {
+            registry.gauge("chat_wal_queue_depth", "预写日志待写入的记录数", wal::getQueueDepth);
+        }
+        if (offlineStore != null) {
+            registry.gauge("chat_offline_pending", "离线存储中待投递的消息数", offlineStore::pendingTotal);
+        }
+        if (storeRequests != null) {
+            registry.gauge("chat_store_queue_depth", "存储线程排队的请求数", storeRequests::getQueueDepth);
+            registry.gauge("chat_store_persist_pending", "等待保存的聊天消息数", storeRequests::getPendingMessages);
+        }
+        if ("nio".equalsIgnoreCase(ENGINE)) {
+            registry.gauge("chat_nio_buffers_in_use", "NIO连接借出的缓冲池块数", BufferPool::getChunksInUse);
+            registry.gauge("chat_nio_buffer_pool_bytes", "NIO缓冲池分配的直接内存字节数", BufferPool::getPooledBytes);
+            registry.gauge("chat_nio_buffer_heap_fallbacks_total", "缓冲池无法满足而临时分配堆缓冲区的次数", BufferPool::getHeapFallbacks);
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        registry.gauge("chat_jvm_heap_used_bytes", "JVM堆已使用字节数", () -> memory.getHeapMemoryUsage().getUsed());
+        registry.gauge("chat_jvm_gc_collections_total", "各垃圾收集器的收集次数之和", () -> {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        });
+        registry.gauge("chat_jvm_gc_time_ms_total", "各垃圾收集器的累计收集耗时（毫秒）", () -> {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        });
+        registry.gauge("chat_jvm_direct_bytes", "NIO直接内存缓冲区占用的字节数", () -> {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    return pool.getMemoryUsed();
                 }
             }
+            return 0L;
         });
+        
+        metricsEndpoint = new MetricsEndpoint(registry);
+        int port = Integer.getInteger("chat.metrics.port", 9464);
+        String host = System.getProperty("chat.metrics.host", "127.0.0.1");
+        if (port > 0) {
+            try {
+                metricsEndpoint.startHttp(host, port);
+                Log.info("指标抓取端点: http://{}:{}/metrics", host, port);
+            } catch (IOException e) {
+                Log.warn("启动指标抓取端点失败: {}", e.getMessage());
+            }
+        }
+        try {
+            metricsEndpoint.registerJmx("ChatServer:type=Metrics,server=" + SERVER_ID);
+        } catch (Exception e) {
+            Log.warn("注册JMX指标失败: {}", e.getMessage());
+        }
+    }
+    
+    // 定期把离线存储的映射区刷到磁盘
+    private static void scheduleOfflineForce() {
+        livenessWheel.schedule(() -> {
+            if (!running) {
+                return;
+            }
+            threadPool.execute(offlineStore::force);
+            scheduleOfflineForce();
+        }, OFFLINE_FORCE_INTERVAL_MS);
+    }
+    
+    /**
+     * 登录后按写入顺序分批投递离线消息，每批投递后即确认
+     * 出站队列积压超过低水位时暂停，稍后继续，避免一次性塞满出站队列被当成慢消费者断开；
+     * 全部投递完之前，新到的私聊消息继续存入离线存储，排在已有消息之后
+     */
+    private static void deliverOfflineMessages(ChatConnection conn) {
+        if (offlineStore == null) {
+            conn.offlineDrained = true;
+            return;
+        }
+        String username = conn.username;
+        while (true) {
+            synchronized (offlineLock(username)) {
+                if (clients.get(username) != conn || !conn.isOpen()) {
+                    return;
+                }
+                List<Frame> batch;
+                try {
+                    batch = offlineStore.peek(username, OFFLINE_BATCH);
+                } catch (IOException e) {
+                    Log.warn("读取离线消息失败: {}, {}", username, e.getMessage());
+                    conn.offlineDrained = true;
+                    return;
+                }
+                Map<String, Long> replayed = conn.replayedThrough;
+                for (Frame frame : batch) {
+                    // 重连时已从最近消息环或预写日志补发过的不再重复发送
+                    Long through = replayed != null ? replayed.get(frame.conversationId) : null;
+                    if (through == null || frame.sequence > through) {
+                        conn.send(frame);
+                    }
+                }
+                offlineStore.ack(username, batch.size());
+                if (!batch.isEmpty()) {
+                    Log.info("已向用户 {} 投递离线消息 {} 条", username, batch.size());
+                }
+                if (batch.size() < OFFLINE_BATCH) {
+                    conn.offlineDrained = true;
+                    return;
+                }
+            }
+            if (conn.outbound.depth() > conn.outbound.getLowWatermark()) {
+                livenessWheel.schedule(() -> threadPool.execute(() -> deliverOfflineMessages(conn)), 100);
+                return;
+            }
+        }
     }
     
     // 标记需要清理的客户端
@@ -310,49 +1197,136 @@ public class ChatServer {
         clientsToCleanup.add(username);
     }
     
+    /**
+     * 启动时间轮线程，并登记定期的清理和报告任务
+     * 每个连接在时间轮中只有一个存活检查任务，到期时才检查，不再定期扫描所有连接（重新登记的取舍见checkLiveness）
+     */
     private static void startHeartbeatChecker() {
-        threadPool.execute(() -> {
-            while (running) {
-                try {
-                    long now = System.currentTimeMillis();
-                    List<String> timeoutUsers = new ArrayList<>();
-                    
-                    // 检查心跳超时
-                    for (Map.Entry<String, Long> entry : lastHeartbeats.entrySet()) {
-                        if (now - entry.getValue() > 30000) { // 30秒没有心跳
-                            timeoutUsers.add(entry.getKey());
-                        }
-                    }
-                    
-                    // 添加标记为需要清理的客户端
-                    timeoutUsers.addAll(clientsToCleanup);
-                    clientsToCleanup.clear();
-                    
-                    for (String username : timeoutUsers) {
-                        Socket socket = clients.get(username);
-                        if (socket != null) {
-                            System.out.println("[" + getTime() + "] 用户 " + username + " 连接异常，断开连接");
-                            socket.close();
-                            clients.remove(username);
-                            clientWriters.remove(username); // 清理PrintWriter缓存
-                            lastHeartbeats.remove(username);
-                        }
-                    }
-                    
-                    if (!timeoutUsers.isEmpty()) {
-                        broadcastUserList();
-                    }
-                    
-                    Thread.sleep(5000); // 每5秒检查一次
-                } catch (Exception e) {
-                    System.err.println("[" + getTime() + "] 心跳检测异常: " + e.getMessage());
+        threadPool.execute(livenessWheel);
+        scheduleHousekeeping();
+    }
+    
+    private static void scheduleLivenessCheck(ChatConnection conn, long delayMillis) {
+        conn.livenessCheck = livenessWheel.schedule(() -> checkLiveness(conn), delayMillis);
+    }
+    
+    /**
+     * 存活检查到期：期间收到过数据则按最后活跃时间重新登记，否则断开连接
+     * 活跃的连接每个超时周期（默认30秒）到期并重新登记一次，这是有意的取舍：
+     * 读路径只写一个volatile时间戳，不必在每次收到数据时取消并重新登记任务（那样每条消息都要操作时间轮）；
+     * 正常的客户端按心跳间隔发送数据，到期时几乎总有新的活跃时间，这次重新登记省不掉。
+     * 一次到期只是比较时间戳和一次O(1)的入槽，N个连接每个超时周期合计N次，与扫描相比不再随检查频率增长。
+     */
+    private static void checkLiveness(ChatConnection conn) {
+        String username = conn.username;
+        if (clients.get(username) != conn) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - conn.lastActive;
+        if (idle < HEARTBEAT_TIMEOUT_MS) {
+            scheduleLivenessCheck(conn, HEARTBEAT_TIMEOUT_MS - idle);
+            return;
+        }
+        Log.info("用户 {} 已 {} 秒没有数据，断开连接", username, idle / 1000);
+        ServerMetrics.HEARTBEAT_EXPIRIES.increment();
+        expire(conn);
+    }
+    
+    private static void expire(ChatConnection conn) {
+        conn.close();
+        if (clients.remove(conn.username, conn)) {
+            ServerMetrics.DISCONNECTS.increment();
+            userLeft(conn.username);
+        }
+    }
+    
+    // 每5秒清理一次发送失败的连接，并定期输出队列情况；在线程池中执行，不占用时间轮线程
+    private static void scheduleHousekeeping() {
+        livenessWheel.schedule(() -> {
+            if (!running) {
+                return;
+            }
+            threadPool.execute(ChatServer::housekeeping);
+            scheduleHousekeeping();
+        }, 5000);
+    }
+    
+    private static void housekeeping() {
+        try {
+            long now = System.currentTimeMillis();
+            
+            // 更新计数器的每秒速率
+            ServerMetrics.REGISTRY.tick();
+            
+            // 清理标记为有问题的客户端
+            for (String username : clientsToCleanup) {
+                clientsToCleanup.remove(username);
+                ChatConnection conn = clients.get(username);
+                if (conn != null) {
+                    Log.info("用户 {} 连接异常，断开连接", username);
+                    expire(conn);
                 }
             }
-        });
+            
+            // 定期输出出站队列积压和分发分区情况
+            if (now - lastQueueReport >= QUEUE_REPORT_INTERVAL_MS) {
+                lastQueueReport = now;
+                reportOutboundQueues();
+                reportDispatcher();
+            }
+            
+            // 压缩大部分消息已确认的离线存储段
+            if (offlineStore != null) {
+                offlineStore.compact();
+            }
+            
+            recentMessages.expire();
+        } catch (Exception e) {
+            Log.error("定期清理异常: {}", e.getMessage());
+        }
     }
     
-    private static String getTime() {
-        return sdf.format(new Date());
+    // 出站队列报告间隔
+    private static final long QUEUE_REPORT_INTERVAL_MS = 30000;
+    private static long lastQueueReport = 0;
+    
+    // 输出出站队列汇总，并列出积压超过低水位或有丢弃的连接
+    private static void reportOutboundQueues() {
+        int total = 0;
+        int max = 0;
+        String maxUser = "-";
+        for (ChatConnection conn : clients.values()) {
+            OutboundQueue queue = conn.outbound;
+            int depth = queue.depth();
+            total += depth;
+            if (depth > max) {
+                max = depth;
+                maxUser = conn.username;
+            }
+            if (depth > queue.getLowWatermark() || queue.getDroppedCount() > 0) {
+                Log.info("出站队列积压: 用户={}, 深度={}, {}", conn.username, depth,
+                    "峰值=" + queue.getMaxDepth() + ", 已丢弃=" + queue.getDroppedCount()
+                        + (queue.isDropping() ? ", 丢弃中" : ""));
+            }
+        }
+        Log.info("出站队列: 连接数={}, 总深度={}, 最大深度={}", clients.size(), total, max + "(" + maxUser + ")");
+    }
+    
+    // 输出各分发分区的深度和延迟
+    private static void reportDispatcher() {
+        for (MessageDispatcher.PartitionStats stats : dispatcher.snapshot()) {
+            Log.info("消息分发{}", stats);
+        }
+        if (wal != null) {
+            Log.info("{}", wal.report());
+        }
+        if (cluster != null) {
+            Log.info("{}", cluster);
+        }
+    }
+    
+    static String getTime() {
+        return Log.time();
     }
     
     // 安全解析long值的辅助方法
@@ -364,22 +1338,109 @@ public class ChatServer {
         }
     }
     
-    public static void shutdown() {
-        running = false;
+    /**
+     * 优雅退出，由进程退出钩子调用，在DRAIN_TIMEOUT_MS内返回：
+     * 1. 停止accept，之后未登录的连接也不再允许登录
+     * 2. 给每个在线用户发 RECONNECT:等待毫秒数:恢复令牌，等待时间在DRAIN_SPREAD_MS内错开，重连不会同时涌向新进程
+     * 3. 到了各自的时间把连接从在线表中移除，写完出站队列后半关闭，客户端关闭连接前发出的消息仍会处理；
+     *    之后发给该用户的私聊进入离线存储，新进程启动后在用户登录时投递
+     * 4. 所有连接关闭后等分发队列处理完，再按shutdown()关闭，预写日志和离线存储写完剩余数据
+     */
+    static void drain() {
+        if (!running || draining) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + DRAIN_TIMEOUT_MS * 1_000_000L;
+        draining = true;
+        stopAccepting();
         
-        for (Socket socket : clients.values()) {
+        List<ChatConnection> connections = new ArrayList<>(clients.values());
+        Collections.shuffle(connections);
+        Log.info("开始优雅退出: 已停止接受新连接，{} 个在线用户在 {}ms 内分批断开", connections.size(), DRAIN_SPREAD_MS);
+        for (int i = 0; i < connections.size(); i++) {
+            ChatConnection conn = connections.get(i);
+            long delay = DRAIN_SPREAD_MS * i / connections.size();
             try {
-                if (!socket.isClosed()) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                // 忽略关闭时的异常
+                conn.send(Frame.reconnect(resumeTokens != null ? resumeTokens.issue(conn.username) : "", delay));
+            } catch (IllegalStateException e) {
+                // 连接已关闭
+                continue;
             }
+            livenessWheel.schedule(() -> handOff(conn), delay);
+        }
+        
+        // 未登录的连接也计入，到期限仍未关闭的最后由shutdown()强制关闭
+        while (admission.getOpenConnections() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(50_000_000);
+        }
+        if (!dispatcher.awaitIdle(deadline)) {
+            Log.warn("优雅退出超时，分发队列中仍有未处理的消息");
+        }
+        Log.info("优雅退出: 剩余连接 {}，用时 {}ms", admission.getOpenConnections(), (System.nanoTime() - start) / 1_000_000);
+        shutdown();
+    }
+    
+    /**
+     * 关闭监听端口，已建立的连接不受影响
+     */
+    private static void stopAccepting() {
+        if (nioEngine != null) {
+            nioEngine.stopAccepting();
+        }
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+    
+    /**
+     * 加载恢复令牌的密钥，失败时RECONNECT不带令牌
+     */
+    private static void openResumeTokens() {
+        try {
+            resumeTokens = ResumeToken.load(SERVER_ID);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warn("加载会话恢复令牌密钥失败: {}", e.getMessage());
+        }
+    }
+    
+    public static void shutdown() {
+        running = false;
+        if (cluster != null) {
+            cluster.stop();
+        }
+        // 先写完待保存的消息，它们在存储线程上进入分发队列
+        if (storeRequests != null) {
+            storeRequests.stop();
+        }
+        dispatcher.stop();
+        livenessWheel.stop();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        
+        for (ChatConnection conn : clients.values()) {
+            conn.close();
         }
         
         clients.clear();
-        clientWriters.clear(); // 清理PrintWriter缓存
-        lastHeartbeats.clear();
+        
+        if (nioEngine != null) {
+            nioEngine.close();
+        }
+        
+        if (offlineStore != null) {
+            offlineStore.close();
+        }
+        
+        // 提交线程写完剩余消息后关闭日志文件
+        if (wal != null) {
+            wal.stop();
+        }
         
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -390,50 +1451,69 @@ public class ChatServer {
         }
         
         threadPool.shutdown();
-        messagePool.shutdown(); // 关闭消息处理线程池
+        // 分发线程阻塞在队列上，dispatcher.stop()之后不再处理新任务，直接中断
+        messagePool.shutdownNow();
         try {
             if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
                 threadPool.shutdownNow();
             }
-            if (!messagePool.awaitTermination(5, TimeUnit.SECONDS)) {
-                messagePool.shutdownNow();
-            }
         } catch (InterruptedException e) {
             threadPool.shutdownNow();
-            messagePool.shutdownNow();
         }
         
-        System.out.println("[" + getTime() + "] 服务器已关闭");
+        Log.info("服务器已关闭");
+        Log.shutdown(2000);
     }
     
     // 消息任务类 - 支持异步消息处理
     static class MessageTask {
         enum Type {
-            BROADCAST, USER_LIST, PRIVATE
+            BROADCAST, USER_LIST, PRIVATE, PRESENCE, USERS_SNAPSHOT
         }
         
         final Type type;
-        final String message;
+        final Frame frame;
         final String targetUser;
-        final long messageId;
-        final long sequenceNumber;
+        // 发送者的连接和客户端消息ID，clientMessageId不为0时处理完成后向发送者回复ACK
+        final ChatConnection origin;
+        final long clientMessageId;
+        // 入队时间，用于统计分区排队延迟
+        final long enqueuedAt;
         
-        // 旧版本构造函数（兼容性）
-        MessageTask(Type type, String message, String targetUser) {
+        // 不需要确认的任务：在线状态、其他节点转发来的消息
+        MessageTask(Type type, Frame frame, String targetUser) {
+            this.enqueuedAt = System.nanoTime();
             this.type = type;
-            this.message = message;
+            this.frame = frame;
             this.targetUser = targetUser;
-            this.messageId = 0;
-            this.sequenceNumber = 0;
+            this.origin = null;
+            this.clientMessageId = 0;
         }
         
-        // 新版本构造函数（支持消息ID和序列号）
-        MessageTask(Type type, String message, String targetUser, long messageId, long sequenceNumber) {
+        // 需要确认的聊天消息
+        MessageTask(Type type, Frame frame, String targetUser, ChatConnection origin, long clientMessageId) {
+            this.enqueuedAt = System.nanoTime();
             this.type = type;
-            this.message = message;
+            this.frame = frame;
             this.targetUser = targetUser;
-            this.messageId = messageId;
-            this.sequenceNumber = sequenceNumber;
+            this.origin = origin;
+            this.clientMessageId = clientMessageId;
+        }
+        
+        /**
+         * 换成分配了会话序列号的帧，其余字段和入队时间不变
+         */
+        MessageTask sequenced(long sequence) {
+            return new MessageTask(this, frame.sequenced(sequence));
+        }
+        
+        private MessageTask(MessageTask task, Frame frame) {
+            this.enqueuedAt = task.enqueuedAt;
+            this.type = task.type;
+            this.frame = frame;
+            this.targetUser = task.targetUser;
+            this.origin = task.origin;
+            this.clientMessageId = task.clientMessageId;
         }
     }
 }
\ No newline at end of file
@@ -7,12 +7,16 @@ import java.text.SimpleDateFormat;
 import java.util.concurrent.*;
 
 public class ChatServerOptimized {
-    private static final int PORT = 8888;
+    private static final int PORT = Integer.getInteger("chat.port", 8888);
     private static ServerSocket serverSocket;
     private static final ConcurrentHashMap<String, Socket> clients = new ConcurrentHashMap<>();
     private static final ConcurrentHashMap<String, Long> lastHeartbeats = new ConcurrentHashMap<>();
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private static final ExecutorService messagePool = Executors.newFixedThreadPool(10); // 专用消息发送线程池
+    // 线程模式: platform(缓存线程池 + 10个发送线程) 或 virtual(每个连接读取、每个接收者发送都使用虚拟线程)
+    private static final boolean VIRTUAL_THREADS = "virtual".equalsIgnoreCase(System.getProperty("chat.threads", "platform"));
+    private static final ExecutorService threadPool = VIRTUAL_THREADS
+        ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+    private static final ExecutorService messagePool = VIRTUAL_THREADS
+        ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(10); // 专用消息发送线程池
     private static boolean running = true;
     private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     
@@ -29,7 +33,7 @@ public class ChatServerOptimized {
             // 明确绑定到IPv4地址
             serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("0.0.0.0"));
             System.out.println("[" + getTime() + "] 服务器绑定到IPv4地址: " + serverSocket.getInetAddress().getHostAddress());
-            System.out.println("[" + getTime() + "] 服务器已启动，监听端口: " + PORT);
+            System.out.println("[" + getTime() + "] 服务器已启动(" + (VIRTUAL_THREADS ? "虚拟线程" : "平台线程") + "模式)，监听端口: " + PORT);
             
             // 启动消息处理器
             startMessageProcessor();
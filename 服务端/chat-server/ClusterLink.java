@@ -0,0 +1,153 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 到另一个集群节点的持久连接，只用于向对方发送
+ * 连接建立后先发送HELLO（body为本节点ID），读取对方回复的HELLO得到对方节点ID，
+ * 之后由本连接的线程从队列中批量取出帧，按二进制v1编码写出。
+ * 连接断开后丢弃队列中未发出的帧，按固定间隔重连。
+ */
+class ClusterLink implements Runnable {
+
+    private final String localNodeId;
+    private final String host;
+    private final int port;
+    private final long reconnectMillis;
+    private final BlockingQueue<Frame> queue;
+
+    private volatile boolean running = true;
+    private volatile boolean connected = false;
+    private volatile String peerNodeId;
+    private volatile Socket socket;
+
+    ClusterLink(String localNodeId, String address, int queueCapacity, long reconnectMillis) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("集群节点地址格式应为 host:port: " + address);
+        }
+        this.localNodeId = localNodeId;
+        this.host = address.substring(0, colon).trim();
+        this.port = Integer.parseInt(address.substring(colon + 1).trim());
+        this.reconnectMillis = reconnectMillis;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * 放入发送队列，连接未建立或队列已满时返回false，由调用方另行处理（例如存入离线存储）
+     */
+    boolean send(Frame frame) {
+        return connected && queue.offer(frame);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * 握手完成后得到的对方节点ID，未连接过时为null
+     */
+    String getPeerNodeId() {
+        return peerNodeId;
+    }
+
+    void stop() {
+        running = false;
+        closeSocket();
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setName("cluster-link-" + host + ":" + port);
+        while (running) {
+            try {
+                connectAndWrite();
+            } catch (IOException e) {
+                if (connected) {
+                    Log.warn("集群连接断开: {}, {}", this, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                connected = false;
+                queue.clear();
+                closeSocket();
+            }
+            try {
+                Thread.sleep(reconnectMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void connectAndWrite() throws IOException, InterruptedException {
+        Socket s = new Socket();
+        socket = s;
+        s.connect(new InetSocketAddress(host, port), (int) reconnectMillis);
+        s.setTcpNoDelay(true);
+        OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        buffer = write(out, buffer, Frame.of(Frame.CLUSTER_HELLO, localNodeId));
+        out.flush();
+        Frame hello = ClusterNode.readFrame(new DataInputStream(s.getInputStream()));
+        if (hello == null || hello.type != Frame.CLUSTER_HELLO) {
+            throw new IOException("集群握手失败");
+        }
+        peerNodeId = hello.body;
+        connected = true;
+        Log.info("已连接集群节点: {}", this);
+
+        List<Frame> batch = new ArrayList<>();
+        while (running) {
+            Frame first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, 1023);
+            for (Frame frame : batch) {
+                buffer = write(out, buffer, frame);
+            }
+            batch.clear();
+            // 队列取空后再flush，一次写出多帧
+            out.flush();
+        }
+    }
+
+    private static ByteBuffer write(OutputStream out, ByteBuffer buffer, Frame frame) throws IOException {
+        buffer.clear();
+        buffer = FrameCodec.ensureCapacity(buffer, FrameCodec.encodedLength(frame, Frame.BINARY_V1));
+        FrameCodec.encode(frame, Frame.BINARY_V1, buffer);
+        out.write(buffer.array(), 0, buffer.position());
+        return buffer;
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (peerNodeId != null ? "节点" + peerNodeId + "@" : "") + host + ":" + port;
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 集群节点
+ * 多个ChatServer进程组成集群，每个节点只持有连到自己的客户端，节点之间两两建立持久连接：
+ * 本节点到每个对端各有一条只发送的ClusterLink，对端连过来的连接只接收。
+ * 用户目录（用户名 -> 所在节点）由各节点传播自己的本地用户得到：
+ * 本地用户上线/下线时立即向所有对端发送USER_JOIN/USER_LEAVE，
+ * 另外每隔gossipMillis发送一次本地用户的完整列表（USERS_SNAPSHOT），修正丢失的增量，同时兼作链路心跳。
+ * 对端的接收连接断开时，该节点的用户全部视为下线。
+ * 接收者在其他节点上时，私聊消息带FLAG_FORWARDED标记经对应的链路转发，由接收者所在节点投递。
+ */
+class ClusterNode {
+
+    private final String nodeId;
+    private final int port;
+    private final long gossipMillis;
+    private final List<ClusterLink> links = new ArrayList<>();
+
+    // 其他节点上的用户：用户名 -> 节点ID，以及每个节点上的用户集合（由this保护）
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> nodeUsers = new HashMap<>();
+
+    private final Consumer<Frame> forwarded;
+    private final BiConsumer<String, Boolean> remotePresence;
+    private final Supplier<Collection<String>> localUsers;
+
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param peers 其他节点的集群端口地址，host:port
+     * @param forwarded 收到其他节点转发来的私聊消息
+     * @param remotePresence 其他节点上的用户上线(true)/下线(false)，用户换到另一个节点时也以上线通知
+     * @param localUsers 本节点当前在线的用户
+     */
+    ClusterNode(String nodeId, int port, List<String> peers, long gossipMillis, int linkQueueCapacity,
+                Consumer<Frame> forwarded, BiConsumer<String, Boolean> remotePresence,
+                Supplier<Collection<String>> localUsers) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.gossipMillis = gossipMillis;
+        this.forwarded = forwarded;
+        this.remotePresence = remotePresence;
+        this.localUsers = localUsers;
+        for (String peer : peers) {
+            links.add(new ClusterLink(nodeId, peer, linkQueueCapacity, Math.max(gossipMillis, 1000)));
+        }
+    }
+
+    /**
+     * 监听集群端口，连接所有对端，开始定期传播本地用户列表
+     */
+    void start(Executor executor, HashedTimingWheel wheel) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"));
+        executor.execute(() -> acceptLoop(executor));
+        for (ClusterLink link : links) {
+            executor.execute(link);
+        }
+        scheduleGossip(executor, wheel);
+    }
+
+    void stop() {
+        running = false;
+        for (ClusterLink link : links) {
+            link.stop();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 用户所在的其他节点，不在其他节点上时返回null
+     */
+    String nodeOf(String username) {
+        return directory.get(username);
+    }
+
+    /**
+     * 到用户所在节点的可用链路，用户不在其他节点上或链路未连接时返回null
+     */
+    ClusterLink linkFor(String username) {
+        String node = directory.get(username);
+        if (node == null) {
+            return null;
+        }
+        for (ClusterLink link : links) {
+            if (node.equals(link.getPeerNodeId()) && link.isConnected()) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把私聊消息转发到接收者所在节点
+     * @return 是否已放入链路的发送队列
+     */
+    boolean forward(ClusterLink link, Frame message) {
+        return link.send(message.forwarded());
+    }
+
+    /**
+     * 把广播消息转发到所有已连接的节点，未连接的节点收不到
+     */
+    void broadcast(Frame message) {
+        sendToAll(message.forwarded());
+    }
+
+    void localJoined(String username) {
+        sendToAll(new Frame(Frame.USER_JOIN, 0, 0, 0, 0, null, nodeId, null, username));
+    }
+
+    void localLeft(String username) {
+        sendToAll(new Frame(Frame.USER_LEAVE, 0, 0, 0, 0, null, nodeId, null, username));
+    }
+
+    private void sendToAll(Frame frame) {
+        for (ClusterLink link : links) {
+            link.send(frame);
+        }
+    }
+
+    private void scheduleGossip(Executor executor, HashedTimingWheel wheel) {
+        wheel.schedule(() -> {
+            if (!running) {
+                return;
+            }
+            executor.execute(() -> sendToAll(new Frame(Frame.USERS_SNAPSHOT, 0, 0, 0, System.currentTimeMillis(),
+                null, nodeId, null, String.join(",", localUsers.get()))));
+            scheduleGossip(executor, wheel);
+        }, gossipMillis);
+    }
+
+    // ==================== 接收端 ====================
+
+    private void acceptLoop(Executor executor) {
+        Thread.currentThread().setName("cluster-accept");
+        Log.info("集群节点{}监听端口: {}，对端: {}", nodeId, port, links);
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("接受集群连接异常: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            Frame hello = readFrame(in);
+            if (hello == null || hello.type != Frame.CLUSTER_HELLO) {
+                return;
+            }
+            peer = hello.body;
+            Thread.currentThread().setName("cluster-in-" + peer);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            ByteBuffer reply = ByteBuffer.allocate(256);
+            Frame ours = Frame.of(Frame.CLUSTER_HELLO, nodeId);
+            reply = FrameCodec.ensureCapacity(reply, FrameCodec.encodedLength(ours, Frame.BINARY_V1));
+            FrameCodec.encode(ours, Frame.BINARY_V1, reply);
+            out.write(reply.array(), 0, reply.position());
+            out.flush();
+
+            Frame frame;
+            while ((frame = readFrame(in)) != null) {
+                switch (frame.type) {
+                    case Frame.MSG:
+                        // 解码得到的帧不是共享帧，重新包装后广播只编码一次
+                        forwarded.accept(frame.forwarded());
+                        break;
+                    case Frame.USER_JOIN:
+                        remoteJoined(peer, frame.body);
+                        break;
+                    case Frame.USER_LEAVE:
+                        remoteLeft(peer, frame.body);
+                        break;
+                    case Frame.USERS_SNAPSHOT:
+                        remoteSnapshot(peer, frame.body);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("集群节点{}的连接异常: {}", peer, e.getMessage());
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+            if (peer != null) {
+                Log.info("集群节点{}断开，其用户视为下线", peer);
+                remoteSnapshot(peer, "");
+            }
+        }
+    }
+
+    synchronized void remoteJoined(String node, String username) {
+        String previous = directory.put(username, node);
+        nodeUsers.computeIfAbsent(node, k -> new HashSet<>()).add(username);
+        if (previous != null && !previous.equals(node)) {
+            Set<String> users = nodeUsers.get(previous);
+            if (users != null) {
+                users.remove(username);
+            }
+        }
+        if (!node.equals(previous)) {
+            remotePresence.accept(username, true);
+        }
+    }
+
+    synchronized void remoteLeft(String node, String username) {
+        Set<String> users = nodeUsers.get(node);
+        if (users != null) {
+            users.remove(username);
+        }
+        // 用户已经换到别的节点时不算下线
+        if (directory.remove(username, node)) {
+            remotePresence.accept(username, false);
+        }
+    }
+
+    // 以完整列表为准：列表中没有的视为下线，新出现的视为上线
+    synchronized void remoteSnapshot(String node, String userList) {
+        Set<String> current = new HashSet<>();
+        if (!userList.isEmpty()) {
+            current.addAll(Arrays.asList(userList.split(",")));
+        }
+        Set<String> known = nodeUsers.get(node);
+        if (known != null) {
+            for (String username : new ArrayList<>(known)) {
+                if (!current.contains(username)) {
+                    remoteLeft(node, username);
+                }
+            }
+        }
+        for (String username : current) {
+            if (!node.equals(directory.get(username))) {
+                remoteJoined(node, username);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "集群: 节点=" + nodeId + ", 链路=" + links + ", 远程用户=" + directory.size();
+    }
+
+    /**
+     * 从集群连接读取一个二进制帧
+     * @return 解码后的帧，流结束时返回null
+     */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > FrameCodec.MAX_FRAME_BYTES) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+        byte[] bytes = new byte[length + 4];
+        in.readFully(bytes, 4, length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(0, length);
+        return FrameCodec.decode(buffer);
+    }
+}
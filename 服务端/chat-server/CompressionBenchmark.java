@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧正文压缩的CPU开销与节省字节数基准测试
+ * 流量来源：
+ * 1. 指定预写日志目录时，读取其中所有wal-*.log记录的聊天消息（服务器实际路由过的流量）
+ * 2. 否则生成模拟流量：以短消息为主，夹杂少量长消息，另外每隔一段插入一次完整的USERS在线用户列表
+ * 对每种压缩级别、是否使用预置字典和压缩阈值，统计线上字节数（相对文本协议和未压缩的二进制协议）
+ * 以及每帧压缩、解压的平均耗时。最后用服务器实际的编码路径（FrameCodec + FrameCompression，
+ * 取chat.compress.min.bytes和chat.compress.level的当前值）编码并解码全部帧，校验内容一致。
+ *
+ * 用法: java CompressionBenchmark [预写日志目录] [模拟消息数]
+ * 默认不读日志，模拟20000条消息。
+ */
+public class CompressionBenchmark {
+
+    private static final int[] THRESHOLDS = {0, 64, 128, 256, 512};
+    private static final int[] LEVELS = {1, 6, 9};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        List<Frame> frames = args.length > 0 && !args[0].isEmpty()
+            ? readWal(Path.of(args[0]))
+            : simulate(args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+        if (frames.isEmpty()) {
+            System.out.println("没有可用的消息");
+            return;
+        }
+
+        List<byte[]> bodies = new ArrayList<>();
+        long textBytes = 0;
+        long binaryBytes = 0;
+        for (Frame frame : frames) {
+            bodies.add(frame.body.getBytes(StandardCharsets.UTF_8));
+            textBytes += FrameCodec.encodedLength(frame, Frame.TEXT);
+            binaryBytes += FrameCodec.encodedLength(frame, Frame.BINARY_V1);
+        }
+        System.out.println(String.format("帧数=%d, 文本协议=%d字节, 二进制协议=%d字节, 正文平均=%.0f字节",
+            frames.size(), textBytes, binaryBytes,
+            bodies.stream().mapToInt(b -> b.length).average().orElse(0)));
+
+        // 预热
+        for (int level : LEVELS) {
+            measure(bodies, level, true, 0);
+            measure(bodies, level, false, 0);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-6s %-6s %8s %10s %12s %12s %12s %12s",
+            "级别", "字典", "阈值", "压缩帧数", "二进制字节", "相对文本", "压缩ns/帧", "解压ns/帧"));
+        for (int level : LEVELS) {
+            for (boolean dictionary : new boolean[]{false, true}) {
+                for (int threshold : THRESHOLDS) {
+                    Result r = measure(bodies, level, dictionary, threshold);
+                    long wire = binaryBytes - r.savedBytes;
+                    System.out.println(String.format("%-8d %-7s %8d %12d %14s %12s %14.0f %14.0f",
+                        level, dictionary ? "预置" : "无", threshold, r.compressedFrames,
+                        wire + String.format("(%.1f%%)", 100.0 * wire / binaryBytes),
+                        String.format("%.1f%%", 100.0 * wire / textBytes),
+                        (double) r.compressNanos / frames.size(), (double) r.inflateNanos / frames.size()));
+                }
+            }
+        }
+
+        verify(frames, binaryBytes);
+    }
+
+    private static final class Result {
+        int compressedFrames;
+        long savedBytes;
+        long compressNanos;
+        long inflateNanos;
+    }
+
+    /**
+     * 按给定参数压缩所有正文，取ROUNDS轮中最快的一轮耗时
+     */
+    private static Result measure(List<byte[]> bodies, int level, boolean dictionary, int threshold) throws Exception {
+        Deflater deflater = new Deflater(level, true);
+        Inflater inflater = new Inflater(true);
+        byte[] out = new byte[FrameCodec.MAX_FRAME_BYTES];
+        byte[] restored = new byte[FrameCodec.MAX_FRAME_BYTES];
+        Result best = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            Result r = new Result();
+            for (byte[] body : bodies) {
+                if (body.length < Math.max(threshold, 1)) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                deflater.reset();
+                if (dictionary) {
+                    deflater.setDictionary(FrameCompression.DICTIONARY);
+                }
+                deflater.setInput(body);
+                deflater.finish();
+                int length = deflater.deflate(out, 0, body.length - 1);
+                boolean smaller = deflater.finished();
+                r.compressNanos += System.nanoTime() - start;
+                if (!smaller) {
+                    continue;
+                }
+                r.compressedFrames++;
+                r.savedBytes += body.length - length;
+
+                start = System.nanoTime();
+                inflater.reset();
+                if (dictionary) {
+                    inflater.setDictionary(FrameCompression.DICTIONARY);
+                }
+                inflater.setInput(out, 0, length);
+                inflater.inflate(restored);
+                r.inflateNanos += System.nanoTime() - start;
+            }
+            if (best == null || r.compressNanos + r.inflateNanos < best.compressNanos + best.inflateNanos) {
+                best = r;
+            }
+        }
+        deflater.end();
+        inflater.end();
+        return best;
+    }
+
+    /**
+     * 用服务器的编码路径编码、再解码全部帧，确认正文一致
+     */
+    private static void verify(List<Frame> frames, long binaryBytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long wire = 0;
+        int compressed = 0;
+        long start = System.nanoTime();
+        for (Frame frame : frames) {
+            buffer.clear();
+            buffer = FrameCodec.ensureCapacity(buffer, FrameCodec.encodedLength(frame, Frame.BINARY_V1));
+            FrameCodec.encode(frame, Frame.BINARY_V1, true, buffer);
+            wire += buffer.position();
+            if ((buffer.getShort(6) & Frame.FLAG_COMPRESSED) != 0) {
+                compressed++;
+            }
+            buffer.flip();
+            Frame decoded = FrameCodec.decode(buffer);
+            if (!decoded.body.equals(frame.body) || !decoded.sender.equals(frame.sender)
+                || decoded.flags != frame.flags) {
+                throw new IllegalStateException("解码结果与原帧不一致: " + frame.body);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println();
+        System.out.println(String.format("服务器编码路径(阈值=%d, 级别=%d): 压缩帧数=%d, 线上字节=%d(%.1f%%), 编码+解码%.0fns/帧, 校验通过",
+            FrameCompression.MIN_BYTES, FrameCompression.LEVEL, compressed, wire, 100.0 * wire / binaryBytes,
+            (double) elapsed / frames.size()));
+    }
+
+    /**
+     * 读取预写日志中的全部消息，记录格式见WriteAheadLog
+     */
+    private static List<Frame> readWal(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        List<Frame> frames = new ArrayList<>();
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (data.remaining() >= 16) {
+                    int length = data.getInt(data.position());
+                    if (length < 12 || data.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = data.position() + 4 + length;
+                    data.position(data.position() + 16);
+                    frames.add(FrameCodec.decode(data));
+                    data.position(end);
+                }
+            }
+        }
+        System.out.println("从 " + files.size() + " 个预写日志段读取 " + frames.size() + " 条消息");
+        return frames;
+    }
+
+    private static final String[] SHORT = {
+        "在吗", "好的", "哈哈哈哈", "晚安", "早安宝贝", "到家了吗？", "我想你了", "吃饭了没有", "马上到", "嗯嗯",
+        "今天好累啊", "周末一起去看电影吧", "记得带伞，明天下雨", "刚下班，等我一下", "爱你哦么么哒",
+    };
+    private static final String LONG =
+        "今天是我们在一起的第五百二十天，翻了翻以前的日记，发现我们一起去过那么多地方：第一次约会去的那家火锅店，"
+        + "下雨天躲雨的小书店，还有去年冬天看雪的那座山。有时候工作很累，加班到很晚，但想到回家能看到你就觉得很开心。"
+        + "谢谢你一直以来的包容和照顾，以后的每一个纪念日我们都要一起过，好不好？周末我订好了餐厅，记得早点下班。";
+
+    private static List<Frame> simulate(int count) {
+        Random random = new Random(42);
+        List<String> users = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            users.add("user" + (1000 + i));
+        }
+        List<Frame> frames = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            String sender = users.get(random.nextInt(users.size()));
+            String receiver = users.get(random.nextInt(users.size()));
+            String body;
+            int kind = random.nextInt(100);
+            if (kind < 75) {
+                body = SHORT[random.nextInt(SHORT.length)];
+            } else if (kind < 95) {
+                body = SHORT[random.nextInt(SHORT.length)] + "，" + SHORT[random.nextInt(SHORT.length)] + "，"
+                    + LONG.substring(0, 20 + random.nextInt(60));
+            } else {
+                body = LONG.substring(random.nextInt(40));
+            }
+            if (i % 500 == 0) {
+                frames.add(Frame.userList(String.join(",", users.subList(0, 50 + random.nextInt(150)))));
+            }
+            frames.add(Frame.chat(i + 1, i + 1, sender + "_" + receiver, sender, receiver, body, now + i));
+        }
+        return frames;
+    }
+}
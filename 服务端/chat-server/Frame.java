@@ -0,0 +1,228 @@
+/**
+ * 协议帧
+ * 服务器内部统一用Frame表示一条消息，发送时再按连接协商的协议编码成文本行或二进制帧。
+ * Frame创建后不再修改，可以被多个连接共享。
+ * 共享帧（广播消息、用户列表）在第一次写出时按协议版本编码一次，之后所有连接复用同一份只读字节。
+ */
+final class Frame {
+
+    // 协议版本：0为文本协议，1为长度前缀的二进制协议
+    static final int TEXT = 0;
+    static final int BINARY_V1 = 1;
+    static final int MAX_BINARY_VERSION = BINARY_V1;
+
+    // 客户端 -> 服务器
+    static final byte LOGIN = 1;
+    static final byte PRIVATE = 2;
+    static final byte BROADCAST = 3;
+    static final byte HEARTBEAT = 4;
+    static final byte GET_USERS = 5;
+    static final byte LOGOUT = 6;
+    static final byte PONG = 7;
+    // 存储请求（仅二进制协议，登录时协商store=1）：messageId为客户端选择的关联ID，receiver为操作名，
+    // conversationId、sequence、timestamp和body为操作参数，见StoreRequests
+    static final byte REQUEST = 8;
+
+    // 服务器 -> 客户端
+    static final byte LOGIN_SUCCESS = 16;
+    static final byte ERROR = 17;
+    static final byte MSG = 18;
+    static final byte USERS = 19;
+    static final byte HEARTBEAT_ACK = 20;
+    static final byte PING = 21;
+    // 在线状态增量与快照，sequence字段为在线状态版本号
+    static final byte USER_JOIN = 22;
+    static final byte USER_LEAVE = 23;
+    static final byte USERS_SNAPSHOT = 24;
+    // 消息确认：messageId为服务器分配的消息ID（带FLAG_STORED时为聊天记录数据库ID），body为客户端发送时携带的消息ID，
+    // 聊天消息的确认带有会话ID、序列号和原消息的接收者（广播为空），接收者决定确认帧走哪条出站通道
+    static final byte ACK = 25;
+    // 限流通知：messageId为被拒绝消息的客户端消息ID（未协商ACK时为0），timestamp为建议的重试等待毫秒数
+    static final byte THROTTLED = 26;
+    // 服务器即将退出：body为会话恢复令牌，timestamp为建议的重连等待毫秒数，服务器在这之后关闭连接
+    static final byte RECONNECT = 27;
+    // 存储请求的响应：messageId为请求的关联ID，sequence为状态（见StoreRequests），body为结果或错误信息
+    static final byte RESPONSE = 28;
+
+    // 集群节点之间：连接建立后双方各发送一次，body为节点ID
+    static final byte CLUSTER_HELLO = 32;
+
+    // flags：消息由其他集群节点转发而来，不再写入预写日志，也不再转发
+    static final int FLAG_FORWARDED = 1;
+    // flags：正文经过Deflate压缩，见FrameCompression，只出现在发给协商了deflate的客户端的帧中
+    static final int FLAG_COMPRESSED = 2;
+    // flags：messageId为聊天记录数据库中的ID（服务器已保存这条消息），见StoreRequests.persist
+    static final int FLAG_STORED = 4;
+
+    private static final String EMPTY = "";
+
+    final byte type;
+    final int flags;
+    final long messageId;
+    final long sequence;
+    final long timestamp;
+    final String conversationId;
+    final String sender;
+    final String receiver;
+    final String body;
+    // 是否会发给多个连接，共享帧的编码结果会被缓存
+    final boolean shared;
+
+    // 共享帧按协议版本缓存的编码结果，由FrameCodec.sharedEncoding填充
+    volatile FrameCodec.Encoded textEncoding;
+    volatile FrameCodec.Encoded binaryEncoding;
+    volatile FrameCodec.Encoded compressedEncoding;
+
+    Frame(byte type, int flags, long messageId, long sequence, long timestamp,
+          String conversationId, String sender, String receiver, String body) {
+        this(type, flags, messageId, sequence, timestamp, conversationId, sender, receiver, body, false);
+    }
+
+    Frame(byte type, int flags, long messageId, long sequence, long timestamp,
+          String conversationId, String sender, String receiver, String body, boolean shared) {
+        this.type = type;
+        this.flags = flags;
+        this.messageId = messageId;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.conversationId = conversationId != null ? conversationId : EMPTY;
+        this.sender = sender != null ? sender : EMPTY;
+        this.receiver = receiver != null ? receiver : EMPTY;
+        this.body = body != null ? body : EMPTY;
+        this.shared = shared;
+    }
+
+    /**
+     * 不带任何字段的控制帧，例如HEARTBEAT_ACK
+     */
+    static Frame control(byte type) {
+        return new Frame(type, 0, 0, 0, 0, null, null, null, null);
+    }
+
+    /**
+     * 只有正文的帧，例如ERROR、USERS
+     */
+    static Frame of(byte type, String body) {
+        return new Frame(type, 0, 0, 0, 0, null, null, null, body);
+    }
+
+    /**
+     * 聊天消息帧；receiver为空表示广播，广播帧为共享帧
+     * messageId为全局消息ID，sequence为会话内序列号，见MessageSequencer
+     */
+    static Frame chat(long messageId, long sequence, String conversationId, String sender, String receiver,
+                      String content, long timestamp) {
+        boolean broadcast = receiver == null || receiver.isEmpty();
+        return new Frame(MSG, 0, messageId, sequence, timestamp, conversationId, sender, receiver, content, broadcast);
+    }
+
+    /**
+     * 发给发送者的消息确认帧
+     */
+    static Frame ack(long clientMessageId, Frame message) {
+        return new Frame(ACK, message.flags & FLAG_STORED, message.messageId, message.sequence, message.timestamp,
+            message.conversationId, null, message.receiver, Long.toString(clientMessageId));
+    }
+
+    /**
+     * 发给发送者的限流通知，消息没有被处理，客户端应在retryAfterMillis之后重发
+     */
+    static Frame throttled(long clientMessageId, long retryAfterMillis) {
+        return new Frame(THROTTLED, 0, clientMessageId, 0, retryAfterMillis, null, null, null, null);
+    }
+
+    /**
+     * 优雅退出时发给在线用户的重连提示
+     */
+    static Frame reconnect(String resumeToken, long delayMillis) {
+        return new Frame(RECONNECT, 0, 0, 0, delayMillis, null, null, null, resumeToken);
+    }
+
+    /**
+     * 存储请求的响应
+     */
+    static Frame response(long requestId, int status, String body) {
+        return new Frame(RESPONSE, 0, requestId, status, 0, null, null, null, body);
+    }
+
+    /**
+     * 在线状态增量帧，发给所有支持增量的用户，为共享帧
+     */
+    static Frame presence(byte type, long version, String username) {
+        return new Frame(type, 0, 0, version, 0, null, null, null, username, true);
+    }
+
+    /**
+     * 用户列表帧，发给所有在线用户，为共享帧
+     */
+    static Frame userList(String users) {
+        return new Frame(USERS, 0, 0, 0, 0, null, null, null, users, true);
+    }
+
+    /**
+     * 转发给其他集群节点的副本，带FLAG_FORWARDED标记，广播仍为共享帧
+     */
+    Frame forwarded() {
+        return new Frame(type, flags | FLAG_FORWARDED, messageId, sequence, timestamp,
+            conversationId, sender, receiver, body, isBroadcast());
+    }
+
+    /**
+     * 带会话序列号的副本，本节点用户发出的聊天消息由分发分区线程在投递前分配序列号
+     */
+    Frame sequenced(long sequence) {
+        return new Frame(type, flags, messageId, sequence, timestamp, conversationId, sender, receiver, body, shared);
+    }
+
+    /**
+     * 已保存到聊天记录数据库的副本，messageId换成数据库ID并带FLAG_STORED标记
+     */
+    Frame stored(long storedId) {
+        return new Frame(type, flags | FLAG_STORED, storedId, sequence, timestamp,
+            conversationId, sender, receiver, body, shared);
+    }
+
+    boolean isForwarded() {
+        return (flags & FLAG_FORWARDED) != 0;
+    }
+
+    boolean isBroadcast() {
+        return receiver.isEmpty();
+    }
+
+    /**
+     * 心跳应答和PING，写出时不与之后的帧合并，放入一批后立即写出
+     */
+    boolean isControl() {
+        return type == HEARTBEAT_ACK || type == PING;
+    }
+
+    /**
+     * 出站队列中的优先级通道：私聊走交互通道，广播和存储响应（历史等）走批量通道，
+     * 聊天消息的ACK与所确认的消息走同一条通道，客户端按会话序列号排序时，ACK占用的序列号不会越过同一会话中更早的消息；
+     * 其余（握手、心跳应答、PING、在线状态、重试的ACK、限流、重连通知）都很小且对时延敏感，走控制通道。
+     * 不同通道的帧之间可能重排，例如在线状态变化可能先于之前入队的广播送达，同一通道内保持入队顺序。
+     */
+    int lane() {
+        switch (type) {
+            case MSG:
+                return isBroadcast() ? LaneQueue.BULK : LaneQueue.INTERACTIVE;
+            case ACK:
+                if (conversationId.isEmpty()) {
+                    return LaneQueue.CONTROL;
+                }
+                return isBroadcast() ? LaneQueue.BULK : LaneQueue.INTERACTIVE;
+            case RESPONSE:
+                return LaneQueue.BULK;
+            default:
+                return LaneQueue.CONTROL;
+        }
+    }
+
+    /**
+     * 握手阶段的帧始终按文本发送，客户端据此判断是否切换到二进制协议
+     */
+    boolean isHandshake() {
+        return type == LOGIN_SUCCESS || type == LOGIN;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,573 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * 帧编解码
+ *
+ * 二进制帧格式（版本1，大端序）：
+ * <pre>
+ *   u32 length          之后的字节数
+ *   u8  version         协议版本，当前为1
+ *   u8  type            帧类型，见Frame中的常量
+ *   u16 flags
+ *   i64 messageId
+ *   i64 sequence        会话内序列号
+ *   i64 timestamp       毫秒时间戳
+ *   u16 + bytes         conversationId (UTF-8)
+ *   u16 + bytes         sender
+ *   u16 + bytes         receiver
+ *   bytes               body，占用剩余部分
+ * </pre>
+ * 编码直接写入调用方提供的ByteBuffer，解码在缓冲区上原地读取，除了最终的字符串外不产生中间对象。
+ * flags带FLAG_COMPRESSED时body为Deflate压缩后的字节，见FrameCompression。
+ * 文本协议保持原有格式，作为未协商二进制协议的客户端的兼容方案。
+ */
+final class FrameCodec {
+
+    // 单帧最大长度，超过视为协议错误
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    // 长度前缀 + 定长头部
+    static final int FIXED_HEADER_BYTES = 4 + 1 + 1 + 2 + 8 + 8 + 8;
+
+    // 从直接缓冲区解码字符串时复用的堆数组，每个线程（NIO事件循环）一个；超过上限的字段临时分配，不长期持有
+    private static final ThreadLocal<byte[][]> UTF8_SCRATCH = ThreadLocal.withInitial(() -> new byte[1][]);
+    private static final int UTF8_SCRATCH_MAX_BYTES = 64 * 1024;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // 最近一次格式化的时间戳（按秒缓存）
+    private static volatile CachedTime cachedTime = new CachedTime(-1, "");
+
+    private FrameCodec() {
+    }
+
+    // ==================== 编码 ====================
+
+    /**
+     * 按协议版本计算编码后的字节数
+     */
+    static int encodedLength(Frame frame, int version) {
+        if (version == Frame.TEXT || frame.isHandshake()) {
+            return textLength(frame);
+        }
+        return FIXED_HEADER_BYTES
+            + 2 + utf8Length(frame.conversationId)
+            + 2 + utf8Length(frame.sender)
+            + 2 + utf8Length(frame.receiver)
+            + utf8Length(frame.body);
+    }
+
+    /**
+     * 按协议版本把帧编码到out中，调用方需保证剩余空间不小于encodedLength
+     */
+    static void encode(Frame frame, int version, ByteBuffer out) {
+        encode(frame, version, false, out);
+    }
+
+    /**
+     * @param compress 连接协商了压缩，二进制帧的正文达到FrameCompression.MIN_BYTES时压缩，
+     *                 压缩后的长度不会超过encodedLength
+     */
+    static void encode(Frame frame, int version, boolean compress, ByteBuffer out) {
+        if (version == Frame.TEXT || frame.isHandshake()) {
+            encodeText(frame, out);
+            return;
+        }
+        int start = out.position();
+        out.putInt(0); // 长度占位
+        out.put((byte) version);
+        out.put(frame.type);
+        out.putShort((short) frame.flags);
+        out.putLong(frame.messageId);
+        out.putLong(frame.sequence);
+        out.putLong(frame.timestamp);
+        putShortString(out, frame.conversationId);
+        putShortString(out, frame.sender);
+        putShortString(out, frame.receiver);
+        int bodyStart = out.position();
+        putUtf8(out, frame.body);
+        if (compress && out.position() - bodyStart >= FrameCompression.MIN_BYTES) {
+            int bodyEnd = FrameCompression.compressInPlace(out, bodyStart, out.position());
+            if (bodyEnd >= 0) {
+                out.position(bodyEnd);
+                out.putShort(start + 6, (short) (frame.flags | Frame.FLAG_COMPRESSED));
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    /**
+     * 共享帧的编码结果：同一份字节，阻塞写线程直接写bytes，NIO连接各自取一个只读视图
+     */
+    static final class Encoded {
+        final byte[] bytes;
+        private final ByteBuffer readOnly;
+
+        Encoded(byte[] bytes) {
+            this.bytes = bytes;
+            this.readOnly = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        /**
+         * 独立position的只读视图，不复制字节
+         */
+        ByteBuffer view() {
+            return readOnly.duplicate();
+        }
+    }
+
+    /**
+     * 共享帧按协议版本只编码一次，结果缓存在帧上
+     * 并发首次编码时可能重复编码，结果相同，后写入的覆盖先写入的
+     */
+    static Encoded sharedEncoding(Frame frame, int version) {
+        return sharedEncoding(frame, version, false);
+    }
+
+    /**
+     * @param compress 连接协商了压缩；压缩结果单独缓存，正文未达到压缩阈值时与未压缩的编码相同
+     */
+    static Encoded sharedEncoding(Frame frame, int version, boolean compress) {
+        boolean text = version == Frame.TEXT || frame.isHandshake();
+        compress = compress && !text;
+        Encoded encoded = text ? frame.textEncoding : compress ? frame.compressedEncoding : frame.binaryEncoding;
+        if (encoded == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(encodedLength(frame, version));
+            encode(frame, version, compress, buffer);
+            encoded = new Encoded(buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array());
+            if (text) {
+                frame.textEncoding = encoded;
+            } else if (compress) {
+                frame.compressedEncoding = encoded;
+            } else {
+                frame.binaryEncoding = encoded;
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * 确保缓冲区至少有needed字节剩余空间，不够时换一个更大的缓冲区
+     */
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+        ByteBuffer bigger = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static int textLength(Frame frame) {
+        switch (frame.type) {
+            case Frame.LOGIN_SUCCESS:
+                return "LOGIN_SUCCESS".length() + (frame.body.isEmpty() ? 0 : 1 + utf8Length(frame.body)) + 1;
+            case Frame.ERROR:
+                return "ERROR:".length() + utf8Length(frame.body) + 1;
+            case Frame.USERS:
+                return "USERS:".length() + utf8Length(frame.body) + 1;
+            case Frame.USER_JOIN:
+            case Frame.USER_LEAVE:
+            case Frame.USERS_SNAPSHOT:
+                return utf8Length(typeName(frame.type)) + 1 + Long.toString(frame.sequence).length() + 1
+                    + utf8Length(frame.body) + 1;
+            case Frame.ACK:
+                return "ACK:".length() + utf8Length(frame.body) + 1 + Long.toString(frame.messageId).length() + 1;
+            case Frame.THROTTLED:
+                return "THROTTLED:".length() + Long.toString(frame.messageId).length() + 1
+                    + Long.toString(frame.timestamp).length() + 1;
+            case Frame.RECONNECT:
+                return "RECONNECT:".length() + Long.toString(frame.timestamp).length() + 1
+                    + utf8Length(frame.body) + 1;
+            case Frame.MSG:
+                return "MSG:".length() + utf8Length(frame.sender) + 1
+                    + (frame.isBroadcast() ? 0 : utf8Length(frame.receiver) + 1)
+                    + utf8Length(frame.body) + 1 + utf8Length(timestampText(frame.timestamp)) + 1;
+            default:
+                return utf8Length(typeName(frame.type)) + 1;
+        }
+    }
+
+    private static void encodeText(Frame frame, ByteBuffer out) {
+        switch (frame.type) {
+            case Frame.LOGIN_SUCCESS:
+                putUtf8(out, "LOGIN_SUCCESS");
+                if (!frame.body.isEmpty()) {
+                    out.put((byte) ';');
+                    putUtf8(out, frame.body);
+                }
+                break;
+            case Frame.ERROR:
+                putUtf8(out, "ERROR:");
+                putUtf8(out, frame.body);
+                break;
+            case Frame.USERS:
+                putUtf8(out, "USERS:");
+                putUtf8(out, frame.body);
+                break;
+            case Frame.USER_JOIN:
+            case Frame.USER_LEAVE:
+            case Frame.USERS_SNAPSHOT:
+                // USER_JOIN:版本号:用户名  USER_LEAVE:版本号:用户名  USERS_SNAPSHOT:版本号:a,b,c
+                putUtf8(out, typeName(frame.type));
+                out.put((byte) ':');
+                putUtf8(out, Long.toString(frame.sequence));
+                out.put((byte) ':');
+                putUtf8(out, frame.body);
+                break;
+            case Frame.ACK:
+                // ACK:客户端消息ID:服务器消息ID
+                putUtf8(out, "ACK:");
+                putUtf8(out, frame.body);
+                out.put((byte) ':');
+                putUtf8(out, Long.toString(frame.messageId));
+                break;
+            case Frame.THROTTLED:
+                // THROTTLED:客户端消息ID:重试等待毫秒数
+                putUtf8(out, "THROTTLED:");
+                putUtf8(out, Long.toString(frame.messageId));
+                out.put((byte) ':');
+                putUtf8(out, Long.toString(frame.timestamp));
+                break;
+            case Frame.RECONNECT:
+                // RECONNECT:重连等待毫秒数:恢复令牌
+                putUtf8(out, "RECONNECT:");
+                putUtf8(out, Long.toString(frame.timestamp));
+                out.put((byte) ':');
+                putUtf8(out, frame.body);
+                break;
+            case Frame.MSG:
+                // 私聊: MSG:sender:receiver:content:timestamp  广播: MSG:sender:content:timestamp
+                putUtf8(out, "MSG:");
+                putUtf8(out, frame.sender);
+                out.put((byte) ':');
+                if (!frame.isBroadcast()) {
+                    putUtf8(out, frame.receiver);
+                    out.put((byte) ':');
+                }
+                putUtf8(out, frame.body);
+                out.put((byte) ':');
+                putUtf8(out, timestampText(frame.timestamp));
+                break;
+            default:
+                putUtf8(out, typeName(frame.type));
+                break;
+        }
+        out.put((byte) '\n');
+    }
+
+    /**
+     * 帧类型对应的文本命令名
+     */
+    static String typeName(byte type) {
+        switch (type) {
+            case Frame.LOGIN: return "LOGIN";
+            case Frame.PRIVATE: return "PRIVATE";
+            case Frame.BROADCAST: return "MSG";
+            case Frame.HEARTBEAT: return "HEARTBEAT";
+            case Frame.GET_USERS: return "GET_USERS";
+            case Frame.LOGOUT: return "LOGOUT";
+            case Frame.PONG: return "PONG";
+            case Frame.REQUEST: return "REQUEST";
+            case Frame.LOGIN_SUCCESS: return "LOGIN_SUCCESS";
+            case Frame.ERROR: return "ERROR";
+            case Frame.MSG: return "MSG";
+            case Frame.USERS: return "USERS";
+            case Frame.HEARTBEAT_ACK: return "HEARTBEAT_ACK";
+            case Frame.PING: return "PING";
+            case Frame.USER_JOIN: return "USER_JOIN";
+            case Frame.USER_LEAVE: return "USER_LEAVE";
+            case Frame.USERS_SNAPSHOT: return "USERS_SNAPSHOT";
+            case Frame.ACK: return "ACK";
+            case Frame.THROTTLED: return "THROTTLED";
+            case Frame.RECONNECT: return "RECONNECT";
+            case Frame.RESPONSE: return "RESPONSE";
+            case Frame.CLUSTER_HELLO: return "CLUSTER_HELLO";
+            default: return "UNKNOWN";
+        }
+    }
+
+    /**
+     * 文本协议中的时间戳格式 yyyy-MM-dd HH:mm:ss，同一秒内复用格式化结果
+     */
+    static String timestampText(long millis) {
+        long second = millis / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime(second, TIME_FORMAT.format(Instant.ofEpochMilli(millis)));
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+
+    private static final class CachedTime {
+        final long second;
+        final String text;
+
+        CachedTime(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // ==================== 解码 ====================
+
+    /**
+     * 缓冲区中第一个帧是否已完整到达
+     * @return 完整帧的总字节数（含长度前缀），未完整时返回0
+     * @throws IOException 长度字段非法
+     */
+    static int completeFrameLength(ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return 0;
+        }
+        int length = in.getInt(in.position());
+        if (length < FIXED_HEADER_BYTES - 4 + 6 || length > MAX_FRAME_BYTES) {
+            throw new IOException("非法的帧长度: " + length);
+        }
+        return in.remaining() >= length + 4 ? length + 4 : 0;
+    }
+
+    /**
+     * 读取缓冲区中第一个帧的类型，不移动position
+     */
+    static byte peekType(ByteBuffer in) {
+        return in.get(in.position() + 5);
+    }
+
+    /**
+     * 跳过缓冲区中第一个完整帧
+     */
+    static void skip(ByteBuffer in) {
+        in.position(in.position() + 4 + in.getInt(in.position()));
+    }
+
+    /**
+     * 解码缓冲区中第一个完整帧（调用前应先用completeFrameLength确认已完整）
+     */
+    static Frame decode(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int end = start + 4 + in.getInt();
+        int version = in.get() & 0xFF;
+        if (version < 1 || version > Frame.MAX_BINARY_VERSION) {
+            throw new IOException("不支持的协议版本: " + version);
+        }
+        byte type = in.get();
+        int flags = in.getShort() & 0xFFFF;
+        long messageId = in.getLong();
+        long sequence = in.getLong();
+        long timestamp = in.getLong();
+        String conversationId = getShortString(in, end);
+        String sender = getShortString(in, end);
+        String receiver = getShortString(in, end);
+        String body;
+        if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+            try {
+                body = new String(FrameCompression.inflate(in, end - in.position(), MAX_FRAME_BYTES), StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IOException("无法解压帧正文: " + e.getMessage());
+            }
+            flags &= ~Frame.FLAG_COMPRESSED;
+        } else {
+            body = getUtf8(in, end - in.position());
+        }
+        in.position(end);
+        return new Frame(type, flags, messageId, sequence, timestamp, conversationId, sender, receiver, body);
+    }
+
+    /**
+     * 把客户端发来的文本命令解析为Frame，无法识别时返回null
+     * @param withIds 登录时协商了消息确认（ack=1），聊天消息在类型后带客户端消息ID：
+     *                MSG:消息ID:内容  PRIVATE:消息ID:接收者:内容
+     */
+    static Frame parseTextCommand(String line, boolean withIds) {
+        if (line.equals("HEARTBEAT")) {
+            return Frame.control(Frame.HEARTBEAT);
+        } else if (line.equals("GET_USERS")) {
+            return Frame.control(Frame.GET_USERS);
+        } else if (line.equals("PONG")) {
+            return Frame.control(Frame.PONG);
+        } else if (line.startsWith("MSG:")) {
+            // 广播消息: MSG:内容
+            int start = 4;
+            long messageId = 0;
+            if (withIds) {
+                int colon = line.indexOf(':', start);
+                messageId = colon < 0 ? -1 : parseId(line.substring(start, colon));
+                if (messageId < 0) {
+                    return null;
+                }
+                start = colon + 1;
+            }
+            return new Frame(Frame.BROADCAST, 0, messageId, 0, 0, null, null, null, line.substring(start));
+        } else if (line.startsWith("PRIVATE:")) {
+            // 私聊消息: PRIVATE:接收者:内容，接收者不含冒号，内容中的冒号原样保留
+            int start = 8;
+            long messageId = 0;
+            if (withIds) {
+                int colon = line.indexOf(':', start);
+                messageId = colon < 0 ? -1 : parseId(line.substring(start, colon));
+                if (messageId < 0) {
+                    return null;
+                }
+                start = colon + 1;
+            }
+            int colon = line.indexOf(':', start);
+            if (colon < 0) {
+                return null;
+            }
+            return new Frame(Frame.PRIVATE, 0, messageId, 0, 0, null, null,
+                line.substring(start, colon), line.substring(colon + 1));
+        } else if (line.startsWith("LOGOUT")) {
+            return Frame.control(Frame.LOGOUT);
+        }
+        return null;
+    }
+
+    // 解析客户端消息ID，格式错误时返回-1
+    private static long parseId(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 从输入流读取一行（不预读多余字节），用于登录握手阶段
+     * @return 去掉换行符的行内容，流结束时返回null
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= 4096) {
+                throw new IOException("握手消息过长");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // ==================== UTF-8工具 ====================
+
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 逐字符写入UTF-8编码，不经过中间byte[]
+     */
+    static void putUtf8(ByteBuffer out, String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符按'?'处理，与String.getBytes一致
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static void putShortString(ByteBuffer out, String s) {
+        int lengthPos = out.position();
+        out.putShort((short) 0);
+        putUtf8(out, s);
+        int length = out.position() - lengthPos - 2;
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("字段过长: " + length);
+        }
+        out.putShort(lengthPos, (short) length);
+    }
+
+    private static String getShortString(ByteBuffer in, int end) throws IOException {
+        int length = in.getShort() & 0xFFFF;
+        if (in.position() + length > end) {
+            throw new IOException("帧字段越界");
+        }
+        return getUtf8(in, length);
+    }
+
+    private static String getUtf8(ByteBuffer in, int length) {
+        if (length == 0) {
+            return "";
+        }
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            // 直接缓冲区（NIO池化的读缓冲区）没有底层数组，先复制到线程复用的堆数组，不为每个字段分配中间数组
+            byte[] bytes = utf8Scratch(length);
+            in.get(bytes, 0, length);
+            s = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static byte[] utf8Scratch(int length) {
+        if (length > UTF8_SCRATCH_MAX_BYTES) {
+            return new byte[length];
+        }
+        byte[][] holder = UTF8_SCRATCH.get();
+        byte[] scratch = holder[0];
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[Math.max(Integer.highestOneBit(length - 1) << 1, 1024)];
+            holder[0] = scratch;
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,129 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 二进制帧正文的Deflate压缩
+ * 登录时带 deflate=1 并协商了二进制协议的客户端，服务器发给它的帧正文不少于 chat.compress.min.bytes 字节时
+ * 压缩正文并在flags中置Frame.FLAG_COMPRESSED，压缩后没有变小则照常发送原文。头部和其他字段不压缩。
+ * 每帧独立压缩，不跨帧保留窗口：共享帧压缩一次后所有连接复用同一份字节，解压也不依赖之前的帧。
+ * 单帧正文很短，双方预置同一份常用聊天用语作为字典（deflate=后的数字为字典版本），
+ * 字典内容改变时必须提升DICTIONARY_VERSION，并同步修改客户端 util/FrameCompression.java。
+ * Deflater/Inflater不是线程安全的，每个写线程（或事件循环）使用自己的实例。
+ */
+final class FrameCompression {
+
+    static final int DICTIONARY_VERSION = 1;
+
+    // 正文不少于该字节数才压缩，更短的消息压缩收益抵不上CPU开销
+    static final int MIN_BYTES = Integer.getInteger("chat.compress.min.bytes", 128);
+    // 压缩级别1-9，默认6
+    static final int LEVEL = Integer.getInteger("chat.compress.level", 6);
+
+    // 字典中靠后的内容匹配距离更短，出现频率越高的放得越靠后
+    static final byte[] DICTIONARY = (
+        "USERS,USER_JOIN,USER_LEAVE,http://https://www.com/.png.jpg.mp4"
+        + "纪念日快乐，生日快乐，节日快乐，新年快乐，情人节快乐，周年快乐，今天是我们在一起的第天，"
+        + "日记写好了，记得看日记，照片发你了，看看这张照片，我们去拍照吧，"
+        + "天气预报说明天下雨，记得带伞，降温了多穿点衣服，别感冒了，身体不舒服吗？吃药了没有？"
+        + "今天上班好累啊，加班到现在，刚下班，辛苦了，抱抱，注意休息，不要太累了，"
+        + "周末一起去看电影吧，想去哪里玩？一起去旅行吧，我订好票了，几点的车？到了给我打电话，"
+        + "晚上想吃什么？我做饭给你吃，点外卖吧，吃火锅，喝奶茶，记得按时吃饭，多喝水，"
+        + "路上小心，到家了吗？到家了告诉我，我马上到，等我一下，我在楼下，快出来吧，"
+        + "怎么不回我消息？刚才在忙，没看到消息，手机没电了，现在可以视频吗？打个电话吧，"
+        + "对不起，是我不好，不要生气了好不好，没关系，我没有生气，我知道了，好的好的，没问题，"
+        + "你在干嘛呢？在吗？睡了吗？还没睡，起床了吗？早安，早上好，午安，晚安，好梦，早点睡，"
+        + "哈哈哈哈哈哈，嘿嘿嘿，呜呜呜，嗯嗯嗯，好呀，好吧，可以呀，是的呢，真的吗？为什么呀？怎么了？"
+        + "宝贝，亲爱的，老婆，老公，我想你了，好想你，我也想你，我爱你，我也爱你，爱你哦，么么哒，"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<ByteBuffer[]> SCRATCH = ThreadLocal.withInitial(() -> new ByteBuffer[1]);
+
+    private static final Metrics.Counter BYTES_IN = ServerMetrics.REGISTRY.counter("chat_compression_bytes_total",
+        "stage=\"in\"", "压缩前后的正文字节数，共享帧只在第一次编码时统计");
+    private static final Metrics.Counter BYTES_OUT = ServerMetrics.REGISTRY.counter("chat_compression_bytes_total",
+        "stage=\"out\"", "压缩前后的正文字节数，共享帧只在第一次编码时统计");
+    private static final Metrics.Counter SKIPPED = ServerMetrics.REGISTRY.counter("chat_compression_skipped_total",
+        "达到压缩阈值但压缩后没有变小、按原文发送的帧数");
+
+    private FrameCompression() {
+    }
+
+    /**
+     * 客户端登录时声明的字典版本是否可以使用压缩
+     */
+    static boolean supports(int dictionaryVersion) {
+        return dictionaryVersion == DICTIONARY_VERSION;
+    }
+
+    /**
+     * 把buffer中[start, end)的正文原地替换为压缩结果
+     * @return 压缩后正文的结束位置；压缩后没有变小时返回-1，buffer内容不变
+     */
+    static int compressInPlace(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        ByteBuffer[] holder = SCRATCH.get();
+        ByteBuffer scratch = holder[0];
+        if (scratch == null || scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, 1024));
+            holder[0] = scratch;
+        }
+        scratch.clear().limit(length - 1);
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        ByteBuffer input = buffer.duplicate();
+        input.limit(end).position(start);
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished() && scratch.hasRemaining()) {
+            deflater.deflate(scratch);
+        }
+        BYTES_IN.add(length);
+        if (!deflater.finished()) {
+            SKIPPED.increment();
+            BYTES_OUT.add(length);
+            return -1;
+        }
+        scratch.flip();
+        BYTES_OUT.add(scratch.remaining());
+        buffer.position(start);
+        buffer.put(scratch);
+        return buffer.position();
+    }
+
+    /**
+     * 解压in中接下来length字节的正文，解压结果超过maxBytes视为协议错误
+     */
+    static byte[] inflate(ByteBuffer in, int length, int maxBytes) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        ByteBuffer input = in.duplicate();
+        input.limit(input.position() + length);
+        inflater.setInput(input);
+        byte[] out = new byte[Math.min(Math.max(length * 4, 256), maxBytes)];
+        int total = 0;
+        while (!inflater.finished()) {
+            if (total == out.length) {
+                if (out.length >= maxBytes) {
+                    throw new DataFormatException("解压后超过长度限制: " + maxBytes);
+                }
+                out = Arrays.copyOf(out, Math.min(out.length * 2, maxBytes));
+            }
+            int n = inflater.inflate(out, total, out.length - total);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("压缩数据不完整");
+            }
+            total += n;
+        }
+        in.position(in.position() + length);
+        return total == out.length ? out : Arrays.copyOf(out, total);
+    }
+}
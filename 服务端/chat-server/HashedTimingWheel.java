@@ -0,0 +1,126 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 哈希时间轮
+ * 把定时任务按到期时间放进环形数组的槽里，每个tick只处理当前槽中的任务，
+ * 处理开销与到期任务数成正比，与已登记的任务总数无关。
+ * 任务在到期后的一个tick内执行；到期时间超过一圈的任务记录剩余圈数，轮到时再减一。
+ * 所有任务都在时间轮线程上执行，任务本身应当很快返回。
+ */
+class HashedTimingWheel implements Runnable {
+
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+
+    // 其他线程提交的任务先进入这里，由时间轮线程在下一个tick放入对应槽
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final long startTime;
+    private long tick = 0;
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    HashedTimingWheel(long tickMillis, int slots) {
+        if (tickMillis <= 0 || slots <= 0) {
+            throw new IllegalArgumentException("tick和槽数必须大于0");
+        }
+        // 槽数取不小于slots的2的幂，用位运算定位槽
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.wheel = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = wheel.length - 1;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 登记一个在delayMillis毫秒后执行的任务，可以从任意线程调用
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickMillis;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // 把新登记的任务放进对应槽，已过期的任务放进当前槽立即执行
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max((timeout.deadline - startTime) / tickMillis, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    Log.error("定时任务异常: {}", e.getMessage());
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * 已登记的定时任务，cancel后不会再执行，在所在槽下次被处理时移除
+     */
+    static final class Timeout {
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级分道的多生产者队列，分发分区和连接出站队列共用
+ * 三条通道：控制（心跳应答、PING、在线状态等）、交互（私聊及其ACK）、批量（广播及其ACK、历史等存储响应），
+ * 每条通道内部先进先出，同一会话的消息和ACK总在同一条通道上，顺序不变；不同通道的帧之间可能重排；
+ * 通道之间按chat.lane.policy调度：
+ * - strict: 总是先取优先级最高的非空通道，批量通道可能被饿死
+ * - weighted（默认）: 加权轮询，chat.lane.weights=16,4,1 为一轮中各通道最多取出的条数，
+ *   高优先级通道先取，积压的广播不会拖住心跳和私聊，也不会被它们完全饿死
+ * 策略和权重也可以在构造时传入，系统属性只是默认值。
+ * 每条通道的排队时间（入队到取出）记入构造时传入的直方图。
+ */
+final class LaneQueue<T> {
+
+    static final int CONTROL = 0;
+    static final int INTERACTIVE = 1;
+    static final int BULK = 2;
+    static final int LANES = 3;
+    static final String[] LANE_NAMES = {"control", "interactive", "bulk"};
+
+    static final boolean STRICT = "strict".equalsIgnoreCase(System.getProperty("chat.lane.policy", "weighted"));
+    static final int[] WEIGHTS = parseWeights(System.getProperty("chat.lane.weights", "16,4,1"));
+
+    private static final class Entry<T> {
+        final T item;
+        final long enqueuedAt = System.nanoTime();
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry<T>>[] lanes = (ArrayDeque<Entry<T>>[]) new ArrayDeque<?>[LANES];
+    // 所有通道都取空之后才返回的元素，例如出站队列的关闭标记
+    private final ArrayDeque<T> tail = new ArrayDeque<>(1);
+    private final boolean strict;
+    // 加权轮询中各通道一轮的份额，以及这一轮剩余的份额
+    private final int[] weights;
+    private final int[] credits;
+    private final Metrics.Histogram[] waits;
+    private volatile int size = 0;
+    private volatile int tailSize = 0;
+
+    /**
+     * @param waits 按通道下标的排队时间直方图（纳秒），为null时不统计
+     */
+    LaneQueue(Metrics.Histogram[] waits) {
+        this(waits, STRICT, WEIGHTS);
+    }
+
+    /**
+     * @param waits 按通道下标的排队时间直方图（纳秒），为null时不统计
+     * @param strict 是否使用严格优先级，否则加权轮询
+     * @param weights 加权轮询一轮中各通道最多取出的条数，按通道下标，每项至少为1
+     */
+    LaneQueue(Metrics.Histogram[] waits, boolean strict, int[] weights) {
+        if (weights.length != LANES) {
+            throw new IllegalArgumentException("通道权重个数应为" + LANES + ": " + weights.length);
+        }
+        for (int weight : weights) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("通道权重至少为1: " + weight);
+            }
+        }
+        this.waits = waits;
+        this.strict = strict;
+        this.weights = weights.clone();
+        this.credits = weights.clone();
+        for (int i = 0; i < LANES; i++) {
+            // 每个连接都有一个出站队列，初始容量取小，积压时再扩容
+            lanes[i] = new ArrayDeque<>(4);
+        }
+    }
+
+    void offer(int lane, T item) {
+        lock.lock();
+        try {
+            lanes[lane].addLast(new Entry<>(item));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 追加一个在所有通道取空之后才返回的元素
+     */
+    void offerLast(T item) {
+        lock.lock();
+        try {
+            tail.addLast(item);
+            tailSize++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按调度策略取出下一个元素，队列为空时返回null
+     */
+    T poll() {
+        if (size == 0 && tailSize == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞等待下一个元素
+     */
+    T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            T item;
+            while ((item = next()) == null) {
+                notEmpty.await();
+            }
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T next() {
+        if (size == 0) {
+            T item = tail.poll();
+            if (item != null) {
+                tailSize--;
+            }
+            return item;
+        }
+        int lane = pickLane();
+        Entry<T> entry = lanes[lane].pollFirst();
+        size--;
+        if (waits != null) {
+            waits[lane].recordSince(entry.enqueuedAt);
+        }
+        return entry.item;
+    }
+
+    private int pickLane() {
+        if (!strict) {
+            for (int pass = 0; pass < 2; pass++) {
+                for (int lane = 0; lane < LANES; lane++) {
+                    if (credits[lane] > 0 && !lanes[lane].isEmpty()) {
+                        credits[lane]--;
+                        return lane;
+                    }
+                }
+                // 非空通道的份额都已用完，开始新的一轮
+                System.arraycopy(weights, 0, credits, 0, LANES);
+            }
+        }
+        for (int lane = 0; lane < LANES; lane++) {
+            if (!lanes[lane].isEmpty()) {
+                return lane;
+            }
+        }
+        throw new IllegalStateException("队列计数与通道不一致");
+    }
+
+    /**
+     * 清空所有通道和尾部元素
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry<T>> lane : lanes) {
+                lane.clear();
+            }
+            tail.clear();
+            size = 0;
+            tailSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 各通道中的元素总数，不含尾部元素
+     */
+    int size() {
+        return size;
+    }
+
+    private static int[] parseWeights(String value) {
+        int[] weights = {16, 4, 1};
+        String[] parts = value.split(",");
+        for (int i = 0; i < LANES && i < parts.length; i++) {
+            try {
+                weights[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+            } catch (NumberFormatException e) {
+                Log.warn("无效的通道权重 {}，使用默认值 {}", parts[i], weights[i]);
+            }
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志
+ * 调用线程只把级别、模板和参数放进无锁环形缓冲区就返回，格式化和写stdout/stderr都在单独的日志线程上完成，
+ * 聊天消息的分发线程不会因为控制台输出互相争用或阻塞。
+ * - 级别: DEBUG < INFO < WARN < ERROR，由 chat.log.level 设置（默认INFO）；低于当前级别的调用在入队前直接返回
+ * - 模板中的 {} 按顺序替换为参数，参数在日志线程上才转成字符串
+ * - 每条消息的日志（收发、路由）用message()记录：DEBUG开启时全部输出；
+ *   否则按 chat.log.sample=N 每N条输出一条（默认0，不输出），关闭时不做任何格式化和I/O
+ * - 缓冲区满时丢弃新日志并计数，不阻塞调用方
+ * - chat.log.format=json 时每行输出一个JSON对象，便于日志系统收集
+ * - 时间戳每秒只格式化一次，格式化结果在所有线程间共享
+ */
+final class Log {
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    private static final int level = parseLevel(System.getProperty("chat.log.level", "INFO"));
+    private static final long SAMPLE_EVERY = Long.getLong("chat.log.sample", 0);
+    private static final boolean JSON = "json".equalsIgnoreCase(System.getProperty("chat.log.format", "text"));
+
+    private static final Ring RING = new Ring(Integer.getInteger("chat.log.buffer", 65536));
+    private static final Sampler SAMPLER = new Sampler(SAMPLE_EVERY);
+    private static volatile boolean running = true;
+    // 为true时进程退出钩子不停止日志线程，由调用方在退出流程的最后调用shutdown
+    private static volatile boolean managedShutdown = false;
+    private static final Thread WRITER;
+
+    // 日志线程独占的输出流：System.out每次println都会flush，这里改为缓冲区取空时才flush；错误输出不缓冲
+    private static final PrintStream OUT = new PrintStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, System.out.charset());
+    private static final PrintStream ERR = new PrintStream(
+        new FileOutputStream(FileDescriptor.err), true, System.err.charset());
+
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static volatile CachedTime cachedTime = new CachedTime(-1, "");
+
+    static {
+        WRITER = new Thread(Log::writeLoop, "async-log");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        // 进程被信号终止时也写完缓冲区中的日志
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (!managedShutdown) {
+                shutdown(1000);
+            }
+        }, "async-log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    static boolean isDebugEnabled() {
+        return level <= DEBUG;
+    }
+
+    static void debug(String template) { log(DEBUG, template, null, null, null); }
+    static void debug(String template, Object a) { log(DEBUG, template, a, null, null); }
+    static void debug(String template, Object a, Object b) { log(DEBUG, template, a, b, null); }
+    static void debug(String template, Object a, Object b, Object c) { log(DEBUG, template, a, b, c); }
+
+    static void info(String template) { log(INFO, template, null, null, null); }
+    static void info(String template, Object a) { log(INFO, template, a, null, null); }
+    static void info(String template, Object a, Object b) { log(INFO, template, a, b, null); }
+    static void info(String template, Object a, Object b, Object c) { log(INFO, template, a, b, c); }
+
+    static void warn(String template) { log(WARN, template, null, null, null); }
+    static void warn(String template, Object a) { log(WARN, template, a, null, null); }
+    static void warn(String template, Object a, Object b) { log(WARN, template, a, b, null); }
+    static void warn(String template, Object a, Object b, Object c) { log(WARN, template, a, b, c); }
+
+    static void error(String template) { log(ERROR, template, null, null, null); }
+    static void error(String template, Object a) { log(ERROR, template, a, null, null); }
+    static void error(String template, Object a, Object b) { log(ERROR, template, a, b, null); }
+    static void error(String template, Object a, Object b, Object c) { log(ERROR, template, a, b, c); }
+
+    /**
+     * 每条聊天消息都会走到的日志：DEBUG级别输出全部，否则按采样率以INFO输出
+     */
+    static void message(String template, Object a, Object b, Object c) {
+        if (level <= DEBUG) {
+            log(DEBUG, template, a, b, c);
+        } else if (SAMPLER.sample()) {
+            log(INFO, "[采样1/" + SAMPLE_EVERY + "] " + template, a, b, c);
+        }
+    }
+
+    static void message(String template, Object a, Object b) {
+        message(template, a, b, null);
+    }
+
+    static void message(String template, Object a) {
+        message(template, a, null, null);
+    }
+
+    /**
+     * 当前时间，格式为 yyyy-MM-dd HH:mm:ss，同一秒内返回同一个字符串
+     */
+    static String time() {
+        return time(System.currentTimeMillis());
+    }
+
+    static String time(long millis) {
+        long second = millis / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime(second, TIME_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * 由调用方负责停止日志线程：进程有自己的退出钩子（例如优雅退出）时调用，
+     * 退出钩子之间没有先后顺序，否则退出过程中的日志可能在日志线程停止后才写入而丢失
+     */
+    static void manageShutdown() {
+        managedShutdown = true;
+    }
+
+    static long getDroppedCount() {
+        return RING.getDropped();
+    }
+
+    /**
+     * 写完缓冲区中已有的日志后停止日志线程，最多等待timeoutMillis
+     */
+    static void shutdown(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(WRITER);
+        try {
+            WRITER.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void log(int eventLevel, String template, Object a, Object b, Object c) {
+        if (eventLevel < level) {
+            return;
+        }
+        RING.offer(eventLevel, template, a, b, c);
+    }
+
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDropped = 0;
+        int idle = 0;
+        while (true) {
+            Event event = RING.peek();
+            if (event == null) {
+                if (!running && RING.isEmpty()) {
+                    break;
+                }
+                // 缓冲区取空后才把积攒的输出写出，忙时多行合成一次write
+                OUT.flush();
+                long dropped = RING.getDropped();
+                if (dropped > reportedDropped) {
+                    ERR.println("[" + time() + "] WARN 日志缓冲区已满，丢弃日志 " + (dropped - reportedDropped) + " 条");
+                    reportedDropped = dropped;
+                }
+                // 空闲时逐步拉长等待，不需要生产者唤醒
+                LockSupport.parkNanos(idle < 100 ? 50_000 : 1_000_000);
+                idle++;
+                continue;
+            }
+            idle = 0;
+            line.setLength(0);
+            format(event, line);
+            if (event.level >= WARN) {
+                // 两个流通常重定向到同一个文件，先写出之前缓冲的普通日志，保持先后顺序
+                OUT.flush();
+                ERR.println(line);
+            } else {
+                OUT.println(line);
+            }
+            RING.release(event);
+        }
+        OUT.flush();
+        ERR.flush();
+    }
+
+    private static void format(Event event, StringBuilder out) {
+        if (JSON) {
+            out.append("{\"time\":\"").append(time(event.millis))
+                .append("\",\"level\":\"").append(LEVEL_NAMES[event.level])
+                .append("\",\"thread\":\"");
+            appendJson(out, event.thread);
+            out.append("\",\"msg\":\"");
+            StringBuilder message = new StringBuilder();
+            appendMessage(message, event);
+            appendJson(out, message);
+            out.append("\"}");
+            return;
+        }
+        out.append('[').append(time(event.millis)).append("] ");
+        if (event.level != INFO) {
+            out.append(LEVEL_NAMES[event.level]).append(' ');
+        }
+        appendMessage(out, event);
+    }
+
+    private static void appendMessage(StringBuilder out, Event event) {
+        String template = event.template;
+        Object[] args = {event.a, event.b, event.c};
+        int arg = 0;
+        int start = 0;
+        int index;
+        while (arg < args.length && (index = template.indexOf("{}", start)) >= 0) {
+            out.append(template, start, index).append(args[arg++]);
+            start = index + 2;
+        }
+        out.append(template, start, template.length());
+    }
+
+    private static void appendJson(StringBuilder out, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        out.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        out.append(ch);
+                    }
+            }
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+
+    private static int ringSize(int requested) {
+        int size = 1024;
+        while (size < requested) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * 多生产者、单消费者的环形缓冲区，容量为2的幂（至少1024）
+     * 生产者CAS领取序号，写完字段后发布，消费者按序号顺序取出；满时丢弃新日志并计数
+     */
+    static final class Ring {
+        private final int capacity;
+        private final int mask;
+        private final Event[] events;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+        private final LongAdder dropped = new LongAdder();
+
+        Ring(int requested) {
+            capacity = ringSize(requested);
+            mask = capacity - 1;
+            events = new Event[capacity];
+            for (int i = 0; i < capacity; i++) {
+                events[i] = new Event(i - capacity);
+            }
+        }
+
+        /**
+         * @return 是否放入；缓冲区满时返回false并计入丢弃数
+         */
+        boolean offer(int level, String template, Object a, Object b, Object c) {
+            long sequence;
+            while (true) {
+                sequence = tail.get();
+                if (sequence - head >= capacity) {
+                    dropped.increment();
+                    return false;
+                }
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            }
+            Event event = events[(int) sequence & mask];
+            event.level = level;
+            event.millis = System.currentTimeMillis();
+            event.thread = Thread.currentThread().getName();
+            event.template = template;
+            event.a = a;
+            event.b = b;
+            event.c = c;
+            // 发布：消费者看到published等于自己期待的序号后才读取其他字段
+            event.published = sequence;
+            return true;
+        }
+
+        /**
+         * 下一条已发布的日志，没有时返回null；只由消费者调用，处理完后调用release
+         */
+        Event peek() {
+            long next = head;
+            Event event = events[(int) next & mask];
+            return event.published == next ? event : null;
+        }
+
+        /**
+         * 释放peek取到的日志，槽位可以再次被生产者使用
+         */
+        void release(Event event) {
+            // 释放引用，允许参数尽早被回收
+            event.a = event.b = event.c = null;
+            head = head + 1;
+        }
+
+        /**
+         * 是否没有已领取序号的日志（包括领取了还没发布的）
+         */
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        long getDropped() {
+            return dropped.sum();
+        }
+    }
+
+    /**
+     * 每every次调用返回一次true，every为0时总是返回false
+     */
+    static final class Sampler {
+        private final long every;
+        private final AtomicLong counter = new AtomicLong();
+
+        Sampler(long every) {
+            this.every = every;
+        }
+
+        boolean sample() {
+            return every > 0 && counter.incrementAndGet() % every == 0;
+        }
+    }
+
+    static final class Event {
+        // 已发布的序号，初始化为上一圈的序号，保证第一圈的槽不会被误认为已发布
+        volatile long published;
+        int level;
+        long millis;
+        String thread;
+        String template;
+        Object a;
+        Object b;
+        Object c;
+
+        Event(long published) {
+            this.published = published;
+        }
+    }
+
+    private static final class CachedTime {
+        final long second;
+        final String text;
+
+        CachedTime(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 登录请求解析
+ * 格式: LOGIN:用户名[;参数名=值]...
+ * 例如 LOGIN:alice;binary=1 表示客户端支持版本1的二进制协议。
+ * 旧客户端只发送 LOGIN:用户名，不带任何参数。
+ */
+final class LoginRequest {
+
+    final String username;
+    final Map<String, String> params;
+
+    private LoginRequest(String username, Map<String, String> params) {
+        this.username = username;
+        this.params = params;
+    }
+
+    /**
+     * 解析登录消息，格式不正确时返回null
+     */
+    static LoginRequest parse(String line) {
+        if (line == null || !line.startsWith("LOGIN:")) {
+            return null;
+        }
+        String[] parts = line.substring(6).split(";");
+        String username = parts[0].trim();
+        if (username.isEmpty()) {
+            return null;
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq > 0) {
+                params.put(parts[i].substring(0, eq).trim(), parts[i].substring(eq + 1).trim());
+            } else if (!parts[i].trim().isEmpty()) {
+                params.put(parts[i].trim(), "");
+            }
+        }
+        return new LoginRequest(username, Collections.unmodifiableMap(params));
+    }
+
+    String get(String name) {
+        return params.get(name);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
\ No newline at end of file
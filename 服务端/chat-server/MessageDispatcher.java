@@ -0,0 +1,164 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 分区消息分发器
+ * 按会话ID把消息任务分到N个分区，每个分区有自己的队列和处理线程：
+ * 同一会话的消息总是进入同一分区，按入队顺序投递；不同会话可以在多个分区上并行处理。
+ * 分区队列按优先级分道（见LaneQueue）：在线状态在控制通道，私聊在交互通道，广播在批量通道，
+ * 同一个key的任务总在同一条通道上，积压的广播不会推迟同一分区中的在线状态和私聊。
+ */
+class MessageDispatcher {
+
+    private final Partition[] partitions;
+    private final Consumer<ChatServer.MessageTask> handler;
+    private volatile boolean running = true;
+    // 已入队和已处理完的任务数，两者相等时分发器空闲
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    MessageDispatcher(int partitionCount, Consumer<ChatServer.MessageTask> handler) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("分区数必须大于0: " + partitionCount);
+        }
+        this.handler = handler;
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+        }
+    }
+
+    /**
+     * 在executor上为每个分区启动一个处理线程，executor至少要能同时运行partitionCount个任务
+     */
+    void start(Executor executor) {
+        for (Partition partition : partitions) {
+            executor.execute(partition::run);
+        }
+    }
+
+    /**
+     * 按key把任务放入对应分区的lane通道，key相同的任务必须使用同一条通道，按调用顺序处理
+     */
+    void dispatch(String key, int lane, ChatServer.MessageTask task) {
+        submitted.increment();
+        partitions[partitionOf(key)].queue.offer(lane, task);
+    }
+
+    int partitionOf(String key) {
+        return (key.hashCode() & 0x7fffffff) % partitions.length;
+    }
+
+    /**
+     * key所在分区当前的队列深度
+     */
+    int depthOf(String key) {
+        return partitions[partitionOf(key)].queue.size();
+    }
+
+    int getPartitionCount() {
+        return partitions.length;
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * 等待已入队的任务全部处理完，最多等到deadlineNanos（System.nanoTime()）
+     * @return 期限内是否处理完
+     */
+    boolean awaitIdle(long deadlineNanos) {
+        // 先读已处理数再读已入队数，两者相等说明读取已处理数时没有未完成的任务
+        while (completed.sum() != submitted.sum()) {
+            if (System.nanoTime() >= deadlineNanos) {
+                return false;
+            }
+            LockSupport.parkNanos(10_000_000);
+        }
+        return true;
+    }
+
+    /**
+     * 各分区的队列深度和排队延迟，读取后重置区间内的最大延迟
+     */
+    PartitionStats[] snapshot() {
+        PartitionStats[] stats = new PartitionStats[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            Partition p = partitions[i];
+            long processed = p.processed.get();
+            long totalWait = p.totalWaitNanos.get();
+            stats[i] = new PartitionStats(i, p.queue.size(), processed,
+                processed > 0 ? totalWait / processed : 0, p.maxWaitNanos.getAndSet(0));
+        }
+        return stats;
+    }
+
+    private class Partition {
+        final int index;
+        final LaneQueue<ChatServer.MessageTask> queue = new LaneQueue<>(ServerMetrics.DISPATCH_LANE_WAIT);
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Partition(int index) {
+            this.index = index;
+        }
+
+        void run() {
+            Thread.currentThread().setName("dispatch-" + index);
+            while (running) {
+                try {
+                    ChatServer.MessageTask task = queue.take(); // 阻塞等待消息
+
+                    long wait = System.nanoTime() - task.enqueuedAt;
+                    processed.incrementAndGet();
+                    totalWaitNanos.addAndGet(wait);
+                    if (wait > maxWaitNanos.get()) {
+                        maxWaitNanos.accumulateAndGet(wait, Math::max);
+                    }
+                    ServerMetrics.DISPATCH_WAIT.record(wait);
+
+                    try {
+                        handler.accept(task);
+                    } finally {
+                        completed.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    Log.error("消息处理器异常(分区{}): {}", index, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个分区的统计快照，延迟为任务从入队到开始处理的时间
+     */
+    static final class PartitionStats {
+        final int partition;
+        final int depth;
+        final long processed;
+        final long avgWaitNanos;
+        final long maxWaitNanos;
+
+        PartitionStats(int partition, int depth, long processed, long avgWaitNanos, long maxWaitNanos) {
+            this.partition = partition;
+            this.depth = depth;
+            this.processed = processed;
+            this.avgWaitNanos = avgWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("分区%d: 深度=%d, 已处理=%d, 平均延迟=%.2fms, 最大延迟=%.2fms",
+                partition, depth, processed, avgWaitNanos / 1e6, maxWaitNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息ID和会话序列号分配，无锁，可以从任意线程并发调用
+ * 消息ID全局单调递增，格式与客户端MessageIdGenerator相同的思路：
+ * <pre>
+ *   42位毫秒时间戳 | 12位同一毫秒内的计数 | 10位服务器ID(chat.server.id)
+ * </pre>
+ * 用CAS在“当前时间”和“上一个ID加一个计数”之间取较大者，时钟回拨或同一毫秒内超过4096条时借用之后的时间，
+ * 不会产生重复ID，服务器ID所在的低位始终不变。
+ * 会话序列号每个会话从1开始连续递增，热点会话上每条消息只有一次原子自增。
+ * 序列号保存在内存中，启动时由ChatServer按预写日志中各会话最大的序列号恢复（restore），重启后继续递增，
+ * 客户端重连时可以按序列号请求补发；没有预写日志或会话不在恢复范围内时从1重新开始，客户端重置该会话的排序状态。
+ */
+class MessageSequencer {
+
+    private static final int SERVER_BITS = 10;
+    private static final int COUNTER_BITS = 12;
+    private static final long COUNTER_UNIT = 1L << SERVER_BITS;
+
+    private final long serverId;
+    private final AtomicLong lastMessageId = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+
+    MessageSequencer(int serverId) {
+        if (serverId < 1 || serverId >= (1 << SERVER_BITS)) {
+            throw new IllegalArgumentException("服务器ID必须在1-1023之间: " + serverId);
+        }
+        this.serverId = serverId;
+    }
+
+    /**
+     * 分配下一个全局消息ID
+     */
+    long nextMessageId() {
+        long now = (System.currentTimeMillis() << (COUNTER_BITS + SERVER_BITS)) | serverId;
+        while (true) {
+            long last = lastMessageId.get();
+            long next = now > last ? now : last + COUNTER_UNIT;
+            if (lastMessageId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * 分配会话内的下一个序列号，从1开始
+     */
+    long nextSequence(String conversationId) {
+        AtomicLong counter = sequences.get(conversationId);
+        if (counter == null) {
+            // 只有会话第一次出现时才进入computeIfAbsent的加锁路径
+            counter = sequences.computeIfAbsent(conversationId, k -> new AtomicLong());
+        }
+        return counter.incrementAndGet();
+    }
+
+    /**
+     * 会话最近分配的序列号，没有分配过时为0
+     */
+    long currentSequence(String conversationId) {
+        AtomicLong counter = sequences.get(conversationId);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * 启动时按日志中的记录恢复会话序列号，之后分配的序列号大于sequence
+     */
+    void restore(String conversationId, long sequence) {
+        sequences.computeIfAbsent(conversationId, k -> new AtomicLong()).accumulateAndGet(sequence, Math::max);
+    }
+
+    int getConversationCount() {
+        return sequences.size();
+    }
+}
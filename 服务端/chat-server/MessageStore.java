@@ -0,0 +1,188 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 聊天记录存储，与API服务器（api/server.js）共用同一个SQLite数据库的chat_messages表
+ * 通过JDBC访问，运行时需要把SQLite驱动（sqlite-jdbc）加入classpath；驱动不存在时打开失败，
+ * 客户端继续走HTTP接口。
+ * 只由StoreRequests的单个存储线程调用，不做同步；API服务器同时写入时由busy_timeout等待锁。
+ * 服务器转发的聊天消息由saveBatch成批写入，一批一个事务，只在提交时落盘一次。
+ */
+class MessageStore implements AutoCloseable {
+
+    // 与API服务器写入的格式相同
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final Connection connection;
+    private final PreparedStatement historyPage;
+    private final PreparedStatement broadcastPage;
+    private final PreparedStatement markRead;
+    private final PreparedStatement insert;
+
+    /**
+     * 一条聊天记录
+     */
+    static final class Row {
+        final long id;
+        final String sender;
+        final String receiver;
+        final String content;
+        final String timestamp;
+        final boolean read;
+
+        Row(long id, String sender, String receiver, String content, String timestamp, boolean read) {
+            this.id = id;
+            this.sender = sender != null ? sender : "";
+            this.receiver = receiver != null ? receiver : "";
+            this.content = content != null ? content : "";
+            this.timestamp = timestamp != null ? timestamp : "";
+            this.read = read;
+        }
+    }
+
+    MessageStore(String url) throws SQLException {
+        connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = 5000");
+            statement.execute("CREATE TABLE IF NOT EXISTS chat_messages ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, sender TEXT, receiver TEXT, content TEXT, timestamp TEXT)");
+            // API服务器建表时没有已读标记，标记已读时才需要这一列
+            if (!hasColumn(statement, "chat_messages", "is_read")) {
+                statement.execute("ALTER TABLE chat_messages ADD COLUMN is_read INTEGER DEFAULT 0");
+            }
+            // 按会话双方和ID倒序分页
+            statement.execute("CREATE INDEX IF NOT EXISTS idx_chat_messages_pair ON chat_messages (sender, receiver, id)");
+        }
+        historyPage = connection.prepareStatement(
+            "SELECT id, sender, receiver, content, timestamp, is_read FROM chat_messages"
+                + " WHERE ((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) AND id < ?"
+                + " ORDER BY id DESC LIMIT ?");
+        broadcastPage = connection.prepareStatement(
+            "SELECT id, sender, receiver, content, timestamp, is_read FROM chat_messages"
+                + " WHERE receiver = 'all' AND id < ? ORDER BY id DESC LIMIT ?");
+        markRead = connection.prepareStatement(
+            "UPDATE chat_messages SET is_read = 1 WHERE id = ? AND receiver = ?");
+        insert = connection.prepareStatement(
+            "INSERT INTO chat_messages (sender, receiver, content, timestamp) VALUES (?, ?, ?, ?)",
+            Statement.RETURN_GENERATED_KEYS);
+    }
+
+    private static boolean hasColumn(Statement statement, String table, String column) throws SQLException {
+        try (ResultSet columns = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (columns.next()) {
+                if (column.equalsIgnoreCase(columns.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * user与peer之间ID小于beforeId的最近limit条消息，按ID从旧到新排列；peer为"all"时取广播消息
+     * 客户端重复保存的记录（发送者、接收者、内容和时间都相同）在同一页中只保留ID最小的一条，
+     * 与API服务器的去重规则一致，但不为去重扫描整个会话
+     * @param beforeId 0表示从最新的消息开始
+     */
+    List<Row> history(String user, String peer, long beforeId, int limit) throws SQLException {
+        PreparedStatement statement;
+        if ("all".equals(peer)) {
+            statement = broadcastPage;
+            statement.setLong(1, beforeId > 0 ? beforeId : Long.MAX_VALUE);
+            statement.setInt(2, limit);
+        } else {
+            statement = historyPage;
+            statement.setString(1, user);
+            statement.setString(2, peer);
+            statement.setString(3, peer);
+            statement.setString(4, user);
+            statement.setLong(5, beforeId > 0 ? beforeId : Long.MAX_VALUE);
+            statement.setInt(6, limit);
+        }
+        List<Row> rows = new ArrayList<>();
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                rows.add(new Row(result.getLong(1), result.getString(2), result.getString(3),
+                    result.getString(4), result.getString(5), result.getInt(6) == 1));
+            }
+        }
+        Collections.reverse(rows);
+        Set<String> seen = new HashSet<>();
+        rows.removeIf(row -> !seen.add(row.sender + '\u0000' + row.receiver + '\u0000' + row.content + '\u0000' + row.timestamp));
+        return rows;
+    }
+
+    /**
+     * 把发给receiver的一条消息标记为已读
+     * @return 消息是否存在且属于receiver
+     */
+    boolean markRead(long id, String receiver) throws SQLException {
+        markRead.setLong(1, id);
+        markRead.setString(2, receiver);
+        return markRead.executeUpdate() > 0;
+    }
+
+    /**
+     * 保存一条消息
+     * @param timestamp 发送时间（毫秒），按服务器时区格式化
+     * @return 数据库分配的ID
+     */
+    long save(String sender, String receiver, String content, long timestamp) throws SQLException {
+        insert.setString(1, sender);
+        insert.setString(2, receiver);
+        insert.setString(3, content);
+        insert.setString(4, TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timestamp)));
+        insert.executeUpdate();
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            if (!keys.next()) {
+                throw new SQLException("没有返回消息ID");
+            }
+            return keys.getLong(1);
+        }
+    }
+
+    /**
+     * 在一个事务中保存一批聊天消息（MSG帧），广播的接收者记为"all"
+     * 失败时整批回滚，没有一条写入
+     * @return 与frames一一对应的数据库ID
+     */
+    long[] saveBatch(List<Frame> frames) throws SQLException {
+        long[] ids = new long[frames.size()];
+        connection.setAutoCommit(false);
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                Frame frame = frames.get(i);
+                ids[i] = save(frame.sender, frame.isBroadcast() ? "all" : frame.receiver, frame.body, frame.timestamp);
+            }
+            connection.commit();
+            return ids;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Log.warn("关闭聊天记录存储失败: {}", e.getMessage());
+        }
+    }
+}
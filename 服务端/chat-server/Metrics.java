@@ -0,0 +1,331 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 进程内指标注册表
+ * 计数器和直方图的每个桶都是LongAdder，热路径上的记录只是一次分段累加，没有锁也没有共享的CAS热点；
+ * 读取（抓取端点、JMX）时才把各分段加起来。
+ * 指标按名称分组，同名指标用标签区分，例如 chat_messages_received_total{type="PRIVATE"}。
+ */
+class Metrics {
+
+    enum Kind {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    // 名称 -> 指标族，保持注册顺序输出（由this保护，只在注册和读取时加锁）
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * 注册或取得计数器，labels为空字符串或 key="value" 形式
+     */
+    Counter counter(String name, String labels, String help) {
+        return (Counter) register(name, labels, help, Kind.COUNTER, null, 0);
+    }
+
+    Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /**
+     * 注册读取时求值的仪表，supplier在抓取线程上调用，应当很快返回
+     */
+    void gauge(String name, String labels, String help, LongSupplier supplier) {
+        register(name, labels, help, Kind.GAUGE, supplier, 0);
+    }
+
+    void gauge(String name, String help, LongSupplier supplier) {
+        gauge(name, "", help, supplier);
+    }
+
+    /**
+     * 注册或取得直方图，记录的值为纳秒等整数，输出时乘以scale换算单位（例如1e-9换算为秒）
+     */
+    Histogram histogram(String name, String labels, String help, double scale) {
+        return (Histogram) register(name, labels, help, Kind.HISTOGRAM, null, scale);
+    }
+
+    Histogram histogram(String name, String help, double scale) {
+        return histogram(name, "", help, scale);
+    }
+
+    private synchronized Object register(String name, String labels, String help, Kind kind,
+                                         LongSupplier supplier, double scale) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, kind));
+        if (family.kind != kind) {
+            throw new IllegalArgumentException("指标 " + name + " 已注册为 " + family.kind);
+        }
+        return family.series.computeIfAbsent(labels, k -> {
+            switch (kind) {
+                case COUNTER: return new Counter();
+                case HISTOGRAM: return new Histogram(scale);
+                default: return supplier;
+            }
+        });
+    }
+
+    /**
+     * 按抓取格式输出所有指标（# HELP / # TYPE 行加每条序列一行），直方图输出分位数、计数、总和和最大值
+     */
+    synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ')
+                .append(family.kind == Kind.HISTOGRAM ? "summary" : family.kind.name().toLowerCase()).append('\n');
+            for (Map.Entry<String, Object> entry : family.series.entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    line(out, family.name, labels, ((Counter) metric).get());
+                } else if (metric instanceof Histogram) {
+                    Histogram.Snapshot s = ((Histogram) metric).snapshot();
+                    for (double q : Histogram.QUANTILES) {
+                        line(out, family.name, join(labels, "quantile=\"" + q + "\""), s.scaled(s.percentile(q)));
+                    }
+                    line(out, family.name + "_count", labels, s.count);
+                    line(out, family.name + "_sum", labels, s.scaled(s.sum));
+                    line(out, family.name + "_max", labels, s.scaled(s.max));
+                } else {
+                    line(out, family.name, labels, ((LongSupplier) metric).getAsLong());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * 展平为 名称[.标签值][.分位数] -> 数值，供JMX按属性读取；计数器另有 .rate 为每秒速率
+     */
+    synchronized Map<String, Number> flatten() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Family family : families.values()) {
+            for (Map.Entry<String, Object> entry : family.series.entrySet()) {
+                String key = family.name + labelSuffix(entry.getKey());
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    values.put(key, ((Counter) metric).get());
+                    values.put(key + ".rate", ((Counter) metric).rate());
+                } else if (metric instanceof Histogram) {
+                    Histogram.Snapshot s = ((Histogram) metric).snapshot();
+                    values.put(key + ".count", s.count);
+                    for (int i = 0; i < Histogram.QUANTILES.length; i++) {
+                        values.put(key + "." + Histogram.QUANTILE_NAMES[i], s.scaled(s.percentile(Histogram.QUANTILES[i])));
+                    }
+                    values.put(key + ".max", s.scaled(s.max));
+                } else {
+                    values.put(key, ((LongSupplier) metric).getAsLong());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void line(StringBuilder out, String name, String labels, Number value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String join(String labels, String extra) {
+        return labels.isEmpty() ? extra : labels + "," + extra;
+    }
+
+    // type="PRIVATE",route="local" -> .PRIVATE.local
+    private static String labelSuffix(String labels) {
+        if (labels.isEmpty()) {
+            return "";
+        }
+        StringBuilder suffix = new StringBuilder();
+        for (String label : labels.split(",")) {
+            int eq = label.indexOf('=');
+            suffix.append('.').append(label.substring(eq + 1).replace("\"", ""));
+        }
+        return suffix.toString();
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Kind kind;
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String name, String help, Kind kind) {
+            this.name = name;
+            this.help = help;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * 重新计算所有计数器的每秒速率，由定时任务调用；两次调用之间的平均值即为速率
+     */
+    synchronized void tick() {
+        long now = System.nanoTime();
+        for (Family family : families.values()) {
+            if (family.kind != Kind.COUNTER) {
+                continue;
+            }
+            for (Object metric : family.series.values()) {
+                ((Counter) metric).tick(now);
+            }
+        }
+    }
+
+    /**
+     * 单调递增计数器，附带最近一个tick区间的每秒速率
+     */
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+        private long lastValue = 0;
+        private long lastTick = System.nanoTime();
+        private volatile double rate = 0;
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+
+        double rate() {
+            return rate;
+        }
+
+        private void tick(long now) {
+            long current = value.sum();
+            if (now > lastTick) {
+                rate = (current - lastValue) * 1e9 / (now - lastTick);
+            }
+            lastValue = current;
+            lastTick = now;
+        }
+    }
+
+    /**
+     * HDR风格的对数-线性直方图
+     * 每个2的幂区间再等分为16个子桶，相对误差不超过1/16；0到15各占一个桶。
+     * 记录一个值只需算出桶下标后对该桶的LongAdder加一，不保存原始样本，内存占用固定。
+     */
+    static final class Histogram {
+
+        static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // 最高位到第62位，覆盖所有非负long
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private volatile long max = 0;
+        private final double scale;
+
+        Histogram(double scale) {
+            this.scale = scale;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts[bucketOf(value)].increment();
+            sum.add(value);
+            if (value > max) {
+                // 只在出现新最大值时竞争，常态下是一次volatile读
+                synchronized (this) {
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 记录从startNanos（System.nanoTime()）到现在的耗时
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int highest = 63 - Long.numberOfLeadingZeros(value);
+            int shift = highest - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        // 桶内最大值，分位数取桶上界，不会低估延迟
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long top = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+
+        Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts[i].sum();
+                count += copy[i];
+            }
+            return new Snapshot(copy, count, sum.sum(), max, scale);
+        }
+
+        /**
+         * 某一时刻各桶计数的拷贝；并发记录时计数和总和可能相差几个样本
+         */
+        static final class Snapshot {
+            final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+            final double scale;
+
+            Snapshot(long[] counts, long count, long sum, long max, double scale) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+                this.scale = scale;
+            }
+
+            long percentile(double quantile) {
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = (long) Math.ceil(quantile * count);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return Math.min(upperBound(i), max);
+                    }
+                }
+                return max;
+            }
+
+            double scaled(long value) {
+                return value * scale;
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NIO缓冲池基准测试
+ * 以NIO引擎分别在 -Dchat.nio.buffer.pool=false（每个连接创建时分配读写堆缓冲区并一直持有）
+ * 和默认配置（从事件循环的直接内存池借用，空闲时归还）下启动服务器子进程，对比：
+ * 1. 大量连接空闲时的堆占用、直接内存、RSS和借出的缓冲区数
+ * 2. 活跃用户互发私聊期间的吞吐和GC次数/耗时
+ * 启动服务器之前先在本进程内检查解码路径：从直接缓冲区（池化的读缓冲区）解码一帧分配的字节数
+ * 应与从堆缓冲区解码相同，即只有Frame和字段字符串本身，没有为复制字段分配的中间数组；多出时报错退出。
+ *
+ * 用法: java NioBufferBenchmark [连接数] [每个活跃用户发送的消息数]
+ * 默认10000个连接（其中100个登录并收发消息，其余只建立TCP连接），每个活跃用户发送1000条。
+ * 服务器指标从抓取端点读取，堆占用在强制GC（jcmd GC.run）后读取；RSS读取自/proc，仅在Linux上可用。
+ */
+public class NioBufferBenchmark {
+
+    // 参与收发消息的在线用户数，其余连接只建立TCP连接不登录
+    private static final int ACTIVE_USERS = 100;
+    private static final String PAYLOAD = "x".repeat(200);
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        checkDecodeAllocation();
+
+        List<String> results = new ArrayList<>();
+        results.add(run("不用池", "false", connections, messages));
+        results.add(run("缓冲池", "true", connections, messages));
+
+        System.out.println();
+        System.out.println(String.format("%-8s %8s %12s %12s %10s %10s %10s %12s %8s %10s",
+            "方式", "连接数", "空闲堆(MB)", "直接内存(MB)", "RSS(MB)", "借出缓冲", "消息/秒", "流量后堆(MB)", "GC次数", "GC耗时(ms)"));
+        results.forEach(System.out::println);
+    }
+
+    private static String run(String mode, String pool, int connections, int messages) throws Exception {
+        int port = 20000 + new Random().nextInt(20000);
+        int metricsPort = port + 1;
+        Path workDir = Files.createTempDirectory("nio-buffer-bench");
+        System.out.println("==> " + mode + " connections=" + connections + " port=" + port);
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-Xms256m", "-Xmx512m", "-XX:+UseG1GC",
+                "-cp", System.getProperty("java.class.path"),
+                "-Dchat.port=" + port, "-Dchat.metrics.port=" + metricsPort,
+                "-Dchat.engine=nio", "-Dchat.nio.buffer.pool=" + pool,
+                "-Dchat.max.connections=" + (connections + 1000), "-Dchat.accept.rate=0",
+                "-Dchat.user.msg.rate=0", "-Dchat.user.bytes.rate=0",
+                "-Dchat.wal.enabled=false", "-Dchat.store.url=",
+                "-Dchat.offline.dir=" + workDir.resolve("offline"),
+                "-Dchat.log.level=WARN", "ChatServer")
+            .directory(workDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+
+        List<Socket> idle = new ArrayList<>();
+        List<Socket> active = new ArrayList<>();
+        ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            waitForPort(port);
+            Thread.sleep(1000);
+
+            int idleCount = Math.max(0, connections - ACTIVE_USERS);
+            for (int i = 0; i < idleCount; i++) {
+                idle.add(new Socket("127.0.0.1", port));
+            }
+
+            AtomicLong received = new AtomicLong();
+            List<PrintWriter> writers = new ArrayList<>();
+            for (int i = 0; i < ACTIVE_USERS; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                active.add(socket);
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+                out.println("LOGIN:bench-" + i);
+                out.flush();
+                writers.add(out);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                readers.execute(() -> readLoop(in, received));
+            }
+            Thread.sleep(2000);
+
+            // 连接全部空闲时的内存
+            forceGc(server.pid());
+            Map<String, Long> idleMetrics = scrape(metricsPort);
+            long rss = readProcStatus(server.pid(), "VmRSS");
+
+            // 每个活跃用户给下一个用户发私聊，分多个线程并发发送
+            long gcCount = idleMetrics.getOrDefault("chat_jvm_gc_collections_total", 0L);
+            long gcTime = idleMetrics.getOrDefault("chat_jvm_gc_time_ms_total", 0L);
+            long expected = (long) ACTIVE_USERS * messages;
+            long start = System.nanoTime();
+            List<Future<?>> senders = new ArrayList<>();
+            ExecutorService sendPool = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < ACTIVE_USERS; i++) {
+                PrintWriter out = writers.get(i);
+                String line = "PRIVATE:bench-" + ((i + 1) % ACTIVE_USERS) + ":bench|" + PAYLOAD;
+                senders.add(sendPool.submit(() -> {
+                    for (int m = 0; m < messages; m++) {
+                        out.println(line);
+                        if (m % 32 == 31) {
+                            out.flush();
+                        }
+                    }
+                    out.flush();
+                }));
+            }
+            for (Future<?> sender : senders) {
+                sender.get();
+            }
+            sendPool.shutdown();
+            long deadline = System.currentTimeMillis() + 60000;
+            while (received.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Long> busyMetrics = scrape(metricsPort);
+
+            // 流量结束后回到空闲
+            Thread.sleep(1000);
+            forceGc(server.pid());
+            Map<String, Long> afterMetrics = scrape(metricsPort);
+
+            return String.format("%-8s %8d %12.1f %12.1f %10s %10d %10.0f %12.1f %8d %10d",
+                mode, connections,
+                idleMetrics.getOrDefault("chat_jvm_heap_used_bytes", 0L) / 1048576.0,
+                idleMetrics.getOrDefault("chat_jvm_direct_bytes", 0L) / 1048576.0,
+                rss > 0 ? String.valueOf(rss / 1024) : "n/a",
+                afterMetrics.getOrDefault("chat_nio_buffers_in_use", 0L),
+                received.get() / seconds,
+                afterMetrics.getOrDefault("chat_jvm_heap_used_bytes", 0L) / 1048576.0,
+                busyMetrics.getOrDefault("chat_jvm_gc_collections_total", 0L) - gcCount,
+                busyMetrics.getOrDefault("chat_jvm_gc_time_ms_total", 0L) - gcTime);
+        } finally {
+            readers.shutdownNow();
+            for (Socket socket : active) {
+                closeQuietly(socket);
+            }
+            for (Socket socket : idle) {
+                closeQuietly(socket);
+            }
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 对比从堆缓冲区和直接缓冲区解码同一帧平均每次分配的字节数，直接缓冲区多分配时抛出异常
+     */
+    private static void checkDecodeAllocation() throws IOException {
+        Frame frame = Frame.chat(1, 1, "bench-0_bench-1", "bench-0", "bench-1", "bench|" + PAYLOAD + "你好", 0);
+        ByteBuffer heap = ByteBuffer.allocate(FrameCodec.encodedLength(frame, Frame.BINARY_V1));
+        FrameCodec.encode(frame, Frame.BINARY_V1, heap);
+        heap.flip();
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining()).put(heap.duplicate()).flip();
+
+        double heapBytes = decodeAllocation(heap);
+        double directBytes = decodeAllocation(direct);
+        System.out.println(String.format("解码分配: 堆缓冲区 %.1f 字节/帧, 直接缓冲区 %.1f 字节/帧", heapBytes, directBytes));
+        // 直接缓冲区的duplicate()对象本身比堆缓冲区大几个字节，留出余量；一个中间数组至少是字段长度加数组头
+        if (directBytes - heapBytes > 16) {
+            throw new IllegalStateException("从直接缓冲区解码多分配了 " + (long) (directBytes - heapBytes) + " 字节/帧");
+        }
+    }
+
+    private static double decodeAllocation(ByteBuffer encoded) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int iterations = 200000;
+        long checksum = 0;
+        // 预热，让解码路径完成JIT编译，线程复用的暂存数组也在这里分配
+        for (int i = 0; i < iterations; i++) {
+            checksum += FrameCodec.decode(encoded.duplicate()).body.length();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            checksum += FrameCodec.decode(encoded.duplicate()).body.length();
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        if (checksum == 0) {
+            throw new IllegalStateException("解码结果为空");
+        }
+        return (double) allocated / iterations;
+    }
+
+    private static void readLoop(BufferedReader in, AtomicLong received) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains("bench|")) {
+                    received.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            // 连接关闭，结束读取
+        }
+    }
+
+    /**
+     * 读取服务器抓取端点中不带标签的指标
+     */
+    private static Map<String, Long> scrape(int metricsPort) throws IOException {
+        Map<String, Long> values = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                URI.create("http://127.0.0.1:" + metricsPort + "/metrics").toURL().openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.contains("{")) {
+                    continue;
+                }
+                String[] parts = line.split(" ");
+                if (parts.length == 2) {
+                    try {
+                        values.put(parts[0], (long) Double.parseDouble(parts[1]));
+                    } catch (NumberFormatException e) {
+                        // 忽略非数值
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 让服务器做一次完整GC，使读到的堆占用只包含存活对象；没有jcmd时跳过
+     */
+    private static void forceGc(long pid) {
+        Path jcmd = Path.of(System.getProperty("java.home"), "bin", "jcmd");
+        if (!Files.isExecutable(jcmd)) {
+            return;
+        }
+        try {
+            Process process = new ProcessBuilder(jcmd.toString(), String.valueOf(pid), "GC.run")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            process.waitFor(10, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            // 忽略，堆占用会偏高
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForPort(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("服务器未能在10秒内启动");
+    }
+
+    /**
+     * 读取/proc/<pid>/status中的数值字段（VmRSS单位为KB）
+     */
+    private static long readProcStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 非Linux环境
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Selector的NIO连接引擎
+ * 主线程只负责accept，固定数量的事件循环线程持有非阻塞SocketChannel，
+ * 线程数不随连接数增长。协议处理仍交给ChatServer的login/handleMessage。
+ * accept受AdmissionControl的速率和连接数上限约束，每个连接关闭时由所属事件循环归还连接数。
+ */
+class NioChatEngine {
+
+    // 每个事件循环的缓冲池最多分配的直接内存，超过后临时分配堆缓冲区
+    private static final long POOL_MAX_BYTES = Long.getLong("chat.nio.buffer.pool.max.bytes", 32L * 1024 * 1024);
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AdmissionControl admission;
+    private volatile boolean running = true;
+
+    NioChatEngine(String host, int port, int backlog, int loopCount, AdmissionControl admission) throws IOException {
+        this.admission = admission;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port), backlog);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i, admission);
+            loops[i].start();
+        }
+    }
+
+    int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * 在当前线程执行accept循环，直到close()被调用
+     */
+    void run() throws IOException {
+        while (running) {
+            acceptSelector.select();
+            if (!running) {
+                break;
+            }
+            acceptSelector.selectedKeys().clear();
+
+            while (running) {
+                // accept速率用完时在这里等待，新连接留在backlog中
+                admission.awaitAcceptPermit();
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null) {
+                    break;
+                }
+                ServerMetrics.CONNECTIONS_ACCEPTED.increment();
+                if (!admission.admit()) {
+                    reject(channel);
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    // 轮询分配到事件循环
+                    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    loop.register(channel);
+                } catch (IOException e) {
+                    Log.error("注册NIO连接异常: {}", e.getMessage());
+                    closeQuietly(channel);
+                    admission.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止accept并关闭监听端口，已有连接的事件循环继续运行
+     */
+    void stopAccepting() {
+        running = false;
+        acceptSelector.wakeup();
+        closeQuietly(serverChannel);
+    }
+
+    void close() {
+        stopAccepting();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * 连接数已满：新接受的通道还是阻塞模式，写出一行ERROR后关闭
+     * 关闭前先半关闭并丢弃已到达的登录行，带着未读数据关闭会发RST，客户端可能读不到这行ERROR
+     */
+    private static void reject(SocketChannel channel) {
+        try {
+            Log.message("拒绝连接，连接数已达上限({}): {}", AdmissionControl.MAX_CONNECTIONS, channel.getRemoteAddress());
+            channel.write(ByteBuffer.wrap(AdmissionControl.REJECT_LINE));
+            channel.shutdownOutput();
+            channel.configureBlocking(false);
+            ByteBuffer discard = ByteBuffer.allocate(1024);
+            while (channel.read(discard) > 0) {
+                discard.clear();
+            }
+        } catch (IOException e) {
+            // 忽略，客户端可能已经断开
+        }
+        closeQuietly(channel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+
+    /**
+     * 事件循环：一个线程 + 一个Selector，负责若干连接的读写
+     */
+    static class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // 连接关闭时归还连接数
+        final AdmissionControl admission;
+        // 这个事件循环上所有连接共用的读写缓冲区
+        final BufferPool buffers = new BufferPool(POOL_MAX_BYTES);
+        // 从直接内存缓冲区解码文本行时使用
+        private byte[] lineScratch = new byte[256];
+        private volatile boolean running = true;
+
+        EventLoop(int index, AdmissionControl admission) throws IOException {
+            super("nio-loop-" + index);
+            this.admission = admission;
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * 至少length字节的临时数组，只在事件循环线程上使用，内容在下次调用前有效
+         */
+        byte[] lineScratch(int length) {
+            if (lineScratch.length < length) {
+                lineScratch = new byte[Math.max(length, lineScratch.length * 2)];
+            }
+            return lineScratch;
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection conn = attach(channel);
+                    Log.info("新客户端连接(NIO): {}", conn.clientInfo);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    admission.release();
+                }
+            });
+        }
+
+        /**
+         * 在事件循环线程上为非阻塞通道创建连接并注册读事件
+         */
+        NioConnection attach(SocketChannel channel) throws IOException {
+            NioConnection conn = new NioConnection(channel, this);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            return conn;
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        /**
+         * 提交任务到事件循环线程执行
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            if (!inLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            conn.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.error("NIO事件循环异常: {}", e.getMessage());
+                }
+            }
+
+            // 退出前关闭所有连接
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.error("NIO任务执行异常: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO连接
+ * 读写都只在所属事件循环线程上执行；其他线程调用send()时
+ * 消息只进入出站队列，再提交一次flush任务，由事件循环负责写出。
+ * 登录行总是文本；协商了二进制协议后，后续数据按长度前缀的帧解析。
+ * 写出时把队列中已有的一批帧（非共享帧编码到writeBuffer中的片段、共享帧的只读视图）
+ * 通过一次聚集写（gathering write）交给内核。
+ * 读写缓冲区从所属事件循环的BufferPool借用：读完没有剩余的半行/半帧、写完出站队列时归还，
+ * 空闲的连接不持有缓冲区。文本行直接在读缓冲区中查找换行符，不再逐字节复制到单独的行缓冲区。
+ */
+class NioConnection extends ChatConnection {
+
+    // 单行最大长度，防止恶意客户端不发换行符撑爆内存
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final NioChatEngine.EventLoop loop;
+    SelectionKey key;
+
+    // 读缓冲区，同时用来累积不完整的行或帧；没有未处理的数据时为null（不使用缓冲池时一直持有）
+    private ByteBuffer readBuffer;
+
+    // 写缓冲区，用于编码非共享帧；出站队列写完后为null（不使用缓冲池时一直持有）
+    private ByteBuffer writeBuffer;
+    // 这一批中已经写满、换下来的写缓冲区，前面的片段还引用着它们，这一批写完后归还
+    private List<ByteBuffer> retiredWriteBuffers;
+    // 当前正在写出的一批数据，[gatherOffset, gatherCount)为还没写完的部分
+    private final ByteBuffer[] gather = new ByteBuffer[COALESCE_FRAMES];
+    private int gatherOffset = 0;
+    private int gatherCount = 0;
+    // 组批时取到的关闭标记，等这一批写完后再处理
+    private Frame pendingMarker;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // 写方向已关闭，只在事件循环线程上访问
+    private boolean outputShutdown = false;
+
+    NioConnection(SocketChannel channel, NioChatEngine.EventLoop loop) throws IOException {
+        super(channel.getRemoteAddress().toString().replaceFirst("^/", ""));
+        this.channel = channel;
+        this.loop = loop;
+        if (!BufferPool.ENABLED) {
+            readBuffer = ByteBuffer.allocate(BufferPool.CHUNK_BYTES);
+            writeBuffer = ByteBuffer.allocate(BufferPool.CHUNK_BYTES);
+        }
+    }
+
+    /**
+     * 读取可用数据，按协商的协议分发为文本行或二进制帧
+     */
+    void onReadable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = loop.buffers.borrow(BufferPool.CHUNK_BYTES);
+        }
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+            lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+            if (protocolVersion == Frame.TEXT) {
+                dispatchLines();
+                if (closed.get()) {
+                    return;
+                }
+            }
+            if (protocolVersion != Frame.TEXT) {
+                dispatchFrames();
+                if (closed.get()) {
+                    return;
+                }
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                growReadBuffer();
+            }
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (readBuffer.position() == 0 && BufferPool.ENABLED) {
+            // 没有剩下半行或半帧，归还缓冲区，下次可读时再借
+            loop.buffers.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * 缓冲区已满还没有读到完整的一行或一帧，换一个两倍大的继续读取
+     */
+    private void growReadBuffer() throws IOException {
+        int max = protocolVersion == Frame.TEXT ? MAX_LINE_BYTES : FrameCodec.MAX_FRAME_BYTES + 4;
+        if (readBuffer.capacity() >= max) {
+            // 二进制帧的长度已由completeFrameLength检查，只有文本行会走到这里
+            throw new IOException("单行消息超过长度限制: " + this);
+        }
+        ByteBuffer bigger = loop.buffers.borrow(Math.min(readBuffer.capacity() * 2, max));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        loop.buffers.release(readBuffer);
+        readBuffer = bigger;
+    }
+
+    /**
+     * 处理缓冲区中所有完整的二进制帧，剩余的半帧留待下次读取
+     */
+    private void dispatchFrames() throws IOException {
+        int frameLength;
+        while (!closed.get() && (frameLength = FrameCodec.completeFrameLength(readBuffer)) > 0) {
+            int end = readBuffer.position() + frameLength;
+            ChatServer.handleFrame(this, readBuffer);
+            if (closed.get()) {
+                // 处理帧时连接被关闭（例如登出或协议错误），读缓冲区已经归还
+                return;
+            }
+            readBuffer.position(end);
+        }
+    }
+
+    /**
+     * 处理缓冲区中所有完整的文本行，登录时切换到二进制协议后停止，剩余数据按帧处理
+     */
+    private void dispatchLines() {
+        while (protocolVersion == Frame.TEXT && !closed.get()) {
+            int start = readBuffer.position();
+            int newline = -1;
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                return;
+            }
+            int end = newline > start && readBuffer.get(newline - 1) == '\r' ? newline - 1 : newline;
+            String line = decode(start, end - start);
+            readBuffer.position(newline + 1);
+            dispatchLine(line);
+        }
+    }
+
+    private String decode(int offset, int length) {
+        if (readBuffer.hasArray()) {
+            return new String(readBuffer.array(), readBuffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = loop.lineScratch(length);
+        readBuffer.get(offset, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void dispatchLine(String line) {
+        if (!isLoggedIn()) {
+            // 第一行必须是登录消息
+            if (!ChatServer.login(this, line)) {
+                closeAfterFlush();
+            }
+        } else {
+            ChatServer.handleMessage(this, line);
+        }
+    }
+
+    @Override
+    void onQueued() {
+        if (loop.inLoop()) {
+            flushQuietly();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * 尽可能多地写出待发送数据；写不完时注册OP_WRITE等待下次可写
+     */
+    void flush() throws IOException {
+        if (closed.get() || key == null) {
+            return;
+        }
+        while (true) {
+            if (gatherOffset == gatherCount && !fillBatch()) {
+                if (closed.get()) {
+                    return;
+                }
+                break;
+            }
+            long written = channel.write(gather, gatherOffset, gatherCount - gatherOffset);
+            ServerMetrics.WRITE_SYSCALLS_NIO.increment();
+            ServerMetrics.WRITE_BYTES_NIO.add(written);
+            while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining()) {
+                gather[gatherOffset++] = null;
+            }
+            if (gatherOffset < gatherCount) {
+                // Socket发送缓冲区已满，等待可写事件，消息留在出站队列中
+                ServerMetrics.WRITE_STALLS_NIO.increment();
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 从出站队列取出一批帧放入gather，不等待新消息
+     * @return 是否有数据要写；返回false时连接可能已因关闭标记而关闭
+     */
+    private boolean fillBatch() throws IOException {
+        gatherOffset = 0;
+        gatherCount = 0;
+        // 上一批已经全部写出
+        releaseRetiredWriteBuffers();
+        if (writeBuffer != null) {
+            writeBuffer.clear();
+        }
+        // 最后一个gather元素是否为writeBuffer中的片段，连续的非共享帧合并为同一个片段
+        boolean extendLast = false;
+        int version = protocolVersion;
+        boolean compress = compression;
+        long start = System.nanoTime();
+        int bytes = 0;
+        while (gatherCount < gather.length) {
+            Frame frame = pendingMarker != null ? pendingMarker : outbound.poll();
+            pendingMarker = null;
+            if (frame == null) {
+                break;
+            }
+            if (frame == OutboundQueue.CLOSED || frame == OutboundQueue.SHUTDOWN_OUTPUT) {
+                if (gatherCount > 0) {
+                    pendingMarker = frame;
+                    break;
+                }
+                if (frame == OutboundQueue.CLOSED) {
+                    close();
+                    return false;
+                }
+                channel.shutdownOutput();
+                outputShutdown = true;
+                continue;
+            }
+            if (outputShutdown) {
+                continue;
+            }
+            int length;
+            if (frame.shared) {
+                ByteBuffer view = FrameCodec.sharedEncoding(frame, version, compress).view();
+                length = view.remaining();
+                gather[gatherCount++] = view;
+                extendLast = false;
+            } else {
+                int needed = FrameCodec.encodedLength(frame, version);
+                if (writeBuffer == null) {
+                    writeBuffer = loop.buffers.borrow(needed);
+                } else if (writeBuffer.remaining() < needed) {
+                    // 这一批之前的片段还引用着当前缓冲区，换一个新的继续编码，这一批写完后归还
+                    if (retiredWriteBuffers == null) {
+                        retiredWriteBuffers = new ArrayList<>(2);
+                    }
+                    retiredWriteBuffers.add(writeBuffer);
+                    writeBuffer = loop.buffers.borrow(needed);
+                    extendLast = false;
+                }
+                int from = writeBuffer.position();
+                FrameCodec.encode(frame, version, compress, writeBuffer);
+                length = writeBuffer.position() - from;
+                if (extendLast) {
+                    gather[gatherCount - 1].limit(writeBuffer.position());
+                } else {
+                    ByteBuffer slice = writeBuffer.duplicate();
+                    slice.position(from).limit(writeBuffer.position());
+                    gather[gatherCount++] = slice;
+                    extendLast = true;
+                }
+            }
+            bytes += length;
+            ServerMetrics.WRITE_FRAMES_NIO.increment();
+            if (frame.isControl() || bytes >= COALESCE_BYTES || System.nanoTime() - start >= COALESCE_NANOS) {
+                break;
+            }
+        }
+        if (gatherCount == 0 && BufferPool.ENABLED) {
+            // 出站队列已空，归还写缓冲区
+            loop.buffers.release(writeBuffer);
+            writeBuffer = null;
+        }
+        return gatherCount > 0;
+    }
+
+    private void releaseRetiredWriteBuffers() {
+        if (retiredWriteBuffers != null && !retiredWriteBuffers.isEmpty()) {
+            for (ByteBuffer buffer : retiredWriteBuffers) {
+                loop.buffers.release(buffer);
+            }
+            retiredWriteBuffers.clear();
+        }
+    }
+
+    @Override
+    void close() {
+        if (!loop.inLoop()) {
+            // 关闭操作统一回到事件循环线程执行
+            loop.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+        outbound.close();
+        Arrays.fill(gather, null);
+        gatherOffset = 0;
+        gatherCount = 0;
+        pendingMarker = null;
+        releaseRetiredWriteBuffers();
+        loop.buffers.release(writeBuffer);
+        writeBuffer = null;
+        loop.buffers.release(readBuffer);
+        readBuffer = null;
+        loop.admission.release();
+        ChatServer.disconnect(this);
+    }
+
+    @Override
+    void closeAfterFlush() {
+        outbound.finish();
+        onQueued();
+    }
+
+    @Override
+    void shutdownOutputAfterFlush() {
+        outbound.finishOutput();
+        onQueued();
+    }
+
+    @Override
+    boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+}
\ No newline at end of file
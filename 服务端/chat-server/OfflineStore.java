@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 离线私聊消息存储
+ * 只追加写入的分段日志，每个段是一个固定大小、内存映射的文件（segment-序号.log），
+ * 写满后滚动到新段。每条记录格式：
+ * <pre>
+ *   i32 length      之后的字节数，0表示段内数据结束
+ *   u8  status      0=待投递 1=已确认
+ *   i64 recordId    全局递增的记录号，重启后按它恢复每个接收者的消息顺序
+ *   bytes           消息帧，FrameCodec二进制v1编码
+ * </pre>
+ * 写入时先写内容再写长度，未写完的记录在重启扫描时被忽略。
+ * 消息被确认后原地把status改为1；段内消息全部确认后删除该段，
+ * 大部分已确认的旧段在compact()时把剩余消息搬到当前段后删除。
+ * 内存中只保存每个接收者待投递记录的位置，消息内容在取出时从映射区解码。
+ */
+class OfflineStore {
+
+    private static final int RECORD_HEADER_BYTES = 4 + 1 + 8;
+    private static final byte PENDING = 0;
+    private static final byte ACKED = 1;
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, ArrayDeque<Entry>> pending = new HashMap<>();
+    private Segment active;
+    private long nextRecordId = 1;
+    private int pendingTotal = 0;
+
+    OfflineStore(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * 追加一条待投递消息
+     */
+    synchronized void append(String receiver, Frame frame) throws IOException {
+        int frameBytes = FrameCodec.encodedLength(frame, Frame.BINARY_V1);
+        int recordBytes = RECORD_HEADER_BYTES + frameBytes;
+        if (recordBytes + 4 > segmentBytes) {
+            throw new IOException("消息超过离线存储段大小: " + recordBytes);
+        }
+        Entry entry = write(frame, frameBytes, nextRecordId++);
+        pending.computeIfAbsent(receiver, k -> new ArrayDeque<>()).add(entry);
+        pendingTotal++;
+    }
+
+    /**
+     * 按写入顺序取出接收者最早的max条待投递消息，不改变存储状态
+     */
+    synchronized List<Frame> peek(String receiver, int max) throws IOException {
+        ArrayDeque<Entry> queue = pending.get(receiver);
+        List<Frame> frames = new ArrayList<>(queue == null ? 0 : Math.min(max, queue.size()));
+        if (queue == null) {
+            return frames;
+        }
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext() && frames.size() < max) {
+            frames.add(it.next().read());
+        }
+        return frames;
+    }
+
+    /**
+     * 确认接收者最早的count条消息已投递
+     */
+    synchronized void ack(String receiver, int count) {
+        ArrayDeque<Entry> queue = pending.get(receiver);
+        for (int i = 0; i < count && queue != null && !queue.isEmpty(); i++) {
+            Entry entry = queue.poll();
+            entry.segment.buffer.put(entry.offset + 4, ACKED);
+            entry.segment.dirty = true;
+            entry.segment.live--;
+            pendingTotal--;
+            if (entry.segment.live == 0 && entry.segment != active) {
+                delete(entry.segment);
+            }
+        }
+        if (queue != null && queue.isEmpty()) {
+            pending.remove(receiver);
+        }
+    }
+
+    synchronized int pendingCount(String receiver) {
+        ArrayDeque<Entry> queue = pending.get(receiver);
+        return queue == null ? 0 : queue.size();
+    }
+
+    synchronized int pendingTotal() {
+        return pendingTotal;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 把映射区的修改刷到磁盘
+     */
+    synchronized void force() {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * 压缩：待投递消息少于四分之一的旧段，把剩余消息搬到当前段后删除
+     * 搬移保留原记录号，重启后顺序不变；搬移中途宕机时重复的记录按记录号去重
+     */
+    synchronized void compact() throws IOException {
+        List<Segment> sparse = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.live > 0 && segment.live * 4 <= segment.records) {
+                sparse.add(segment);
+            }
+        }
+        for (Segment segment : sparse) {
+            for (ArrayDeque<Entry> queue : pending.values()) {
+                List<Entry> moved = new ArrayList<>(queue.size());
+                for (Entry entry : queue) {
+                    if (entry.segment == segment) {
+                        Frame frame = entry.read();
+                        entry = write(frame, FrameCodec.encodedLength(frame, Frame.BINARY_V1), entry.recordId);
+                    }
+                    moved.add(entry);
+                }
+                queue.clear();
+                queue.addAll(moved);
+            }
+            force();
+            delete(segment);
+        }
+    }
+
+    synchronized void close() {
+        force();
+        for (Segment segment : segments.values()) {
+            closeQuietly(segment.channel);
+        }
+        segments.clear();
+    }
+
+    // ==================== 内部实现 ====================
+
+    private Entry write(Frame frame, int frameBytes, long recordId) throws IOException {
+        int recordBytes = RECORD_HEADER_BYTES + frameBytes;
+        // 每段末尾至少保留4字节的0作为结束标记
+        if (active == null || active.writePos + recordBytes + 4 > segmentBytes) {
+            active = openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.writePos;
+        buffer.put(offset + 4, PENDING);
+        buffer.putLong(offset + 5, recordId);
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset + RECORD_HEADER_BYTES);
+        FrameCodec.encode(frame, Frame.BINARY_V1, body);
+        // 最后写长度，使记录完整可见
+        buffer.putInt(offset, recordBytes - 4);
+        active.writePos = offset + recordBytes;
+        active.records++;
+        active.live++;
+        active.dirty = true;
+        return new Entry(active, offset, recordId);
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%010d.log", id));
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        Segment segment = new Segment(id, path, channel, buffer);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.id);
+        closeQuietly(segment.channel);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            Log.warn("删除离线存储段失败: {}, {}", segment.path, e.getMessage());
+        }
+    }
+
+    /**
+     * 启动时扫描所有段，重建每个接收者的待投递队列
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        files.sort(Comparator.comparing(Path::toString));
+
+        Map<String, TreeMap<Long, Entry>> byReceiver = new HashMap<>();
+        Set<Long> seen = new HashSet<>();
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            long id = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+            Segment segment = openSegment(id);
+            MappedByteBuffer buffer = segment.buffer;
+            int pos = 0;
+            while (pos + 4 <= segmentBytes) {
+                int length = buffer.getInt(pos);
+                if (length < RECORD_HEADER_BYTES - 4 || pos + 4 + length > segmentBytes) {
+                    break;
+                }
+                segment.records++;
+                long recordId = buffer.getLong(pos + 5);
+                nextRecordId = Math.max(nextRecordId, recordId + 1);
+                if (buffer.get(pos + 4) == PENDING) {
+                    Entry entry = new Entry(segment, pos, recordId);
+                    if (seen.add(recordId)) {
+                        Frame frame = entry.read();
+                        byReceiver.computeIfAbsent(frame.receiver, k -> new TreeMap<>()).put(recordId, entry);
+                        segment.live++;
+                    } else {
+                        // 压缩搬移时留下的重复记录
+                        buffer.put(pos + 4, ACKED);
+                        segment.dirty = true;
+                    }
+                }
+                pos += 4 + length;
+            }
+            segment.writePos = pos;
+        }
+
+        for (Map.Entry<String, TreeMap<Long, Entry>> e : byReceiver.entrySet()) {
+            pending.put(e.getKey(), new ArrayDeque<>(e.getValue().values()));
+            pendingTotal += e.getValue().size();
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.live == 0 && segment != active) {
+                delete(segment);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePos;
+        int records;
+        int live;
+        boolean dirty;
+
+        Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Entry {
+        final Segment segment;
+        final int offset;
+        final long recordId;
+
+        Entry(Segment segment, int offset, long recordId) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordId = recordId;
+        }
+
+        Frame read() throws IOException {
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + RECORD_HEADER_BYTES);
+            view.limit(offset + 4 + segment.buffer.getInt(offset));
+            return FrameCodec.decode(view);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个连接独立的出站消息队列
+ * 入队永不阻塞调用方；队列深度达到高水位时按策略处理慢消费者：
+ * - disconnect: 直接断开该连接（默认，客户端重连后可重新拉取历史）
+ * - drop: 丢弃新消息，直到队列回落到低水位后恢复入队
+ * 帧按Frame.lane()分到控制、交互、批量三条通道（见LaneQueue），积压的广播不会推迟心跳应答和PING；
+ * 控制帧和ACK不受水位限制，慢消费者丢弃消息期间心跳照常应答，已处理的消息照常确认，客户端不会重发。
+ * 关闭和半关闭标记在所有通道写完之后才取出，标记之后入队的帧不再写出，直接丢弃。
+ */
+class OutboundQueue {
+
+    // 连接使用的默认水位和策略
+    static final int HIGH_WATERMARK = Integer.getInteger("chat.outbound.high", 1000);
+    static final int LOW_WATERMARK = Integer.getInteger("chat.outbound.low", 100);
+    static final boolean DISCONNECT_SLOW_CONSUMER =
+        !"drop".equalsIgnoreCase(System.getProperty("chat.outbound.policy", "disconnect"));
+
+    // 关闭标记，写线程取到后退出
+    static final Frame CLOSED = Frame.control((byte) 0);
+    // 半关闭标记，写线程取到后关闭写方向，之后的帧不再写出
+    static final Frame SHUTDOWN_OUTPUT = Frame.control((byte) 0);
+
+    enum Result {
+        QUEUED,         // 已入队
+        DROPPED,        // 处于丢弃状态，消息被丢弃
+        START_DROPPING, // 刚越过高水位，开始丢弃（drop策略）
+        OVERFLOW        // 越过高水位，应断开连接（disconnect策略）
+    }
+
+    private final LaneQueue<Frame> queue = new LaneQueue<>(ServerMetrics.OUTBOUND_LANE_WAIT);
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final boolean disconnectSlowConsumer;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean dropping = false;
+    private volatile boolean finishing = false;
+    private volatile int maxDepth = 0;
+
+    OutboundQueue() {
+        this(HIGH_WATERMARK, LOW_WATERMARK, DISCONNECT_SLOW_CONSUMER);
+    }
+
+    /**
+     * @param disconnectSlowConsumer 越过高水位时断开连接（true）还是丢弃新消息直到回落到低水位（false）
+     */
+    OutboundQueue(int highWatermark, int lowWatermark, boolean disconnectSlowConsumer) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.disconnectSlowConsumer = disconnectSlowConsumer;
+    }
+
+    Result offer(Frame frame) {
+        if (finishing) {
+            // 写线程写到关闭标记后就停止，标记之后的帧本来也不会写出
+            return Result.QUEUED;
+        }
+        int lane = frame.lane();
+        int depth = queue.size();
+        if (lane == LaneQueue.CONTROL || frame.type == Frame.ACK) {
+            queue.offer(lane, frame);
+            return Result.QUEUED;
+        }
+        if (dropping) {
+            if (depth > lowWatermark) {
+                droppedCount.incrementAndGet();
+                return Result.DROPPED;
+            }
+            dropping = false;
+        }
+        if (depth >= highWatermark) {
+            if (disconnectSlowConsumer) {
+                return Result.OVERFLOW;
+            }
+            dropping = true;
+            droppedCount.incrementAndGet();
+            return Result.START_DROPPING;
+        }
+        queue.offer(lane, frame);
+        if (depth + 1 > maxDepth) {
+            maxDepth = depth + 1;
+        }
+        return Result.QUEUED;
+    }
+
+    /**
+     * 按通道优先级取出下一条消息，没有时返回null
+     */
+    Frame poll() {
+        return queue.poll();
+    }
+
+    /**
+     * 阻塞等待下一条消息，供阻塞式写线程使用
+     */
+    Frame take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * 清空队列并唤醒阻塞中的写线程
+     */
+    void close() {
+        finishing = true;
+        queue.clear();
+        queue.offerLast(CLOSED);
+    }
+
+    /**
+     * 追加关闭标记，写线程写完之前的消息后退出
+     */
+    void finish() {
+        finishing = true;
+        queue.offerLast(CLOSED);
+    }
+
+    /**
+     * 追加半关闭标记，写完之前的消息后关闭写方向，连接仍可读取
+     */
+    void finishOutput() {
+        finishing = true;
+        queue.offerLast(SHUTDOWN_OUTPUT);
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    boolean isDropping() {
+        return dropping;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * 在线状态跟踪
+ * 上线/下线先记入待发布表，在合并窗口结束时一次性发布：窗口内同一用户的多次变化只保留最终状态，
+ * 与已发布状态相同的变化直接丢弃。每条实际发生的变化分配一个递增的版本号，
+ * 客户端按版本号顺序应用USER_JOIN/USER_LEAVE增量，发现版本不连续时请求完整快照。
+ */
+class PresenceTracker {
+
+    private final long coalesceMillis;
+    private final HashedTimingWheel wheel;
+    private final Consumer<Update> publisher;
+
+    // 已发布的在线用户
+    private final TreeSet<String> online = new TreeSet<>();
+    // 合并窗口内尚未发布的变化：用户名 -> 是否在线
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private long version = 0;
+    private boolean flushScheduled = false;
+
+    /**
+     * @param coalesceMillis 合并窗口，0表示每次变化立即发布
+     * @param publisher 发布回调，在持有锁时调用，调用顺序与版本号顺序一致
+     */
+    PresenceTracker(long coalesceMillis, HashedTimingWheel wheel, Consumer<Update> publisher) {
+        this.coalesceMillis = coalesceMillis;
+        this.wheel = wheel;
+        this.publisher = publisher;
+    }
+
+    synchronized void joined(String username) {
+        change(username, true);
+    }
+
+    synchronized void left(String username) {
+        change(username, false);
+    }
+
+    private void change(String username, boolean isOnline) {
+        pending.put(username, isOnline);
+        if (coalesceMillis <= 0) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            wheel.schedule(this::flush, coalesceMillis);
+        }
+    }
+
+    /**
+     * 发布合并窗口内的变化
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        List<Frame> deltas = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+            String username = entry.getKey();
+            boolean isOnline = entry.getValue();
+            if (isOnline ? online.add(username) : online.remove(username)) {
+                version++;
+                deltas.add(Frame.presence(isOnline ? Frame.USER_JOIN : Frame.USER_LEAVE, version, username));
+            }
+        }
+        pending.clear();
+        if (!deltas.isEmpty()) {
+            publisher.accept(new Update(deltas, Frame.userList(userList())));
+        }
+    }
+
+    /**
+     * 当前已发布状态的完整快照，版本号与内容一致
+     */
+    synchronized Frame snapshot() {
+        return new Frame(Frame.USERS_SNAPSHOT, 0, 0, version, 0, null, null, null, userList());
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    private String userList() {
+        return String.join(",", online);
+    }
+
+    /**
+     * 一次发布的内容：按版本号排列的增量，以及给不支持增量的旧客户端的完整用户列表
+     */
+    static final class Update {
+        final List<Frame> deltas;
+        final Frame fullList;
+
+        Update(List<Frame> deltas, Frame fullList) {
+            this.deltas = deltas;
+            this.fullList = fullList;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个会话最近的聊天消息，客户端断线重连时据此补发它没有收到的消息
+ * 每个会话保留最近capacity条（按投递顺序，环形覆盖），超过ttlMillis没有新消息的会话由expire()整体移除，
+ * 之后该会话的补发改为读取预写日志。
+ * 同一会话的消息只由所属分发分区的线程追加，登录线程读取，每个会话一把锁。
+ */
+class RecentMessages {
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    RecentMessages(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 记录一条已投递的聊天消息
+     */
+    void add(Frame frame) {
+        if (capacity <= 0) {
+            return;
+        }
+        Ring ring = rings.get(frame.conversationId);
+        if (ring == null) {
+            ring = rings.computeIfAbsent(frame.conversationId, k -> new Ring(capacity));
+        }
+        ring.add(frame);
+    }
+
+    /**
+     * 把会话中序列号大于afterSequence的消息放入out（按序列号）
+     * @return 环中的消息是否覆盖了afterSequence之后的全部序列号；返回false时out中只有环里还保留的部分
+     */
+    boolean collect(String conversationId, long afterSequence, NavigableMap<Long, Frame> out) {
+        Ring ring = rings.get(conversationId);
+        return ring != null && ring.collect(afterSequence, out);
+    }
+
+    /**
+     * 移除超过ttlMillis没有新消息的会话
+     */
+    void expire() {
+        long deadline = System.currentTimeMillis() - ttlMillis;
+        for (Iterator<Map.Entry<String, Ring>> it = rings.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().lastAdded < deadline) {
+                it.remove();
+            }
+        }
+    }
+
+    int getConversationCount() {
+        return rings.size();
+    }
+
+    private static final class Ring {
+        private final Frame[] frames;
+        private int next = 0;
+        private int size = 0;
+        volatile long lastAdded = System.currentTimeMillis();
+
+        Ring(int capacity) {
+            frames = new Frame[capacity];
+        }
+
+        synchronized void add(Frame frame) {
+            frames[next] = frame;
+            next = (next + 1) % frames.length;
+            if (size < frames.length) {
+                size++;
+            }
+            lastAdded = System.currentTimeMillis();
+        }
+
+        /**
+         * 同一会话的序列号在读线程上分配、按分发顺序追加，环中的顺序可能与序列号略有出入，
+         * 以环中最小的序列号判断是否覆盖；还在分发队列中的消息之后会正常投递，不算缺失
+         */
+        synchronized boolean collect(long afterSequence, NavigableMap<Long, Frame> out) {
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                Frame frame = frames[(next - size + i + frames.length) % frames.length];
+                oldest = Math.min(oldest, frame.sequence);
+                if (frame.sequence > afterSequence) {
+                    out.put(frame.sequence, frame);
+                }
+            }
+            return oldest <= afterSequence + 1;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 会话恢复令牌
+ * 登录成功时随LOGIN_SUCCESS下发（token=），服务器优雅退出时随RECONNECT再发一次；
+ * 客户端重连时带上（resume=），服务器据此确认是同一个用户的会话，再按客户端给出的各会话序列号补发缺失的消息。
+ * 格式: base64url(用户名).签发时间毫秒.签发节点ID.base64url(HMAC-SHA256)
+ * 密钥取 chat.resume.secret；未设置时读取 chat.resume.secret.file（默认resume.secret），文件不存在则随机生成并保存，
+ * 同一节点重启后仍能校验自己签发的令牌。集群中各节点需要配置同一个密钥，令牌才能在其他节点上使用。
+ */
+final class ResumeToken {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final byte[] secret;
+    private final int serverId;
+
+    private ResumeToken(byte[] secret, int serverId) {
+        this.secret = secret;
+        this.serverId = serverId;
+    }
+
+    /**
+     * 按系统属性加载密钥
+     */
+    static ResumeToken load(int serverId) throws IOException {
+        String configured = System.getProperty("chat.resume.secret");
+        if (configured != null && !configured.isEmpty()) {
+            return new ResumeToken(configured.getBytes(StandardCharsets.UTF_8), serverId);
+        }
+        Path file = Paths.get(System.getProperty("chat.resume.secret.file", "resume.secret"));
+        if (Files.exists(file)) {
+            return new ResumeToken(DECODER.decode(Files.readString(file).trim()), serverId);
+        }
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        Files.writeString(file, ENCODER.encodeToString(secret));
+        return new ResumeToken(secret, serverId);
+    }
+
+    /**
+     * 为username签发一个令牌
+     */
+    String issue(String username) {
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+            + "." + System.currentTimeMillis() + "." + serverId;
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * 校验令牌
+     * @param notBefore 早于该时间签发的令牌视为无效，0表示不限制
+     * @return 令牌所属的用户名；签名不对、格式错误、签发超过maxAgeMillis或早于notBefore时返回null
+     */
+    String verify(String token, long maxAgeMillis, long notBefore) {
+        if (token == null) {
+            return null;
+        }
+        int signatureStart = token.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        String[] parts = payload.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            byte[] signature = DECODER.decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            long issuedAt = Long.parseLong(parts[1]);
+            if (System.currentTimeMillis() - issuedAt > maxAgeMillis || issuedAt < notBefore) {
+                return null;
+            }
+            return new String(DECODER.decode(parts[0]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256不可用", e);
+        }
+    }
+}
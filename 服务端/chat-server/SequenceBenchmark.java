@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 会话序列号和消息ID分配的竞争基准测试
+ * 多个线程同时为少数几个热点会话分配序列号，对比：
+ * 1. 原实现：ConcurrentHashMap先computeIfAbsent读取再put写回，两步之间没有原子性
+ * 2. synchronized：HashMap加全局锁
+ * 3. 无锁：MessageSequencer，每个会话一个AtomicLong
+ * 以及MessageSequencer.nextMessageId()的全局消息ID分配。
+ * 输出吞吐，并检查分配结果：重复表示两条消息拿到了同一个序列号/ID，缺口表示序列号不连续。
+ *
+ * 用法: java SequenceBenchmark [每线程次数] [热点会话数] [线程数...]
+ * 默认每线程200000次，4个热点会话，分别测试1、4、16、64个线程。
+ */
+public class SequenceBenchmark {
+
+    interface Generator {
+        long next(String conversationId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int conversations = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(4);
+            threadCounts.add(16);
+            threadCounts.add(64);
+        }
+
+        String[] names = new String[conversations];
+        for (int i = 0; i < conversations; i++) {
+            names[i] = "user" + i + "_user" + (i + 1);
+        }
+
+        // 预热
+        run("预热", new MessageSequencer(1)::nextSequence, 4, perThread, names, true);
+
+        List<String> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            results.add(run("原实现", racy(), threads, perThread, names, true));
+            results.add(run("synchronized", locked(), threads, perThread, names, true));
+            results.add(run("无锁序列号", new MessageSequencer(1)::nextSequence, threads, perThread, names, true));
+            MessageSequencer ids = new MessageSequencer(1);
+            results.add(run("无锁消息ID", conversationId -> ids.nextMessageId(), threads, perThread, names, false));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-14s %6s %14s %10s %10s",
+            "实现", "线程数", "吞吐(次/秒)", "重复", "缺口"));
+        results.forEach(System.out::println);
+    }
+
+    // 改动前ChatServer.generateMessageId的计数方式
+    private static Generator racy() {
+        Map<String, Long> counters = new ConcurrentHashMap<>();
+        return conversationId -> {
+            long sequence = counters.computeIfAbsent(conversationId, k -> 0L);
+            counters.put(conversationId, sequence + 1);
+            return sequence + 1;
+        };
+    }
+
+    private static Generator locked() {
+        Map<String, Long> counters = new HashMap<>();
+        return conversationId -> {
+            synchronized (counters) {
+                long sequence = counters.getOrDefault(conversationId, 0L) + 1;
+                counters.put(conversationId, sequence);
+                return sequence;
+            }
+        };
+    }
+
+    /**
+     * @param perConversation true表示按会话检查序列号（应为1..N连续），false表示全局检查唯一性
+     */
+    private static String run(String name, Generator generator, int threads, int perThread,
+                              String[] conversations, boolean perConversation) throws Exception {
+        long[][] results = new long[threads][perThread];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long[] out = results[t];
+            int offset = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    int conversation = (i + offset) % conversations.length;
+                    long value = generator.next(conversations[conversation]);
+                    // 按会话检查时把会话编号放在高位，排序后同一会话的序列号相邻
+                    out[i] = perConversation ? ((long) conversation << 40) | value : value;
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long total = (long) threads * perThread;
+        long[] all = new long[(int) total];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(results[t], 0, all, t * perThread, perThread);
+        }
+        Arrays.sort(all);
+        long duplicates = 0;
+        long gaps = 0;
+        for (int i = 1; i < all.length; i++) {
+            if (all[i] == all[i - 1]) {
+                duplicates++;
+            } else if (perConversation && all[i] >>> 40 == all[i - 1] >>> 40 && all[i] != all[i - 1] + 1) {
+                gaps++;
+            }
+        }
+        return String.format("%-14s %6d %14.0f %10d %10s",
+            name, threads, total / (elapsed / 1e9), duplicates, perConversation ? Long.toString(gaps) : "-");
+    }
+}
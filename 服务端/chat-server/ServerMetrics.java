@@ -0,0 +1,149 @@
+/**
+ * 聊天服务器的指标
+ * 热路径上直接使用这里的静态计数器和直方图；依赖服务器状态的仪表（连接数、队列深度）由ChatServer启动时注册。
+ */
+final class ServerMetrics {
+
+    static final Metrics REGISTRY = new Metrics();
+
+    // 阻塞式写线程一次写出超过该时间计为一次写停顿；NIO连接在发送缓冲区写满时计为一次写停顿
+    static final long WRITE_STALL_NANOS = Long.getLong("chat.metrics.stall.ms", 50) * 1_000_000L;
+
+    static final Metrics.Counter CONNECTIONS_ACCEPTED = REGISTRY.counter("chat_connections_accepted_total",
+        "接受的客户端连接数");
+    static final Metrics.Counter LOGINS = REGISTRY.counter("chat_logins_total", "result=\"ok\"",
+        "登录次数");
+    static final Metrics.Counter LOGINS_REJECTED = REGISTRY.counter("chat_logins_total", "result=\"rejected\"",
+        "登录次数");
+    static final Metrics.Counter RESUMES = REGISTRY.counter("chat_resumes_total", "result=\"ok\"",
+        "带恢复令牌的重连登录次数，gap为有会话无法补全");
+    static final Metrics.Counter RESUMES_GAP = REGISTRY.counter("chat_resumes_total", "result=\"gap\"",
+        "带恢复令牌的重连登录次数，gap为有会话无法补全");
+    static final Metrics.Counter RESUMES_REJECTED = REGISTRY.counter("chat_resumes_total", "result=\"rejected\"",
+        "带恢复令牌的重连登录次数，gap为有会话无法补全");
+    static final Metrics.Counter RESUME_FRAMES = REGISTRY.counter("chat_resume_frames_total",
+        "重连时补发的消息数");
+    static final Metrics.Counter RESUME_FRAMES_WAL = REGISTRY.counter("chat_resume_wal_frames_total",
+        "最近消息环没有覆盖、从预写日志中读出的待补发消息数");
+    static final Metrics.Counter DISCONNECTS = REGISTRY.counter("chat_disconnects_total",
+        "已登录用户的断开次数");
+    static final Metrics.Counter CONNECTIONS_REJECTED = REGISTRY.counter("chat_connections_rejected_total",
+        "达到连接数上限被拒绝的连接数");
+    static final Metrics.Counter ACCEPT_THROTTLED = REGISTRY.counter("chat_accept_throttled_total",
+        "accept速率用完后暂停接受连接的次数");
+    static final Metrics.Counter THROTTLED_MESSAGE_RATE = REGISTRY.counter("chat_messages_throttled_total",
+        "reason=\"message_rate\"", "回复THROTTLED而未处理的聊天消息数");
+    static final Metrics.Counter THROTTLED_BYTE_RATE = REGISTRY.counter("chat_messages_throttled_total",
+        "reason=\"byte_rate\"", "回复THROTTLED而未处理的聊天消息数");
+    static final Metrics.Counter THROTTLED_OVERLOAD = REGISTRY.counter("chat_messages_throttled_total",
+        "reason=\"overload\"", "回复THROTTLED而未处理的聊天消息数");
+    static final Metrics.Counter HEARTBEAT_EXPIRIES = REGISTRY.counter("chat_heartbeat_expiries_total",
+        "超时未收到数据被断开的连接数");
+
+    static final Metrics.Counter ROUTED_LOCAL = REGISTRY.counter("chat_private_routed_total", "route=\"local\"",
+        "私聊消息的去向");
+    static final Metrics.Counter ROUTED_FORWARDED = REGISTRY.counter("chat_private_routed_total", "route=\"forwarded\"",
+        "私聊消息的去向");
+    static final Metrics.Counter ROUTED_OFFLINE = REGISTRY.counter("chat_private_routed_total", "route=\"offline\"",
+        "私聊消息的去向");
+    static final Metrics.Counter ROUTED_DROPPED = REGISTRY.counter("chat_private_routed_total", "route=\"dropped\"",
+        "私聊消息的去向");
+    static final Metrics.Counter BROADCAST_DELIVERIES = REGISTRY.counter("chat_broadcast_deliveries_total",
+        "广播消息写入各连接出站队列的次数");
+
+    static final Metrics.Histogram DISPATCH_WAIT = REGISTRY.histogram("chat_dispatch_wait_seconds",
+        "消息任务从入队到开始处理的时间", 1e-9);
+    static final Metrics.Histogram[] DISPATCH_LANE_WAIT = laneHistograms("chat_dispatch_lane_wait_seconds",
+        "消息任务在分发分区各优先级通道中的排队时间");
+    static final Metrics.Histogram[] OUTBOUND_LANE_WAIT = laneHistograms("chat_outbound_lane_wait_seconds",
+        "帧在连接出站队列各优先级通道中的排队时间，从入队到写线程取出");
+    static final Metrics.Histogram FANOUT_BROADCAST = REGISTRY.histogram("chat_fanout_latency_seconds",
+        "type=\"BROADCAST\"", "消息任务从入队到写入所有目标连接出站队列的时间", 1e-9);
+    static final Metrics.Histogram FANOUT_PRIVATE = REGISTRY.histogram("chat_fanout_latency_seconds",
+        "type=\"PRIVATE\"", "消息任务从入队到写入所有目标连接出站队列的时间", 1e-9);
+    static final Metrics.Histogram FANOUT_PRESENCE = REGISTRY.histogram("chat_fanout_latency_seconds",
+        "type=\"PRESENCE\"", "消息任务从入队到写入所有目标连接出站队列的时间", 1e-9);
+
+    static final Metrics.Counter WRITE_STALLS_BLOCKING = REGISTRY.counter("chat_write_stalls_total",
+        "engine=\"blocking\"", "写出时Socket发送缓冲区已满或写出过慢的次数");
+    static final Metrics.Counter WRITE_STALLS_NIO = REGISTRY.counter("chat_write_stalls_total",
+        "engine=\"nio\"", "写出时Socket发送缓冲区已满或写出过慢的次数");
+    static final Metrics.Counter WRITE_SYSCALLS_BLOCKING = REGISTRY.counter("chat_write_syscalls_total",
+        "engine=\"blocking\"", "向客户端Socket写数据的系统调用次数");
+    static final Metrics.Counter WRITE_SYSCALLS_NIO = REGISTRY.counter("chat_write_syscalls_total",
+        "engine=\"nio\"", "向客户端Socket写数据的系统调用次数");
+    static final Metrics.Counter WRITE_FRAMES_BLOCKING = REGISTRY.counter("chat_write_frames_total",
+        "engine=\"blocking\"", "写出给客户端的帧数");
+    static final Metrics.Counter WRITE_FRAMES_NIO = REGISTRY.counter("chat_write_frames_total",
+        "engine=\"nio\"", "写出给客户端的帧数");
+    static final Metrics.Counter WRITE_BYTES_BLOCKING = REGISTRY.counter("chat_write_bytes_total",
+        "engine=\"blocking\"", "写出给客户端的字节数");
+    static final Metrics.Counter WRITE_BYTES_NIO = REGISTRY.counter("chat_write_bytes_total",
+        "engine=\"nio\"", "写出给客户端的字节数");
+    static final Metrics.Counter OUTBOUND_DROPPED = REGISTRY.counter("chat_outbound_dropped_total",
+        "出站队列达到高水位后丢弃的消息数");
+    static final Metrics.Counter SLOW_CONSUMER_EVICTIONS = REGISTRY.counter("chat_slow_consumer_evictions_total",
+        "出站队列达到高水位被断开的连接数");
+
+    static final Metrics.Histogram STORE_LATENCY = REGISTRY.histogram("chat_store_request_seconds",
+        "存储请求从收到到响应放入出站队列的时间，包括排队", 1e-9);
+    static final Metrics.Counter STORE_REJECTED = REGISTRY.counter("chat_store_rejected_total",
+        "存储线程排队已满被拒绝的请求数");
+    static final Metrics.Counter STORE_PERSISTED = REGISTRY.counter("chat_store_persisted_total",
+        "服务器保存到聊天记录的消息数");
+    static final Metrics.Counter STORE_PERSIST_BATCHES = REGISTRY.counter("chat_store_persist_batches_total",
+        "保存聊天消息的事务数，chat_store_persisted_total除以它为平均每批的消息数");
+    static final Metrics.Counter STORE_PERSIST_FAILURES = REGISTRY.counter("chat_store_persist_failures_total",
+        "保存失败、没有进入聊天记录的消息数");
+    static final Metrics.Histogram STORE_PERSIST_LATENCY = REGISTRY.histogram("chat_store_persist_seconds",
+        "聊天消息从提交保存到事务提交的时间", 1e-9);
+    private static final Metrics.Counter STORE_HISTORY = REGISTRY.counter("chat_store_requests_total",
+        "op=\"HISTORY\"", "聊天连接上的存储请求数，按操作");
+    private static final Metrics.Counter STORE_MARK_READ = REGISTRY.counter("chat_store_requests_total",
+        "op=\"MARK_READ\"", "聊天连接上的存储请求数，按操作");
+    private static final Metrics.Counter STORE_SAVE_MESSAGE = REGISTRY.counter("chat_store_requests_total",
+        "op=\"SAVE_MESSAGE\"", "聊天连接上的存储请求数，按操作");
+    private static final Metrics.Counter STORE_UNKNOWN = REGISTRY.counter("chat_store_requests_total",
+        "op=\"UNKNOWN\"", "聊天连接上的存储请求数，按操作");
+
+    // 按帧类型统计的入站消息数，下标为帧类型，第一次收到该类型时注册
+    private static final Metrics.Counter[] RECEIVED = new Metrics.Counter[256];
+
+    private ServerMetrics() {
+    }
+
+    private static Metrics.Histogram[] laneHistograms(String name, String help) {
+        Metrics.Histogram[] histograms = new Metrics.Histogram[LaneQueue.LANES];
+        for (int lane = 0; lane < LaneQueue.LANES; lane++) {
+            histograms[lane] = REGISTRY.histogram(name, "lane=\"" + LaneQueue.LANE_NAMES[lane] + "\"", help, 1e-9);
+        }
+        return histograms;
+    }
+
+    /**
+     * 统计一条客户端发来的消息
+     */
+    static void received(byte type) {
+        Metrics.Counter counter = RECEIVED[type & 0xff];
+        if (counter == null) {
+            // 广播在文本协议中的类型名是MSG，与下发的聊天消息同名，这里单独标记
+            String name = type == Frame.BROADCAST ? "BROADCAST" : FrameCodec.typeName(type);
+            counter = REGISTRY.counter("chat_messages_received_total",
+                "type=\"" + name + "\"", "客户端发来的消息数，按类型");
+            RECEIVED[type & 0xff] = counter;
+        }
+        counter.increment();
+    }
+
+    /**
+     * 统计一个存储请求，操作名由客户端给出，未知的操作统一计入UNKNOWN
+     */
+    static void storeRequest(String op) {
+        switch (op) {
+            case StoreRequests.HISTORY: STORE_HISTORY.increment(); break;
+            case StoreRequests.MARK_READ: STORE_MARK_READ.increment(); break;
+            case StoreRequests.SAVE_MESSAGE: STORE_SAVE_MESSAGE.increment(); break;
+            default: STORE_UNKNOWN.increment();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+/**
+ * 阻塞式Socket连接
+ * 每个连接由一个线程执行读取循环，另一个专用写线程从出站队列取帧，按协商的协议编码后写入Socket。
+ * 写线程把队列中已有的帧依次编码到同一个缓冲区（共享帧复制缓存的编码结果），一批只调用一次write。
+ */
+class SocketConnection extends ChatConnection {
+
+    final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile boolean closed = false;
+    // 写方向已关闭，只由写线程访问
+    private boolean outputShutdown = false;
+
+    // 写线程复用的批缓冲区，一批写完且队列已空时，超过IDLE_BUFFER_BYTES的缓冲区换回小的
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);
+    private static final int IDLE_BUFFER_BYTES = 8192;
+
+    SocketConnection(Socket socket, Executor writerExecutor) throws IOException {
+        super(socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+        this.socket = socket;
+        // 写线程已经自行合并小帧，关闭Nagle算法，心跳应答等单独写出的小帧不会被内核延迟
+        socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        // 批缓冲区已经合并了多帧，直接写入Socket，不再经过BufferedOutputStream复制
+        this.out = socket.getOutputStream();
+        writerExecutor.execute(this::writeLoop);
+    }
+
+    /**
+     * 读取登录消息；握手行逐字节读取，不会吞掉之后的二进制数据
+     */
+    String readLoginLine() throws IOException {
+        return FrameCodec.readLine(in);
+    }
+
+    /**
+     * 登录后的读取循环，按协商的协议解析客户端消息，直到连接断开
+     */
+    void readLoop() throws IOException {
+        if (protocolVersion == Frame.TEXT) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String message;
+            while ((message = reader.readLine()) != null) {
+                lastActive = System.currentTimeMillis();
+                ChatServer.handleMessage(this, message);
+            }
+            return;
+        }
+
+        DataInputStream data = new DataInputStream(in);
+        ByteBuffer frameBuffer = ByteBuffer.allocate(1024);
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length <= 0 || length > FrameCodec.MAX_FRAME_BYTES) {
+                throw new IOException("非法的帧长度: " + length);
+            }
+            if (frameBuffer.capacity() < length + 4) {
+                frameBuffer = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2, length + 4));
+            }
+            frameBuffer.clear();
+            frameBuffer.putInt(length);
+            data.readFully(frameBuffer.array(), 4, length);
+            frameBuffer.limit(length + 4);
+            frameBuffer.position(0);
+            lastActive = System.currentTimeMillis();
+            ChatServer.handleFrame(this, frameBuffer);
+        }
+    }
+
+    /**
+     * 写线程：取出一批帧编码后一次写入Socket，写失败时关闭连接
+     */
+    private void writeLoop() {
+        try {
+            Frame frame = null;
+            while (!closed) {
+                if (frame == null) {
+                    frame = outbound.take();
+                }
+                if (frame == OutboundQueue.CLOSED) {
+                    close();
+                    break;
+                }
+                if (outputShutdown) {
+                    frame = null;
+                    continue;
+                }
+                if (frame == OutboundQueue.SHUTDOWN_OUTPUT) {
+                    socket.shutdownOutput();
+                    outputShutdown = true;
+                    frame = null;
+                    continue;
+                }
+                // 批次中途取到的关闭标记在写完这一批后处理
+                frame = writeBatch(frame);
+            }
+        } catch (IOException e) {
+            Log.warn("向用户 {} 写消息失败，关闭连接: {}", this, e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 从first开始，把队列中已有的帧编码到批缓冲区后一次写出
+     * @return 批次中途从队列取到的关闭标记，没有时返回null
+     */
+    private Frame writeBatch(Frame first) throws IOException {
+        int version = protocolVersion;
+        boolean compress = compression;
+        long start = System.nanoTime();
+        encodeBuffer.clear();
+        int frames = 0;
+        Frame frame = first;
+        Frame marker = null;
+        while (true) {
+            if (frame.shared) {
+                // 共享帧复制缓存的编码结果
+                byte[] bytes = FrameCodec.sharedEncoding(frame, version, compress).bytes;
+                encodeBuffer = FrameCodec.ensureCapacity(encodeBuffer, bytes.length);
+                encodeBuffer.put(bytes);
+            } else {
+                encodeBuffer = FrameCodec.ensureCapacity(encodeBuffer, FrameCodec.encodedLength(frame, version));
+                FrameCodec.encode(frame, version, compress, encodeBuffer);
+            }
+            frames++;
+            if (frame.isControl() || frames >= COALESCE_FRAMES || encodeBuffer.position() >= COALESCE_BYTES
+                || System.nanoTime() - start >= COALESCE_NANOS) {
+                break;
+            }
+            frame = outbound.poll();
+            if (frame == null) {
+                break;
+            }
+            if (frame == OutboundQueue.CLOSED || frame == OutboundQueue.SHUTDOWN_OUTPUT) {
+                marker = frame;
+                break;
+            }
+        }
+
+        out.write(encodeBuffer.array(), 0, encodeBuffer.position());
+        ServerMetrics.WRITE_SYSCALLS_BLOCKING.increment();
+        ServerMetrics.WRITE_FRAMES_BLOCKING.add(frames);
+        ServerMetrics.WRITE_BYTES_BLOCKING.add(encodeBuffer.position());
+        if (System.nanoTime() - start > ServerMetrics.WRITE_STALL_NANOS) {
+            // 阻塞写一直等到对方腾出接收窗口，耗时过长说明客户端读得慢或网络拥塞
+            ServerMetrics.WRITE_STALLS_BLOCKING.increment();
+        }
+        if (encodeBuffer.capacity() > IDLE_BUFFER_BYTES && outbound.depth() == 0) {
+            encodeBuffer = ByteBuffer.allocate(1024);
+        }
+        return marker;
+    }
+
+    @Override
+    void onQueued() {
+        // 写线程阻塞在take()上，入队即唤醒
+    }
+
+    @Override
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+
+    @Override
+    void closeAfterFlush() {
+        outbound.finish();
+    }
+
+    @Override
+    void shutdownOutputAfterFlush() {
+        outbound.finishOutput();
+    }
+
+    @Override
+    boolean isOpen() {
+        return !closed && !socket.isClosed();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,268 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 在聊天连接上处理的存储请求（REQUEST帧），代替客户端每次新建HTTP连接访问API服务器
+ * 请求的receiver字段为操作名，messageId为客户端选择的关联ID，服务器回复同一关联ID的RESPONSE帧，
+ * 客户端可以同时发出多个请求，按关联ID匹配响应。
+ * 数据库操作在单独的存储线程上按到达顺序执行，不占用读线程、事件循环和分发线程；
+ * 排队的请求超过上限时直接回复STATUS_ERROR，客户端改走HTTP接口。
+ * 同一个存储线程还负责持久化服务器转发的聊天消息（见persist），积压的消息每批一个事务写入，
+ * 与请求交替执行。
+ *
+ * 操作和参数：
+ *   HISTORY       conversationId=对方用户名（"all"为广播），sequence=只返回ID小于它的消息（0为最新），
+ *                 timestamp=最多条数；body每行一条：ID\t发送者\t接收者\t时间\t已读(0/1)\t内容，
+ *                 字段中的\\、\n、\t转义，按ID从旧到新排列
+ *   MARK_READ     sequence=消息ID，只能标记发给自己的消息
+ *   SAVE_MESSAGE  conversationId=接收者（"all"为广播），timestamp=发送时间（毫秒，0为服务器当前时间），
+ *                 body=内容；发送者总是当前登录用户，body返回数据库分配的消息ID
+ */
+class StoreRequests {
+
+    // RESPONSE帧sequence字段中的状态
+    static final int STATUS_OK = 0;
+    static final int STATUS_BAD_REQUEST = 1;
+    static final int STATUS_ERROR = 2;
+
+    static final String HISTORY = "HISTORY";
+    static final String MARK_READ = "MARK_READ";
+    static final String SAVE_MESSAGE = "SAVE_MESSAGE";
+
+    // 一页历史的默认和最大条数
+    private static final int DEFAULT_PAGE = 200;
+    private static final int MAX_PAGE = Integer.getInteger("chat.store.page.max", 500);
+
+    // 响应正文的字节数上限，给帧头和压缩前的长度留出余量
+    private static final int MAX_BODY_BYTES = FrameCodec.MAX_FRAME_BYTES - 4096;
+
+    private final MessageStore store;
+    // 存储线程：请求和持久化批次都在这里执行；队列不限长度，请求数由queuedRequests限制
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+
+    // 等待持久化的聊天消息，drainScheduled保证存储线程的队列中最多有一个持久化任务
+    private final ConcurrentLinkedQueue<PendingMessage> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final int batchMax;
+    private final int maxPending;
+
+    private static final class PendingMessage {
+        final Frame frame;
+        final Consumer<Frame> then;
+        final long queuedAt = System.nanoTime();
+
+        PendingMessage(Frame frame, Consumer<Frame> then) {
+            this.frame = frame;
+            this.then = then;
+        }
+    }
+
+    StoreRequests(MessageStore store, int queueCapacity, int batchMax, int maxPending) {
+        this.store = store;
+        this.queueCapacity = queueCapacity;
+        this.batchMax = Math.max(1, batchMax);
+        this.maxPending = maxPending;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "chat-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * 把请求交给存储线程，立即返回；响应由存储线程放入连接的出站队列
+     */
+    void submit(ChatConnection conn, Frame request) {
+        if (queuedRequests.incrementAndGet() > queueCapacity) {
+            queuedRequests.decrementAndGet();
+            ServerMetrics.STORE_REJECTED.increment();
+            conn.send(Frame.response(request.messageId, STATUS_ERROR, "存储请求过多，请稍后重试"));
+            return;
+        }
+        long received = System.nanoTime();
+        executor.execute(() -> {
+            queuedRequests.decrementAndGet();
+            conn.send(handle(conn.username, request));
+            ServerMetrics.STORE_LATENCY.recordSince(received);
+        });
+    }
+
+    int getQueueDepth() {
+        return queuedRequests.get();
+    }
+
+    /**
+     * 持久化一条聊天消息（MSG帧），写入后以带数据库ID的帧（见Frame.stored）调用then；
+     * 写入失败时以原来的帧调用then，消息照常投递，只是不在聊天记录中。
+     * then在存储线程上按提交顺序调用，同一会话的消息投递顺序不变
+     */
+    void persist(Frame message, Consumer<Frame> then) {
+        pendingMessages.add(new PendingMessage(message, then));
+        pendingCount.incrementAndGet();
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drainMessages);
+            } catch (RejectedExecutionException e) {
+                // 服务器正在关闭，存储线程已停止，不再保存
+                drainScheduled.set(false);
+                PendingMessage pending;
+                while ((pending = pendingMessages.poll()) != null) {
+                    pendingCount.decrementAndGet();
+                    pending.then.accept(pending.frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * 待持久化的消息是否已达到上限，此时新的聊天消息按过载限流
+     */
+    boolean isBacklogged() {
+        return maxPending > 0 && pendingCount.get() >= maxPending;
+    }
+
+    int getPendingMessages() {
+        return pendingCount.get();
+    }
+
+    /**
+     * 把积压的消息按batchMax条一批写入，每批一个事务；还有剩余时重新排队，让请求不必等整个积压写完
+     */
+    private void drainMessages() {
+        drainScheduled.set(false);
+        List<PendingMessage> batch = new ArrayList<>();
+        PendingMessage next;
+        while (batch.size() < batchMax && (next = pendingMessages.poll()) != null) {
+            batch.add(next);
+        }
+        if (!batch.isEmpty()) {
+            pendingCount.addAndGet(-batch.size());
+            writeBatch(batch);
+        }
+        if (!pendingMessages.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            executor.execute(this::drainMessages);
+        }
+    }
+
+    private void writeBatch(List<PendingMessage> batch) {
+        List<Frame> frames = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            frames.add(pending.frame);
+        }
+        long[] ids = null;
+        try {
+            ids = store.saveBatch(frames);
+            ServerMetrics.STORE_PERSIST_BATCHES.increment();
+            ServerMetrics.STORE_PERSISTED.add(ids.length);
+        } catch (SQLException e) {
+            ServerMetrics.STORE_PERSIST_FAILURES.add(batch.size());
+            Log.warn("保存 {} 条聊天消息失败，消息照常投递: {}", batch.size(), e.getMessage());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage pending = batch.get(i);
+            ServerMetrics.STORE_PERSIST_LATENCY.recordSince(pending.queuedAt);
+            try {
+                pending.then.accept(ids != null ? pending.frame.stored(ids[i]) : pending.frame);
+            } catch (RuntimeException e) {
+                Log.warn("投递已保存的消息失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Frame handle(String username, Frame request) {
+        ServerMetrics.storeRequest(request.receiver);
+        try {
+            switch (request.receiver) {
+                case HISTORY: {
+                    if (request.conversationId.isEmpty()) {
+                        return Frame.response(request.messageId, STATUS_BAD_REQUEST, "缺少对方用户名");
+                    }
+                    int limit = request.timestamp > 0 ? (int) Math.min(request.timestamp, MAX_PAGE) : DEFAULT_PAGE;
+                    List<MessageStore.Row> rows = store.history(username, request.conversationId, request.sequence, limit);
+                    return Frame.response(request.messageId, STATUS_OK, encodeRows(rows));
+                }
+                case MARK_READ:
+                    if (!store.markRead(request.sequence, username)) {
+                        return Frame.response(request.messageId, STATUS_BAD_REQUEST, "消息不存在或不是发给当前用户的");
+                    }
+                    return Frame.response(request.messageId, STATUS_OK, null);
+                case SAVE_MESSAGE: {
+                    if (request.body.isEmpty()) {
+                        return Frame.response(request.messageId, STATUS_BAD_REQUEST, "消息内容为空");
+                    }
+                    String receiver = request.conversationId.isEmpty() ? "all" : request.conversationId;
+                    long sentAt = request.timestamp > 0 ? request.timestamp : System.currentTimeMillis();
+                    long id = store.save(username, receiver, request.body, sentAt);
+                    return Frame.response(request.messageId, STATUS_OK, Long.toString(id));
+                }
+                default:
+                    return Frame.response(request.messageId, STATUS_BAD_REQUEST, "未知的存储操作: " + request.receiver);
+            }
+        } catch (SQLException e) {
+            Log.warn("存储请求{}失败(用户 {}): {}", request.receiver, username, e.getMessage());
+            return Frame.response(request.messageId, STATUS_ERROR, "数据库错误");
+        }
+    }
+
+    /**
+     * 编码一页历史；超出帧长度限制时丢弃最旧的几条，客户端以收到的最小ID继续向前翻页
+     */
+    static String encodeRows(List<MessageStore.Row> rows) {
+        String[] lines = new String[rows.size()];
+        int first = rows.size();
+        long bytes = 0;
+        while (first > 0) {
+            MessageStore.Row row = rows.get(first - 1);
+            StringBuilder line = new StringBuilder();
+            line.append(row.id).append('\t');
+            escape(row.sender, line).append('\t');
+            escape(row.receiver, line).append('\t');
+            escape(row.timestamp, line).append('\t');
+            line.append(row.read ? '1' : '0').append('\t');
+            escape(row.content, line);
+            bytes += FrameCodec.utf8Length(line.toString()) + 1;
+            if (bytes > MAX_BODY_BYTES && first < rows.size()) {
+                break;
+            }
+            lines[--first] = line.toString();
+        }
+        return String.join("\n", Arrays.asList(lines).subList(first, lines.length));
+    }
+
+    private static StringBuilder escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\t': out.append("\\t"); break;
+                default: out.append(c);
+            }
+        }
+        return out;
+    }
+
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+}
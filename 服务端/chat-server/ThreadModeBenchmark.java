@@ -0,0 +1,186 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 线程模型基准测试
+ * 分别以platform和virtual线程模式启动服务器子进程，对比：
+ * 1. 每个连接占用的内存（RSS增量 / 连接数）和线程数
+ * 2. 在大量连接存在时，广播消息投递到各接收者的p99延迟
+ *
+ * 用法: java ThreadModeBenchmark [ChatServer|ChatServerOptimized] [连接数...]
+ * 默认对ChatServer分别测试1000和10000个连接。
+ * 内存数据读取自/proc，仅在Linux上可用；延迟使用System.nanoTime()，要求客户端和服务器在同一台机器上。
+ */
+public class ThreadModeBenchmark {
+
+    // 参与收发消息的在线用户数，其余连接只建立TCP连接不登录
+    private static final int ACTIVE_USERS = 100;
+    // 每轮测试发送的广播消息数
+    private static final int MESSAGES = 200;
+    // 消息发送间隔（毫秒）
+    private static final int SEND_INTERVAL_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        String serverClass = args.length > 0 ? args[0] : "ChatServer";
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            counts.add(Integer.parseInt(args[i]));
+        }
+        if (counts.isEmpty()) {
+            counts.add(1000);
+            counts.add(10000);
+        }
+
+        List<String> results = new ArrayList<>();
+        for (int count : counts) {
+            for (String mode : new String[]{"platform", "virtual"}) {
+                results.add(run(serverClass, mode, count));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %-8s %10s %14s %10s %12s %12s",
+            "连接数", "模式", "服务器线程", "每连接内存(KB)", "样本数", "p50(ms)", "p99(ms)"));
+        results.forEach(System.out::println);
+    }
+
+    private static String run(String serverClass, String mode, int connections) throws Exception {
+        int port = 20000 + new Random().nextInt(20000);
+        System.out.println("==> " + serverClass + " mode=" + mode + " connections=" + connections + " port=" + port);
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-Xms256m", "-Xmx1g",
+                "-cp", System.getProperty("java.class.path"),
+                "-Dchat.port=" + port, "-Dchat.threads=" + mode, serverClass)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+
+        List<Socket> idle = new ArrayList<>();
+        List<Socket> active = new ArrayList<>();
+        ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            waitForPort(port);
+            Thread.sleep(1000);
+            long baseRss = readProcStatus(server.pid(), "VmRSS");
+
+            // 建立空闲连接：服务器会为每个连接启动一个读取线程等待LOGIN
+            int idleCount = Math.max(0, connections - ACTIVE_USERS);
+            for (int i = 0; i < idleCount; i++) {
+                idle.add(new Socket("127.0.0.1", port));
+            }
+
+            // 登录活跃用户并启动读取线程记录延迟
+            Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+            for (int i = 0; i < ACTIVE_USERS; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                active.add(socket);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                out.println("LOGIN:bench-" + i);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                readers.execute(() -> readLoop(in, latencies));
+            }
+            Thread.sleep(2000);
+
+            long rss = readProcStatus(server.pid(), "VmRSS");
+            long threads = readProcStatus(server.pid(), "Threads");
+
+            // 轮流由不同用户发送广播消息
+            for (int i = 0; i < MESSAGES; i++) {
+                Socket sender = active.get(i % active.size());
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(sender.getOutputStream(), StandardCharsets.UTF_8), true);
+                out.println("MSG:bench|" + System.nanoTime());
+                Thread.sleep(SEND_INTERVAL_MS);
+            }
+            Thread.sleep(2000);
+
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            String memPerConn = rss > 0 && baseRss > 0
+                ? String.format("%.1f", (rss - baseRss) / (double) connections) : "n/a";
+            return String.format("%-10d %-8s %10s %14s %10d %12.2f %12.2f",
+                connections, mode, threads > 0 ? String.valueOf(threads) : "n/a", memPerConn,
+                sorted.length, percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6);
+        } finally {
+            readers.shutdownNow();
+            for (Socket socket : active) {
+                closeQuietly(socket);
+            }
+            for (Socket socket : idle) {
+                closeQuietly(socket);
+            }
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void readLoop(BufferedReader in, Queue<Long> latencies) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int idx = line.indexOf("bench|");
+                if (idx < 0) {
+                    continue;
+                }
+                int start = idx + "bench|".length();
+                int end = start;
+                while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                    end++;
+                }
+                latencies.add(System.nanoTime() - Long.parseLong(line.substring(start, end)));
+            }
+        } catch (IOException e) {
+            // 连接关闭，结束读取
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void waitForPort(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("服务器未能在10秒内启动");
+    }
+
+    /**
+     * 读取/proc/<pid>/status中的数值字段（VmRSS单位为KB）
+     */
+    private static long readProcStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 非Linux环境
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+}
\ No newline at end of file
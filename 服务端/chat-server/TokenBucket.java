@@ -0,0 +1,49 @@
+/**
+ * 令牌桶
+ * 以rate个/秒的速度补充令牌，最多积攒burst个；每次取用时按经过的时间补充，不需要定时任务。
+ * 一次取用超过burst的请求（例如大于突发字节数的一条消息）在攒满burst时放行，多出的部分记为欠账，之后补充的令牌先还账。
+ * 非线程安全：每个连接的桶只在该连接的读取线程（或所属事件循环）上使用，accept桶只在accept线程上使用。
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double ratePerSecond, double burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("速率和突发量必须大于0: " + ratePerSecond + "/" + burst);
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 还需等待多少纳秒才能取出n个令牌，0表示现在就可以取，不扣除令牌
+     */
+    long delayNanos(long n, long now) {
+        refill(now);
+        double needed = Math.min(n, burst);
+        if (tokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) / tokensPerNano);
+    }
+
+    /**
+     * 扣除n个令牌，应在delayNanos返回0之后调用
+     */
+    void take(long n) {
+        tokens -= n;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
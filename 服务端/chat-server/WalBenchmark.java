@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 预写日志吞吐基准测试
+ * 多个线程（模拟分发线程）并发追加消息，测量从第一条追加到最后一条落盘回调的吞吐，
+ * 以及每条消息从append到onDurable回调的延迟分位数（所有线程全速追加，延迟包含在队列中的等待）。对比：
+ * 1. 内存：不经过日志直接回调，作为上限
+ * 2. NONE：写入操作系统缓存，不fsync
+ * 3. BATCH：组提交，每批fsync一次，分别测试不等待和等待凑批
+ * 4. ALWAYS：每条消息单独fsync
+ *
+ * 用法: java WalBenchmark [线程数] [每线程消息数] [消息字节数] [日志目录]
+ * 默认8个线程，每线程20000条，每条约200字节，日志写在系统临时目录下。
+ * ALWAYS模式每条都要fsync，消息数自动减为十分之一。
+ */
+public class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int messageBytes = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Path baseDir = args.length > 3 ? Path.of(args[3]) : Files.createTempDirectory("wal-bench");
+
+        StringBuilder content = new StringBuilder();
+        while (content.length() < messageBytes) {
+            content.append("message-消息-");
+        }
+        content.setLength(messageBytes);
+        Frame frame = Frame.chat(1, 1, "alice_bob", "alice", "bob", content.toString(), System.currentTimeMillis());
+
+        // 预热：让编码和提交路径先完成JIT编译
+        run("预热", open(baseDir, WriteAheadLog.SyncPolicy.NONE, 0), threads, perThread, frame);
+
+        List<String> results = new ArrayList<>();
+        results.add(run("内存", null, threads, perThread, frame));
+        results.add(run("NONE", open(baseDir, WriteAheadLog.SyncPolicy.NONE, 0), threads, perThread, frame));
+        results.add(run("BATCH(不等待)", open(baseDir, WriteAheadLog.SyncPolicy.BATCH, 0), threads, perThread, frame));
+        results.add(run("BATCH(等待1ms)", open(baseDir, WriteAheadLog.SyncPolicy.BATCH, 1000), threads, perThread, frame));
+        results.add(run("ALWAYS", open(baseDir, WriteAheadLog.SyncPolicy.ALWAYS, 0), threads, Math.max(1, perThread / 10), frame));
+
+        System.out.println();
+        System.out.println(String.format("%-14s %10s %12s %10s %10s %10s",
+            "同步策略", "消息数", "吞吐(条/秒)", "p50(us)", "p99(us)", "最大(us)"));
+        results.forEach(System.out::println);
+
+        if (args.length <= 3) {
+            deleteRecursively(baseDir);
+        }
+    }
+
+    private static WriteAheadLog open(Path baseDir, WriteAheadLog.SyncPolicy policy, long delayMicros) throws IOException {
+        Path dir = Files.createTempDirectory(baseDir, policy.name().toLowerCase());
+        return new WriteAheadLog(dir, policy, 256, delayMicros, 64L * 1024 * 1024, 65536, 0);
+    }
+
+    private static String run(String name, WriteAheadLog wal, int threads, int perThread, Frame frame) throws Exception {
+        int total = threads * perThread;
+        long[] latencies = new long[total];
+        CountDownLatch durable = new CountDownLatch(total);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread commitThread = null;
+        if (wal != null) {
+            commitThread = new Thread(wal);
+            commitThread.start();
+        }
+
+        List<Thread> appenders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            Thread appender = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    int index = base + i;
+                    long appendedAt = System.nanoTime();
+                    if (wal == null) {
+                        latencies[index] = System.nanoTime() - appendedAt;
+                        durable.countDown();
+                    } else {
+                        wal.append(frame, lsn -> {
+                            latencies[index] = System.nanoTime() - appendedAt;
+                            durable.countDown();
+                        });
+                    }
+                }
+            });
+            appender.start();
+            appenders.add(appender);
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        durable.await(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - begin;
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        if (wal != null) {
+            System.out.println("[" + name + "] " + wal);
+            wal.stop();
+            commitThread.join();
+        }
+
+        Arrays.sort(latencies);
+        return String.format("%-14s %10d %12.0f %10.1f %10.1f %10.1f",
+            name, total, total / (elapsed / 1e9),
+            latencies[(int) (total * 0.50)] / 1e3,
+            latencies[Math.min(total - 1, (int) (total * 0.99))] / 1e3,
+            latencies[total - 1] / 1e3);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // 忽略
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * 聊天消息预写日志（组提交）
+ * 分发线程调用append()只把消息放进有界队列，由单独的提交线程批量写入文件并一次fsync，
+ * fsync完成后按写入顺序回调onDurable，此时消息已持久化，可以向发送者确认。
+ * 一批的大小受maxBatch限制；maxDelayMicros大于0时，提交线程拿到第一条消息后最多再等这么久凑批，
+ * 为0时只合并等待期间自然积累的消息。
+ * 同步策略：
+ * <pre>
+ *   BATCH   每批fsync一次（默认）
+ *   ALWAYS  每条消息单独写入并fsync
+ *   NONE    只写入操作系统缓存，不fsync，进程崩溃不丢，机器掉电可能丢
+ * </pre>
+ * 日志按大小滚动为wal-起始序号.log，每条记录格式：
+ * <pre>
+ *   i32 length      之后的字节数
+ *   i32 crc32       消息帧字节的校验和
+ *   i64 lsn         日志序号，全局递增
+ *   bytes           消息帧，FrameCodec二进制v1编码
+ * </pre>
+ * 启动时校验最后一个段，截掉崩溃时没写完的尾部记录；运行中一批写入失败时回滚这一批写入的部分。
+ */
+class WriteAheadLog implements Runnable {
+
+    enum SyncPolicy {
+        BATCH, ALWAYS, NONE;
+
+        static SyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8;
+
+    private final Path directory;
+    private final SyncPolicy policy;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final long segmentBytes;
+    private final int retainSegments;
+
+    private final BlockingQueue<Record> queue;
+    private volatile boolean running = true;
+    private volatile boolean stopped = false;
+
+    // 以下字段只由提交线程访问（构造时除外）
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private FileChannel channel;
+    private long segmentSize;
+    private long nextLsn = 1;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    // 统计
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicLong maxSyncNanos = new AtomicLong();
+
+    /**
+     * @param maxBatch 每批最多写入的消息数
+     * @param maxDelayMicros 凑批的最长等待时间，0表示不等待
+     * @param queueCapacity 待写入队列容量，队列满时append阻塞，对分发线程形成背压
+     * @param retainSegments 保留的段数，0表示全部保留
+     */
+    WriteAheadLog(Path directory, SyncPolicy policy, int maxBatch, long maxDelayMicros,
+                  long segmentBytes, int queueCapacity, int retainSegments) throws IOException {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("批大小必须大于0: " + maxBatch);
+        }
+        this.directory = directory;
+        this.policy = policy;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = retainSegments;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * 追加一条消息，可以从任意线程调用
+     * 消息写入并按同步策略落盘后，在提交线程上以日志序号回调onDurable（可以为null）；写入失败时不回调
+     */
+    void append(Frame frame, LongConsumer onDurable) {
+        if (stopped) {
+            return;
+        }
+        try {
+            queue.put(new Record(frame, onDurable));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 停止接收新消息，提交线程写完队列中剩余的消息后关闭文件
+     */
+    void stop() {
+        stopped = true;
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setName("wal-commit");
+        List<Record> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                Record first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                if (policy != SyncPolicy.ALWAYS) {
+                    collect(batch);
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    // 凑批：先取走已经在队列里的，再在maxDelay内等待后续消息
+    private void collect(List<Record> batch) throws InterruptedException {
+        queue.drainTo(batch, maxBatch - batch.size());
+        if (maxDelayNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatch) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            Record next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatch - batch.size());
+        }
+    }
+
+    private void commit(List<Record> batch) {
+        long firstLsn = nextLsn;
+        Path firstSegment = segments.peekLast();
+        long firstSegmentSize = segmentSize;
+        try {
+            writeBuffer.clear();
+            for (Record record : batch) {
+                encode(record.frame);
+            }
+            flushBuffer();
+            if (policy != SyncPolicy.NONE) {
+                long start = System.nanoTime();
+                channel.force(false);
+                long elapsed = System.nanoTime() - start;
+                syncs.incrementAndGet();
+                syncNanos.addAndGet(elapsed);
+                if (elapsed > maxSyncNanos.get()) {
+                    maxSyncNanos.accumulateAndGet(elapsed, Math::max);
+                }
+            }
+        } catch (IOException e) {
+            // 这一批没有确认落盘，不回调，由发送方重试
+            Log.warn("写入预写日志失败: {}", e.getMessage());
+            rollback(firstSegment, firstSegmentSize, firstLsn);
+            return;
+        }
+        pruneSegments();
+        appended.addAndGet(batch.size());
+        batches.incrementAndGet();
+        long lsn = firstLsn;
+        for (Record record : batch) {
+            if (record.onDurable != null) {
+                try {
+                    record.onDurable.accept(lsn);
+                } catch (Exception e) {
+                    Log.error("预写日志回调异常: {}", e.getMessage());
+                }
+            }
+            lsn++;
+        }
+    }
+
+    private void encode(Frame frame) throws IOException {
+        int frameBytes = FrameCodec.encodedLength(frame, Frame.BINARY_V1);
+        int recordBytes = RECORD_HEADER_BYTES + frameBytes;
+        // 当前段放不下时，先把缓冲区写入当前段，再滚动到新段
+        if (segmentSize + writeBuffer.position() + recordBytes > segmentBytes && segmentSize + writeBuffer.position() > 0) {
+            flushBuffer();
+            roll();
+        }
+        if (writeBuffer.remaining() < recordBytes) {
+            flushBuffer();
+            if (writeBuffer.capacity() < recordBytes) {
+                writeBuffer = ByteBuffer.allocateDirect(recordBytes);
+            }
+        }
+        int start = writeBuffer.position();
+        writeBuffer.position(start + RECORD_HEADER_BYTES);
+        FrameCodec.encode(frame, Frame.BINARY_V1, writeBuffer);
+        ByteBuffer body = writeBuffer.duplicate();
+        body.position(start + RECORD_HEADER_BYTES).limit(writeBuffer.position());
+        crc.reset();
+        crc.update(body);
+        writeBuffer.putInt(start, recordBytes - 4);
+        writeBuffer.putInt(start + 4, (int) crc.getValue());
+        writeBuffer.putLong(start + 8, nextLsn++);
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segmentSize += channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void roll() throws IOException {
+        if (policy != SyncPolicy.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+        openSegment(nextLsn);
+    }
+
+    // 超出保留段数的旧段在一批提交成功后才删除，回滚时这一批开始时的段一定还在
+    private void pruneSegments() {
+        while (retainSegments > 0 && segments.size() > retainSegments) {
+            try {
+                Files.deleteIfExists(segments.poll());
+            } catch (IOException e) {
+                Log.warn("删除预写日志段失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 一批写入或fsync失败时，把日志恢复到这一批开始前的状态：删除这一批中滚动出的新段，
+     * 截掉原段中这一批已经写入的部分，序号回退到这一批的第一条，
+     * 没有确认的记录不会留在日志中被恢复或补发，发送方重试的消息也不会跳号
+     */
+    private void rollback(Path segment, long size, long firstLsn) {
+        writeBuffer.clear();
+        nextLsn = firstLsn;
+        try {
+            if (!segment.equals(segments.peekLast()) || !channel.isOpen()) {
+                // 滚动过段，或者滚动时打开新段失败
+                channel.close();
+                while (!segment.equals(segments.peekLast())) {
+                    Files.deleteIfExists(segments.pollLast());
+                }
+                channel = FileChannel.open(segment, StandardOpenOption.WRITE);
+            }
+            channel.truncate(size);
+            channel.position(size);
+            segmentSize = size;
+        } catch (IOException e) {
+            Log.error("预写日志回滚失败: {}", e.getMessage());
+        }
+    }
+
+    private void openSegment(long firstLsn) throws IOException {
+        Path path = directory.resolve(String.format("wal-%020d.log", firstLsn));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentSize = 0;
+        segments.add(path);
+    }
+
+    /**
+     * 找到最后一个段中最后一条完整的记录，截掉之后的部分，从下一个序号继续写
+     */
+    private void recover() throws IOException {
+        List<Path> files = listSegments();
+        segments.addAll(files);
+        if (files.isEmpty()) {
+            openSegment(nextLsn);
+            return;
+        }
+
+        Path last = files.get(files.size() - 1);
+        String name = last.getFileName().toString();
+        nextLsn = Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+        channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int pos = 0;
+        while (pos + RECORD_HEADER_BYTES <= data.limit()) {
+            int length = data.getInt(pos);
+            if (length < RECORD_HEADER_BYTES - 4 || pos + 4 + length > data.limit()) {
+                break;
+            }
+            ByteBuffer body = data.duplicate();
+            body.position(pos + RECORD_HEADER_BYTES).limit(pos + 4 + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != data.getInt(pos + 4)) {
+                break;
+            }
+            nextLsn = data.getLong(pos + 8) + 1;
+            pos += 4 + length;
+        }
+        if (pos < channel.size()) {
+            Log.info("预写日志截掉不完整的尾部: {}, {} 字节", last.getFileName(), channel.size() - pos);
+            channel.truncate(pos);
+            channel.force(false);
+        }
+        channel.position(pos);
+        segmentSize = pos;
+    }
+
+    /**
+     * 目录中现有的日志段，从旧到新；可以在提交线程写入的同时调用
+     */
+    List<Path> listSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        files.sort(Comparator.comparing(Path::toString));
+        return files;
+    }
+
+    /**
+     * 按写入顺序读取一个段中的消息，遇到不完整或校验失败的记录时停止；
+     * 读取提交线程正在写入的段时只读到已完整写入的记录
+     */
+    static void readSegment(Path segment, Consumer<Frame> visitor) throws IOException {
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            CRC32 checksum = new CRC32();
+            int pos = 0;
+            while (pos + RECORD_HEADER_BYTES <= data.limit()) {
+                int length = data.getInt(pos);
+                if (length < RECORD_HEADER_BYTES - 4 || pos + 4 + length > data.limit()) {
+                    break;
+                }
+                ByteBuffer body = data.duplicate();
+                body.position(pos + RECORD_HEADER_BYTES).limit(pos + 4 + length);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != data.getInt(pos + 4)) {
+                    break;
+                }
+                visitor.accept(FrameCodec.decode(body));
+                pos += 4 + length;
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.warn("关闭预写日志失败: {}", e.getMessage());
+        }
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 取出上次重置以来的最大fsync耗时（纳秒）并重新开始统计
+     */
+    long snapshotAndResetMaxSync() {
+        return maxSyncNanos.getAndSet(0);
+    }
+
+    /**
+     * 定期报告用：与toString相同，最大fsync耗时为上次报告以来的值，报告后重置
+     */
+    String report() {
+        return describe(snapshotAndResetMaxSync());
+    }
+
+    /**
+     * 写入量、批大小和fsync耗时，不重置任何统计
+     */
+    @Override
+    public String toString() {
+        return describe(maxSyncNanos.get());
+    }
+
+    private String describe(long maxSync) {
+        long count = appended.get();
+        long batchCount = batches.get();
+        long syncCount = syncs.get();
+        return String.format("预写日志(%s): 已写入=%d, 队列=%d, 批次=%d, 平均批大小=%.1f, fsync=%d, 平均fsync=%.2fms, 最大fsync=%.2fms",
+            policy, count, queue.size(), batchCount, batchCount > 0 ? (double) count / batchCount : 0,
+            syncCount, syncCount > 0 ? syncNanos.get() / 1e6 / syncCount : 0, maxSync / 1e6);
+    }
+
+    private static final class Record {
+        final Frame frame;
+        final LongConsumer onDurable;
+
+        Record(Frame frame, LongConsumer onDurable) {
+            this.frame = frame;
+            this.onDurable = onDurable;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 写合并基准测试
+ * 在本机回环地址上建立真实的TCP连接，服务端分别用阻塞式SocketConnection和NioConnection写出，
+ * 生产者按突发（每次burst帧，广播和私聊交替）把帧放入出站队列，客户端线程读取直到收到全部字节。
+ * 统计吞吐（帧/秒、MB/秒）和写系统调用次数（chat_write_syscalls_total）。
+ * 合并参数是启动时读取的系统属性，主进程分别以 -Dchat.write.coalesce.bytes=0（合并前：每帧一次write）
+ * 和当前配置启动子进程测试，最后汇总对比。
+ *
+ * 用法: java WriteCoalescingBenchmark [帧数] [每次突发帧数] [消息字节数]
+ * 默认200000帧，每次突发32帧，每帧正文约200字节，二进制协议。
+ */
+public class WriteCoalescingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int messageBytes = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        if (Boolean.getBoolean("bench.child")) {
+            String content = content(messageBytes);
+            // 预热一轮，结果不计
+            for (String engine : new String[]{"blocking", "nio"}) {
+                run(engine, frames / 4, burst, content);
+                System.out.println("RESULT " + engine + " " + run(engine, frames, burst, content));
+            }
+            System.exit(0);
+        }
+
+        List<String> results = new ArrayList<>();
+        results.addAll(child("每帧写出", "-Dchat.write.coalesce.bytes=0", args));
+        results.addAll(child("合并写出", null, args));
+        System.out.println();
+        System.out.println(String.format("%-10s %-8s %12s %10s %14s %14s",
+            "引擎", "方式", "吞吐(帧/秒)", "MB/秒", "写调用/千帧", "平均帧/写调用"));
+        results.forEach(System.out::println);
+    }
+
+    /**
+     * 以指定系统属性（null表示使用默认配置）启动子进程运行测试，返回结果行
+     */
+    private static List<String> child(String mode, String option, String[] args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dbench.child=true");
+        command.add("-Dchat.log.level=WARN");
+        if (option != null) {
+            command.add(option);
+        }
+        command.add("WriteCoalescingBenchmark");
+        for (String arg : args) {
+            command.add(arg);
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> results = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    String[] parts = line.substring(7).split(" ", 2);
+                    results.add(String.format("%-12s %-8s %s", parts[0], mode, parts[1]));
+                } else {
+                    System.out.println(line);
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(mode + " 子进程异常退出");
+        }
+        return results;
+    }
+
+    private static String run(String engine, int frames, int burst, String content) throws Exception {
+        boolean nio = engine.equals("nio");
+        Metrics.Counter syscalls = nio ? ServerMetrics.WRITE_SYSCALLS_NIO : ServerMetrics.WRITE_SYSCALLS_BLOCKING;
+
+        // 预先构造帧：偶数为共享的广播帧，奇数为各自编码的私聊帧
+        Frame broadcast = Frame.chat(1, 1, "BROADCAST", "alice", null, content, System.currentTimeMillis());
+        Frame[] batch = new Frame[burst];
+        long burstBytes = 0;
+        for (int i = 0; i < burst; i++) {
+            batch[i] = i % 2 == 0 ? broadcast
+                : Frame.chat(i, i, "alice_bob", "alice", "bob", content, System.currentTimeMillis());
+            burstBytes += FrameCodec.encodedLength(batch[i], Frame.BINARY_V1);
+        }
+        int bursts = Math.max(1, frames / burst);
+        long expected = burstBytes * bursts;
+
+        ChatConnection conn;
+        Socket client;
+        if (nio) {
+            ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+            SocketChannel channel = server.accept();
+            server.close();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NioChatEngine.EventLoop loop = new NioChatEngine.EventLoop(0, new AdmissionControl());
+            loop.start();
+            CompletableFuture<NioConnection> attached = new CompletableFuture<>();
+            loop.execute(() -> {
+                try {
+                    attached.complete(loop.attach(channel));
+                } catch (IOException e) {
+                    attached.completeExceptionally(e);
+                }
+            });
+            conn = attached.get();
+        } else {
+            ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Socket accepted = server.accept();
+            server.close();
+            Executor daemon = task -> {
+                Thread thread = new Thread(task, "bench-writer");
+                thread.setDaemon(true);
+                thread.start();
+            };
+            conn = new SocketConnection(accepted, daemon);
+        }
+        conn.username = "bench";
+        conn.protocolVersion = Frame.BINARY_V1;
+
+        CompletableFuture<Long> received = new CompletableFuture<>();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            try (InputStream in = client.getInputStream()) {
+                int n;
+                while (total < expected && (n = in.read(buffer)) > 0) {
+                    total += n;
+                }
+                received.complete(System.nanoTime());
+            } catch (IOException e) {
+                received.completeExceptionally(e);
+            }
+        }, "bench-reader");
+        reader.start();
+
+        long syscallsBefore = syscalls.get();
+        long start = System.nanoTime();
+        for (int b = 0; b < bursts; b++) {
+            // 保持队列低于高水位，避免被判定为慢消费者
+            while (conn.outbound.depth() > conn.outbound.getHighWatermark() / 2) {
+                LockSupport.parkNanos(10_000);
+            }
+            for (Frame frame : batch) {
+                conn.send(frame);
+            }
+        }
+        long elapsed = received.get() - start;
+        long writes = syscalls.get() - syscallsBefore;
+        conn.close();
+        client.close();
+
+        long total = (long) bursts * burst;
+        return String.format("%12.0f %10.1f %14.1f %14.1f",
+            total / (elapsed / 1e9), expected / 1e6 / (elapsed / 1e9),
+            writes * 1000.0 / total, (double) total / Math.max(1, writes));
+    }
+
+    private static String content(int bytes) {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < bytes) {
+            content.append("message-消息-");
+        }
+        content.setLength(bytes);
+        return content.toString();
+    }
+}
@@ -9,7 +9,7 @@ echo "=========================================="
 
 # 检查Java环境
 if ! command -v java &> /dev/null; then
-    echo "错误: 未找到Java环境，请先安装Java 8或更高版本"
+    echo "错误: 未找到Java环境，请先安装Java 21或更高版本"
     exit 1
 fi
 
@@ -60,7 +60,8 @@ echo ""
 echo "启动优化后的聊天服务器..."
 
 # 设置JVM参数优化性能
-JVM_OPTS="-Xms256m -Xmx512m -XX:+UseG1GC -XX:MaxGCPauseMillis=200 -Dfile.encoding=UTF-8"
+# 线程模式: CHAT_THREADS=platform(默认) 或 virtual(需要Java 21)
+JVM_OPTS="-Xms256m -Xmx512m -XX:+UseG1GC -XX:MaxGCPauseMillis=200 -Dfile.encoding=UTF-8 -Dchat.threads=${CHAT_THREADS:-platform}"
 
 # 启动服务器并记录PID
 nohup java $JVM_OPTS ChatServerOptimized > chat_server_optimized.log 2>&1 &
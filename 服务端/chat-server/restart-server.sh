@@ -9,9 +9,13 @@ echo "停止现有服务器..."
 if [ -f "chat_server.pid" ]; then
     PID=$(cat chat_server.pid)
     if ps -p $PID > /dev/null 2>&1; then
-        echo "正在停止进程 $PID..."
+        # SIGTERM触发优雅退出：停止接受连接，给在线用户发RECONNECT后分批断开，写完队列后退出
+        echo "正在停止进程 $PID（优雅退出，最多等待 ${DRAIN_WAIT:-35} 秒）..."
         kill $PID
-        sleep 3
+        for ((i = 0; i < ${DRAIN_WAIT:-35}; i++)); do
+            ps -p $PID > /dev/null 2>&1 || break
+            sleep 1
+        done
         
         # 强制停止如果还在运行
         if ps -p $PID > /dev/null 2>&1; then
@@ -37,10 +41,45 @@ echo "✅ 编译成功"
 echo "启动优化后的聊天服务器..."
 
 # 设置JVM参数
-JVM_OPTS="-Xms256m -Xmx512m -XX:+UseG1GC -Dfile.encoding=UTF-8"
+# 连接引擎: CHAT_ENGINE=blocking(默认，每连接一个线程) 或 nio(固定数量的Selector事件循环)
+# 线程模式: CHAT_THREADS=platform(默认) 或 virtual(阻塞引擎的读写线程改用虚拟线程)
+# 其他服务器参数通过 CHAT_OPTS 传入，例如出站队列水位和慢消费者策略:
+#   CHAT_OPTS="-Dchat.outbound.high=1000 -Dchat.outbound.low=100 -Dchat.outbound.policy=disconnect|drop"
+# 日志: 异步输出，-Dchat.log.level=DEBUG|INFO|WARN|ERROR（默认INFO，每条消息的收发日志只在DEBUG输出），
+#   -Dchat.log.sample=N 在非DEBUG级别下每N条消息输出一条，-Dchat.log.format=json 输出JSON行
+# 指标: 默认在 http://127.0.0.1:9464/metrics 提供抓取端点，并注册JMX ChatServer:type=Metrics；
+#   -Dchat.metrics.port=0 关闭HTTP端点，-Dchat.metrics.host=0.0.0.0 允许远程抓取
+# 准入控制（速率为0表示不限制）: -Dchat.max.connections=10000 -Dchat.accept.backlog=1024
+#   -Dchat.accept.rate=1000 -Dchat.accept.burst=1000 每秒接受的新连接数
+#   -Dchat.user.msg.rate=50 -Dchat.user.msg.burst=100 -Dchat.user.bytes.rate=262144 -Dchat.user.bytes.burst=1048576
+#   每个用户的聊天消息配额，超出时回复 THROTTLED:客户端消息ID:重试等待毫秒数
+#   -Dchat.dispatch.max.depth=50000 分发分区积压超过该值时所有聊天消息回复THROTTLED
+# 优雅退出（kill/SIGTERM触发）: -Dchat.drain.timeout.ms=30000 退出期限，-Dchat.drain.spread.ms=5000 在线连接分批断开的时间窗口，
+#   -Dchat.resume.secret=... 或 -Dchat.resume.secret.file=resume.secret 恢复令牌的签名密钥
+# 压缩（登录时带 binary=1;deflate=1 的客户端）: -Dchat.compress.min.bytes=128 正文达到该字节数才压缩，
+#   -Dchat.compress.level=6 Deflate压缩级别；java CompressionBenchmark [预写日志目录] 对比不同阈值和级别的开销与收益
+# 写合并: 写线程把队列中已有的帧合并为一次写出，-Dchat.write.coalesce.bytes=32768 -Dchat.write.coalesce.frames=64
+#   -Dchat.write.coalesce.us=200 一批的字节数、帧数和编码耗时上限，coalesce.bytes=0 恢复每帧单独写出；
+#   指标 chat_write_syscalls_total / chat_write_frames_total 为平均每次写出的帧数，java WriteCoalescingBenchmark 对比合并前后
+# 会话恢复（二进制协议客户端重连时带 resume=令牌;last=会话ID:序列号,...）: -Dchat.resume.ring=128 每个会话在内存中保留的最近消息数，
+#   -Dchat.resume.ring.ttl.ms=600000 会话超过该时间没有新消息时释放，之后从预写日志补发；-Dchat.resume.max.frames=500 一次最多补发的消息数，
+#   -Dchat.resume.max.age.ms=86400000 令牌有效期，-Dchat.resume.recover.segments=8 启动时从预写日志最新的几段恢复会话序列号和最近消息
+# 聊天记录存储（二进制协议客户端登录时带 store=1，在聊天连接上拉取历史、标记已读、保存消息）: 需要SQLite驱动，
+#   把 sqlite-jdbc-*.jar 放在 lib/ 目录下；-Dchat.store.url=jdbc:sqlite:../db/messages.db 与API服务器共用的数据库，
+#   设为空关闭；-Dchat.store.queue=1024 存储线程最多排队的请求数，-Dchat.store.page.max=500 一页历史的最多条数
+#   登录时带 persist=1 的客户端发出的聊天消息由服务器保存（-Dchat.store.persist=false 关闭），先写入再投递，MSG/ACK带数据库ID；
+#   -Dchat.store.batch.max=256 一个事务最多写入的消息数，-Dchat.store.persist.max.pending=10000 等待保存的消息超过该值时按过载限流
+# NIO缓冲池（CHAT_ENGINE=nio）: 连接的读写缓冲区从事件循环的直接内存池借用，读完/写完后归还，空闲连接不占缓冲区；
+#   -Dchat.nio.buffer.pool=false 恢复每个连接一直持有堆缓冲区，-Dchat.nio.buffer.bytes=8192 每块大小，
+#   -Dchat.nio.buffer.slab.chunks=64 每次分配的块数，-Dchat.nio.buffer.pool.max.bytes=33554432 每个事件循环的池上限；
+#   java NioBufferBenchmark [连接数] 对比使用池前后的堆、直接内存、RSS和GC
+# 优先级通道: 分发分区和每个连接的出站队列分为控制（心跳应答、PING、在线状态、ACK）、交互（私聊）、批量（广播、历史）三条通道，
+#   -Dchat.lane.policy=weighted(默认，加权轮询)|strict(严格优先)，-Dchat.lane.weights=16,4,1 加权轮询时每轮各通道最多取出的条数；
+#   控制帧不受出站队列水位限制；指标 chat_dispatch_lane_wait_seconds / chat_outbound_lane_wait_seconds 按通道统计排队时间
+JVM_OPTS="-Xms256m -Xmx512m -XX:+UseG1GC -Dfile.encoding=UTF-8 -Dchat.engine=${CHAT_ENGINE:-blocking} -Dchat.threads=${CHAT_THREADS:-platform} ${CHAT_OPTS}"
 
 # 启动服务器
-nohup java $JVM_OPTS ChatServer > chat_server.log 2>&1 &
+nohup java -cp ".:lib/*" $JVM_OPTS ChatServer > chat_server.log 2>&1 &
 SERVER_PID=$!
 
 echo $SERVER_PID > chat_server.pid
@@ -55,7 +94,10 @@ if ps -p $SERVER_PID > /dev/null 2>&1; then
     echo "🎉 服务器启动成功！"
     echo "- 监听端口: 8888"
     echo "- 进程ID: $SERVER_PID"
+    echo "- 连接引擎: ${CHAT_ENGINE:-blocking}"
+    echo "- 线程模式: ${CHAT_THREADS:-platform}"
     echo "- 日志文件: chat_server.log"
+    echo "- 指标端点: http://127.0.0.1:9464/metrics"
     echo ""
     echo "🔧 主要优化:"
     echo "- ✅ 异步消息广播（解决实时同步问题）"
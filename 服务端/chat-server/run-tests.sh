@@ -0,0 +1,35 @@
+#!/bin/bash
+
+# 编译服务器和 test/ 目录下的单元测试（JUnit 5）并运行
+# 需要把 junit-platform-console-standalone-*.jar 放在 lib/ 目录下，与 sqlite-jdbc 相同
+# 用法: ./run-tests.sh [测试类名...]，不带参数时运行全部测试
+
+cd "$(dirname "$0")"
+
+JUNIT=$(ls lib/junit-platform-console-standalone-*.jar 2>/dev/null | head -n 1)
+if [ -z "$JUNIT" ]; then
+    echo "❌ 没有找到 lib/junit-platform-console-standalone-*.jar"
+    exit 1
+fi
+
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+echo "编译测试..."
+# 只编译测试用到的服务器类（-sourcepath），与 restart-server.sh 相同
+javac -encoding UTF-8 -d "$OUT" -cp "$JUNIT:lib/*" -sourcepath . test/*.java
+if [ $? -ne 0 ]; then
+    echo "❌ 编译失败"
+    exit 1
+fi
+
+if [ $# -gt 0 ]; then
+    SELECT=()
+    for name in "$@"; do
+        SELECT+=(--select-class "$name")
+    done
+else
+    SELECT=(--scan-classpath "$OUT")
+fi
+
+java -jar "$JUNIT" -cp "$OUT:lib/*" "${SELECT[@]}" --disable-banner
@@ -0,0 +1,118 @@
+#!/bin/bash
+
+# 在本机启动一个多节点聊天服务器集群，用于测试跨节点私聊转发和在线状态传播
+# 用法: ./start-cluster.sh [节点数] [起始客户端端口] [起始集群端口]
+# 默认3个节点：客户端端口8888、8889、8890，集群端口9888、9889、9890，指标端口9464、9465、9466
+# 每个节点的日志、离线存储和预写日志放在 cluster/node<ID> 目录下，PID写入 cluster/node<ID>.pid
+# 所有节点共用 cluster/resume.secret 签发会话恢复令牌，客户端重连到任一节点都能校验
+# 停止集群: ./start-cluster.sh stop
+# 滚动重启: ./start-cluster.sh restart [节点数] [起始客户端端口] [起始集群端口]
+#   逐个节点发SIGTERM优雅退出（停止接受连接、给客户端发RECONNECT、写完队列），
+#   等它退出后重新编译启动，端口可连接后再重启下一个节点
+
+cd "$(dirname "$0")"
+
+# 等待进程退出，最多等待DRAIN_WAIT秒（默认35，需大于chat.drain.timeout.ms）
+wait_exit() {
+    local PID=$1
+    for ((t = 0; t < ${DRAIN_WAIT:-35}; t++)); do
+        ps -p $PID > /dev/null 2>&1 || return 0
+        sleep 1
+    done
+    echo "⚠️ 进程 $PID 未在期限内退出，强制停止"
+    kill -9 $PID
+}
+
+stop_node() {
+    local PID_FILE="cluster/node$1.pid"
+    [ -f "$PID_FILE" ] || return 0
+    local PID=$(cat "$PID_FILE")
+    if ps -p $PID > /dev/null 2>&1; then
+        echo "正在停止节点$1 (PID: $PID)..."
+        kill $PID
+        wait_exit $PID
+    fi
+    rm -f "$PID_FILE"
+}
+
+if [ "$1" = "stop" ]; then
+    for PID_FILE in cluster/node*.pid; do
+        [ -f "$PID_FILE" ] || continue
+        NODE=$(basename "$PID_FILE" .pid)
+        stop_node "${NODE#node}" &
+    done
+    wait
+    exit 0
+fi
+
+ROLLING=false
+if [ "$1" = "restart" ]; then
+    ROLLING=true
+    shift
+fi
+
+NODES=${1:-3}
+CLIENT_PORT=${2:-8888}
+CLUSTER_PORT=${3:-9888}
+METRICS_PORT=${METRICS_PORT:-9464}
+
+echo "编译服务器..."
+javac -encoding UTF-8 ChatServer.java
+if [ $? -ne 0 ]; then
+    echo "❌ 编译失败"
+    exit 1
+fi
+
+SERVER_DIR=$(pwd)
+mkdir -p cluster
+
+start_node() {
+    local i=$1
+    # 对端为除自己以外的所有节点的集群端口
+    local PEERS=""
+    for ((j = 1; j <= NODES; j++)); do
+        if [ $j -ne $i ]; then
+            PEERS="${PEERS:+$PEERS,}localhost:$((CLUSTER_PORT + j - 1))"
+        fi
+    done
+
+    local NODE_DIR="cluster/node$i"
+    mkdir -p "$NODE_DIR"
+    local JVM_OPTS="-Xms256m -Xmx512m -XX:+UseG1GC -Dfile.encoding=UTF-8 -Dchat.server.id=$i \
+        -Dchat.port=$((CLIENT_PORT + i - 1)) -Dchat.cluster.port=$((CLUSTER_PORT + i - 1)) \
+        -Dchat.cluster.peers=$PEERS -Dchat.metrics.port=$((METRICS_PORT + i - 1)) -Dchat.engine=${CHAT_ENGINE:-blocking} \
+        -Dchat.resume.secret.file=$SERVER_DIR/cluster/resume.secret ${CHAT_OPTS}"
+    (cd "$NODE_DIR" && nohup java -cp "$SERVER_DIR" $JVM_OPTS ChatServer > chat_server.log 2>&1 & echo $! > "../node$i.pid")
+    echo "✅ 节点$i 已启动，客户端端口: $((CLIENT_PORT + i - 1))，集群端口: $((CLUSTER_PORT + i - 1))，对端: $PEERS"
+}
+
+# 等待节点的客户端端口可以连接
+wait_listening() {
+    local PORT=$1
+    for ((t = 0; t < 30; t++)); do
+        (exec 3<> /dev/tcp/127.0.0.1/$PORT) 2> /dev/null && return 0
+        sleep 1
+    done
+    echo "⚠️ 端口 $PORT 在30秒内没有开始监听"
+    return 1
+}
+
+# 第一个启动的节点生成恢复令牌密钥，其余节点读取同一个文件
+if [ ! -f cluster/resume.secret ]; then
+    head -c 32 /dev/urandom | base64 | tr '+/' '-_' | tr -d '=\n' > cluster/resume.secret
+fi
+
+for ((i = 1; i <= NODES; i++)); do
+    if [ "$ROLLING" = true ]; then
+        stop_node $i
+        start_node $i
+        wait_listening $((CLIENT_PORT + i - 1)) || exit 1
+    else
+        start_node $i
+    fi
+done
+
+echo ""
+echo "📊 查看节点日志: tail -f cluster/node1/chat_server.log"
+echo "🔁 滚动重启: ./start-cluster.sh restart $NODES $CLIENT_PORT $CLUSTER_PORT"
+echo "🛑 停止集群: ./start-cluster.sh stop"
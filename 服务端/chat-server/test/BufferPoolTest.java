@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓冲区池的借出、归还、上限和堆缓冲区回退
+ * 指标计数是所有池共用的，按前后差值断言
+ */
+class BufferPoolTest {
+
+    // 默认每个slab 64块
+    private static final long ONE_SLAB = (long) BufferPool.CHUNK_BYTES * 64;
+
+    @Test
+    void borrowedChunkIsDirectAndEmpty() {
+        long pooled = BufferPool.getPooledBytes();
+        long inUse = BufferPool.getChunksInUse();
+        BufferPool pool = new BufferPool(ONE_SLAB);
+
+        ByteBuffer chunk = pool.borrow(100);
+
+        assertTrue(chunk.isDirect());
+        assertEquals(BufferPool.CHUNK_BYTES, chunk.capacity());
+        assertEquals(0, chunk.position());
+        assertEquals(chunk.capacity(), chunk.limit());
+        assertEquals(ONE_SLAB, BufferPool.getPooledBytes() - pooled);
+        assertEquals(1, BufferPool.getChunksInUse() - inUse);
+
+        pool.release(chunk);
+        assertEquals(0, BufferPool.getChunksInUse() - inUse);
+    }
+
+    @Test
+    void releasedChunkIsClearedAndReused() {
+        BufferPool pool = new BufferPool(ONE_SLAB);
+        ByteBuffer chunk = pool.borrow(BufferPool.CHUNK_BYTES);
+        chunk.putInt(42).flip();
+
+        pool.release(chunk);
+        ByteBuffer again = pool.borrow(1);
+
+        assertSame(chunk, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    void chunksOfOneSlabDoNotOverlap() {
+        BufferPool pool = new BufferPool(ONE_SLAB);
+        ByteBuffer first = pool.borrow(1);
+        ByteBuffer second = pool.borrow(1);
+
+        for (int i = 0; i < BufferPool.CHUNK_BYTES; i++) {
+            first.put(i, (byte) 1);
+        }
+
+        assertNotSame(first, second);
+        for (int i = 0; i < BufferPool.CHUNK_BYTES; i++) {
+            assertEquals(0, second.get(i));
+        }
+    }
+
+    @Test
+    void requestLargerThanChunkFallsBackToHeap() {
+        long fallbacks = BufferPool.getHeapFallbacks();
+        BufferPool pool = new BufferPool(ONE_SLAB);
+
+        ByteBuffer large = pool.borrow(BufferPool.CHUNK_BYTES + 1);
+
+        assertFalse(large.isDirect());
+        assertEquals(BufferPool.CHUNK_BYTES + 1, large.capacity());
+        assertEquals(1, BufferPool.getHeapFallbacks() - fallbacks);
+        // 堆缓冲区直接丢弃，不进入池
+        long inUse = BufferPool.getChunksInUse();
+        pool.release(large);
+        pool.release(null);
+        assertEquals(inUse, BufferPool.getChunksInUse());
+    }
+
+    @Test
+    void exhaustedPoolFallsBackToHeap() {
+        long fallbacks = BufferPool.getHeapFallbacks();
+        BufferPool pool = new BufferPool(ONE_SLAB);
+        List<ByteBuffer> borrowed = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            borrowed.add(pool.borrow(1));
+            assertTrue(borrowed.get(i).isDirect());
+        }
+
+        ByteBuffer overflow = pool.borrow(1);
+        assertFalse(overflow.isDirect());
+        assertEquals(1, BufferPool.getHeapFallbacks() - fallbacks);
+
+        // 归还一块之后又能从池中借出
+        pool.release(borrowed.get(0));
+        ByteBuffer reused = pool.borrow(1);
+        assertTrue(reused.isDirect());
+        borrowed.set(0, reused);
+        for (ByteBuffer chunk : borrowed) {
+            pool.release(chunk);
+        }
+    }
+
+    @Test
+    void poolSmallerThanOneSlabNeverAllocates() {
+        long pooled = BufferPool.getPooledBytes();
+        BufferPool pool = new BufferPool(ONE_SLAB - 1);
+
+        assertFalse(pool.borrow(1).isDirect());
+        assertEquals(pooled, BufferPool.getPooledBytes());
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 集群用户目录随其他节点的上线、下线、换节点和完整列表更新
+ */
+class ClusterNodeTest {
+
+    // 在线状态回调：+用户名为上线，-用户名为下线
+    private final List<String> presence = new ArrayList<>();
+    private final ClusterNode node = new ClusterNode("n1", 0, List.of(), 1000, 16,
+        frame -> { }, (username, online) -> presence.add((online ? "+" : "-") + username), List::of);
+
+    @Test
+    void joinAndLeaveUpdateDirectory() {
+        node.remoteJoined("n2", "alice");
+        assertEquals("n2", node.nodeOf("alice"));
+
+        node.remoteLeft("n2", "alice");
+        assertNull(node.nodeOf("alice"));
+        assertEquals(List.of("+alice", "-alice"), presence);
+    }
+
+    @Test
+    void repeatedJoinIsReportedOnce() {
+        node.remoteJoined("n2", "alice");
+        node.remoteJoined("n2", "alice");
+
+        assertEquals(List.of("+alice"), presence);
+    }
+
+    @Test
+    void userMovingToAnotherNodeIsNotReportedOffline() {
+        node.remoteJoined("n2", "alice");
+        node.remoteJoined("n3", "alice");
+        // 旧节点的下线晚于新节点的上线到达
+        node.remoteLeft("n2", "alice");
+
+        assertEquals("n3", node.nodeOf("alice"));
+        assertEquals(List.of("+alice", "+alice"), presence);
+
+        // 旧节点之后的完整列表也不会把用户移走
+        node.remoteSnapshot("n2", "");
+        assertEquals("n3", node.nodeOf("alice"));
+    }
+
+    @Test
+    void snapshotAddsMissingAndRemovesStaleUsers() {
+        node.remoteJoined("n2", "alice");
+        node.remoteJoined("n2", "bob");
+        presence.clear();
+
+        node.remoteSnapshot("n2", "bob,carol");
+
+        assertNull(node.nodeOf("alice"));
+        assertEquals("n2", node.nodeOf("bob"));
+        assertEquals("n2", node.nodeOf("carol"));
+        assertEquals(List.of("-alice", "+carol"), presence);
+    }
+
+    @Test
+    void peerDisconnectTakesItsUsersOffline() {
+        node.remoteJoined("n2", "alice");
+        node.remoteJoined("n3", "bob");
+        presence.clear();
+
+        // 接收连接断开时按空列表处理
+        node.remoteSnapshot("n2", "");
+
+        assertNull(node.nodeOf("alice"));
+        assertEquals("n3", node.nodeOf("bob"));
+        assertEquals(List.of("-alice"), presence);
+    }
+
+    @Test
+    void noLinkForUnknownOrLocalUser() {
+        assertNull(node.linkFor("alice"));
+        // 没有到n2的链路
+        node.remoteJoined("n2", "alice");
+        assertNull(node.linkFor("alice"));
+    }
+
+    @Test
+    void readFrameDecodesStreamUntilEnd() throws IOException {
+        Frame hello = Frame.of(Frame.CLUSTER_HELLO, "n2");
+        ByteBuffer buffer = FrameCodecTest.encode(hello, Frame.BINARY_V1);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        Frame decoded = ClusterNode.readFrame(in);
+        assertEquals(Frame.CLUSTER_HELLO, decoded.type);
+        assertEquals("n2", decoded.body);
+        assertNull(ClusterNode.readFrame(in));
+
+        DataInputStream corrupt = new DataInputStream(new ByteArrayInputStream(new byte[] {0, 0, 0, 0}));
+        assertThrows(IOException.class, () -> ClusterNode.readFrame(corrupt));
+    }
+}
@@ -0,0 +1,265 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 二进制帧和文本行的编解码、正文压缩，以及共享帧的编码缓存
+ */
+class FrameCodecTest {
+
+    @Test
+    void binaryRoundTripKeepsAllFields() throws IOException {
+        Frame frame = new Frame(Frame.MSG, Frame.FLAG_STORED, 42, 7, 1700000000123L,
+            "alice_鲍勃", "alice", "鲍勃", "你好，world");
+
+        Frame decoded = FrameCodec.decode(encode(frame, Frame.BINARY_V1));
+
+        assertEquals(Frame.MSG, decoded.type);
+        assertEquals(Frame.FLAG_STORED, decoded.flags);
+        assertEquals(42, decoded.messageId);
+        assertEquals(7, decoded.sequence);
+        assertEquals(1700000000123L, decoded.timestamp);
+        assertEquals("alice_鲍勃", decoded.conversationId);
+        assertEquals("alice", decoded.sender);
+        assertEquals("鲍勃", decoded.receiver);
+        assertEquals("你好，world", decoded.body);
+    }
+
+    @Test
+    void fixedHeaderIs32BytesInFieldOrder() {
+        assertEquals(32, FrameCodec.FIXED_HEADER_BYTES);
+        Frame frame = new Frame(Frame.ACK, 0, 0x0102030405060708L, 9, 10, null, null, null, null);
+
+        ByteBuffer buffer = encode(frame, Frame.BINARY_V1);
+
+        // 头部之后是三个空字符串的u16长度
+        assertEquals(32 + 6, buffer.remaining());
+        assertEquals(32 + 6 - 4, buffer.getInt(0));
+        assertEquals(Frame.BINARY_V1, buffer.get(4));
+        assertEquals(Frame.ACK, buffer.get(5));
+        assertEquals(0, buffer.getShort(6));
+        assertEquals(0x0102030405060708L, buffer.getLong(8));
+        assertEquals(9, buffer.getLong(16));
+        assertEquals(10, buffer.getLong(24));
+        assertEquals(Frame.ACK, FrameCodec.peekType(buffer));
+    }
+
+    @Test
+    void encodedLengthMatchesBytesWritten() {
+        Frame[] frames = {
+            Frame.chat(1, 1, "alice_bob", "alice", "bob", "私聊", 1000),
+            Frame.chat(2, 1, "BROADCAST", "alice", null, "广播", 1000),
+            Frame.of(Frame.ERROR, "出错了"),
+            Frame.of(Frame.USERS, "alice,bob"),
+            new Frame(Frame.USER_JOIN, 0, 0, 3, 0, null, null, null, "carol"),
+            Frame.ack(11, Frame.chat(5, 2, "alice_bob", "alice", "bob", "x", 1000)),
+            Frame.throttled(12, 250),
+            Frame.control(Frame.HEARTBEAT_ACK),
+        };
+        for (Frame frame : frames) {
+            for (int version : new int[] {Frame.TEXT, Frame.BINARY_V1}) {
+                ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.encodedLength(frame, version) + 16);
+                FrameCodec.encode(frame, version, buffer);
+                assertEquals(FrameCodec.encodedLength(frame, version), buffer.position(),
+                    FrameCodec.typeName(frame.type) + " v" + version);
+            }
+        }
+    }
+
+    @Test
+    void textEncodingKeepsLegacyFormat() {
+        long timestamp = 1000;
+        String time = FrameCodec.timestampText(timestamp);
+
+        assertEquals("MSG:alice:bob:a:b:" + time + "\n",
+            text(Frame.chat(1, 1, "alice_bob", "alice", "bob", "a:b", timestamp)));
+        assertEquals("MSG:alice:hi:" + time + "\n",
+            text(Frame.chat(2, 1, "BROADCAST", "alice", null, "hi", timestamp)));
+        assertEquals("ACK:11:5\n", text(Frame.ack(11, Frame.chat(5, 2, "alice_bob", "alice", "bob", "x", timestamp))));
+        assertEquals("HEARTBEAT_ACK\n", text(Frame.control(Frame.HEARTBEAT_ACK)));
+    }
+
+    @Test
+    void reconnectHintKeepsDelayAndToken() throws IOException {
+        Frame reconnect = Frame.reconnect("YWxpY2U.1700000000000.1.c2ln", 2500);
+
+        // 客户端按 RECONNECT:等待毫秒数:令牌 拆分，令牌中没有冒号
+        assertEquals("RECONNECT:2500:YWxpY2U.1700000000000.1.c2ln\n", text(reconnect));
+        Frame decoded = FrameCodec.decode(encode(reconnect, Frame.BINARY_V1));
+        assertEquals(Frame.RECONNECT, decoded.type);
+        assertEquals(2500, decoded.timestamp);
+        assertEquals(reconnect.body, decoded.body);
+    }
+
+    @Test
+    void directBufferDecodesLikeHeapBuffer() throws IOException {
+        // 依次解码短字段、复用的暂存数组放不下的长正文，再回到短字段
+        String[] bodies = {"你好", "长".repeat(40000), "好的，world"};
+        for (String body : bodies) {
+            ByteBuffer heap = encode(Frame.chat(1, 2, "alice_鲍勃", "alice", "鲍勃", body, 1000), Frame.BINARY_V1);
+            ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining()).put(heap.duplicate()).flip();
+
+            Frame decoded = FrameCodec.decode(direct);
+
+            assertEquals("alice_鲍勃", decoded.conversationId);
+            assertEquals("鲍勃", decoded.receiver);
+            assertEquals(body, decoded.body);
+            assertEquals(0, direct.remaining());
+        }
+    }
+
+    @Test
+    void completeFrameLengthWaitsForWholeFrame() throws IOException {
+        ByteBuffer whole = encode(Frame.chat(1, 1, "alice_bob", "alice", "bob", "hello", 1000), Frame.BINARY_V1);
+        int length = whole.remaining();
+
+        ByteBuffer partial = whole.duplicate();
+        partial.limit(length - 1);
+        assertEquals(0, FrameCodec.completeFrameLength(partial));
+        partial.limit(3);
+        assertEquals(0, FrameCodec.completeFrameLength(partial));
+        assertEquals(length, FrameCodec.completeFrameLength(whole));
+
+        ByteBuffer oversized = ByteBuffer.allocate(4).putInt(0, FrameCodec.MAX_FRAME_BYTES + 1);
+        assertThrows(IOException.class, () -> FrameCodec.completeFrameLength(oversized));
+        ByteBuffer undersized = ByteBuffer.allocate(4).putInt(0, 10);
+        assertThrows(IOException.class, () -> FrameCodec.completeFrameLength(undersized));
+    }
+
+    @Test
+    void decodeRejectsUnknownVersion() {
+        ByteBuffer buffer = encode(Frame.control(Frame.HEARTBEAT), Frame.BINARY_V1);
+        buffer.put(4, (byte) 9);
+
+        assertThrows(IOException.class, () -> FrameCodec.decode(buffer));
+    }
+
+    @Test
+    void sharedEncodingIsCachedPerVersion() {
+        Frame frame = Frame.chat(1, 1, "BROADCAST", "alice", null, "大家好", 1000);
+
+        FrameCodec.Encoded binary = FrameCodec.sharedEncoding(frame, Frame.BINARY_V1);
+        FrameCodec.Encoded text = FrameCodec.sharedEncoding(frame, Frame.TEXT);
+
+        assertSame(binary, FrameCodec.sharedEncoding(frame, Frame.BINARY_V1));
+        assertSame(text, FrameCodec.sharedEncoding(frame, Frame.TEXT));
+        assertArrayEquals(bytes(encode(frame, Frame.BINARY_V1)), binary.bytes);
+        assertEquals(text(frame), new String(text.bytes, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void sharedEncodingViewsHaveIndependentPositions() {
+        FrameCodec.Encoded encoded = FrameCodec.sharedEncoding(
+            Frame.chat(1, 1, "BROADCAST", "alice", null, "hi", 1000), Frame.BINARY_V1);
+
+        ByteBuffer first = encoded.view();
+        ByteBuffer second = encoded.view();
+        first.position(first.limit());
+
+        assertEquals(0, second.position());
+        assertEquals(encoded.bytes.length, second.remaining());
+    }
+
+    @Test
+    void parsesTextCommandsWithClientIds() {
+        Frame privateMessage = FrameCodec.parseTextCommand("PRIVATE:12:bob:a:b", true);
+        assertEquals(Frame.PRIVATE, privateMessage.type);
+        assertEquals(12, privateMessage.messageId);
+        assertEquals("bob", privateMessage.receiver);
+        assertEquals("a:b", privateMessage.body);
+
+        Frame broadcast = FrameCodec.parseTextCommand("MSG:hello:world", false);
+        assertEquals(Frame.BROADCAST, broadcast.type);
+        assertEquals("hello:world", broadcast.body);
+
+        assertNull(FrameCodec.parseTextCommand("MSG:notanid:hello", true));
+        assertNull(FrameCodec.parseTextCommand("PRIVATE:bob", false));
+        assertNull(FrameCodec.parseTextCommand("UNKNOWN", false));
+    }
+
+    @Test
+    void compressedBodyRoundTrips() throws IOException {
+        String body = "今天上班好累啊，加班到现在，刚下班。".repeat(20);
+        Frame frame = new Frame(Frame.MSG, Frame.FLAG_STORED, 1, 2, 3, "alice_bob", "alice", "bob", body);
+
+        ByteBuffer buffer = encode(frame, true);
+
+        assertTrue(buffer.remaining() < FrameCodec.encodedLength(frame, Frame.BINARY_V1));
+        assertEquals(Frame.FLAG_STORED | Frame.FLAG_COMPRESSED, buffer.getShort(6));
+        assertEquals(buffer.remaining(), FrameCodec.completeFrameLength(buffer));
+        Frame decoded = FrameCodec.decode(buffer);
+        assertEquals(body, decoded.body);
+        assertEquals(Frame.FLAG_STORED, decoded.flags);
+        assertEquals("bob", decoded.receiver);
+    }
+
+    @Test
+    void shortBodiesAndTextFramesAreNotCompressed() {
+        Frame shortFrame = Frame.chat(1, 1, "alice_bob", "alice", "bob", "好的", 1000);
+        assertArrayEquals(bytes(encode(shortFrame, Frame.BINARY_V1)), bytes(encode(shortFrame, true)));
+
+        Frame longFrame = Frame.chat(1, 1, "alice_bob", "alice", "bob", "晚安，好梦。".repeat(40), 1000);
+        ByteBuffer text = ByteBuffer.allocate(FrameCodec.encodedLength(longFrame, Frame.TEXT));
+        FrameCodec.encode(longFrame, Frame.TEXT, true, text);
+        assertEquals(text(longFrame), new String(text.array(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void compressedSharedEncodingIsCachedSeparately() throws IOException {
+        Frame frame = Frame.chat(1, 1, "BROADCAST", "alice", null, "周末一起去看电影吧！".repeat(20), 1000);
+
+        FrameCodec.Encoded plain = FrameCodec.sharedEncoding(frame, Frame.BINARY_V1, false);
+        FrameCodec.Encoded compressed = FrameCodec.sharedEncoding(frame, Frame.BINARY_V1, true);
+
+        assertSame(compressed, FrameCodec.sharedEncoding(frame, Frame.BINARY_V1, true));
+        assertTrue(compressed.bytes.length < plain.bytes.length);
+        assertEquals(frame.body, FrameCodec.decode(compressed.view()).body);
+    }
+
+    @Test
+    void corruptOrOversizedCompressedBodyIsRejected() {
+        Frame frame = Frame.chat(1, 1, "alice_bob", "alice", "bob", "哈哈哈哈哈哈".repeat(30), 1000);
+        ByteBuffer corrupt = encode(frame, true);
+        corrupt.put(corrupt.limit() - 3, (byte) 0xFF).put(corrupt.limit() - 2, (byte) 0xFF);
+        assertThrows(IOException.class, () -> FrameCodec.decode(corrupt));
+
+        // 解压后超过单帧上限
+        Frame huge = Frame.chat(1, 1, "alice_bob", "alice", "bob", "a".repeat(FrameCodec.MAX_FRAME_BYTES + 1), 1000);
+        ByteBuffer bomb = encode(huge, true);
+        assertTrue(bomb.remaining() < FrameCodec.MAX_FRAME_BYTES);
+        assertThrows(IOException.class, () -> FrameCodec.decode(bomb));
+    }
+
+    static ByteBuffer encode(Frame frame, int version) {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.encodedLength(frame, version));
+        FrameCodec.encode(frame, version, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer encode(Frame frame, boolean compress) {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.encodedLength(frame, Frame.BINARY_V1));
+        FrameCodec.encode(frame, Frame.BINARY_V1, compress, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String text(Frame frame) {
+        return new String(bytes(encode(frame, Frame.TEXT)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 时间轮任务的到期、跨圈和取消
+ */
+class HashedTimingWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    // 8个槽，一圈80毫秒
+    private static final int SLOTS = 8;
+
+    private HashedTimingWheel wheel;
+    private Thread thread;
+
+    @BeforeEach
+    void start() {
+        wheel = new HashedTimingWheel(TICK_MILLIS, SLOTS);
+        thread = new Thread(wheel, "timing-wheel-test");
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        wheel.stop();
+        thread.join();
+    }
+
+    @Test
+    void taskRunsNoEarlierThanItsDelay() throws InterruptedException {
+        assertRunsAfter(50);
+    }
+
+    @Test
+    void taskLongerThanOneRoundWaitsForRemainingRounds() throws InterruptedException {
+        assertRunsAfter(3 * SLOTS * TICK_MILLIS + 15);
+    }
+
+    @Test
+    void tasksExpireInDeadlineOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        for (int delay : new int[] {120, 40, 80}) {
+            wheel.schedule(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay);
+        }
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(40, 80, 120), order);
+    }
+
+    @Test
+    void cancelledTaskDoesNotRun() throws InterruptedException {
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch later = new CountDownLatch(1);
+        HashedTimingWheel.Timeout cancelled = wheel.schedule(() -> ran.add("cancelled"), 30);
+        wheel.schedule(later::countDown, 60);
+        cancelled.cancel();
+
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(), ran);
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        CountDownLatch next = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("任务失败");
+        }, 10);
+        wheel.schedule(next::countDown, 40);
+
+        assertTrue(next.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void pastDeadlineRunsOnNextTick() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(done::countDown, -100);
+
+        assertTrue(done.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void rejectsInvalidTickOrSlots() {
+        assertThrows(IllegalArgumentException.class, () -> new HashedTimingWheel(0, 8));
+        assertThrows(IllegalArgumentException.class, () -> new HashedTimingWheel(10, 0));
+    }
+
+    private void assertRunsAfter(long delayMillis) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long[] ranAt = new long[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            ranAt[0] = System.nanoTime();
+            done.countDown();
+        }, delayMillis);
+
+        assertTrue(done.await(delayMillis + 2000, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(ranAt[0] - start);
+        // schedule按currentTimeMillis计算到期时间，允许1毫秒的时钟取整误差
+        assertTrue(elapsedMillis >= delayMillis - 1, "提前执行: " + elapsedMillis + "ms");
+    }
+}
@@ -0,0 +1,188 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分道队列的通道内顺序、加权轮询、严格优先级和尾部元素
+ * 策略和权重通过构造参数指定，不依赖chat.lane.*系统属性
+ */
+class LaneQueueTest {
+
+    private static final int[] WEIGHTS = {16, 4, 1};
+
+    @Test
+    void eachLaneIsFirstInFirstOut() {
+        LaneQueue<String> queue = new LaneQueue<>(null);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(LaneQueue.INTERACTIVE, "i" + i);
+        }
+
+        assertEquals(List.of("i0", "i1", "i2", "i3", "i4"), drain(queue, 5));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void weightedRoundTakesSixteenFourOne() {
+        LaneQueue<String> queue = new LaneQueue<>(null, false, WEIGHTS);
+        for (int i = 0; i < 40; i++) {
+            queue.offer(LaneQueue.BULK, "b");
+            queue.offer(LaneQueue.INTERACTIVE, "i");
+            queue.offer(LaneQueue.CONTROL, "c");
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            expected.addAll(repeat("c", 16));
+            expected.addAll(repeat("i", 4));
+            expected.add("b");
+        }
+        assertEquals(expected, drain(queue, 42));
+    }
+
+    @Test
+    void bulkLaneIsNotStarvedByInteractiveBacklog() {
+        LaneQueue<String> queue = new LaneQueue<>(null, false, WEIGHTS);
+        for (int i = 0; i < 20; i++) {
+            queue.offer(LaneQueue.INTERACTIVE, "i");
+        }
+        queue.offer(LaneQueue.BULK, "b");
+
+        assertEquals(List.of("i", "i", "i", "i", "b"), drain(queue, 5));
+    }
+
+    @Test
+    void customWeightsSetRoundShares() {
+        LaneQueue<String> queue = new LaneQueue<>(null, false, new int[] {2, 1, 3});
+        for (int i = 0; i < 6; i++) {
+            queue.offer(LaneQueue.BULK, "b");
+            queue.offer(LaneQueue.INTERACTIVE, "i");
+            queue.offer(LaneQueue.CONTROL, "c");
+        }
+
+        assertEquals(List.of("c", "c", "i", "b", "b", "b", "c", "c", "i", "b", "b", "b"), drain(queue, 12));
+    }
+
+    @Test
+    void invalidWeightsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new LaneQueue<String>(null, false, new int[] {1, 1}));
+        assertThrows(IllegalArgumentException.class, () -> new LaneQueue<String>(null, false, new int[] {1, 0, 1}));
+    }
+
+    @Test
+    void strictPolicyAlwaysTakesHighestLane() {
+        LaneQueue<String> queue = new LaneQueue<>(null, true, WEIGHTS);
+        queue.offer(LaneQueue.BULK, "b");
+        queue.offer(LaneQueue.INTERACTIVE, "i");
+        for (int i = 0; i < 20; i++) {
+            queue.offer(LaneQueue.CONTROL, "c");
+        }
+
+        List<String> expected = new ArrayList<>(repeat("c", 20));
+        expected.add("i");
+        expected.add("b");
+        assertEquals(expected, drain(queue, 22));
+    }
+
+    @Test
+    void strictPolicyStarvesBulkWhileInteractiveIsBacklogged() {
+        LaneQueue<String> queue = new LaneQueue<>(null, true, WEIGHTS);
+        for (int i = 0; i < 20; i++) {
+            queue.offer(LaneQueue.INTERACTIVE, "i");
+        }
+        queue.offer(LaneQueue.BULK, "b");
+
+        assertEquals(repeat("i", 20), drain(queue, 20));
+        assertEquals("b", queue.poll());
+    }
+
+    @Test
+    void tailItemComesAfterAllLanes() {
+        LaneQueue<String> queue = new LaneQueue<>(null);
+        queue.offer(LaneQueue.BULK, "b");
+        queue.offerLast("closed");
+        queue.offer(LaneQueue.CONTROL, "c");
+
+        assertEquals(2, queue.size());
+        assertEquals(List.of("c", "b", "closed"), drain(queue, 3));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void clearRemovesLanesAndTail() {
+        LaneQueue<String> queue = new LaneQueue<>(null);
+        queue.offer(LaneQueue.CONTROL, "c");
+        queue.offer(LaneQueue.BULK, "b");
+        queue.offerLast("closed");
+
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void takeWaitsForOffer() throws InterruptedException {
+        LaneQueue<String> queue = new LaneQueue<>(null);
+        CountDownLatch taken = new CountDownLatch(1);
+        String[] item = new String[1];
+        Thread taker = new Thread(() -> {
+            try {
+                item[0] = queue.take();
+                taken.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        taker.start();
+
+        assertFalse(taken.await(50, TimeUnit.MILLISECONDS));
+        queue.offer(LaneQueue.BULK, "b");
+        assertTrue(taken.await(2, TimeUnit.SECONDS));
+        assertEquals("b", item[0]);
+        taker.join();
+    }
+
+    @Test
+    void waitIsRecordedPerLane() {
+        Metrics.Histogram[] waits = new Metrics.Histogram[LaneQueue.LANES];
+        for (int i = 0; i < LaneQueue.LANES; i++) {
+            waits[i] = new Metrics.Histogram(1e-9);
+        }
+        LaneQueue<String> queue = new LaneQueue<>(waits);
+        queue.offer(LaneQueue.CONTROL, "c");
+        queue.offer(LaneQueue.BULK, "b1");
+        queue.offer(LaneQueue.BULK, "b2");
+        queue.offerLast("closed");
+
+        drain(queue, 4);
+
+        assertEquals(1, waits[LaneQueue.CONTROL].snapshot().count);
+        assertEquals(0, waits[LaneQueue.INTERACTIVE].snapshot().count);
+        assertEquals(2, waits[LaneQueue.BULK].snapshot().count);
+    }
+
+    private static List<String> drain(LaneQueue<String> queue, int count) {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(queue.poll());
+        }
+        return items;
+    }
+
+    private static List<String> repeat(String item, int count) {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(item);
+        }
+        return items;
+    }
+}
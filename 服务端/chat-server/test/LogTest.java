@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 日志环形缓冲区的发布顺序、满时丢弃计数，以及按条采样
+ */
+class LogTest {
+
+    @Test
+    void capacityIsPowerOfTwoAtLeast1024() {
+        assertEquals(1024, new Log.Ring(1).capacity());
+        assertEquals(2048, new Log.Ring(1025).capacity());
+        assertEquals(65536, new Log.Ring(65536).capacity());
+    }
+
+    @Test
+    void eventsAreConsumedInOfferOrder() {
+        Log.Ring ring = new Log.Ring(1024);
+        assertNull(ring.peek());
+
+        ring.offer(Log.INFO, "第{}条", 1, null, null);
+        ring.offer(Log.WARN, "第{}条", 2, null, null);
+
+        Log.Event first = ring.peek();
+        assertEquals(Log.INFO, first.level);
+        assertEquals(1, first.a);
+        ring.release(first);
+        // 释放后不再持有参数
+        assertNull(first.a);
+        Log.Event second = ring.peek();
+        assertEquals(Log.WARN, second.level);
+        assertEquals(2, second.a);
+        ring.release(second);
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void fullRingDropsNewEventsAndCountsThem() {
+        Log.Ring ring = new Log.Ring(1024);
+        for (int i = 0; i < 1024; i++) {
+            assertTrue(ring.offer(Log.INFO, "{}", i, null, null));
+        }
+
+        assertFalse(ring.offer(Log.INFO, "溢出", null, null, null));
+        assertFalse(ring.offer(Log.INFO, "溢出", null, null, null));
+        assertEquals(2, ring.getDropped());
+
+        // 消费一条后腾出一个槽，最早的日志没有被覆盖
+        Log.Event oldest = ring.peek();
+        assertEquals(0, oldest.a);
+        ring.release(oldest);
+        assertTrue(ring.offer(Log.INFO, "{}", 1024, null, null));
+        assertEquals(2, ring.getDropped());
+    }
+
+    @Test
+    void concurrentProducersLoseNothingBelowCapacity() throws Exception {
+        Log.Ring ring = new Log.Ring(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        ring.offer(Log.INFO, "{}", i, null, null);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        int consumed = 0;
+        Log.Event event;
+        while ((event = ring.peek()) != null) {
+            ring.release(event);
+            consumed++;
+        }
+        assertEquals(4000, consumed);
+        assertEquals(0, ring.getDropped());
+    }
+
+    @Test
+    void samplerPassesEveryNthCall() {
+        Log.Sampler sampler = new Log.Sampler(3);
+        List<Boolean> results = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            results.add(sampler.sample());
+        }
+
+        assertEquals(List.of(false, false, true, false, false, true, false), results);
+    }
+
+    @Test
+    void zeroSampleRateNeverPasses() {
+        Log.Sampler sampler = new Log.Sampler(0);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(sampler.sample());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分区分发器：同一会话按入队顺序在同一分区线程上处理
+ */
+class MessageDispatcherTest {
+
+    private static final int PARTITIONS = 4;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(PARTITIONS);
+    private MessageDispatcher dispatcher;
+
+    @AfterEach
+    void stop() {
+        dispatcher.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void tasksWithSameKeyAreHandledInOrderOnOneThread() {
+        Map<String, List<String>> bodies = new ConcurrentHashMap<>();
+        Map<String, Set<String>> threads = new ConcurrentHashMap<>();
+        start(task -> {
+            String key = task.frame.conversationId;
+            // 同一个key只由一个线程处理，列表不需要同步
+            bodies.computeIfAbsent(key, k -> new ArrayList<>()).add(task.frame.body);
+            threads.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "conversation-" + (i % 10);
+            dispatcher.dispatch(key, LaneQueue.INTERACTIVE, task(key, Integer.toString(i)));
+        }
+
+        assertTrue(dispatcher.awaitIdle(deadline()));
+        assertEquals(10, bodies.size());
+        for (int k = 0; k < 10; k++) {
+            String key = "conversation-" + k;
+            List<String> expected = new ArrayList<>();
+            for (int i = k; i < 1000; i += 10) {
+                expected.add(Integer.toString(i));
+            }
+            assertEquals(expected, bodies.get(key), key);
+            assertEquals(1, threads.get(key).size(), key);
+        }
+    }
+
+    @Test
+    void partitionKeepsRunningAfterHandlerException() {
+        List<String> handled = new ArrayList<>();
+        start(task -> {
+            if (task.frame.body.equals("bad")) {
+                throw new IllegalStateException("处理失败");
+            }
+            synchronized (handled) {
+                handled.add(task.frame.body);
+            }
+        });
+
+        dispatcher.dispatch("a", LaneQueue.INTERACTIVE, task("a", "bad"));
+        dispatcher.dispatch("a", LaneQueue.INTERACTIVE, task("a", "good"));
+
+        assertTrue(dispatcher.awaitIdle(deadline()));
+        assertEquals(List.of("good"), handled);
+        long processed = 0;
+        for (MessageDispatcher.PartitionStats stats : dispatcher.snapshot()) {
+            processed += stats.processed;
+        }
+        assertEquals(2, processed);
+    }
+
+    @Test
+    void awaitIdleTimesOutWhileTaskIsRunning() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        start(task -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        dispatcher.dispatch("a", LaneQueue.INTERACTIVE, task("a", "slow"));
+
+        assertFalse(dispatcher.awaitIdle(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50)));
+        release.countDown();
+        assertTrue(dispatcher.awaitIdle(deadline()));
+    }
+
+    @Test
+    void sameKeyAlwaysMapsToSamePartition() {
+        dispatcher = new MessageDispatcher(PARTITIONS, task -> { });
+        for (int i = 0; i < 100; i++) {
+            String key = "user" + i + "_user" + (i + 1);
+            int partition = dispatcher.partitionOf(key);
+            assertTrue(partition >= 0 && partition < PARTITIONS);
+            assertEquals(partition, dispatcher.partitionOf(new String(key)));
+        }
+    }
+
+    private void start(Consumer<ChatServer.MessageTask> handler) {
+        dispatcher = new MessageDispatcher(PARTITIONS, handler);
+        dispatcher.start(executor);
+    }
+
+    private static ChatServer.MessageTask task(String conversationId, String body) {
+        Frame frame = Frame.chat(1, 0, conversationId, "alice", "bob", body, 0);
+        return new ChatServer.MessageTask(ChatServer.MessageTask.Type.PRIVATE, frame, "bob");
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 消息ID和会话序列号的唯一性、连续性和重启恢复
+ */
+class MessageSequencerTest {
+
+    @Test
+    void sequencesStartAtOneAndArePerConversation() {
+        MessageSequencer sequencer = new MessageSequencer(1);
+
+        assertEquals(0, sequencer.currentSequence("alice_bob"));
+        assertEquals(1, sequencer.nextSequence("alice_bob"));
+        assertEquals(2, sequencer.nextSequence("alice_bob"));
+        assertEquals(1, sequencer.nextSequence("BROADCAST"));
+        assertEquals(2, sequencer.currentSequence("alice_bob"));
+        assertEquals(2, sequencer.getConversationCount());
+    }
+
+    @Test
+    void concurrentSequencesAreGapFreeAndUnique() throws Exception {
+        MessageSequencer sequencer = new MessageSequencer(1);
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        seen.add(sequencer.nextSequence("hot"));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(80000, seen.size());
+        assertEquals(80000, sequencer.currentSequence("hot"));
+    }
+
+    @Test
+    void messageIdsIncreaseAndCarryServerId() {
+        MessageSequencer sequencer = new MessageSequencer(5);
+        Set<Long> ids = new HashSet<>();
+        long last = 0;
+        // 同一毫秒内远超4096条，借用之后的时间也不重复
+        for (int i = 0; i < 20000; i++) {
+            long id = sequencer.nextMessageId();
+            assertTrue(id > last);
+            assertEquals(5, id & 1023);
+            ids.add(id);
+            last = id;
+        }
+        assertEquals(20000, ids.size());
+    }
+
+    @Test
+    void restoreContinuesAfterHighestLoggedSequence() {
+        MessageSequencer sequencer = new MessageSequencer(1);
+
+        sequencer.restore("alice_bob", 41);
+        sequencer.restore("alice_bob", 17);
+
+        assertEquals(41, sequencer.currentSequence("alice_bob"));
+        assertEquals(42, sequencer.nextSequence("alice_bob"));
+    }
+
+    @Test
+    void rejectsServerIdOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageSequencer(0));
+        assertThrows(IllegalArgumentException.class, () -> new MessageSequencer(1024));
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 离线消息的分段写入、确认、压缩和重启恢复
+ */
+class OfflineStoreTest {
+
+    // 测试消息的接收者名和正文等长（最多9条），每条记录的字节数相同
+    private static final int RECORD_BYTES = 13 + FrameCodec.encodedLength(message("bob", 1), Frame.BINARY_V1);
+    // 每段正好放下3条记录和4字节结束标记
+    private static final int SEGMENT_BYTES = 3 * RECORD_BYTES + 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void fullSegmentsRollOverAndReceiversKeepTheirOrder() throws IOException {
+        OfflineStore store = new OfflineStore(directory, SEGMENT_BYTES);
+        for (int i = 1; i <= 8; i++) {
+            String receiver = i % 2 == 0 ? "bob" : "eve";
+            store.append(receiver, message(receiver, i));
+        }
+
+        assertEquals(3, store.segmentCount());
+        assertEquals(8, store.pendingTotal());
+        assertEquals(List.of("m2", "m4", "m6", "m8"), bodies(store.peek("bob", 10)));
+        assertEquals(List.of("m1", "m3"), bodies(store.peek("eve", 2)));
+        assertEquals(List.of(), store.peek("dave", 10));
+        store.close();
+    }
+
+    @Test
+    void ackRemovesOldestAndDeletesDrainedSegments() throws IOException {
+        OfflineStore store = new OfflineStore(directory, SEGMENT_BYTES);
+        for (int i = 1; i <= 7; i++) {
+            store.append("bob", message("bob", i));
+        }
+        assertEquals(3, store.segmentCount());
+
+        // 前两段的6条全部确认后删除，当前段保留
+        store.ack("bob", 6);
+
+        assertEquals(1, store.segmentCount());
+        assertEquals(1, store.pendingCount("bob"));
+        assertEquals(List.of("m7"), bodies(store.peek("bob", 10)));
+        store.ack("bob", 5);
+        assertEquals(0, store.pendingTotal());
+        store.close();
+    }
+
+    @Test
+    void recoveryRestoresPendingMessagesInWriteOrder() throws IOException {
+        OfflineStore store = new OfflineStore(directory, SEGMENT_BYTES);
+        for (int i = 1; i <= 8; i++) {
+            String receiver = i <= 4 ? "bob" : "eve";
+            store.append(receiver, message(receiver, i));
+        }
+        store.ack("bob", 2);
+        store.close();
+
+        OfflineStore recovered = new OfflineStore(directory, SEGMENT_BYTES);
+        assertEquals(6, recovered.pendingTotal());
+        assertEquals(List.of("m3", "m4"), bodies(recovered.peek("bob", 10)));
+        assertEquals(List.of("m5", "m6", "m7", "m8"), bodies(recovered.peek("eve", 10)));
+
+        // 恢复后继续追加，记录号接着之前的
+        recovered.append("bob", message("bob", 9));
+        recovered.close();
+        OfflineStore again = new OfflineStore(directory, SEGMENT_BYTES);
+        assertEquals(List.of("m3", "m4", "m9"), bodies(again.peek("bob", 10)));
+        again.close();
+    }
+
+    @Test
+    void compactMovesSparseSegmentsWithoutReordering() throws IOException {
+        // 每段4条，只剩一条待投递的旧段满足压缩条件（不超过四分之一）
+        int segmentBytes = 4 * RECORD_BYTES + 4;
+        OfflineStore store = new OfflineStore(directory, segmentBytes);
+        // 第1段：eve bob bob bob，第2段：bob bob bob eve，第3段：bob
+        String[] receivers = {"eve", "bob", "bob", "bob", "bob", "bob", "bob", "eve", "bob"};
+        for (int i = 0; i < receivers.length; i++) {
+            store.append(receivers[i], message(receivers[i], i + 1));
+        }
+        store.ack("bob", 6);
+        assertEquals(3, store.segmentCount());
+
+        store.compact();
+
+        assertEquals(1, store.segmentCount());
+        assertEquals(List.of("m1", "m8"), bodies(store.peek("eve", 10)));
+        assertEquals(List.of("m9"), bodies(store.peek("bob", 10)));
+        store.close();
+
+        OfflineStore recovered = new OfflineStore(directory, segmentBytes);
+        assertEquals(List.of("m1", "m8"), bodies(recovered.peek("eve", 10)));
+        assertEquals(List.of("m9"), bodies(recovered.peek("bob", 10)));
+        assertEquals(3, recovered.pendingTotal());
+        recovered.close();
+    }
+
+    @Test
+    void rejectsMessageLargerThanSegment() throws IOException {
+        OfflineStore store = new OfflineStore(directory, SEGMENT_BYTES);
+
+        Frame large = Frame.chat(1, 1, "alice_bob", "alice", "bob", "x".repeat(SEGMENT_BYTES), 1000);
+        assertThrows(IOException.class, () -> store.append("bob", large));
+        store.close();
+    }
+
+    private static Frame message(String receiver, int i) {
+        return Frame.chat(i, i, "alice_" + receiver, "alice", receiver, "m" + i, 1000L + i);
+    }
+
+    private static List<String> bodies(List<Frame> frames) {
+        List<String> bodies = new ArrayList<>();
+        for (Frame frame : frames) {
+            bodies.add(frame.body);
+        }
+        return bodies;
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 出站队列的高低水位、慢消费者策略、通道优先级和关闭标记
+ */
+class OutboundQueueTest {
+
+    private static final int HIGH = 10;
+    private static final int LOW = 3;
+
+    @Test
+    void slowConsumerIsDisconnectedAtHighWatermark() {
+        OutboundQueue queue = new OutboundQueue(HIGH, LOW, true);
+        fill(queue, HIGH);
+
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(message(0)));
+        assertEquals(HIGH, queue.depth());
+        assertEquals(HIGH, queue.getMaxDepth());
+    }
+
+    @Test
+    void dropPolicyDropsUntilLowWatermark() {
+        OutboundQueue queue = new OutboundQueue(HIGH, LOW, false);
+        fill(queue, HIGH);
+
+        assertEquals(OutboundQueue.Result.START_DROPPING, queue.offer(message(0)));
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer(message(0)));
+        assertEquals(2, queue.getDroppedCount());
+
+        // 写出到低水位之后恢复入队
+        while (queue.depth() > LOW) {
+            queue.poll();
+        }
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(message(0)));
+        assertEquals(LOW + 1, queue.depth());
+    }
+
+    @Test
+    void finishWritesQueuedFramesBeforeMarker() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(message(1));
+        queue.offer(message(2));
+
+        queue.finish();
+        // 关闭标记之后入队的帧不再写出
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(message(3)));
+
+        assertEquals(1, queue.poll().messageId);
+        assertEquals(2, queue.poll().messageId);
+        assertSame(OutboundQueue.CLOSED, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void finishOutputUsesShutdownMarker() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(message(1));
+
+        queue.finishOutput();
+
+        assertEquals(1, queue.poll().messageId);
+        assertSame(OutboundQueue.SHUTDOWN_OUTPUT, queue.poll());
+    }
+
+    @Test
+    void closeDiscardsQueuedFrames() {
+        OutboundQueue queue = new OutboundQueue();
+        fill(queue, 10);
+
+        queue.close();
+
+        assertEquals(0, queue.depth());
+        assertSame(OutboundQueue.CLOSED, queue.poll());
+    }
+
+    @Test
+    void controlFramesAndAcksBypassWatermark() {
+        for (boolean disconnect : new boolean[] {true, false}) {
+            OutboundQueue queue = new OutboundQueue(HIGH, LOW, disconnect);
+            fill(queue, HIGH);
+
+            assertEquals(OutboundQueue.Result.QUEUED, queue.offer(Frame.control(Frame.HEARTBEAT_ACK)));
+            assertEquals(OutboundQueue.Result.QUEUED, queue.offer(Frame.ack(7, message(0))));
+            assertEquals(HIGH + 2, queue.depth());
+            // 旁路的帧不改变丢弃状态，也不计入最大深度
+            assertFalse(queue.isDropping());
+            assertEquals(HIGH, queue.getMaxDepth());
+        }
+    }
+
+    @Test
+    void controlFramesOvertakeQueuedBroadcasts() {
+        OutboundQueue queue = new OutboundQueue();
+        for (int i = 1; i <= 3; i++) {
+            queue.offer(Frame.chat(i, i, "BROADCAST", "alice", null, "b" + i, 1000));
+        }
+        queue.offer(Frame.control(Frame.HEARTBEAT_ACK));
+
+        assertEquals(Frame.HEARTBEAT_ACK, queue.poll().type);
+        assertEquals("b1", queue.poll().body);
+    }
+
+    @Test
+    void ackStaysBehindMessagesOfItsConversation() {
+        OutboundQueue queue = new OutboundQueue();
+        Frame sent = message(2);
+        queue.offer(message(1));
+        queue.offer(Frame.ack(9, sent));
+        queue.offer(Frame.chat(3, 1, "BROADCAST", "alice", null, "b", 1000));
+
+        // 私聊的ACK与私聊消息同在交互通道，不会越过之前的私聊
+        assertEquals(1, queue.poll().messageId);
+        assertEquals(Frame.ACK, queue.poll().type);
+        assertEquals("b", queue.poll().body);
+    }
+
+    private static void fill(OutboundQueue queue, int count) {
+        for (int i = 1; i <= count; i++) {
+            assertEquals(OutboundQueue.Result.QUEUED, queue.offer(message(i)));
+        }
+    }
+
+    private static Frame message(long id) {
+        return Frame.chat(id, id, "alice_bob", "alice", "bob", "m" + id, 1000);
+    }
+}
@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在线状态的合并窗口、版本号增量和快照一致性
+ */
+class PresenceTrackerTest {
+
+    private final List<PresenceTracker.Update> updates = new ArrayList<>();
+
+    @Test
+    void changesArePublishedImmediatelyWithoutWindow() {
+        PresenceTracker tracker = new PresenceTracker(0, null, updates::add);
+
+        tracker.joined("bob");
+        tracker.joined("alice");
+        tracker.left("bob");
+
+        assertEquals(3, updates.size());
+        assertDelta(updates.get(0).deltas.get(0), Frame.USER_JOIN, 1, "bob");
+        assertDelta(updates.get(1).deltas.get(0), Frame.USER_JOIN, 2, "alice");
+        assertDelta(updates.get(2).deltas.get(0), Frame.USER_LEAVE, 3, "bob");
+        assertEquals("alice,bob", updates.get(1).fullList.body);
+        assertEquals("alice", updates.get(2).fullList.body);
+    }
+
+    @Test
+    void redundantChangesDoNotAdvanceVersion() {
+        PresenceTracker tracker = new PresenceTracker(0, null, updates::add);
+
+        tracker.joined("alice");
+        tracker.joined("alice");
+        tracker.left("bob");
+
+        assertEquals(1, updates.size());
+        assertEquals(1, tracker.getVersion());
+    }
+
+    @Test
+    void windowKeepsOnlyFinalStatePerUser() {
+        // 时间轮不运行，窗口结束由测试调用flush模拟
+        PresenceTracker tracker = new PresenceTracker(60000, new HashedTimingWheel(100, 8), updates::add);
+        tracker.joined("alice");
+        tracker.flush();
+        updates.clear();
+
+        tracker.left("alice");
+        tracker.joined("carol");
+        tracker.joined("bob");
+        tracker.left("carol");
+        tracker.joined("alice");
+        assertEquals(0, updates.size());
+
+        tracker.flush();
+
+        // alice下线又上线、carol上线又下线都与已发布状态相同，只剩bob
+        assertEquals(1, updates.size());
+        assertEquals(1, updates.get(0).deltas.size());
+        assertDelta(updates.get(0).deltas.get(0), Frame.USER_JOIN, 2, "bob");
+        assertEquals("alice,bob", updates.get(0).fullList.body);
+    }
+
+    @Test
+    void deltasOfOneWindowHaveConsecutiveVersions() {
+        PresenceTracker tracker = new PresenceTracker(60000, new HashedTimingWheel(100, 8), updates::add);
+        tracker.joined("alice");
+        tracker.joined("bob");
+        tracker.joined("carol");
+
+        tracker.flush();
+
+        List<Frame> deltas = updates.get(0).deltas;
+        assertEquals(3, deltas.size());
+        assertDelta(deltas.get(0), Frame.USER_JOIN, 1, "alice");
+        assertDelta(deltas.get(1), Frame.USER_JOIN, 2, "bob");
+        assertDelta(deltas.get(2), Frame.USER_JOIN, 3, "carol");
+    }
+
+    @Test
+    void snapshotMatchesPublishedStateOnly() {
+        PresenceTracker tracker = new PresenceTracker(60000, new HashedTimingWheel(100, 8), updates::add);
+        tracker.joined("bob");
+        tracker.joined("alice");
+        tracker.flush();
+        tracker.left("bob");
+
+        // 窗口内未发布的变化不出现在快照中，快照的版本号与内容对应
+        Frame snapshot = tracker.snapshot();
+        assertEquals(Frame.USERS_SNAPSHOT, snapshot.type);
+        assertEquals(2, snapshot.sequence);
+        assertEquals("alice,bob", snapshot.body);
+
+        tracker.flush();
+        snapshot = tracker.snapshot();
+        assertEquals(3, snapshot.sequence);
+        assertEquals("alice", snapshot.body);
+    }
+
+    @Test
+    void windowIsFlushedByTimingWheel() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel(10, 8);
+        Thread thread = new Thread(wheel, "presence-test-wheel");
+        thread.start();
+        try {
+            CountDownLatch published = new CountDownLatch(1);
+            List<PresenceTracker.Update> received = new ArrayList<>();
+            PresenceTracker tracker = new PresenceTracker(30, wheel, update -> {
+                received.add(update);
+                published.countDown();
+            });
+            tracker.joined("alice");
+            tracker.joined("bob");
+
+            assertTrue(published.await(2, TimeUnit.SECONDS));
+            assertEquals(2, tracker.getVersion());
+            assertEquals(2, received.get(0).deltas.size());
+        } finally {
+            wheel.stop();
+            thread.join();
+        }
+    }
+
+    private static void assertDelta(Frame delta, byte type, long version, String username) {
+        assertEquals(type, delta.type);
+        assertEquals(version, delta.sequence);
+        assertEquals(username, delta.body);
+    }
+}
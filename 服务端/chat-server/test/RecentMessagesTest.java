@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 断线重连补发所用的最近消息环：覆盖判断、环形覆盖和过期
+ */
+class RecentMessagesTest {
+
+    @Test
+    void collectsMessagesAfterSequence() {
+        RecentMessages recent = new RecentMessages(10, 60000);
+        for (int i = 1; i <= 5; i++) {
+            recent.add(message("alice_bob", i));
+        }
+
+        NavigableMap<Long, Frame> out = new TreeMap<>();
+        assertTrue(recent.collect("alice_bob", 2, out));
+        assertEquals(List.of(3L, 4L, 5L), new ArrayList<>(out.keySet()));
+
+        out.clear();
+        assertTrue(recent.collect("alice_bob", 5, out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    void overwrittenMessagesAreReportedAsNotCovered() {
+        RecentMessages recent = new RecentMessages(3, 60000);
+        for (int i = 1; i <= 5; i++) {
+            recent.add(message("alice_bob", i));
+        }
+
+        // 环里只剩3..5，从1之后补发缺了2
+        NavigableMap<Long, Frame> out = new TreeMap<>();
+        assertFalse(recent.collect("alice_bob", 1, out));
+        assertEquals(List.of(3L, 4L, 5L), new ArrayList<>(out.keySet()));
+
+        out.clear();
+        assertTrue(recent.collect("alice_bob", 2, out));
+        assertEquals("m3", out.firstEntry().getValue().body);
+    }
+
+    @Test
+    void coverageUsesLowestSequenceWhenAppendOrderDiffers() {
+        RecentMessages recent = new RecentMessages(10, 60000);
+        for (int sequence : new int[] {2, 1, 4, 3}) {
+            recent.add(message("alice_bob", sequence));
+        }
+
+        NavigableMap<Long, Frame> out = new TreeMap<>();
+        assertTrue(recent.collect("alice_bob", 0, out));
+        assertEquals(List.of(1L, 2L, 3L, 4L), new ArrayList<>(out.keySet()));
+    }
+
+    @Test
+    void conversationsAreKeptSeparately() {
+        RecentMessages recent = new RecentMessages(10, 60000);
+        recent.add(message("alice_bob", 1));
+        recent.add(message("BROADCAST", 1));
+        recent.add(message("BROADCAST", 2));
+
+        NavigableMap<Long, Frame> out = new TreeMap<>();
+        assertTrue(recent.collect("alice_bob", 0, out));
+        assertEquals(1, out.size());
+        assertFalse(recent.collect("alice_carol", 0, new TreeMap<>()));
+        assertEquals(2, recent.getConversationCount());
+    }
+
+    @Test
+    void zeroCapacityKeepsNothing() {
+        RecentMessages recent = new RecentMessages(0, 60000);
+        recent.add(message("alice_bob", 1));
+
+        assertEquals(0, recent.getConversationCount());
+        assertFalse(recent.collect("alice_bob", 0, new TreeMap<>()));
+    }
+
+    @Test
+    void idleConversationsExpire() throws InterruptedException {
+        RecentMessages recent = new RecentMessages(10, 1);
+        recent.add(message("alice_bob", 1));
+        Thread.sleep(20);
+        recent.add(message("BROADCAST", 1));
+
+        recent.expire();
+
+        assertEquals(1, recent.getConversationCount());
+        assertFalse(recent.collect("alice_bob", 0, new TreeMap<>()));
+    }
+
+    private static Frame message(String conversationId, long sequence) {
+        return Frame.chat(sequence, sequence, conversationId, "alice", null, "m" + sequence, 1000);
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 会话恢复令牌的签发、校验和密钥加载
+ */
+class ResumeTokenTest {
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void configure() {
+        System.setProperty("chat.resume.secret", "test-secret");
+    }
+
+    @AfterEach
+    void clear() {
+        System.clearProperty("chat.resume.secret");
+        System.clearProperty("chat.resume.secret.file");
+    }
+
+    @Test
+    void issuedTokenVerifiesToUsername() throws IOException {
+        ResumeToken tokens = ResumeToken.load(1);
+
+        assertEquals("鲍勃", tokens.verify(tokens.issue("鲍勃"), 60000, 0));
+    }
+
+    @Test
+    void tamperedOrMalformedTokensAreRejected() throws IOException {
+        ResumeToken tokens = ResumeToken.load(1);
+        String token = tokens.issue("alice");
+        String[] parts = token.split("\\.");
+        String forged = encode("mallory") + "." + parts[1] + "." + parts[2] + "." + parts[3];
+
+        assertNull(tokens.verify(forged, 60000, 0));
+        assertNull(tokens.verify(token.substring(0, token.length() - 2), 60000, 0));
+        assertNull(tokens.verify("not-a-token", 60000, 0));
+        assertNull(tokens.verify("a.b.c.!!!", 60000, 0));
+        assertNull(tokens.verify(null, 60000, 0));
+    }
+
+    @Test
+    void expiredOrRevokedTokensAreRejected() throws IOException, InterruptedException {
+        ResumeToken tokens = ResumeToken.load(1);
+        String token = tokens.issue("alice");
+        Thread.sleep(20);
+
+        assertNull(tokens.verify(token, 5, 0));
+        assertNull(tokens.verify(token, 60000, System.currentTimeMillis()));
+        assertEquals("alice", tokens.verify(token, 60000, 0));
+    }
+
+    @Test
+    void otherSecretDoesNotVerify() throws IOException {
+        String token = ResumeToken.load(1).issue("alice");
+        System.setProperty("chat.resume.secret", "other-secret");
+
+        assertNull(ResumeToken.load(2).verify(token, 60000, 0));
+    }
+
+    @Test
+    void generatedSecretFileIsReusedAfterRestart() throws IOException {
+        System.clearProperty("chat.resume.secret");
+        Path file = directory.resolve("resume.secret");
+        System.setProperty("chat.resume.secret.file", file.toString());
+
+        String token = ResumeToken.load(1).issue("alice");
+
+        assertTrue(Files.exists(file));
+        assertEquals("alice", ResumeToken.load(1).verify(token, 60000, 0));
+    }
+
+    private static String encode(String username) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8));
+    }
+}
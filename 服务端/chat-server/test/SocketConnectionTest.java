@@ -0,0 +1,143 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 阻塞式连接的写线程：多帧合并为一次写、控制帧单独写出，以及优雅退出时的半关闭
+ * 写线程由测试自己的线程执行，入队和启动的先后由测试控制
+ */
+class SocketConnectionTest {
+
+    private ServerSocket listener;
+    private Socket client;
+    private SocketConnection conn;
+    private Runnable writeLoop;
+    private Thread writer;
+
+    @AfterEach
+    void close() throws Exception {
+        if (conn != null) {
+            conn.close();
+        }
+        if (writer != null) {
+            writer.join(5000);
+        }
+        if (client != null) {
+            client.close();
+        }
+        listener.close();
+    }
+
+    @Test
+    void handOffFlushesQueueThenHalfClosesAndKeepsReading() throws Exception {
+        System.setProperty("chat.resume.secret", "drain-test");
+        ResumeToken tokens;
+        try {
+            tokens = ResumeToken.load(1);
+        } finally {
+            System.clearProperty("chat.resume.secret");
+        }
+        open();
+        conn.send(message(1));
+        conn.send(Frame.reconnect(tokens.issue("alice"), 1500));
+        conn.shutdownOutputAfterFlush();
+        // 半关闭标记之后入队的帧不再写出
+        conn.send(message(2));
+        startWriter();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        Frame reconnect = ClusterNode.readFrame(in);
+        assertEquals(Frame.RECONNECT, reconnect.type);
+        assertEquals(1500, reconnect.timestamp);
+        assertEquals("alice", tokens.verify(reconnect.body, 60000, 0));
+        assertEquals("m1", ClusterNode.readFrame(in).body);
+        assertNull(ClusterNode.readFrame(in));
+
+        // 写方向已关闭，客户端之后发出的数据仍能被读到
+        assertTrue(conn.isOpen());
+        client.getOutputStream().write(42);
+        assertEquals(42, conn.socket.getInputStream().read());
+    }
+
+    @Test
+    void queuedFramesAreWrittenInOneSyscall() throws Exception {
+        open();
+        warmUp();
+        for (int i = 1; i <= 5; i++) {
+            conn.send(message(i));
+        }
+
+        long[] writes = writeAndCount(5);
+
+        assertEquals(1, writes[0]);
+        assertEquals(5, writes[1]);
+    }
+
+    @Test
+    void controlFrameEndsBatch() throws Exception {
+        open();
+        warmUp();
+        for (int i = 1; i <= 4; i++) {
+            conn.send(message(i));
+        }
+        conn.send(Frame.control(Frame.HEARTBEAT_ACK));
+
+        long[] writes = writeAndCount(5);
+
+        // 心跳应答走控制通道先取出，取到后立即写出，不等后面的消息凑批
+        assertEquals(2, writes[0]);
+        assertEquals(5, writes[1]);
+    }
+
+    /**
+     * 启动写线程，客户端读到count帧后关闭连接并等写线程退出
+     * @return 这期间的write调用次数和写出的帧数
+     */
+    private long[] writeAndCount(int count) throws Exception {
+        long syscalls = ServerMetrics.WRITE_SYSCALLS_BLOCKING.get();
+        long frames = ServerMetrics.WRITE_FRAMES_BLOCKING.get();
+        startWriter();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        for (int i = 0; i < count; i++) {
+            ClusterNode.readFrame(in);
+        }
+        conn.close();
+        writer.join(5000);
+        return new long[] {ServerMetrics.WRITE_SYSCALLS_BLOCKING.get() - syscalls,
+            ServerMetrics.WRITE_FRAMES_BLOCKING.get() - frames};
+    }
+
+    // 合并受耗时上限限制，先让编码路径完成类加载和编译，避免第一批因为冷启动被截断
+    private static void warmUp() {
+        for (int i = 0; i < 2000; i++) {
+            FrameCodecTest.encode(message(i), Frame.BINARY_V1);
+        }
+    }
+
+    private void open() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        conn = new SocketConnection(listener.accept(), task -> writeLoop = task);
+        conn.protocolVersion = Frame.BINARY_V1;
+        conn.username = "alice";
+    }
+
+    private void startWriter() {
+        writer = new Thread(writeLoop, "socket-connection-test-writer");
+        writer.start();
+    }
+
+    private static Frame message(long id) {
+        return Frame.chat(id, id, "alice_bob", "bob", "alice", "m" + id, 1000);
+    }
+}
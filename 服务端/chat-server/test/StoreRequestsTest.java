@@ -0,0 +1,212 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 历史消息响应的编码（字段转义和超长时的分页截断），以及聊天消息的分批持久化
+ */
+class StoreRequestsTest {
+
+    @TempDir
+    Path directory;
+
+    private StoreRequests requests;
+
+    @AfterEach
+    void stop() {
+        if (requests != null) {
+            requests.stop();
+        }
+    }
+
+    @Test
+    void persistedMessagesCarryDatabaseIdsInSubmitOrder() throws Exception {
+        MessageStore store = open();
+        requests = new StoreRequests(store, 16, 4, 0);
+        List<Frame> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 1; i <= 6; i++) {
+            requests.persist(message(i), frame -> {
+                delivered.add(frame);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long lastId = 0;
+        for (int i = 0; i < 6; i++) {
+            Frame frame = delivered.get(i);
+            assertEquals("m" + (i + 1), frame.body);
+            assertTrue((frame.flags & Frame.FLAG_STORED) != 0);
+            assertTrue(frame.messageId > lastId);
+            lastId = frame.messageId;
+        }
+        List<MessageStore.Row> rows = store.history("alice", "bob", 0, 10);
+        assertEquals(6, rows.size());
+        assertEquals(lastId, rows.get(rows.size() - 1).id);
+    }
+
+    @Test
+    void backlogIsWrittenInBatchesOfBatchMax() throws Exception {
+        requests = new StoreRequests(open(), 16, 4, 0);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(10);
+        long batches = ServerMetrics.STORE_PERSIST_BATCHES.get();
+
+        // 第一条的回调占住存储线程，其余9条积压
+        requests.persist(message(1), frame -> {
+            blocked.countDown();
+            await(release);
+            done.countDown();
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 2; i <= 10; i++) {
+            requests.persist(message(i), frame -> done.countDown());
+        }
+        assertEquals(9, requests.getPendingMessages());
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // 1 + 4 + 4 + 1
+        assertEquals(4, ServerMetrics.STORE_PERSIST_BATCHES.get() - batches);
+        assertEquals(0, requests.getPendingMessages());
+    }
+
+    @Test
+    void pendingLimitReportsBacklog() throws Exception {
+        requests = new StoreRequests(open(), 16, 4, 3);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        requests.persist(message(1), frame -> {
+            blocked.countDown();
+            await(release);
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        requests.persist(message(2), frame -> { });
+        requests.persist(message(3), frame -> { });
+        assertFalse(requests.isBacklogged());
+        requests.persist(message(4), frame -> { });
+        assertTrue(requests.isBacklogged());
+        release.countDown();
+    }
+
+    @Test
+    void failedBatchDeliversOriginalFrames() throws Exception {
+        MessageStore store = open();
+        requests = new StoreRequests(store, 16, 4, 0);
+        store.close();
+        List<Frame> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+
+        Frame first = message(1);
+        requests.persist(first, frame -> {
+            delivered.add(frame);
+            done.countDown();
+        });
+        requests.persist(message(2), frame -> {
+            delivered.add(frame);
+            done.countDown();
+        });
+
+        // 保存失败的消息照常投递，只是不带数据库ID
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(first, delivered.get(0));
+        assertEquals(0, delivered.get(1).flags & Frame.FLAG_STORED);
+    }
+
+    @Test
+    void persistAfterStopDeliversImmediately() throws Exception {
+        requests = new StoreRequests(open(), 16, 4, 0);
+        requests.stop();
+        List<Frame> delivered = new ArrayList<>();
+
+        requests.persist(message(1), delivered::add);
+
+        assertEquals(1, delivered.size());
+        assertEquals(0, requests.getPendingMessages());
+        requests = null;
+    }
+
+    @Test
+    void rowsAreTabSeparatedOldestFirst() {
+        List<MessageStore.Row> rows = List.of(
+            new MessageStore.Row(7, "alice", "bob", "你好", "2024-01-01 10:00:00", true),
+            new MessageStore.Row(9, "bob", "alice", "在吗", "2024-01-01 10:01:00", false));
+
+        assertEquals("7\talice\tbob\t2024-01-01 10:00:00\t1\t你好\n"
+            + "9\tbob\talice\t2024-01-01 10:01:00\t0\t在吗", StoreRequests.encodeRows(rows));
+    }
+
+    @Test
+    void separatorsInFieldsAreEscaped() {
+        List<MessageStore.Row> rows = List.of(
+            new MessageStore.Row(1, "a\tb", "all", "第一行\n第二行\t\\结尾", "t", false));
+
+        assertEquals("1\ta\\tb\tall\tt\t0\t第一行\\n第二行\\t\\\\结尾", StoreRequests.encodeRows(rows));
+    }
+
+    @Test
+    void missingFieldsAreEncodedEmpty() {
+        List<MessageStore.Row> rows = List.of(new MessageStore.Row(3, "alice", null, null, null, false));
+
+        assertEquals("3\talice\t\t\t0\t", StoreRequests.encodeRows(rows));
+        assertEquals("", StoreRequests.encodeRows(List.of()));
+    }
+
+    @Test
+    void oversizedPageDropsOldestRows() {
+        String content = "x".repeat(100 * 1024);
+        List<MessageStore.Row> rows = new ArrayList<>();
+        for (int id = 1; id <= 20; id++) {
+            rows.add(new MessageStore.Row(id, "alice", "bob", content, "t", false));
+        }
+
+        String body = StoreRequests.encodeRows(rows);
+
+        // 保留最新的几条，客户端以其中最小的ID继续向前翻页
+        String[] lines = body.split("\n");
+        assertTrue(lines.length < rows.size());
+        assertTrue(FrameCodec.utf8Length(body) <= FrameCodec.MAX_FRAME_BYTES - 4096);
+        assertTrue(lines[0].startsWith((21 - lines.length) + "\t"));
+        assertTrue(lines[lines.length - 1].startsWith("20\t"));
+    }
+
+    @Test
+    void singleOversizedRowIsStillReturned() {
+        String content = "x".repeat(FrameCodec.MAX_FRAME_BYTES);
+        List<MessageStore.Row> rows = List.of(new MessageStore.Row(5, "alice", "bob", content, "t", false));
+
+        assertTrue(StoreRequests.encodeRows(rows).startsWith("5\t"));
+    }
+
+    private MessageStore open() throws SQLException {
+        return new MessageStore("jdbc:sqlite:" + directory.resolve("messages.db"));
+    }
+
+    private static Frame message(int i) {
+        return Frame.chat(i, i, "alice_bob", "alice", "bob", "m" + i, 1700000000000L + i);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 令牌桶的突发、补充、上限和欠账
+ */
+class TokenBucketTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 每秒10个，最多攒5个：一个令牌100毫秒
+    private TokenBucket bucket;
+    private long start;
+
+    @BeforeEach
+    void create() {
+        bucket = new TokenBucket(10, 5);
+        start = System.nanoTime();
+    }
+
+    @Test
+    void fullBurstIsAvailableImmediately() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.delayNanos(1, start));
+            bucket.take(1);
+        }
+
+        assertAbout(100, bucket.delayNanos(1, start));
+    }
+
+    @Test
+    void tokensRefillWithElapsedTime() {
+        bucket.take(5);
+
+        assertAbout(200, bucket.delayNanos(2, start));
+        assertEquals(0, bucket.delayNanos(2, start + 200 * MILLIS));
+        assertAbout(100, bucket.delayNanos(3, start + 200 * MILLIS));
+    }
+
+    @Test
+    void idleTimeAccumulatesAtMostBurst() {
+        long later = start + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.delayNanos(1, later));
+            bucket.take(1);
+        }
+
+        assertAbout(100, bucket.delayNanos(1, later));
+    }
+
+    @Test
+    void requestLargerThanBurstPassesWhenFullAndLeavesDebt() {
+        // 8个令牌的请求在攒满5个时放行，欠下的3个令牌之后先还
+        assertEquals(0, bucket.delayNanos(8, start));
+        bucket.take(8);
+
+        assertAbout(400, bucket.delayNanos(1, start));
+        assertEquals(0, bucket.delayNanos(1, start + 400 * MILLIS));
+    }
+
+    @Test
+    void delayDoesNotConsumeTokens() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.delayNanos(5, start));
+        }
+    }
+
+    @Test
+    void rejectsNonPositiveRateOrBurst() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 5));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(10, 0));
+    }
+
+    // 构造到取start之间会补充极少的令牌，允许1毫秒误差
+    private static void assertAbout(long expectedMillis, long actualNanos) {
+        long actualMillis = Math.round(actualNanos / (double) MILLIS);
+        assertTrue(Math.abs(expectedMillis - actualMillis) <= 1,
+            "期望约" + expectedMillis + "ms，实际" + actualMillis + "ms");
+    }
+}
@@ -0,0 +1,166 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 预写日志的写入、滚动、启动恢复和写入失败回滚
+ */
+class WriteAheadLogTest {
+
+    // 所有测试消息的正文等长，每条记录的字节数相同
+    private static final long RECORD_BYTES = 16 + FrameCodec.encodedLength(message(1), Frame.BINARY_V1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordsAreReadBackInOrderAcrossSegments() throws Exception {
+        WriteAheadLog wal = open(2 * RECORD_BYTES, 256, 0);
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            wal.append(message(i), lsns::add);
+        }
+        commit(wal);
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), lsns);
+        assertEquals(3, wal.listSegments().size());
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), readAll(wal));
+    }
+
+    @Test
+    void oldSegmentsBeyondRetainCountAreDeleted() throws Exception {
+        WriteAheadLog wal = open(RECORD_BYTES, 256, 2);
+        for (int i = 1; i <= 5; i++) {
+            wal.append(message(i), null);
+        }
+        commit(wal);
+
+        assertEquals(2, wal.listSegments().size());
+        assertEquals(List.of("m4", "m5"), readAll(wal));
+    }
+
+    @Test
+    void recoveryTruncatesTornTailAndContinuesSequence() throws Exception {
+        WriteAheadLog wal = open(1024 * 1024, 256, 0);
+        wal.append(message(1), null);
+        wal.append(message(2), null);
+        commit(wal);
+        Path segment = wal.listSegments().get(0);
+        long size = Files.size(segment);
+        // 崩溃时只写了一半的记录
+        Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        WriteAheadLog recovered = open(1024 * 1024, 256, 0);
+        assertEquals(size, Files.size(segment));
+        List<Long> lsns = new ArrayList<>();
+        recovered.append(message(3), lsns::add);
+        commit(recovered);
+
+        assertEquals(List.of(3L), lsns);
+        assertEquals(List.of("m1", "m2", "m3"), readAll(recovered));
+    }
+
+    @Test
+    void readSegmentStopsAtChecksumMismatch() throws Exception {
+        WriteAheadLog wal = open(1024 * 1024, 256, 0);
+        for (int i = 1; i <= 3; i++) {
+            wal.append(message(i), null);
+        }
+        commit(wal);
+        Path segment = wal.listSegments().get(0);
+        // 改坏第二条记录正文的最后一个字节
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'x'}), 2 * RECORD_BYTES - 1);
+        }
+
+        assertEquals(List.of("m1"), readAll(wal));
+    }
+
+    @Test
+    void failedBatchIsRolledBack() throws Exception {
+        // 每段两条记录：m1 m2 在第1段，m3 在第3段
+        WriteAheadLog wal = open(2 * RECORD_BYTES, 256, 0);
+        for (int i = 1; i <= 3; i++) {
+            wal.append(message(i), null);
+        }
+        commit(wal);
+
+        WriteAheadLog failing = open(2 * RECORD_BYTES, 3, 0);
+        // 同名目录让滚动到第5段失败：m4 已经写入第3段，m5 滚动时失败，这一批都不确认
+        Path blocker = Files.createDirectory(directory.resolve(String.format("wal-%020d.log", 5)));
+        List<String> durable = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 4; i <= 7; i++) {
+            String body = "m" + i;
+            failing.append(message(i), lsn -> {
+                durable.add(body);
+                lsns.add(lsn);
+            });
+        }
+        // 批大小为3：m4 m5 m6 一批失败，m7 单独一批，从回滚后的序号继续写入第3段
+        commit(failing);
+        Files.delete(blocker);
+
+        assertEquals(List.of("m7"), durable);
+        assertEquals(List.of(4L), lsns);
+        assertEquals(List.of("m1", "m2", "m3", "m7"), readAll(failing));
+
+        WriteAheadLog recovered = open(2 * RECORD_BYTES, 256, 0);
+        lsns.clear();
+        recovered.append(message(8), lsns::add);
+        commit(recovered);
+        assertEquals(List.of(5L), lsns);
+    }
+
+    @Test
+    void toStringDoesNotResetMaxSync() throws Exception {
+        WriteAheadLog wal = open(1024 * 1024, 256, 0);
+        wal.append(message(1), null);
+        commit(wal);
+
+        String first = wal.toString();
+        assertEquals(first, wal.toString());
+
+        // 只有显式取出时才重置
+        assertTrue(wal.snapshotAndResetMaxSync() > 0);
+        assertEquals(0, wal.snapshotAndResetMaxSync());
+        assertTrue(wal.report().endsWith("最大fsync=0.00ms"));
+    }
+
+    private WriteAheadLog open(long segmentBytes, int maxBatch, int retainSegments) throws IOException {
+        return new WriteAheadLog(directory, WriteAheadLog.SyncPolicy.BATCH, maxBatch, 0, segmentBytes, 64, retainSegments);
+    }
+
+    // 提交线程处理完已追加的消息后关闭文件
+    private static void commit(WriteAheadLog wal) throws InterruptedException {
+        Thread committer = new Thread(wal);
+        wal.stop();
+        committer.start();
+        committer.join();
+    }
+
+    private static List<String> readAll(WriteAheadLog wal) throws IOException {
+        List<String> bodies = new ArrayList<>();
+        for (Path segment : wal.listSegments()) {
+            if (Files.isRegularFile(segment)) {
+                WriteAheadLog.readSegment(segment, frame -> bodies.add(frame.body));
+            }
+        }
+        return bodies;
+    }
+
+    private static Frame message(int i) {
+        return Frame.chat(i, i, "alice_bob", "alice", "bob", "m" + i, 1000L + i);
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 协议级负载生成器
+ * 打开大量真实的TCP连接，按聊天服务器的文本协议登录（LOGIN）、发送私聊（PRIVATE）和广播（MSG）、定期发送心跳（HEARTBEAT），
+ * 可以压测ChatServer，也可以压测只支持广播的ChatServerOptimized（target=optimized）。
+ *
+ * 发送端是开环的：每个连接按固定间隔排定发送时间，落后时立即补发，但消息里带的是排定的发送时间，
+ * 这样服务器卡顿造成的排队也计入延迟，不会因为发送端被拖慢而漏掉（避免协同遗漏）。
+ * 消息内容形如 LG|<运行ID>|<排定发送时间ns>|<填充>，接收端在同一进程内用System.nanoTime()计算端到端延迟。
+ *
+ * 运行分三个阶段：建立连接 -> 预热（不统计）-> 测量，测量结束后再等待drain秒收取在途消息。
+ * 输出吞吐、私聊/广播端到端延迟和心跳往返时间的p50/p90/p99/p999，最后一行是便于脚本解析的RESULT行。
+ * 设置了max.p99.ms等阈值时，任一项不达标则以退出码1结束，可用作性能回归门禁。
+ *
+ * 用法: java LoadGenerator [参数=值 ...]
+ *   host=127.0.0.1 port=8888        服务器地址
+ *   target=chat|optimized           optimized时不发私聊，登录不带参数
+ *   connections=1000                连接数
+ *   connect.rate=500                每秒新建的连接数
+ *   rate=2000                       所有连接合计每秒发送的消息数
+ *   private.ratio=0.9               私聊消息的比例，其余为广播
+ *   sizes=64:70,512:25,4096:5       消息字节数及权重
+ *   warmup=5 duration=30 drain=3    各阶段秒数
+ *   heartbeat.ms=10000              心跳间隔
+ *   max.p99.ms= max.p999.ms= min.throughput= max.loss=   回归门禁阈值，不设置则不检查
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "LG|";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("参数格式应为 名称=值: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean optimized;
+    private final int connectionCount;
+    private final int connectRate;
+    private final double rate;
+    private final double privateRatio;
+    private final int[] sizes;
+    private final int[] sizeWeights;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int drainSeconds;
+    private final long heartbeatNanos;
+    private final Map<String, String> gates = new LinkedHashMap<>();
+
+    // 每次运行的用户名和消息都带运行ID，服务器上残留的旧连接和消息不会混进统计
+    private final String runId = Long.toString(System.currentTimeMillis() % 100000, 36);
+    private final List<Client> clients = new ArrayList<>();
+
+    // 测量阶段的起止时间（nanoTime），排定发送时间在此区间内的消息才计入统计
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+    private volatile boolean sending = true;
+
+    private final LongAdder privateSent = new LongAdder();
+    private final LongAdder broadcastSent = new LongAdder();
+    // 排定发送时间在测量区间内的消息数，期望投递数按它计算
+    private final LongAdder measuredPrivateSends = new LongAdder();
+    private final LongAdder measuredBroadcastSends = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // 服务器回复THROTTLED（超出用户配额或分发队列积压）而没有处理的消息，这些消息计入丢失
+    private final LongAdder throttled = new LongAdder();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram heartbeatRtt = new LatencyHistogram();
+
+    LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(options.getOrDefault("port", "8888"));
+        optimized = "optimized".equalsIgnoreCase(options.getOrDefault("target", "chat"));
+        connectionCount = Integer.parseInt(options.getOrDefault("connections", "1000"));
+        connectRate = Integer.parseInt(options.getOrDefault("connect.rate", "500"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+        privateRatio = optimized ? 0 : Double.parseDouble(options.getOrDefault("private.ratio", "0.9"));
+        warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        drainSeconds = Integer.parseInt(options.getOrDefault("drain", "3"));
+        heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getOrDefault("heartbeat.ms", "10000")));
+
+        String[] entries = options.getOrDefault("sizes", "64:70,512:25,4096:5").split(",");
+        sizes = new int[entries.length];
+        sizeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].split(":");
+            sizes[i] = Integer.parseInt(parts[0].trim());
+            total += parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            sizeWeights[i] = total;
+        }
+
+        for (String gate : new String[] {"max.p99.ms", "max.p999.ms", "min.throughput", "max.loss"}) {
+            if (options.containsKey(gate)) {
+                gates.put(gate, options.get(gate));
+            }
+        }
+    }
+
+    boolean run() throws InterruptedException {
+        System.out.println(String.format("负载生成: %s:%d (%s), 连接数=%d, 速率=%.0f条/秒, 私聊比例=%.2f, 运行ID=%s",
+            host, port, optimized ? "ChatServerOptimized" : "ChatServer", connectionCount, rate, privateRatio, runId));
+
+        // 每个连接一个读线程和一个发送线程，都用虚拟线程，几千个连接不需要几千个平台线程
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        long connectInterval = connectRate > 0 ? TimeUnit.SECONDS.toNanos(1) / connectRate : 0;
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connectionCount; i++) {
+            LockSupport.parkNanos(connectStart + i * connectInterval - System.nanoTime());
+            Client client = new Client(clients.size(), "lg" + runId + "_" + i);
+            try {
+                client.connect();
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                threads.execute(client::readLoop);
+            } catch (IOException e) {
+                connectFailures.increment();
+            }
+        }
+        int connected = clients.size();
+        System.out.println(String.format("已建立连接 %d 个，失败 %d 个，耗时 %.1f 秒",
+            connected, connectFailures.sum(), (System.nanoTime() - connectStart) / 1e9));
+        if (connected == 0) {
+            threads.shutdownNow();
+            return false;
+        }
+
+        // 发送时间在一个发送间隔内均匀错开，避免所有连接同时发送
+        long interval = (long) (connected * 1e9 / rate);
+        long sendStart = System.nanoTime();
+        for (Client client : clients) {
+            long offset = ThreadLocalRandom.current().nextLong(Math.max(interval, 1));
+            threads.execute(() -> client.sendLoop(sendStart + offset, interval));
+        }
+
+        sleepSeconds(warmupSeconds);
+        measureStart = System.nanoTime();
+        System.out.println("预热结束，开始测量 " + durationSeconds + " 秒");
+        sleepSeconds(durationSeconds);
+        measureEnd = System.nanoTime();
+        sending = false;
+        sleepSeconds(drainSeconds);
+
+        for (Client client : clients) {
+            client.close();
+        }
+        threads.shutdownNow();
+        threads.awaitTermination(5, TimeUnit.SECONDS);
+
+        return report(connected);
+    }
+
+    /**
+     * 输出结果并检查门禁阈值
+     * 期望投递数：私聊每条1次；广播每条发给所有在线连接（包括发送者自己）
+     */
+    private boolean report(int connected) {
+        double seconds = (measureEnd - measureStart) / 1e9;
+        long sent = privateSent.sum() + broadcastSent.sum();
+        long measuredPrivate = measuredPrivateSends.sum();
+        long measuredBroadcast = measuredBroadcastSends.sum();
+        long measuredSent = measuredPrivate + measuredBroadcast;
+        long expected = measuredPrivate + measuredBroadcast * (long) connected;
+        long delivered = privateLatency.count() + broadcastLatency.count();
+        double loss = expected > 0 ? Math.max(0, 1 - (double) delivered / expected) : 0;
+        double throughput = measuredSent / seconds;
+
+        System.out.println();
+        System.out.println(String.format("测量时长: %.1f 秒, 全程发送: %d 条", seconds, sent));
+        System.out.println(String.format("发送吞吐: %.0f 条/秒 (私聊 %d, 广播 %d)",
+            throughput, measuredPrivate, measuredBroadcast));
+        System.out.println(String.format("投递吞吐: %.0f 次/秒, 投递 %d / 期望 %d, 丢失率 %.4f%%",
+            delivered / seconds, delivered, expected, loss * 100));
+        System.out.println(String.format("连接失败 %d, 断开 %d, 服务器ERROR %d, 被限流 %d",
+            connectFailures.sum(), disconnects.sum(), errors.sum(), throttled.sum()));
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s",
+            "延迟(ms)", "样本数", "p50", "p90", "p99", "p999", "最大"));
+        System.out.println(privateLatency.format("私聊"));
+        System.out.println(broadcastLatency.format("广播"));
+        System.out.println(heartbeatRtt.format("心跳往返"));
+
+        LatencyHistogram overall = new LatencyHistogram();
+        overall.add(privateLatency);
+        overall.add(broadcastLatency);
+        double p99 = overall.percentile(0.99) / 1e6;
+        double p999 = overall.percentile(0.999) / 1e6;
+
+        boolean passed = true;
+        for (Map.Entry<String, String> gate : gates.entrySet()) {
+            double limit = Double.parseDouble(gate.getValue());
+            double actual;
+            boolean ok;
+            switch (gate.getKey()) {
+                case "max.p99.ms": actual = p99; ok = actual <= limit; break;
+                case "max.p999.ms": actual = p999; ok = actual <= limit; break;
+                case "min.throughput": actual = throughput; ok = actual >= limit; break;
+                default: actual = loss; ok = actual <= limit; break;
+            }
+            System.out.println(String.format("门禁 %s=%s: 实际 %.4f %s", gate.getKey(), gate.getValue(), actual, ok ? "通过" : "未通过"));
+            passed &= ok;
+        }
+
+        System.out.println(String.format(
+            "RESULT connections=%d throughput=%.1f delivered_per_sec=%.1f loss=%.6f p50_ms=%.3f p99_ms=%.3f p999_ms=%.3f max_ms=%.3f throttled=%d passed=%s",
+            connected, throughput, delivered / seconds, loss, overall.percentile(0.5) / 1e6, p99, p999,
+            overall.max() / 1e6, throttled.sum(), passed));
+        return passed;
+    }
+
+    private static void sleepSeconds(int seconds) throws InterruptedException {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    private int pickSize(ThreadLocalRandom random) {
+        int r = random.nextInt(sizeWeights[sizeWeights.length - 1]);
+        for (int i = 0; i < sizeWeights.length; i++) {
+            if (r < sizeWeights[i]) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    private boolean inMeasureWindow(long scheduled) {
+        return scheduled >= measureStart && scheduled < measureEnd;
+    }
+
+    /**
+     * 一个模拟客户端：读线程解析服务器下发的消息，发送线程按排定时间发送聊天消息和心跳
+     */
+    private class Client {
+        final int index;
+        final String username;
+        Socket socket;
+        BufferedReader in;
+        Writer out;
+        // 最近一次心跳的发送时间，收到HEARTBEAT_ACK时计算往返时间
+        volatile long heartbeatSentAt = 0;
+
+        Client(int index, String username) {
+            this.index = index;
+            this.username = username;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            // 请求在线状态增量，避免每次登录都向所有连接推送完整的用户列表
+            out.write("LOGIN:" + username + (optimized ? "" : ";presence=1") + "\n");
+            out.flush();
+            socket.setSoTimeout(10000);
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("LOGIN_SUCCESS")) {
+                socket.close();
+                throw new IOException("登录失败: " + reply);
+            }
+            socket.setSoTimeout(0);
+        }
+
+        void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    if (line.startsWith("MSG:")) {
+                        onMessage(line, now);
+                    } else if (line.equals("HEARTBEAT_ACK")) {
+                        long sentAt = heartbeatSentAt;
+                        if (sentAt != 0) {
+                            heartbeatRtt.record(now - sentAt);
+                        }
+                    } else if (line.startsWith("THROTTLED")) {
+                        throttled.increment();
+                    } else if (line.startsWith("ERROR")) {
+                        errors.increment();
+                    }
+                }
+            } catch (IOException e) {
+                // 连接断开
+            }
+            if (sending) {
+                disconnects.increment();
+            }
+        }
+
+        // 私聊: MSG:sender:receiver:LG|run|ns|pad:time，广播: MSG:sender:LG|run|ns|pad:time
+        private void onMessage(String line, long now) {
+            int marker = line.indexOf(MARKER);
+            if (marker < 0) {
+                return;
+            }
+            int runEnd = line.indexOf('|', marker + MARKER.length());
+            int timeEnd = runEnd < 0 ? -1 : line.indexOf('|', runEnd + 1);
+            if (timeEnd < 0 || !line.regionMatches(marker + MARKER.length(), runId, 0, runId.length())) {
+                return;
+            }
+            long scheduled = Long.parseLong(line, runEnd + 1, timeEnd, 10);
+            if (!inMeasureWindow(scheduled)) {
+                return;
+            }
+            // 广播消息的冒号分隔字段比私聊少一个
+            boolean isPrivate = line.indexOf(':', line.indexOf(':', 4) + 1) < marker;
+            (isPrivate ? privateLatency : broadcastLatency).record(now - scheduled);
+        }
+
+        void sendLoop(long firstSend, long interval) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long next = firstSend;
+            long nextHeartbeat = System.nanoTime() + heartbeatNanos;
+            StringBuilder message = new StringBuilder(8192);
+            try {
+                while (sending && !socket.isClosed()) {
+                    LockSupport.parkNanos(Math.min(next, nextHeartbeat) - System.nanoTime());
+                    long now = System.nanoTime();
+                    if (now >= nextHeartbeat) {
+                        heartbeatSentAt = now;
+                        out.write("HEARTBEAT\n");
+                        out.flush();
+                        nextHeartbeat = now + heartbeatNanos;
+                    }
+                    if (now < next) {
+                        continue;
+                    }
+                    boolean isPrivate = random.nextDouble() < privateRatio && clients.size() > 1;
+                    message.setLength(0);
+                    if (isPrivate) {
+                        int target = random.nextInt(clients.size() - 1);
+                        if (target >= index) {
+                            target++;
+                        }
+                        message.append("PRIVATE:").append(clients.get(target).username).append(':');
+                    } else {
+                        message.append("MSG:");
+                    }
+                    // 带上排定的发送时间，而不是实际发送时间
+                    message.append(MARKER).append(runId).append('|').append(next).append('|');
+                    int size = pickSize(random);
+                    while (message.length() < size) {
+                        message.append('x');
+                    }
+                    message.append('\n');
+                    out.append(message);
+                    out.flush();
+                    (isPrivate ? privateSent : broadcastSent).increment();
+                    if (inMeasureWindow(next)) {
+                        (isPrivate ? measuredPrivateSends : measuredBroadcastSends).increment();
+                    }
+                    next += interval;
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+
+    /**
+     * 对数-线性延迟直方图（纳秒），每个2的幂区间分16个子桶，相对误差不超过1/16
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = SUB_BUCKETS + 59 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private volatile long max = 0;
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucketOf(nanos));
+            total.increment();
+            if (nanos > max) {
+                synchronized (this) {
+                    if (nanos > max) {
+                        max = nanos;
+                    }
+                }
+            }
+        }
+
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.addAndGet(i, other.counts.get(i));
+            }
+            total.add(other.count());
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double quantile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        String format(String name) {
+            return String.format("%-10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f", name, count(),
+                percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6,
+                percentile(0.999) / 1e6, max / 1e6);
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long top = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+}
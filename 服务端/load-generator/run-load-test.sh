@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# 编译并运行负载生成器，参数原样传给LoadGenerator，例如:
+#   ./run-load-test.sh port=8888 connections=2000 rate=5000 duration=60 max.p99.ms=200 max.loss=0.001
+#   ./run-load-test.sh target=optimized port=8888 connections=500 rate=200
+# 门禁未通过时退出码为1，可直接用于CI；最后一行RESULT便于脚本收集结果
+# 需要JDK 21（虚拟线程）
+
+cd "$(dirname "$0")"
+
+javac -encoding UTF-8 LoadGenerator.java
+if [ $? -ne 0 ]; then
+    echo "❌ 编译失败"
+    exit 2
+fi
+
+# 大量连接需要足够的文件描述符
+ulimit -n 65536 2>/dev/null
+
+java -Xms512m -Xmx2g -Dfile.encoding=UTF-8 -Dstdout.encoding=UTF-8 LoadGenerator "$@"